@@ -0,0 +1,81 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.guice.v1;
+
+import com.google.cloud.trace.sink.TraceSink;
+import com.google.cloud.trace.v1.BatchingTraceSinkV1;
+import com.google.cloud.trace.v1.consumer.TraceConsumer;
+import com.google.cloud.trace.v1.producer.TraceProducer;
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.multibindings.Multibinder;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+public class BatchingTraceSinkV1Module extends AbstractModule {
+  private static final int DEFAULT_BATCH_SIZE = 32;
+  private static final long DEFAULT_MAX_BATCH_DELAY_MILLIS = 1000;
+
+  private final int batchSize;
+  private final long maxBatchDelayMillis;
+
+  public BatchingTraceSinkV1Module() {
+    this(DEFAULT_BATCH_SIZE, DEFAULT_MAX_BATCH_DELAY_MILLIS);
+  }
+
+  public BatchingTraceSinkV1Module(int batchSize, long maxBatchDelayMillis) {
+    this.batchSize = batchSize;
+    this.maxBatchDelayMillis = maxBatchDelayMillis;
+  }
+
+  @Override
+  protected void configure() {
+    Multibinder<TraceSink> setBinder = Multibinder.newSetBinder(binder(), TraceSink.class);
+    setBinder.addBinding()
+        .toProvider(new BatchingTraceSinkV1Provider(batchSize, maxBatchDelayMillis))
+        .in(Singleton.class);
+  }
+
+  private static class BatchingTraceSinkV1Provider implements Provider<BatchingTraceSinkV1> {
+    private final int batchSize;
+    private final long maxBatchDelayMillis;
+    private String projectId;
+    private TraceConsumer traceConsumer;
+    private ScheduledExecutorService scheduler;
+
+    BatchingTraceSinkV1Provider(int batchSize, long maxBatchDelayMillis) {
+      this.batchSize = batchSize;
+      this.maxBatchDelayMillis = maxBatchDelayMillis;
+    }
+
+    @Inject
+    void setDependencies(@ProjectId String projectId, TraceConsumer traceConsumer,
+        ScheduledExecutorService scheduler) {
+      this.projectId = projectId;
+      this.traceConsumer = traceConsumer;
+      this.scheduler = scheduler;
+    }
+
+    @Override
+    public BatchingTraceSinkV1 get() {
+      BatchingTraceSinkV1 sink = new BatchingTraceSinkV1(projectId, new TraceProducer(),
+          traceConsumer, batchSize, maxBatchDelayMillis, scheduler);
+      sink.start();
+      return sink;
+    }
+  }
+}
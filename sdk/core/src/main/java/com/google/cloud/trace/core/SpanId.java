@@ -16,7 +16,6 @@ package com.google.cloud.trace.core;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.primitives.UnsignedLongs;
-import java.util.Objects;
 
 /**
  * A class that represents a span identifier. A span identifier is a 64-bit, unsigned integer.
@@ -59,7 +58,7 @@ public class SpanId {
 
   @Override
   public int hashCode() {
-    return Objects.hashCode(spanId);
+    return (int) (spanId ^ (spanId >>> 32));
   }
 
   @Override
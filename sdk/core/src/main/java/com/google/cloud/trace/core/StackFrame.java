@@ -28,6 +28,7 @@ public class StackFrame {
   private final String fileName;
   private final Integer lineNumber;
   private final Integer columnNumber;
+  private final int hashCode;
 
   /**
    * Creates a stack frame.
@@ -45,6 +46,9 @@ public class StackFrame {
     this.fileName = fileName;
     this.lineNumber = lineNumber;
     this.columnNumber = columnNumber;
+    // Stack frames are compared often when stack traces are cached, so the hash code is computed
+    // once.
+    this.hashCode = Objects.hash(className, methodName, fileName, lineNumber, columnNumber);
   }
 
   @Override
@@ -58,7 +62,8 @@ public class StackFrame {
     }
 
     StackFrame that = (StackFrame)obj;
-    return Objects.equals(className, that.className)
+    return hashCode == that.hashCode
+        && Objects.equals(className, that.className)
         && Objects.equals(methodName, that.methodName)
         && Objects.equals(fileName, that.fileName)
         && Objects.equals(lineNumber, that.lineNumber)
@@ -67,7 +72,7 @@ public class StackFrame {
 
   @Override
   public int hashCode() {
-    return Objects.hash(className, methodName, fileName, lineNumber, columnNumber);
+    return hashCode;
   }
 
   @Override
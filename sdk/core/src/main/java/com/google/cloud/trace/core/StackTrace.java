@@ -21,6 +21,7 @@ import java.util.List;
 
 /**
  * A class that represents a stack trace. A stack trace is composed of a collection of stack frames.
+ * Stack traces with equal stack frames are equal, so stack traces can be used as cache keys.
  *
  * @see StackFrame
  */
@@ -51,6 +52,17 @@ public class StackTrace {
       return this;
     }
 
+    /**
+     * Adds a stack frame.
+     *
+     * @param stackFrame the stack frame.
+     * @return this.
+     */
+    public Builder add(StackFrame stackFrame) {
+      stackFrames.add(stackFrame);
+      return this;
+    }
+
     /**
      * Builds a new stack trace.
      *
@@ -71,9 +83,11 @@ public class StackTrace {
   }
 
   private final ImmutableList<StackFrame> stackFrames;
+  private final int hashCode;
 
   private StackTrace(ImmutableList<StackFrame> stackFrames) {
     this.stackFrames = stackFrames;
+    this.hashCode = stackFrames.hashCode();
   }
 
   /**
@@ -85,6 +99,25 @@ public class StackTrace {
     return stackFrames;
   }
 
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+
+    if (!(obj instanceof StackTrace)) {
+      return false;
+    }
+
+    StackTrace that = (StackTrace)obj;
+    return hashCode == that.hashCode && stackFrames.equals(that.stackFrames);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
   @Override
   public String toString() {
     return MoreObjects.toStringHelper(this)
@@ -14,8 +14,12 @@
 
 package com.google.cloud.trace.core;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
- * Utilities for creating stack traces from throwables.
+ * Utilities for creating stack traces from throwables. The stack frames created for the stack
+ * trace elements of throwables are interned, so the frames of call sites that are traced repeatedly
+ * are shared instead of created again for every stack trace.
  *
  * @see StackFrame
  * @see StackTrace
@@ -23,6 +27,11 @@ package com.google.cloud.trace.core;
  * @see Throwable
  */
 public class ThrowableStackTraceHelper {
+  // Bounds the number of interned stack frames. Frames beyond the bound are created each time.
+  private static final int MAX_INTERNED_FRAMES = 8192;
+  private static final ConcurrentHashMap<StackTraceElement, StackFrame> internedFrames =
+      new ConcurrentHashMap<StackTraceElement, StackFrame>();
+
   /**
    * Generates a new stack trace builder from the given throwable.
    *
@@ -42,15 +51,36 @@ public class ThrowableStackTraceHelper {
    */
   public static StackTrace.Builder addFrames(StackTrace.Builder builder, Throwable throwable) {
     for (StackTraceElement element : throwable.getStackTrace()) {
+      builder.add(toStackFrame(element));
+    }
+    return builder;
+  }
+
+  /**
+   * Returns the stack frame for a stack trace element, reusing a previously created stack frame
+   * for an equal stack trace element if there is one.
+   *
+   * @param element a stack trace element.
+   * @return the stack frame.
+   */
+  public static StackFrame toStackFrame(StackTraceElement element) {
+    StackFrame stackFrame = internedFrames.get(element);
+    if (stackFrame == null) {
       Integer lineNumber;
       if (element.getLineNumber() < 0) {
         lineNumber = null;
       } else {
         lineNumber = element.getLineNumber();
       }
-      builder.add(
+      stackFrame = new StackFrame(
           element.getClassName(), element.getMethodName(), element.getFileName(), lineNumber, null);
+      if (internedFrames.size() < MAX_INTERNED_FRAMES) {
+        StackFrame existing = internedFrames.putIfAbsent(element, stackFrame);
+        if (existing != null) {
+          stackFrame = existing;
+        }
+      }
     }
-    return builder;
+    return stackFrame;
   }
 }
@@ -0,0 +1,65 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.core;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class StackTraceTest {
+  @Test
+  public void testEquals() {
+    StackTrace first = StackTrace.builder()
+        .add("Class", "method", "Class.java", 10, null)
+        .build();
+    StackTrace second = StackTrace.builder()
+        .add("Class", "method", "Class.java", 10, null)
+        .build();
+    StackTrace other = StackTrace.builder()
+        .add("Class", "method", "Class.java", 11, null)
+        .build();
+
+    assertThat(first).isEqualTo(second);
+    assertThat(first.hashCode()).isEqualTo(second.hashCode());
+    assertThat(first).isNotEqualTo(other);
+  }
+
+  @Test
+  public void testInternsStackFrames() {
+    StackTraceElement element = new StackTraceElement("Class", "method", "Class.java", 10);
+
+    StackFrame stackFrame = ThrowableStackTraceHelper.toStackFrame(element);
+
+    assertThat(ThrowableStackTraceHelper.toStackFrame(
+        new StackTraceElement("Class", "method", "Class.java", 10))).isSameAs(stackFrame);
+    assertThat(stackFrame.getLineNumber()).isEqualTo(10);
+  }
+
+  @Test
+  public void testThrowableStackTracesFromSameCallSiteAreEqual() {
+    StackTrace first = null;
+    StackTrace second = null;
+    for (int i = 0; i < 2; i++) {
+      StackTrace stackTrace = ThrowableStackTraceHelper.createBuilder(new Exception()).build();
+      if (i == 0) {
+        first = stackTrace;
+      } else {
+        second = stackTrace;
+      }
+    }
+
+    assertThat(first).isEqualTo(second);
+  }
+}
@@ -38,10 +38,17 @@ import java.util.Set;
 public class SpanContextHandlerTracer implements Tracer {
   private static final Labels agentLabel = Labels.builder().add("/agent", "cloud-trace-java "
       + SdkVersion.get()).build();
+  // Marks spans whose tracing was explicitly enabled, so that sinks can prioritize their traces.
+  private static final Labels forcedAgentLabels = Labels.builder().add("/agent", "cloud-trace-java "
+      + SdkVersion.get()).add("g.co/trace/forced", "true").build();
+  // Marks a span of a trace whose spans or labels exceeded the limits of the tracer.
+  private static final Labels truncatedLabel =
+      Labels.builder().add("g.co/trace/truncated", "true").build();
   private final SpanContextHandler contextHandler;
   private final TimestampFactory timestampFactory;
   private final ImmutableSet<TraceSink> sinks;
   private final SpanContextFactory spanContextFactory;
+  private final TraceLimiter limiter;
 
   /**
    * Creates a new tracer.
@@ -52,10 +59,40 @@ public class SpanContextHandlerTracer implements Tracer {
    * @param timestampFactory a timestamp factory used to generate new timestamps.
    */
   public SpanContextHandlerTracer(Set<TraceSink> sinks, SpanContextHandler contextHandler, SpanContextFactory spanContextFactory, TimestampFactory timestampFactory) {
+    this(sinks, contextHandler, spanContextFactory, timestampFactory, null);
+  }
+
+  /**
+   * Creates a new tracer that limits the spans and labels of each trace. Spans that would exceed
+   * the limits of their trace, and their children, aren't passed to the trace sinks, but keep
+   * their trace options, so that the trace stays sampled downstream. Labels that would exceed the
+   * limits are dropped. The first time a
+   * trace exceeds its limits, the current span is annotated with a {@code g.co/trace/truncated}
+   * label.
+   *
+   * @param sinks a set of trace sinks that this tracer will send trace data to.
+   * @param contextHandler a span context handler that manages the current span context.
+   * @param spanContextFactory a span context factory used to generate new span contexts.
+   * @param timestampFactory a timestamp factory used to generate new timestamps.
+   * @param maxSpansPerTrace the maximum number of spans this tracer records for a trace.
+   * @param maxBytesPerTrace the maximum number of bytes of the UTF-8 encoded span names and labels
+   *     this tracer records for a trace.
+   */
+  public SpanContextHandlerTracer(Set<TraceSink> sinks, SpanContextHandler contextHandler,
+      SpanContextFactory spanContextFactory, TimestampFactory timestampFactory,
+      int maxSpansPerTrace, int maxBytesPerTrace) {
+    this(sinks, contextHandler, spanContextFactory, timestampFactory,
+        new TraceLimiter(maxSpansPerTrace, maxBytesPerTrace));
+  }
+
+  private SpanContextHandlerTracer(Set<TraceSink> sinks, SpanContextHandler contextHandler,
+      SpanContextFactory spanContextFactory, TimestampFactory timestampFactory,
+      TraceLimiter limiter) {
     this.contextHandler = contextHandler;
     this.timestampFactory = timestampFactory;
     this.sinks = ImmutableSet.copyOf(sinks);
     this.spanContextFactory = spanContextFactory;
+    this.limiter = limiter;
   }
 
   /**
@@ -82,7 +119,8 @@ public class SpanContextHandlerTracer implements Tracer {
         options.getEnableTrace(), options.getEnableStackTrace());
     SpanContextHandle handle = contextHandler.attach(child);
     TraceContext traceContext = new TraceContext(handle);
-    annotateSpan(traceContext, agentLabel);
+    annotateSpan(traceContext,
+        Boolean.TRUE.equals(options.getEnableTrace()) ? forcedAgentLabels : agentLabel);
     return traceContext;
   }
 
@@ -100,15 +138,28 @@ public class SpanContextHandlerTracer implements Tracer {
 
   @Override
   public void annotateSpan(TraceContext traceContext, Labels labels) {
+    SpanContext context = traceContext.getHandle().getCurrentSpanContext();
+    if (isSuppressed(context)) {
+      return;
+    }
+    if (limiter != null && context.getTraceOptions().getTraceEnabled()
+        && !limiter.annotateSpan(context.getTraceId(), labels)) {
+      markTruncated(context);
+      return;
+    }
     for (TraceSink sink : sinks) {
-      sink.annotateSpan(traceContext.getHandle().getCurrentSpanContext(), labels);
+      sink.annotateSpan(context, labels);
     }
   }
 
   @Override
   public void setStackTrace(TraceContext traceContext, StackTrace stackTrace) {
+    SpanContext context = traceContext.getHandle().getCurrentSpanContext();
+    if (isSuppressed(context)) {
+      return;
+    }
     for (TraceSink sink : sinks) {
-      sink.setStackTrace(traceContext.getHandle().getCurrentSpanContext(), stackTrace);
+      sink.setStackTrace(context, stackTrace);
     }
   }
 
@@ -133,13 +184,39 @@ public class SpanContextHandlerTracer implements Tracer {
     } else {
       context = spanContextFactory.childContext(parentContext);
     }
+    if (limiter != null && context.getTraceOptions().getTraceEnabled()
+        && !limiter.startSpan(
+            context.getTraceId(), parentContext.getSpanId(), context.getSpanId(), name)) {
+      // Only local recording is suppressed: the trace options of the span are propagated
+      // unchanged, so that downstream services still record the trace.
+      if (parentContext.getTraceOptions().getTraceEnabled() && !isSuppressed(parentContext)) {
+        markTruncated(parentContext);
+      }
+      return context;
+    }
     for (TraceSink sink : sinks) {
       sink.startSpan(context, parentContext, spanKind, name, timestamp);
     }
     return context;
   }
 
+  private void markTruncated(SpanContext context) {
+    if (limiter.markTruncated(context.getTraceId())) {
+      for (TraceSink sink : sinks) {
+        sink.annotateSpan(context, truncatedLabel);
+      }
+    }
+  }
+
+  private boolean isSuppressed(SpanContext context) {
+    return limiter != null && limiter.isSuppressed(context.getTraceId(), context.getSpanId());
+  }
+
   private void endSpanOptions(SpanContext context, Timestamp timestamp) {
+    if (isSuppressed(context)) {
+      limiter.endSpan(context.getTraceId(), context.getSpanId());
+      return;
+    }
     if (timestamp == null) {
       timestamp = timestampFactory.now();
     }
@@ -147,4 +224,24 @@ public class SpanContextHandlerTracer implements Tracer {
       sink.endSpan(context, timestamp);
     }
   }
+
+  /**
+   * Returns the number of spans this tracer didn't record because they exceeded the limits of
+   * their trace.
+   *
+   * @return the number of truncated spans, or 0 if this tracer doesn't limit traces.
+   */
+  public long getTruncatedSpanCount() {
+    return limiter == null ? 0 : limiter.getTruncatedSpanCount();
+  }
+
+  /**
+   * Returns the number of labels this tracer didn't record because they exceeded the limits of
+   * their trace.
+   *
+   * @return the number of truncated labels, or 0 if this tracer doesn't limit traces.
+   */
+  public long getTruncatedLabelCount() {
+    return limiter == null ? 0 : limiter.getTruncatedLabelCount();
+  }
 }
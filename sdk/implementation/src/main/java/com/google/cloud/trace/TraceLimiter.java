@@ -0,0 +1,247 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace;
+
+import com.google.cloud.trace.core.Label;
+import com.google.cloud.trace.core.Labels;
+import com.google.cloud.trace.core.SpanId;
+import com.google.cloud.trace.core.TraceId;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the number of spans and the UTF-8 encoded size of the span names and labels that
+ * a tracer has recorded for each recent trace, and decides which spans and labels exceed the
+ * limits of a trace. Spans that aren't recorded are remembered until they end, so that their
+ * children aren't recorded either. The operations on this class are thread-safe and don't take
+ * locks: the usage
+ * of each trace is updated atomically, so tracing threads only contend within the same trace.
+ */
+class TraceLimiter {
+  // The number of recent traces that are tracked, so that finished traces don't pin memory. When
+  // there are more, the least recently used half is forgotten.
+  private static final int MAX_TRACES = 1024;
+
+  private final int maxSpans;
+  private final int maxBytes;
+  private final ConcurrentMap<TraceId, Usage> usages = new ConcurrentHashMap<TraceId, Usage>();
+  private final AtomicBoolean pruning = new AtomicBoolean();
+  private final AtomicLong truncatedSpanCount = new AtomicLong();
+  private final AtomicLong truncatedLabelCount = new AtomicLong();
+
+  TraceLimiter(int maxSpans, int maxBytes) {
+    if (maxSpans <= 0) {
+      throw new IllegalArgumentException("Max spans per trace must be > 0.");
+    }
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("Max bytes per trace must be > 0.");
+    }
+    this.maxSpans = maxSpans;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Records a new span of a trace, and returns false if it exceeds the limits of the trace.
+   */
+  boolean startSpan(TraceId traceId, String name) {
+    return startSpan(usage(traceId), name);
+  }
+
+  /**
+   * Records a new span of a trace, and returns false if it exceeds the limits of the trace or its
+   * parent span isn't recorded, in which case the span isn't recorded until it ends.
+   */
+  boolean startSpan(TraceId traceId, SpanId parentSpanId, SpanId spanId, String name) {
+    Usage usage = usage(traceId);
+    if (!usage.suppressedSpans.isEmpty() && usage.suppressedSpans.contains(parentSpanId)) {
+      usage.suppressedSpans.add(spanId);
+      truncatedSpanCount.incrementAndGet();
+      return false;
+    }
+    if (!startSpan(usage, name)) {
+      usage.suppressedSpans.add(spanId);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if a span of a trace isn't recorded.
+   */
+  boolean isSuppressed(TraceId traceId, SpanId spanId) {
+    Usage usage = usages.get(traceId);
+    return usage != null && !usage.suppressedSpans.isEmpty()
+        && usage.suppressedSpans.contains(spanId);
+  }
+
+  /**
+   * Forgets a span of a trace that ended.
+   */
+  void endSpan(TraceId traceId, SpanId spanId) {
+    Usage usage = usages.get(traceId);
+    if (usage != null && !usage.suppressedSpans.isEmpty()) {
+      usage.suppressedSpans.remove(spanId);
+    }
+  }
+
+  private boolean startSpan(Usage usage, String name) {
+    if (usage.spans.incrementAndGet() > maxSpans) {
+      usage.spans.decrementAndGet();
+      truncatedSpanCount.incrementAndGet();
+      return false;
+    }
+    if (!usage.tryAdd(encodedLength(name), maxBytes)) {
+      usage.spans.decrementAndGet();
+      truncatedSpanCount.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Records the labels of a span of a trace, and returns false if they exceed the limits of the
+   * trace.
+   */
+  boolean annotateSpan(TraceId traceId, Labels labels) {
+    Usage usage = usage(traceId);
+    long bytes = 0;
+    for (Label label : labels.getLabels()) {
+      bytes += encodedLength(label.getKey()) + encodedLength(label.getValue());
+    }
+    if (!usage.tryAdd(bytes, maxBytes)) {
+      truncatedLabelCount.addAndGet(labels.getLabels().size());
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns true the first time it is called for a trace, so that the trace is marked as truncated
+   * only once.
+   */
+  boolean markTruncated(TraceId traceId) {
+    return usage(traceId).truncated.compareAndSet(false, true);
+  }
+
+  long getTruncatedSpanCount() {
+    return truncatedSpanCount.get();
+  }
+
+  long getTruncatedLabelCount() {
+    return truncatedLabelCount.get();
+  }
+
+  private Usage usage(TraceId traceId) {
+    Usage usage = usages.get(traceId);
+    if (usage == null) {
+      Usage newUsage = new Usage();
+      usage = usages.putIfAbsent(traceId, newUsage);
+      if (usage == null) {
+        usage = newUsage;
+        if (usages.size() > MAX_TRACES) {
+          prune();
+        }
+      }
+    }
+    usage.lastUsed = System.nanoTime();
+    return usage;
+  }
+
+  /**
+   * Forgets the least recently used half of the traces. Only one thread prunes at a time; the
+   * other threads carry on.
+   */
+  private void prune() {
+    if (!pruning.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      long[] lastUsed = new long[usages.size()];
+      int count = 0;
+      for (Usage usage : usages.values()) {
+        if (count == lastUsed.length) {
+          break;
+        }
+        lastUsed[count++] = usage.lastUsed;
+      }
+      if (count == 0) {
+        return;
+      }
+      Arrays.sort(lastUsed, 0, count);
+      long cutoff = lastUsed[count / 2];
+      for (Iterator<Usage> it = usages.values().iterator(); it.hasNext(); ) {
+        if (it.next().lastUsed - cutoff < 0) {
+          it.remove();
+        }
+      }
+    } finally {
+      pruning.set(false);
+    }
+  }
+
+  /**
+   * Returns the number of bytes of the UTF-8 encoding of a string, without encoding it. Unpaired
+   * surrogates are counted as three bytes.
+   */
+  static int encodedLength(String string) {
+    int length = 0;
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < string.length()
+          && Character.isLowSurrogate(string.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  private static class Usage {
+    private final AtomicInteger spans = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicBoolean truncated = new AtomicBoolean();
+    private final Set<SpanId> suppressedSpans =
+        Collections.newSetFromMap(new ConcurrentHashMap<SpanId, Boolean>());
+    private volatile long lastUsed;
+
+    /**
+     * Adds bytes to the usage of the trace, unless that would exceed the maximum.
+     */
+    private boolean tryAdd(long added, int maxBytes) {
+      while (true) {
+        long current = bytes.get();
+        if (current + added > maxBytes) {
+          return false;
+        }
+        if (bytes.compareAndSet(current, current + added)) {
+          return true;
+        }
+      }
+    }
+  }
+}
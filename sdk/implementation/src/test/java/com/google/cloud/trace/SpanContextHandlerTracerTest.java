@@ -33,8 +33,10 @@ import com.google.cloud.trace.core.TraceContext;
 import com.google.cloud.trace.core.TraceId;
 import com.google.cloud.trace.core.TraceOptions;
 import com.google.cloud.trace.sink.TraceSink;
+import com.google.common.base.Strings;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import org.junit.Before;
 import org.junit.Test;
@@ -153,6 +155,87 @@ public class SpanContextHandlerTracerTest {
     assertThat(annotateEvent.labels.getLabels()).contains(new Label("/agent", expectedAgent));
   }
 
+  @Test
+  public void testStartSpanWithEnabledTraceAddsForcedLabel() {
+    TraceContext traceContext =
+        tracer.startSpan("foo", new StartSpanOptions().setEnableTrace(true));
+    assertThat(sink.annotateEvents).hasSize(1);
+    TestTraceSink.AnnotateEvent annotateEvent = sink.annotateEvents.get(0);
+
+    assertThat(annotateEvent.context).isEqualTo(traceContext.getHandle().getCurrentSpanContext());
+    assertThat(annotateEvent.labels.getLabels()).contains(new Label("g.co/trace/forced", "true"));
+  }
+
+  @Test
+  public void testSpansPastTraceLimitAreNotRecordedButStaySampled() {
+    SpanContextFactory contextFactory =
+        new SpanContextFactory(new ConstantTraceOptionsFactory(true, true));
+    SpanContextHandlerTracer limitedTracer = new SpanContextHandlerTracer(
+        Collections.<TraceSink>singleton(sink), contextHandler, contextFactory,
+        new TestTimestampFactory(1, 2), 2, 1024);
+
+    limitedTracer.startSpan("root");
+    TraceContext child = limitedTracer.startSpan("child");
+    TraceContext grandchild = limitedTracer.startSpan("grandchild");
+
+    assertThat(sink.startSpanEvents).hasSize(2);
+    // The propagated trace options still have tracing enabled, so downstream services record it.
+    assertThat(grandchild.getHandle().getCurrentSpanContext().getTraceOptions().getTraceEnabled())
+        .isTrue();
+    TestTraceSink.AnnotateEvent truncatedEvent = sink.annotateEvents.get(2);
+    assertThat(truncatedEvent.context).isEqualTo(child.getHandle().getCurrentSpanContext());
+    assertThat(truncatedEvent.labels.getLabels())
+        .contains(new Label("g.co/trace/truncated", "true"));
+    assertThat(limitedTracer.getTruncatedSpanCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void testChildrenOfSpansPastTraceLimitAreNotRecorded() {
+    SpanContextFactory contextFactory =
+        new SpanContextFactory(new ConstantTraceOptionsFactory(true, true));
+    SpanContextHandlerTracer limitedTracer = new SpanContextHandlerTracer(
+        Collections.<TraceSink>singleton(sink), contextHandler, contextFactory,
+        new TestTimestampFactory(1, 2), 2, 1024);
+
+    limitedTracer.startSpan("root");
+    TraceContext child = limitedTracer.startSpan("child");
+    TraceContext grandchild = limitedTracer.startSpan("grandchild");
+    TraceContext greatGrandchild = limitedTracer.startSpan("great-grandchild");
+    int annotateEventCount = sink.annotateEvents.size();
+    limitedTracer.annotateSpan(greatGrandchild, Labels.builder().add("key", "value").build());
+    limitedTracer.endSpan(greatGrandchild);
+    limitedTracer.endSpan(grandchild);
+
+    assertThat(sink.startSpanEvents).hasSize(2);
+    assertThat(sink.annotateEvents).hasSize(annotateEventCount);
+    assertThat(sink.endSpanEvents).isEmpty();
+    assertThat(
+        greatGrandchild.getHandle().getCurrentSpanContext().getTraceOptions().getTraceEnabled())
+        .isTrue();
+    assertThat(limitedTracer.getTruncatedSpanCount()).isEqualTo(2L);
+
+    limitedTracer.endSpan(child);
+
+    assertThat(sink.endSpanEvents).hasSize(1);
+  }
+
+  @Test
+  public void testLabelsPastTraceLimitAreDropped() {
+    SpanContextFactory contextFactory =
+        new SpanContextFactory(new ConstantTraceOptionsFactory(true, true));
+    SpanContextHandlerTracer limitedTracer = new SpanContextHandlerTracer(
+        Collections.<TraceSink>singleton(sink), contextHandler, contextFactory,
+        new TestTimestampFactory(1, 2), 100, 64);
+
+    TraceContext root = limitedTracer.startSpan("root");
+    limitedTracer.annotateSpan(root, Labels.builder().add("key", Strings.repeat("x", 64)).build());
+
+    assertThat(sink.annotateEvents).hasSize(2);
+    assertThat(sink.annotateEvents.get(1).labels.getLabels())
+        .containsExactly(new Label("g.co/trace/truncated", "true"));
+    assertThat(limitedTracer.getTruncatedLabelCount()).isEqualTo(1L);
+  }
+
   @Test
   public void testEndSpan() {
     SpanContext parent = new SpanContext(new TraceId(BigInteger.valueOf(1)), new SpanId(1), new TraceOptions());
@@ -0,0 +1,64 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.cloud.trace.core.Labels;
+import com.google.cloud.trace.core.TraceId;
+import java.math.BigInteger;
+import org.junit.Test;
+
+public class TraceLimiterTest {
+  private static final TraceId traceId = new TraceId(BigInteger.valueOf(1));
+
+  @Test
+  public void testCountsUtf8Bytes() {
+    assertThat(TraceLimiter.encodedLength("a\u00e9\u20ac\ud83d\ude00")).isEqualTo(10);
+    assertThat(TraceLimiter.encodedLength("\ud83d")).isEqualTo(3);
+
+    TraceLimiter limiter = new TraceLimiter(100, 10);
+    assertThat(limiter.startSpan(traceId, "\u20ac\u20ac\u20ac")).isTrue();
+    assertThat(limiter.annotateSpan(traceId, Labels.builder().add("k", "\u00e9").build()))
+        .isFalse();
+    assertThat(limiter.annotateSpan(traceId, Labels.builder().add("k", "").build())).isTrue();
+    assertThat(limiter.getTruncatedLabelCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void testLimitsSpansPerTrace() {
+    TraceLimiter limiter = new TraceLimiter(2, 1024);
+
+    assertThat(limiter.startSpan(traceId, "a")).isTrue();
+    assertThat(limiter.startSpan(traceId, "b")).isTrue();
+    assertThat(limiter.startSpan(traceId, "c")).isFalse();
+    assertThat(limiter.startSpan(new TraceId(BigInteger.valueOf(2)), "a")).isTrue();
+    assertThat(limiter.getTruncatedSpanCount()).isEqualTo(1L);
+    assertThat(limiter.markTruncated(traceId)).isTrue();
+    assertThat(limiter.markTruncated(traceId)).isFalse();
+  }
+
+  @Test
+  public void testForgetsLeastRecentlyUsedTraces() {
+    TraceLimiter limiter = new TraceLimiter(1, 1024);
+    assertThat(limiter.startSpan(traceId, "a")).isTrue();
+
+    for (int i = 2; i < 4096; i++) {
+      limiter.startSpan(new TraceId(BigInteger.valueOf(i)), "a");
+    }
+
+    assertThat(limiter.startSpan(traceId, "a")).isTrue();
+  }
+}
@@ -22,15 +22,28 @@ import com.google.cloud.trace.Tracer;
 import com.google.cloud.trace.core.JavaTimestampFactory;
 import com.google.cloud.trace.core.RateLimitingTraceOptionsFactory;
 import com.google.cloud.trace.core.SpanContextFactory;
+import com.google.cloud.trace.core.TraceId;
 import com.google.cloud.trace.core.TraceOptionsFactory;
 import com.google.cloud.trace.grpc.v1.GrpcTraceConsumer;
 import com.google.cloud.trace.sink.TraceSink;
 import com.google.cloud.trace.v1.TraceSinkV1;
+import com.google.cloud.trace.v1.consumer.AsyncFlushableTraceConsumer;
+import com.google.cloud.trace.v1.consumer.CompletionBufferingTraceConsumer;
 import com.google.cloud.trace.v1.consumer.ScheduledBufferingTraceConsumer;
+import com.google.cloud.trace.v1.consumer.SplittingTraceConsumer;
 import com.google.cloud.trace.v1.consumer.TraceConsumer;
+import com.google.cloud.trace.v1.metrics.TraceExportMetrics;
+import com.google.cloud.trace.v1.producer.LabelPolicy;
 import com.google.cloud.trace.v1.producer.TraceProducer;
-import com.google.cloud.trace.v1.util.RoughTraceSizer;
+import com.google.cloud.trace.v1.util.AdaptiveFlushPolicy;
+import com.google.cloud.trace.v1.util.BufferLimits;
+import com.google.cloud.trace.v1.util.MemoryBudget;
+import com.google.cloud.trace.v1.util.ProtoTraceSizer;
+import com.google.cloud.trace.v1.util.SlabPool;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -38,14 +51,25 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * Provides a gRPC Trace Service. The provided {@link Tracer} will write Traces to the Stackdriver
- * Trace gRPC API using the application default credentials.
+ * Trace gRPC API using the application default credentials. When the JVM shuts down, or when the
+ * service is closed, buffered Traces are written within the shutdown timeout.
  */
-public class TraceGrpcApiService implements TraceService {
+public class TraceGrpcApiService implements TraceService, Closeable {
   public static class Builder {
     private String projectId;
     private TraceOptionsFactory optionsFactory = new RateLimitingTraceOptionsFactory(1.0, false);
     private int bufferSize = 32 * 1024;
     private int scheduledDelay = 15;
+    private int maxRequestSize = 1024 * 1024;
+    private int shutdownTimeout = 5;
+    private boolean offHeapBuffering = false;
+    private int maxTraceAge = 0;
+    private AdaptiveFlushPolicy flushPolicy;
+    private BufferLimits bufferLimits;
+    private int maxSpansPerTrace = Integer.MAX_VALUE;
+    private int maxBytesPerTrace = Integer.MAX_VALUE;
+    private MemoryBudget memoryBudget;
+    private LabelPolicy labelPolicy = LabelPolicy.unlimited();
     private GoogleCredentials credentials;
     private ScheduledExecutorService executorService;
 
@@ -89,6 +113,20 @@ public class TraceGrpcApiService implements TraceService {
       return this;
     }
 
+    /**
+     * Sets the maximum request size.
+     * @param maxRequestSize The maximum size (in bytes) of the traces written to the Stackdriver
+     * Trace API in a single request. Larger buffers are split into several requests. Optional.
+     * Defaults to 1mb.
+     */
+    public Builder setMaxRequestSize(int maxRequestSize) {
+      if (maxRequestSize <= 0) {
+        throw new IllegalArgumentException("Max request size must be > 0.");
+      }
+      this.maxRequestSize = maxRequestSize;
+      return this;
+    }
+
     /**
      * Sets the scheduled delay for writing traces. Optional. Defaults to 15 seconds.
      * @param scheduledDelay The maximum number of seconds a Trace will be buffered locally before
@@ -99,6 +137,123 @@ public class TraceGrpcApiService implements TraceService {
       return this;
     }
 
+    /**
+     * Sets the shutdown timeout. Optional. Defaults to 5 seconds.
+     * @param shutdownTimeout The maximum number of seconds the JVM shutdown waits for buffered
+     * Traces to be written to the Stackdriver Trace API, or 0 to not write buffered Traces on
+     * shutdown.
+     */
+    public Builder setShutdownTimeout(int shutdownTimeout) {
+      if (shutdownTimeout < 0) {
+        throw new IllegalArgumentException("Shutdown timeout must be >= 0.");
+      }
+      this.shutdownTimeout = shutdownTimeout;
+      return this;
+    }
+
+    /**
+     * Sets whether buffered Traces are stored outside of the Java heap. Optional. Defaults to
+     * false.
+     * @param offHeapBuffering Whether the spans of buffered Traces are kept in direct byte
+     * buffers, and only decoded when they are written to the Stackdriver Trace API, so that they
+     * don't add to garbage collection pauses. It can't be combined with a maximum trace age.
+     */
+    public Builder setOffHeapBuffering(boolean offHeapBuffering) {
+      this.offHeapBuffering = offHeapBuffering;
+      return this;
+    }
+
+    /**
+     * Sets the maximum trace age. Optional. Defaults to 0.
+     * @param maxTraceAge The maximum number of seconds the spans of a Trace are buffered locally,
+     * or 0 to write buffered Traces after the scheduled delay. When set, a Trace is written to the
+     * Stackdriver Trace API within a second of its local root span ending, and Traces that don't
+     * end are written after this age. It can't be combined with off-heap buffering, an
+     * {@link AdaptiveFlushPolicy} or a {@link MemoryBudget}.
+     */
+    public Builder setMaxTraceAge(int maxTraceAge) {
+      if (maxTraceAge < 0) {
+        throw new IllegalArgumentException("Max trace age must be >= 0.");
+      }
+      this.maxTraceAge = maxTraceAge;
+      return this;
+    }
+
+    /**
+     * Sets the {@link AdaptiveFlushPolicy}. Optional. By default, the buffer size and the
+     * scheduled delay are fixed.
+     * @param flushPolicy The {@link AdaptiveFlushPolicy} which will adapt the buffer size and the
+     * scheduled delay to the latency of the calls to the Stackdriver Trace API, in place of the
+     * fixed buffer size and scheduled delay. It can't be combined with a maximum trace age.
+     */
+    public Builder setAdaptiveFlushPolicy(AdaptiveFlushPolicy flushPolicy) {
+      if (flushPolicy == null) {
+        throw new IllegalArgumentException("AdaptiveFlushPolicy must not be null.");
+      }
+      this.flushPolicy = flushPolicy;
+      return this;
+    }
+
+    /**
+     * Sets the {@link BufferLimits}. Optional. By default, the buffer holds a few full buffers, and
+     * at least {@link BufferLimits#DEFAULT_MAX_BYTES} bytes, and drops the oldest Traces past them.
+     * @param bufferLimits The {@link BufferLimits} of the buffered Traces, or
+     * {@link BufferLimits#unlimited()} to never drop buffered Traces while the Stackdriver Trace
+     * API is slow or unavailable.
+     */
+    public Builder setBufferLimits(BufferLimits bufferLimits) {
+      if (bufferLimits == null) {
+        throw new IllegalArgumentException("BufferLimits must not be null.");
+      }
+      this.bufferLimits = bufferLimits;
+      return this;
+    }
+
+    /**
+     * Sets the limits of each trace. Optional. By default, traces aren't limited.
+     * @param maxSpansPerTrace The maximum number of spans recorded and buffered for a Trace.
+     * @param maxBytesPerTrace The maximum number of bytes recorded and buffered for a Trace.
+     * Spans past the limits are counted and dropped before they are recorded, and the Trace is
+     * marked with a g.co/trace/truncated label.
+     */
+    public Builder setTraceLimits(int maxSpansPerTrace, int maxBytesPerTrace) {
+      if (maxSpansPerTrace <= 0 || maxBytesPerTrace <= 0) {
+        throw new IllegalArgumentException("Trace limits must be > 0.");
+      }
+      this.maxSpansPerTrace = maxSpansPerTrace;
+      this.maxBytesPerTrace = maxBytesPerTrace;
+      return this;
+    }
+
+    /**
+     * Sets the {@link MemoryBudget}. Optional. By default, buffering doesn't react to memory
+     * pressure.
+     * @param memoryBudget The {@link MemoryBudget} which buffered Traces are reserved from, and
+     * which may be shared with other services. The service starts its monitoring of the heap, and
+     * under memory pressure flushes early, then drops labels, then drops spans. It can't be
+     * combined with a maximum trace age.
+     */
+    public Builder setMemoryBudget(MemoryBudget memoryBudget) {
+      if (memoryBudget == null) {
+        throw new IllegalArgumentException("MemoryBudget must not be null.");
+      }
+      this.memoryBudget = memoryBudget;
+      return this;
+    }
+
+    /**
+     * Sets the {@link LabelPolicy}. Optional. By default, labels are recorded unchanged.
+     * @param labelPolicy The {@link LabelPolicy} that limits the number of labels of a span and the
+     * length of label keys and values, and filters label keys, before Traces are buffered.
+     */
+    public Builder setLabelPolicy(LabelPolicy labelPolicy) {
+      if (labelPolicy == null) {
+        throw new IllegalArgumentException("LabelPolicy must not be null.");
+      }
+      this.labelPolicy = labelPolicy;
+      return this;
+    }
+
     /**
      * Sets the credentials to be used for the Stackdriver Trace API call. Optional. By default, the
      * application default credentials will be used.
@@ -124,8 +279,15 @@ public class TraceGrpcApiService implements TraceService {
 
     /**
      * Builds a new TraceGrpcApiService.
+     * @throws IllegalStateException if a maximum trace age is combined with off-heap buffering, an
+     * {@link AdaptiveFlushPolicy} or a {@link MemoryBudget}, which only apply to buffering by
+     * scheduled delay.
      */
     public TraceGrpcApiService build() throws IOException {
+      if (maxTraceAge > 0 && (offHeapBuffering || flushPolicy != null || memoryBudget != null)) {
+        throw new IllegalStateException("Max trace age can't be combined with off-heap buffering, "
+            + "an adaptive flush policy or a memory budget.");
+      }
       if (credentials == null) {
         credentials = GoogleCredentials.getApplicationDefault();
       }
@@ -139,7 +301,9 @@ public class TraceGrpcApiService implements TraceService {
       }
 
       return new TraceGrpcApiService(projectId, optionsFactory, bufferSize,
-          scheduledDelay, credentials, executorService);
+          scheduledDelay, maxRequestSize, shutdownTimeout, offHeapBuffering, maxTraceAge,
+          flushPolicy, bufferLimits, maxSpansPerTrace, maxBytesPerTrace, memoryBudget, labelPolicy,
+          credentials, executorService);
     }
   }
 
@@ -151,22 +315,110 @@ public class TraceGrpcApiService implements TraceService {
     return new Builder();
   }
 
+  private static final int SLAB_SIZE = 64 * 1024;
+
+  private final AsyncFlushableTraceConsumer bufferingConsumer;
+  private final int shutdownTimeout;
+  private final Thread shutdownHook;
+  private final TraceSinkV1 traceSink;
   private final Tracer tracer;
   private final SpanContextHandler handler;
   private final SpanContextFactory factory;
 
   private TraceGrpcApiService(String projectId, TraceOptionsFactory optionsFactory,
-                              int bufferSize, int scheduledDelay, GoogleCredentials credentials,
+                              int bufferSize, int scheduledDelay, int maxRequestSize,
+                              int shutdownTimeout, boolean offHeapBuffering,
+                              int maxTraceAge, AdaptiveFlushPolicy flushPolicy,
+                              BufferLimits bufferLimits, int maxSpansPerTrace, int maxBytesPerTrace,
+                              MemoryBudget memoryBudget, LabelPolicy labelPolicy,
+                              GoogleCredentials credentials,
                               ScheduledExecutorService executorService) throws IOException {
-    TraceProducer traceProducer = new TraceProducer();
+    TraceProducer traceProducer = new TraceProducer(labelPolicy);
     TraceConsumer traceConsumer = GrpcTraceConsumer.createWithCredentials(credentials);
-    traceConsumer = new ScheduledBufferingTraceConsumer(traceConsumer, new RoughTraceSizer(),
-        bufferSize, scheduledDelay, executorService);
-    TraceSink traceSink = new TraceSinkV1(projectId, traceProducer, traceConsumer);
+    traceConsumer = new SplittingTraceConsumer(traceConsumer, maxRequestSize);
+    boolean limitTraces = maxSpansPerTrace != Integer.MAX_VALUE
+        || maxBytesPerTrace != Integer.MAX_VALUE;
+    BufferLimits limits =
+        bufferLimits != null ? bufferLimits : BufferLimits.forBufferSize(bufferSize);
+    if (limitTraces) {
+      limits = new BufferLimits(limits.getMaxSpans(), limits.getMaxBytes(), limits.getPolicy(),
+          maxSpansPerTrace, maxBytesPerTrace);
+    }
+    if (maxTraceAge > 0) {
+      bufferingConsumer = new CompletionBufferingTraceConsumer(
+          traceConsumer, new ProtoTraceSizer(), bufferSize, maxTraceAge, 1000, executorService,
+          limits, new TraceExportMetrics());
+    } else {
+      SlabPool slabPool = null;
+      if (offHeapBuffering) {
+        // Keep enough idle slabs to hold a full buffer.
+        slabPool = new SlabPool(SLAB_SIZE, bufferSize / SLAB_SIZE + 1);
+      }
+      if (memoryBudget != null) {
+        memoryBudget.startMonitoring();
+      }
+      bufferingConsumer = ScheduledBufferingTraceConsumer
+          .builder(traceConsumer, new ProtoTraceSizer(), executorService)
+          .setBufferSize(bufferSize)
+          .setScheduledDelay(scheduledDelay)
+          .setFlushPolicy(flushPolicy)
+          .setLimits(limits)
+          .setSlabPool(slabPool)
+          .setMemoryBudget(memoryBudget)
+          .build();
+    }
+    this.shutdownTimeout = shutdownTimeout;
+    if (shutdownTimeout > 0) {
+      shutdownHook = new Thread("trace-shutdown") {
+        @Override
+        public void run() {
+          TraceGrpcApiService.this.bufferingConsumer.close(
+              TraceGrpcApiService.this.shutdownTimeout, TimeUnit.SECONDS);
+        }
+      };
+      Runtime.getRuntime().addShutdownHook(shutdownHook);
+    } else {
+      shutdownHook = null;
+    }
+    traceSink = new TraceSinkV1(projectId, traceProducer, bufferingConsumer);
 
     factory = new SpanContextFactory(optionsFactory);
     handler = new GrpcSpanContextHandler(factory.initialContext());
-    tracer = new SpanContextHandlerTracer(traceSink, handler, factory, new JavaTimestampFactory());
+    if (limitTraces) {
+      tracer = new SpanContextHandlerTracer(ImmutableSet.<TraceSink>of(traceSink), handler, factory,
+          new JavaTimestampFactory(), maxSpansPerTrace, maxBytesPerTrace);
+    } else {
+      tracer = new SpanContextHandlerTracer(traceSink, handler, factory, new JavaTimestampFactory());
+    }
+  }
+
+  /**
+   * Starts writing the buffered spans of a trace to the Stackdriver Trace API, without waiting for
+   * the scheduled delay. Request handlers on platforms that suspend the application between
+   * requests can wait on the returned future, with a short timeout, before they return.
+   * @param traceId The trace identifier of the trace to write.
+   * @return A future that completes when the spans of the trace have been written.
+   */
+  public ListenableFuture<Void> flushTraceAsync(TraceId traceId) {
+    return traceSink.flushTraceAsync(traceId);
+  }
+
+  /**
+   * Removes the JVM shutdown hook of this service and writes its buffered Traces to the
+   * Stackdriver Trace API within the shutdown timeout. Spans that end after the service is closed
+   * are dropped.
+   */
+  @Override
+  public void close() {
+    if (shutdownHook != null) {
+      try {
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+      } catch (IllegalStateException ex) {
+        // The JVM is shutting down, and the shutdown hook writes the buffered Traces.
+        return;
+      }
+    }
+    bufferingConsumer.close(shutdownTimeout, TimeUnit.SECONDS);
   }
 
   @Override
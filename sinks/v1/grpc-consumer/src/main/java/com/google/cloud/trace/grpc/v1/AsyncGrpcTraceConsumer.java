@@ -0,0 +1,166 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.grpc.v1;
+
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.core.FixedCredentialsProvider;
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.auth.Credentials;
+import com.google.cloud.trace.v1.TraceServiceClient;
+import com.google.cloud.trace.v1.TraceServiceSettings;
+import com.google.cloud.trace.v1.consumer.FlushableTraceConsumer;
+import com.google.cloud.trace.v1.consumer.TraceConsumer;
+import com.google.cloud.trace.v1.util.TracesByProject;
+import com.google.devtools.cloudtrace.v1.PatchTracesRequest;
+import com.google.devtools.cloudtrace.v1.Traces;
+import com.google.protobuf.Empty;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A trace consumer that sends trace messages to the Stackdriver Trace API via gRPC without waiting
+ * for each API call to complete.
+ *
+ * <p>Unlike {@link GrpcTraceConsumer}, this consumer starts an asynchronous API call for each traces
+ * message and returns, so several API calls can be in flight at the same time. The number of
+ * outstanding API calls is limited; when the limit is reached, {@link #receive(Traces)} blocks until
+ * an outstanding API call completes, which slows down the buffering trace consumer in front of this
+ * consumer instead of queueing an unbounded number of requests. Each API call can be given a
+ * deadline, so a hung API call gives up its slot. Failed API calls are logged.
+ * {@link #flush()} waits until all of the outstanding API calls have completed. A traces message
+ * that contains trace messages of several projects is sent in one API call for each project.
+ *
+ * @see <a href="http://www.grpc.io">gRPC</a>
+ * @see Credentials
+ * @see Traces
+ * @see TraceConsumer
+ */
+public class AsyncGrpcTraceConsumer implements FlushableTraceConsumer {
+  private static final Logger logger = Logger.getLogger(AsyncGrpcTraceConsumer.class.getName());
+
+  private final TraceServiceClient traceService;
+  private final int maxOutstandingRequests;
+  private final Semaphore outstandingRequests;
+  private final ApiCallContext callContext;
+
+  /**
+   * Creates a trace consumer that sends trace messages to the Stackdriver Trace API via gRPC.
+   *
+   * @param traceService           the trace service to use for sending API calls.
+   * @param maxOutstandingRequests the maximum number of API calls in flight at the same time.
+   */
+  public AsyncGrpcTraceConsumer(TraceServiceClient traceService, int maxOutstandingRequests) {
+    this(traceService, maxOutstandingRequests, 0);
+  }
+
+  /**
+   * Creates a trace consumer that sends trace messages to the Stackdriver Trace API via gRPC with a
+   * deadline for each API call.
+   *
+   * @param traceService           the trace service to use for sending API calls.
+   * @param maxOutstandingRequests the maximum number of API calls in flight at the same time.
+   * @param timeoutMillis          the deadline of each API call in milliseconds, or zero for the
+   *                               default deadline of the trace service.
+   */
+  public AsyncGrpcTraceConsumer(TraceServiceClient traceService, int maxOutstandingRequests,
+      long timeoutMillis) {
+    if (maxOutstandingRequests <= 0) {
+      throw new IllegalArgumentException("Max outstanding requests must be > 0.");
+    }
+    if (timeoutMillis < 0) {
+      throw new IllegalArgumentException("Timeout must be >= 0.");
+    }
+    this.traceService = traceService;
+    this.maxOutstandingRequests = maxOutstandingRequests;
+    this.outstandingRequests = new Semaphore(maxOutstandingRequests);
+    this.callContext = TraceExportExceptions.callContext(timeoutMillis);
+  }
+
+  @Override
+  public void receive(Traces traces) {
+    for (Map.Entry<String, Traces> entry : TracesByProject.split(traces).entrySet()) {
+      send(PatchTracesRequest.newBuilder()
+          .setProjectId(entry.getKey())
+          .setTraces(entry.getValue())
+          .build());
+    }
+  }
+
+  private void send(PatchTracesRequest request) {
+    outstandingRequests.acquireUninterruptibly();
+    try {
+      ApiFutures.addCallback(traceService.patchTracesCallable().futureCall(request, callContext),
+          new ApiFutureCallback<Empty>() {
+            @Override
+            public void onSuccess(Empty result) {
+              outstandingRequests.release();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              outstandingRequests.release();
+              logger.log(Level.WARNING, "Failed to send trace messages", t);
+            }
+          });
+    } catch (RuntimeException ex) {
+      outstandingRequests.release();
+      throw ex;
+    }
+  }
+
+  /**
+   * Waits until all of the outstanding API calls of this trace consumer have completed.
+   */
+  @Override
+  public void flush() {
+    outstandingRequests.acquireUninterruptibly(maxOutstandingRequests);
+    outstandingRequests.release(maxOutstandingRequests);
+  }
+
+  /**
+   * Returns the number of API calls of this trace consumer that are in flight.
+   *
+   * @return the number of outstanding API calls.
+   */
+  public int getOutstandingRequestCount() {
+    return maxOutstandingRequests - outstandingRequests.availablePermits();
+  }
+
+  /**
+   * Creates a trace consumer that sends trace messages to the Stackdriver Trace API via gRPC,
+   * spreading its API calls over a pool of channels.
+   *
+   * @param credentials            a credentials used to authenticate API calls.
+   * @param channelCount           the number of gRPC channels used to send API calls.
+   * @param maxOutstandingRequests the maximum number of API calls in flight at the same time.
+   */
+  public static AsyncGrpcTraceConsumer createWithCredentials(Credentials credentials,
+      int channelCount, int maxOutstandingRequests) throws IOException {
+    TraceServiceSettings traceServiceSettings =
+        TraceServiceSettings.newBuilder()
+            .setCredentialsProvider(FixedCredentialsProvider.create(credentials))
+            .setTransportChannelProvider(TraceServiceSettings.defaultGrpcTransportProviderBuilder()
+                .setPoolSize(channelCount)
+                .build())
+            .build();
+
+    return new AsyncGrpcTraceConsumer(
+        TraceServiceClient.create(traceServiceSettings), maxOutstandingRequests);
+  }
+}
@@ -0,0 +1,161 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.grpc.v1;
+
+import com.google.auth.Credentials;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.trace.v1.TraceServiceSettings;
+import com.google.cloud.trace.v1.consumer.EncodedTraceConsumer;
+import com.google.cloud.trace.v1.metrics.TraceExportMetrics;
+import com.google.cloud.trace.v1.util.EncodedTraces;
+import com.google.protobuf.Empty;
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.MethodDescriptor;
+import io.grpc.auth.MoreCallCredentials;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ClientCalls;
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An encoded trace consumer that sends encoded traces messages to the Stackdriver Trace API via
+ * gRPC.
+ *
+ * <p>Unlike {@link GrpcTraceConsumer}, this consumer doesn't build a patch traces request message;
+ * the already encoded trace messages are written to the transport as the body of the request. Each
+ * encoded traces message is released once its API call has completed, whether or not it
+ * succeeded, so failed API calls are not retried. Failed API calls are thrown as
+ * {@link com.google.cloud.trace.v1.consumer.TraceExportException}s. Closing the trace consumer
+ * shuts down the channel it created, if any; channels that were passed in are left open.
+ *
+ * @see <a href="http://www.grpc.io">gRPC</a>
+ * @see EncodedTraces
+ * @see EncodedTraceConsumer
+ */
+public class EncodedGrpcTraceConsumer implements EncodedTraceConsumer, Closeable {
+  static final MethodDescriptor<EncodedTraces, Empty> PATCH_TRACES_METHOD =
+      MethodDescriptor.<EncodedTraces, Empty>newBuilder()
+          .setType(MethodDescriptor.MethodType.UNARY)
+          .setFullMethodName(MethodDescriptor.generateFullMethodName(
+              "google.devtools.cloudtrace.v1.TraceService", "PatchTraces"))
+          .setRequestMarshaller(new EncodedTracesMarshaller())
+          .setResponseMarshaller(ProtoUtils.marshaller(Empty.getDefaultInstance()))
+          .build();
+
+  private final Channel channel;
+  private final CallOptions callOptions;
+  private final long timeoutMillis;
+  private final TraceExportMetrics metrics;
+  // The channel this trace consumer created, which it shuts down when it is closed.
+  private final ManagedChannel ownedChannel;
+
+  /**
+   * Creates an encoded trace consumer that sends encoded traces messages to the Stackdriver Trace
+   * API via gRPC.
+   *
+   * @param channel     the channel to use for sending API calls.
+   * @param callOptions the call options of the API calls, including their credentials.
+   */
+  public EncodedGrpcTraceConsumer(Channel channel, CallOptions callOptions) {
+    this(channel, callOptions, 0, new TraceExportMetrics());
+  }
+
+  /**
+   * Creates an encoded trace consumer that sends encoded traces messages to the Stackdriver Trace
+   * API via gRPC with a deadline for each API call, and records into the given metrics.
+   *
+   * @param channel       the channel to use for sending API calls.
+   * @param callOptions   the call options of the API calls, including their credentials.
+   * @param timeoutMillis the deadline of each API call in milliseconds, or zero for no deadline.
+   * @param metrics       the metrics this trace consumer records into.
+   */
+  public EncodedGrpcTraceConsumer(Channel channel, CallOptions callOptions, long timeoutMillis,
+      TraceExportMetrics metrics) {
+    this(channel, callOptions, timeoutMillis, metrics, null);
+  }
+
+  private EncodedGrpcTraceConsumer(Channel channel, CallOptions callOptions, long timeoutMillis,
+      TraceExportMetrics metrics, ManagedChannel ownedChannel) {
+    if (timeoutMillis < 0) {
+      throw new IllegalArgumentException("Timeout must be >= 0.");
+    }
+    this.channel = channel;
+    this.callOptions = callOptions;
+    this.timeoutMillis = timeoutMillis;
+    this.metrics = metrics;
+    this.ownedChannel = ownedChannel;
+  }
+
+  @Override
+  public void receive(EncodedTraces traces) {
+    long start = System.nanoTime();
+    try {
+      CallOptions options = callOptions;
+      if (timeoutMillis > 0) {
+        options = options.withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS);
+      }
+      ClientCalls.blockingUnaryCall(channel, PATCH_TRACES_METHOD, options, traces);
+      metrics.recordExport(traces.getSpanCount(), System.nanoTime() - start);
+    } catch (RuntimeException ex) {
+      metrics.recordExportError(System.nanoTime() - start);
+      throw TraceExportExceptions.wrap(ex);
+    } finally {
+      traces.release();
+    }
+  }
+
+  /**
+   * Shuts down the channel this trace consumer created. API calls in flight are completed.
+   */
+  @Override
+  public void close() {
+    if (ownedChannel != null) {
+      ownedChannel.shutdown();
+    }
+  }
+
+  /**
+   * Returns the metrics this trace consumer records into.
+   *
+   * @return the metrics.
+   */
+  public TraceExportMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Creates an encoded trace consumer that sends encoded traces messages to the Stackdriver Trace
+   * API via gRPC over a channel of its own, which is shut down when the trace consumer is closed.
+   *
+   * @param credentials   a credentials used to authenticate API calls.
+   * @param timeoutMillis the deadline of each API call in milliseconds, or zero for no deadline.
+   */
+  public static EncodedGrpcTraceConsumer createWithCredentials(Credentials credentials,
+      long timeoutMillis) {
+    if (credentials instanceof GoogleCredentials
+        && ((GoogleCredentials) credentials).createScopedRequired()) {
+      credentials = ((GoogleCredentials) credentials)
+          .createScoped(TraceServiceSettings.getDefaultServiceScopes());
+    }
+    ManagedChannel channel =
+        ManagedChannelBuilder.forTarget(TraceServiceSettings.getDefaultEndpoint()).build();
+    return new EncodedGrpcTraceConsumer(channel,
+        CallOptions.DEFAULT.withCallCredentials(MoreCallCredentials.from(credentials)),
+        timeoutMillis, new TraceExportMetrics(), channel);
+  }
+}
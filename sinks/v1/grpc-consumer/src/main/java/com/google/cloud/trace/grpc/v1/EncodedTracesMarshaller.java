@@ -0,0 +1,148 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.grpc.v1;
+
+import com.google.cloud.trace.v1.util.BufferPool;
+import com.google.cloud.trace.v1.util.EncodedTraces;
+import com.google.common.io.ByteStreams;
+import com.google.devtools.cloudtrace.v1.PatchTracesRequest;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.protobuf.CodedOutputStream;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+
+/**
+ * A marshaller that writes an encoded traces message as the body of a patch traces request. Only
+ * the few bytes of the request header are encoded when the request is sent; the encoded trace
+ * messages are copied straight from their buffers to the transport. Parsed requests, for example
+ * by in-process test servers, are encoded into buffers that aren't pooled.
+ */
+class EncodedTracesMarshaller implements MethodDescriptor.Marshaller<EncodedTraces> {
+  private static final int REQUEST_PROJECT_ID_FIELD = 1;
+  private static final int REQUEST_TRACES_FIELD = 2;
+
+  // Parsed trace messages are encoded into buffers that are left to the garbage collector.
+  private static final BufferPool PARSE_POOL = new BufferPool(8 * 1024, 0);
+
+  @Override
+  public InputStream stream(EncodedTraces traces) {
+    return new RequestStream(header(traces), traces);
+  }
+
+  @Override
+  public EncodedTraces parse(InputStream stream) {
+    PatchTracesRequest request;
+    try {
+      request = PatchTracesRequest.parseFrom(stream);
+    } catch (IOException ex) {
+      throw Status.INTERNAL.withDescription("Invalid patch traces request").withCause(ex)
+          .asRuntimeException();
+    }
+    EncodedTraces.Builder builder = EncodedTraces.builder(request.getProjectId(), PARSE_POOL);
+    for (Trace trace : request.getTraces().getTracesList()) {
+      builder.add(trace);
+    }
+    return builder.build();
+  }
+
+  private static byte[] header(EncodedTraces traces) {
+    int size = CodedOutputStream.computeTagSize(REQUEST_TRACES_FIELD)
+        + CodedOutputStream.computeUInt32SizeNoTag(traces.getSerializedSize());
+    if (!traces.getProjectId().isEmpty()) {
+      size += CodedOutputStream.computeStringSize(REQUEST_PROJECT_ID_FIELD, traces.getProjectId());
+    }
+    byte[] header = new byte[size];
+    CodedOutputStream out = CodedOutputStream.newInstance(header);
+    try {
+      if (!traces.getProjectId().isEmpty()) {
+        out.writeString(REQUEST_PROJECT_ID_FIELD, traces.getProjectId());
+      }
+      out.writeTag(REQUEST_TRACES_FIELD, 2 /* length-delimited */);
+      out.writeUInt32NoTag(traces.getSerializedSize());
+      out.checkNoSpaceLeft();
+    } catch (IOException ex) {
+      throw new IllegalStateException("Failed to encode request header", ex);
+    }
+    return header;
+  }
+
+  /**
+   * A stream of the bytes of a request. The transport drains the stream into its own buffers when
+   * it can, which writes the encoded trace messages without an intermediate copy.
+   */
+  private static class RequestStream extends InputStream implements KnownLength, Drainable {
+    private final byte[] header;
+    private final EncodedTraces traces;
+    private InputStream stream;
+    private int remaining;
+
+    private RequestStream(byte[] header, EncodedTraces traces) {
+      this.header = header;
+      this.traces = traces;
+      this.remaining = header.length + traces.getSerializedSize();
+    }
+
+    @Override
+    public int drainTo(OutputStream target) throws IOException {
+      int drained = remaining;
+      if (stream == null) {
+        target.write(header);
+        traces.writeTo(target);
+      } else {
+        ByteStreams.copy(stream, target);
+      }
+      remaining = 0;
+      return drained;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = stream().read();
+      if (b != -1) {
+        remaining--;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = stream().read(b, off, len);
+      if (read > 0) {
+        remaining -= read;
+      }
+      return read;
+    }
+
+    @Override
+    public int available() {
+      return remaining;
+    }
+
+    private InputStream stream() {
+      if (stream == null) {
+        stream = new SequenceInputStream(
+            new ByteArrayInputStream(header), traces.newInputStream());
+      }
+      return stream;
+    }
+  }
+}
@@ -14,26 +14,50 @@
 
 package com.google.cloud.trace.grpc.v1;
 
+import com.google.api.core.ApiFuture;
 import com.google.api.gax.core.FixedCredentialsProvider;
+import com.google.api.gax.rpc.ApiCallContext;
 import com.google.auth.Credentials;
 import com.google.cloud.trace.v1.TraceServiceClient;
 import com.google.cloud.trace.v1.TraceServiceSettings;
 import com.google.cloud.trace.v1.consumer.TraceConsumer;
+import com.google.cloud.trace.v1.consumer.TraceExportException;
+import com.google.cloud.trace.v1.metrics.TraceExportMetrics;
+import com.google.cloud.trace.v1.util.TracesByProject;
 import com.google.devtools.cloudtrace.v1.PatchTracesRequest;
+import com.google.devtools.cloudtrace.v1.Trace;
 import com.google.devtools.cloudtrace.v1.Traces;
+import com.google.protobuf.Empty;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 
 /**
  * A trace consumer that sends trace messages to the Stackdriver Trace API trace via gRPC.
  *
+ * <p>The trace messages of each traces message are sent to the projects named by their project
+ * identifiers. When a traces message contains trace messages of several projects, one API call is
+ * made for each project, and the API calls are made concurrently. Each API call can be given a
+ * deadline. Failed API calls are thrown as {@link TraceExportException}s, which are retryable when
+ * the failure is transient. When the API calls of some projects fail, the
+ * {@link TraceExportException#getUnsentTraces() unsent} trace messages of the exception are those of
+ * the failed projects, so that the projects that were sent aren't retried. The spans sent, the
+ * failed API calls and the latency of each API call are recorded in the metrics of the trace
+ * consumer.
+ *
  * @see <a href="http://www.grpc.io">gRPC</a>
  * @see Credentials
  * @see Traces
  * @see TraceConsumer
+ * @see TraceExportMetrics
  */
 public class GrpcTraceConsumer implements TraceConsumer {
   private final TraceServiceClient traceService;
+  private final ApiCallContext callContext;
+  private final TraceExportMetrics metrics;
 
   /**
    * Creates a trace consumer that sends trace messages to the Stackdriver Trace API via gRPC.
@@ -41,7 +65,38 @@ public class GrpcTraceConsumer implements TraceConsumer {
    * @param traceService the trace service to use for sending API calls.
    */
   public GrpcTraceConsumer(TraceServiceClient traceService) {
+    this(traceService, 0);
+  }
+
+  /**
+   * Creates a trace consumer that sends trace messages to the Stackdriver Trace API via gRPC with a
+   * deadline for each API call.
+   *
+   * @param traceService  the trace service to use for sending API calls.
+   * @param timeoutMillis the deadline of each API call in milliseconds, or zero for the default
+   *                      deadline of the trace service.
+   */
+  public GrpcTraceConsumer(TraceServiceClient traceService, long timeoutMillis) {
+    this(traceService, timeoutMillis, new TraceExportMetrics());
+  }
+
+  /**
+   * Creates a trace consumer that sends trace messages to the Stackdriver Trace API via gRPC with a
+   * deadline for each API call, and records into the given metrics.
+   *
+   * @param traceService  the trace service to use for sending API calls.
+   * @param timeoutMillis the deadline of each API call in milliseconds, or zero for the default
+   *                      deadline of the trace service.
+   * @param metrics       the metrics this trace consumer records into.
+   */
+  public GrpcTraceConsumer(TraceServiceClient traceService, long timeoutMillis,
+      TraceExportMetrics metrics) {
+    if (timeoutMillis < 0) {
+      throw new IllegalArgumentException("Timeout must be >= 0.");
+    }
     this.traceService = traceService;
+    this.callContext = TraceExportExceptions.callContext(timeoutMillis);
+    this.metrics = metrics;
   }
 
   @Override
@@ -49,13 +104,84 @@ public class GrpcTraceConsumer implements TraceConsumer {
     if (traces.getTracesCount() == 0) {
       return;
     }
-    String projectId = traces.getTraces(0).getProjectId();
-    PatchTracesRequest.Builder requestBuilder =
-        PatchTracesRequest.newBuilder()
-            .setProjectId(projectId)
-            .setTraces(traces);
+    long start = System.nanoTime();
+    Map<String, Traces> projectTraces = TracesByProject.split(traces);
+    if (projectTraces.size() == 1) {
+      Map.Entry<String, Traces> entry = projectTraces.entrySet().iterator().next();
+      try {
+        traceService.patchTracesCallable()
+            .call(createRequest(entry.getKey(), entry.getValue()), callContext);
+      } catch (RuntimeException ex) {
+        metrics.recordExportError(System.nanoTime() - start);
+        throw TraceExportExceptions.wrap(ex);
+      }
+      metrics.recordExport(spanCount(traces), System.nanoTime() - start);
+      return;
+    }
+
+    List<TraceExportException> failures = new ArrayList<TraceExportException>();
+    List<Traces> failedTraces = new ArrayList<Traces>();
+    List<ApiFuture<Empty>> futures = new ArrayList<ApiFuture<Empty>>(projectTraces.size());
+    List<Traces> sentTraces = new ArrayList<Traces>(projectTraces.size());
+    for (Map.Entry<String, Traces> entry : projectTraces.entrySet()) {
+      try {
+        futures.add(traceService.patchTracesCallable()
+            .futureCall(createRequest(entry.getKey(), entry.getValue()), callContext));
+        sentTraces.add(entry.getValue());
+      } catch (RuntimeException ex) {
+        metrics.recordExportError(System.nanoTime() - start);
+        failures.add(TraceExportExceptions.wrap(ex));
+        failedTraces.add(entry.getValue());
+      }
+    }
+    boolean interrupted = false;
+    for (int i = 0; i < futures.size(); i++) {
+      Traces sent = sentTraces.get(i);
+      while (true) {
+        try {
+          futures.get(i).get();
+          metrics.recordExport(spanCount(sent), System.nanoTime() - start);
+          break;
+        } catch (InterruptedException ex) {
+          interrupted = true;
+        } catch (ExecutionException ex) {
+          metrics.recordExportError(System.nanoTime() - start);
+          failures.add(TraceExportExceptions.wrap(ex.getCause()));
+          failedTraces.add(sent);
+          break;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (!failures.isEmpty()) {
+      throw TraceExportException.combine(failures, failedTraces);
+    }
+  }
+
+  /**
+   * Returns the metrics this trace consumer records into.
+   *
+   * @return the metrics.
+   */
+  public TraceExportMetrics getMetrics() {
+    return metrics;
+  }
+
+  private static int spanCount(Traces traces) {
+    int spanCount = 0;
+    for (Trace trace : traces.getTracesList()) {
+      spanCount += trace.getSpansCount();
+    }
+    return spanCount;
+  }
 
-    traceService.patchTraces(requestBuilder.build());
+  private static PatchTracesRequest createRequest(String projectId, Traces traces) {
+    return PatchTracesRequest.newBuilder()
+        .setProjectId(projectId)
+        .setTraces(traces)
+        .build();
   }
 
   /**
@@ -0,0 +1,74 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.grpc.v1;
+
+import com.google.api.gax.grpc.GrpcCallContext;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.cloud.trace.v1.consumer.TraceExportException;
+import io.grpc.StatusRuntimeException;
+import org.threeten.bp.Duration;
+
+/**
+ * Helpers that translate between gRPC API calls and trace export failures.
+ */
+class TraceExportExceptions {
+  private TraceExportExceptions() {}
+
+  /**
+   * Returns a call context with the given deadline, or null for the default call context when the
+   * timeout is zero.
+   */
+  static ApiCallContext callContext(long timeoutMillis) {
+    if (timeoutMillis == 0) {
+      return null;
+    }
+    return GrpcCallContext.createDefault().withTimeout(Duration.ofMillis(timeoutMillis));
+  }
+
+  /**
+   * Wraps a failed API call in a trace export exception that is retryable if the status code of the
+   * API call indicates a transient failure.
+   */
+  static TraceExportException wrap(Throwable cause) {
+    if (cause instanceof TraceExportException) {
+      return (TraceExportException) cause;
+    }
+    boolean retryable = true;
+    if (cause instanceof ApiException) {
+      retryable = isRetryable(((ApiException) cause).getStatusCode().getCode());
+    } else if (cause instanceof StatusRuntimeException) {
+      retryable = isRetryable(
+          GrpcStatusCode.of(((StatusRuntimeException) cause).getStatus().getCode()).getCode());
+    }
+    return new TraceExportException("Failed to send trace messages", cause, retryable);
+  }
+
+  private static boolean isRetryable(StatusCode.Code code) {
+    switch (code) {
+      case UNAVAILABLE:
+      case DEADLINE_EXCEEDED:
+      case RESOURCE_EXHAUSTED:
+      case ABORTED:
+      case INTERNAL:
+      case UNKNOWN:
+        return true;
+      default:
+        return false;
+    }
+  }
+}
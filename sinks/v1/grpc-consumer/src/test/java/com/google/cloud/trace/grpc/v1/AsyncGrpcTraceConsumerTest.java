@@ -0,0 +1,135 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.grpc.v1;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.cloud.trace.v1.TraceServiceClient;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.devtools.cloudtrace.v1.Traces;
+import com.google.protobuf.Empty;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncGrpcTraceConsumerTest {
+  private TestTraceServiceStub stub;
+
+  @Before
+  public void setUp() {
+    stub = new TestTraceServiceStub();
+  }
+
+  @Test
+  public void testReceiveSendsOneRequestForEachProject() {
+    AsyncGrpcTraceConsumer consumer =
+        new AsyncGrpcTraceConsumer(TraceServiceClient.create(stub), 2);
+
+    consumer.receive(Traces.newBuilder()
+        .addTraces(trace("project-1", "1"))
+        .addTraces(trace("project-2", "2"))
+        .build());
+
+    assertThat(stub.requests).hasSize(2);
+    assertThat(stub.requests.get(0).getProjectId()).isEqualTo("project-1");
+    assertThat(stub.requests.get(1).getProjectId()).isEqualTo("project-2");
+    assertThat(consumer.getOutstandingRequestCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testReceiveBlocksWhileMaxRequestsAreOutstanding() throws Exception {
+    final AsyncGrpcTraceConsumer consumer =
+        new AsyncGrpcTraceConsumer(TraceServiceClient.create(stub), 1);
+    consumer.receive(traces("1"));
+
+    Thread receiver = new Thread() {
+      @Override
+      public void run() {
+        consumer.receive(traces("2"));
+      }
+    };
+    receiver.start();
+    receiver.join(100);
+
+    assertThat(receiver.isAlive()).isTrue();
+    assertThat(stub.requests).hasSize(1);
+
+    stub.responses.get(0).set(Empty.getDefaultInstance());
+    receiver.join(TimeUnit.SECONDS.toMillis(10));
+
+    assertThat(receiver.isAlive()).isFalse();
+    assertThat(stub.requests).hasSize(2);
+    assertThat(consumer.getOutstandingRequestCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testFailedRequestReleasesItsSlot() {
+    AsyncGrpcTraceConsumer consumer =
+        new AsyncGrpcTraceConsumer(TraceServiceClient.create(stub), 1);
+    consumer.receive(traces("1"));
+
+    stub.responses.get(0).setException(new IllegalStateException("unavailable"));
+
+    assertThat(consumer.getOutstandingRequestCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testFlushWaitsForAllOutstandingRequests() throws Exception {
+    final AsyncGrpcTraceConsumer consumer =
+        new AsyncGrpcTraceConsumer(TraceServiceClient.create(stub), 2);
+    consumer.receive(traces("1"));
+    consumer.receive(traces("2"));
+
+    Thread flusher = new Thread() {
+      @Override
+      public void run() {
+        consumer.flush();
+      }
+    };
+    flusher.start();
+    stub.responses.get(0).set(Empty.getDefaultInstance());
+    flusher.join(100);
+
+    assertThat(flusher.isAlive()).isTrue();
+
+    stub.responses.get(1).set(Empty.getDefaultInstance());
+    flusher.join(TimeUnit.SECONDS.toMillis(10));
+
+    assertThat(flusher.isAlive()).isFalse();
+    assertThat(consumer.getOutstandingRequestCount()).isEqualTo(0);
+    // Flushing returns the permits it drained, so later API calls aren't blocked.
+    consumer.receive(traces("3"));
+    consumer.receive(traces("4"));
+    assertThat(stub.requests).hasSize(4);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMaxOutstandingRequestsMustBePositive() {
+    new AsyncGrpcTraceConsumer(TraceServiceClient.create(stub), 0);
+  }
+
+  private static Trace trace(String projectId, String traceId) {
+    return Trace.newBuilder()
+        .setProjectId(projectId)
+        .setTraceId(traceId)
+        .addSpans(TraceSpan.newBuilder().setSpanId(1))
+        .build();
+  }
+
+  private static Traces traces(String traceId) {
+    return Traces.newBuilder().addTraces(trace("project", traceId)).build();
+  }
+}
@@ -0,0 +1,110 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.grpc.v1;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.cloud.trace.v1.TraceServiceClient;
+import com.google.cloud.trace.v1.consumer.TraceExportException;
+import com.google.cloud.trace.v1.metrics.TraceExportMetrics;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.devtools.cloudtrace.v1.Traces;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GrpcTraceConsumerTest {
+  private TestTraceServiceStub stub;
+  private TraceExportMetrics metrics;
+  private GrpcTraceConsumer consumer;
+
+  @Before
+  public void setUp() {
+    stub = new TestTraceServiceStub();
+    stub.respondImmediately = true;
+    metrics = new TraceExportMetrics();
+    consumer = new GrpcTraceConsumer(TraceServiceClient.create(stub), 0, metrics);
+  }
+
+  @Test
+  public void testRecordsExportedSpans() {
+    consumer.receive(traces(trace("project", "1", 2)));
+
+    assertThat(stub.requests).hasSize(1);
+    assertThat(metrics.getSpansExported()).isEqualTo(2L);
+    assertThat(metrics.getExportErrors()).isEqualTo(0L);
+    assertThat(metrics.getExportLatencyMillis().getCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void testRecordsExportedSpansOfEachProject() {
+    consumer.receive(traces(trace("project-1", "1", 1), trace("project-2", "2", 3)));
+
+    assertThat(stub.requests).hasSize(2);
+    assertThat(metrics.getSpansExported()).isEqualTo(4L);
+    assertThat(metrics.getExportLatencyMillis().getCount()).isEqualTo(2L);
+  }
+
+  @Test
+  public void testRecordsExportErrors() {
+    stub.failure = new IllegalStateException("unavailable");
+
+    try {
+      consumer.receive(traces(trace("project-1", "1", 1), trace("project-2", "2", 1)));
+      fail();
+    } catch (TraceExportException ex) {
+      assertThat(ex.isRetryable()).isTrue();
+    }
+
+    assertThat(metrics.getSpansExported()).isEqualTo(0L);
+    assertThat(metrics.getExportErrors()).isEqualTo(2L);
+    assertThat(metrics.getExportLatencyMillis().getCount()).isEqualTo(2L);
+  }
+
+  @Test
+  public void testFailureCarriesOnlyTheTracesOfFailedProjects() {
+    stub.failure = new IllegalStateException("unavailable");
+    stub.failingProjectId = "project-2";
+
+    try {
+      consumer.receive(traces(trace("project-1", "1", 1), trace("project-2", "2", 1)));
+      fail();
+    } catch (TraceExportException ex) {
+      assertThat(ex.isRetryable()).isTrue();
+      assertThat(ex.getUnsentTraces()).isEqualTo(traces(trace("project-2", "2", 1)));
+    }
+
+    assertThat(stub.requests).hasSize(2);
+    assertThat(metrics.getSpansExported()).isEqualTo(1L);
+    assertThat(metrics.getExportErrors()).isEqualTo(1L);
+  }
+
+  private static Trace trace(String projectId, String traceId, int spanCount) {
+    Trace.Builder trace = Trace.newBuilder().setProjectId(projectId).setTraceId(traceId);
+    for (int i = 1; i <= spanCount; i++) {
+      trace.addSpans(TraceSpan.newBuilder().setSpanId(i));
+    }
+    return trace.build();
+  }
+
+  private static Traces traces(Trace... traces) {
+    Traces.Builder builder = Traces.newBuilder();
+    for (Trace trace : traces) {
+      builder.addTraces(trace);
+    }
+    return builder.build();
+  }
+}
@@ -0,0 +1,83 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.grpc.v1;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.SettableApiFuture;
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.api.gax.rpc.UnaryCallable;
+import com.google.cloud.trace.v1.stub.TraceServiceStub;
+import com.google.devtools.cloudtrace.v1.PatchTracesRequest;
+import com.google.protobuf.Empty;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A trace service stub that records its patchTraces API calls. The API calls complete when their
+ * responses are set, or at once if the stub is told to respond immediately or to fail. Failures
+ * can be limited to the API calls of a single project.
+ */
+class TestTraceServiceStub extends TraceServiceStub {
+  final List<PatchTracesRequest> requests = new CopyOnWriteArrayList<PatchTracesRequest>();
+  final List<SettableApiFuture<Empty>> responses =
+      new CopyOnWriteArrayList<SettableApiFuture<Empty>>();
+  volatile boolean respondImmediately = false;
+  volatile RuntimeException failure;
+  volatile String failingProjectId;
+
+  @Override
+  public UnaryCallable<PatchTracesRequest, Empty> patchTracesCallable() {
+    return new UnaryCallable<PatchTracesRequest, Empty>() {
+      @Override
+      public ApiFuture<Empty> futureCall(PatchTracesRequest request, ApiCallContext context) {
+        SettableApiFuture<Empty> response = SettableApiFuture.create();
+        requests.add(request);
+        responses.add(response);
+        if (failure != null
+            && (failingProjectId == null || failingProjectId.equals(request.getProjectId()))) {
+          response.setException(failure);
+        } else if (respondImmediately) {
+          response.set(Empty.getDefaultInstance());
+        }
+        return response;
+      }
+    };
+  }
+
+  @Override
+  public void close() {}
+
+  @Override
+  public void shutdown() {}
+
+  @Override
+  public boolean isShutdown() {
+    return false;
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return false;
+  }
+
+  @Override
+  public void shutdownNow() {}
+
+  @Override
+  public boolean awaitTermination(long duration, TimeUnit unit) {
+    return true;
+  }
+}
@@ -14,83 +14,470 @@
 
 package com.google.cloud.trace.http.v1;
 
+import com.google.auth.oauth2.AccessToken;
 import com.google.auth.oauth2.OAuth2Credentials;
+import com.google.cloud.trace.v1.consumer.RetryingTraceConsumer;
 import com.google.cloud.trace.v1.consumer.TraceConsumer;
+import com.google.cloud.trace.v1.consumer.TraceExportException;
+import com.google.cloud.trace.v1.metrics.TraceExportMetrics;
+import com.google.cloud.trace.v1.util.TracesByProject;
+import com.google.common.base.Charsets;
 import com.google.common.io.ByteStreams;
+import com.google.devtools.cloudtrace.v1.Trace;
 import com.google.devtools.cloudtrace.v1.Traces;
-import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.util.JsonFormat;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
+/**
+ * A trace consumer that sends trace messages to the Stackdriver Trace API via HTTP.
+ *
+ * <p>Each traces message is encoded directly into the request body as it is written to the
+ * connection, either as JSON or as binary protocol buffers. The request body is gzip-compressed if
+ * compression is enabled through the {@link Builder}. Responses are read completely and closed, so
+ * the underlying keep-alive connections are reused between requests. The access token of the
+ * credentials is refreshed when it expires, or ahead of time on a scheduled executor service when
+ * one is given.
+ *
+ * <p>Requests time out after the connect and read timeouts. Failed requests are logged, so that
+ * buffering trace consumers that flush on the calling thread don't throw into the application. If
+ * enabled through the {@link Builder}, for example for a {@link RetryingTraceConsumer} that wraps
+ * this consumer, failed requests are thrown as {@link TraceExportException}s instead, which are
+ * retryable for I/O errors, for responses with status 429, and for server errors. When the trace
+ * messages of some projects fail to be sent, the other projects are still sent, and the
+ * {@link TraceExportException#getUnsentTraces() unsent} trace messages of the exception are those of
+ * the failed projects, so that the projects that were sent aren't retried. The spans sent,
+ * the failed requests and the latency of each request are recorded in the metrics of the trace
+ * consumer.
+ */
 public class HttpTraceConsumer implements TraceConsumer {
   private final static Logger logger = Logger.getLogger(HttpTraceConsumer.class.getName());
 
+  /**
+   * The encodings of the request body.
+   */
+  public enum Encoding {
+    JSON("application/json"),
+    PROTOBUF("application/x-protobuf");
+
+    private final String contentType;
+
+    Encoding(String contentType) {
+      this.contentType = contentType;
+    }
+  }
+
+  public static class Builder {
+    private final OAuth2Credentials oAuth2Credentials;
+    private String hostUrl = "https://cloudtrace.googleapis.com";
+    private Executor executor;
+    private Encoding encoding = Encoding.JSON;
+    private boolean compress = false;
+    private boolean throwFailures = false;
+    private ScheduledExecutorService credentialsRefresher;
+    private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+    private TraceExportMetrics metrics = new TraceExportMetrics();
+
+    private Builder(OAuth2Credentials oAuth2Credentials) {
+      this.oAuth2Credentials = oAuth2Credentials;
+    }
+
+    /**
+     * Sets the host URL of the Stackdriver Trace API. Optional.
+     */
+    public Builder setHostUrl(String hostUrl) {
+      this.hostUrl = hostUrl;
+      return this;
+    }
+
+    /**
+     * Sets the executor used to send the trace messages of several projects concurrently.
+     * Optional. By default, the trace messages of each project are sent in turn.
+     */
+    public Builder setExecutor(Executor executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    /**
+     * Sets the encoding of the request body. Optional. Defaults to JSON.
+     */
+    public Builder setEncoding(Encoding encoding) {
+      this.encoding = encoding;
+      return this;
+    }
+
+    /**
+     * Sets whether the request body is gzip-compressed. Optional. Defaults to false.
+     */
+    public Builder setCompress(boolean compress) {
+      this.compress = compress;
+      return this;
+    }
+
+    /**
+     * Sets whether failed requests are thrown as {@link TraceExportException}s rather than logged,
+     * so that a {@link RetryingTraceConsumer} wrapping the trace consumer can retry them. Optional.
+     * Defaults to false.
+     */
+    public Builder setThrowFailures(boolean throwFailures) {
+      this.throwFailures = throwFailures;
+      return this;
+    }
+
+    /**
+     * Sets the scheduled executor service used to refresh the access token before it expires.
+     * Optional. By default, the access token is refreshed when a request finds it expired.
+     */
+    public Builder setCredentialsRefresher(ScheduledExecutorService credentialsRefresher) {
+      this.credentialsRefresher = credentialsRefresher;
+      return this;
+    }
+
+    /**
+     * Sets the timeout for opening a connection to the Stackdriver Trace API, or zero for no
+     * timeout. Optional. Defaults to 10s.
+     */
+    public Builder setConnectTimeout(int connectTimeoutMillis) {
+      if (connectTimeoutMillis < 0) {
+        throw new IllegalArgumentException("Connect timeout must be >= 0.");
+      }
+      this.connectTimeoutMillis = connectTimeoutMillis;
+      return this;
+    }
+
+    /**
+     * Sets the timeout for reading the response of the Stackdriver Trace API, or zero for no
+     * timeout. Optional. Defaults to 30s.
+     */
+    public Builder setReadTimeout(int readTimeoutMillis) {
+      if (readTimeoutMillis < 0) {
+        throw new IllegalArgumentException("Read timeout must be >= 0.");
+      }
+      this.readTimeoutMillis = readTimeoutMillis;
+      return this;
+    }
+
+    /**
+     * Sets the metrics the trace consumer records into. Optional. By default, the trace consumer
+     * records into metrics of its own.
+     */
+    public Builder setMetrics(TraceExportMetrics metrics) {
+      this.metrics = metrics;
+      return this;
+    }
+
+    /**
+     * Builds a new HttpTraceConsumer.
+     */
+    public HttpTraceConsumer build() {
+      HttpTraceConsumer consumer = new HttpTraceConsumer(oAuth2Credentials, hostUrl, executor,
+          encoding, compress, throwFailures, connectTimeoutMillis, readTimeoutMillis, metrics);
+      if (credentialsRefresher != null) {
+        consumer.scheduleRefresh(credentialsRefresher);
+      }
+      return consumer;
+    }
+  }
+
+  /**
+   * Returns a new builder.
+   * @param oAuth2Credentials the credentials used to authenticate API calls.
+   * @return the new builder.
+   */
+  public static Builder builder(OAuth2Credentials oAuth2Credentials) {
+    return new Builder(oAuth2Credentials);
+  }
+
+  // Access tokens that expire within this time are refreshed by the credentials refresher.
+  private static final long REFRESH_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  private static final long REFRESH_PERIOD_SECONDS = 60;
+  private static final int GZIP_BUFFER_SIZE = 8192;
+  private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+  private static final int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+
   private final OAuth2Credentials oAuth2Credentials;
   private final String hostUrl;
+  private final Executor executor;
+  private final Encoding encoding;
+  private final boolean compress;
+  private final boolean throwFailures;
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+  private final TraceExportMetrics metrics;
+  private final JsonFormat.Printer printer = JsonFormat.printer();
+  private final ConcurrentHashMap<String, URL> urls = new ConcurrentHashMap<String, URL>();
 
+  /**
+   * Creates a trace consumer that sends the trace messages of each project in turn.
+   */
   public HttpTraceConsumer(OAuth2Credentials oAuth2Credentials, String hostUrl) {
-    this.oAuth2Credentials = oAuth2Credentials;
-    this.hostUrl = hostUrl;
+    this(oAuth2Credentials, hostUrl, null);
+  }
+
+  /**
+   * Creates a trace consumer that sends the trace messages of several projects concurrently on the
+   * given executor.
+   */
+  public HttpTraceConsumer(OAuth2Credentials oAuth2Credentials, String hostUrl,
+      Executor executor) {
+    this(oAuth2Credentials, hostUrl, executor, Encoding.JSON, false, false,
+        DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS, new TraceExportMetrics());
   }
 
   public HttpTraceConsumer(OAuth2Credentials oAuth2Credentials) {
     this(oAuth2Credentials, "https://cloudtrace.googleapis.com");
   }
 
+  private HttpTraceConsumer(OAuth2Credentials oAuth2Credentials, String hostUrl,
+      Executor executor, Encoding encoding, boolean compress, boolean throwFailures,
+      int connectTimeoutMillis, int readTimeoutMillis, TraceExportMetrics metrics) {
+    this.oAuth2Credentials = oAuth2Credentials;
+    this.hostUrl = hostUrl;
+    this.executor = executor;
+    this.encoding = encoding;
+    this.compress = compress;
+    this.throwFailures = throwFailures;
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+    this.metrics = metrics;
+  }
+
   @Override
   public void receive(Traces traces) {
+    try {
+      send(traces);
+    } catch (TraceExportException ex) {
+      if (throwFailures) {
+        throw ex;
+      }
+      logger.log(Level.SEVERE, ex.getMessage(), ex.getCause());
+    }
+  }
+
+  private void send(Traces traces) {
     if (traces.getTracesCount() == 0) {
       return;
     }
-    String projectId = traces.getTraces(0).getProjectId();
-    processTraces(traces, projectId);
+    Map<String, Traces> projectTraces = TracesByProject.split(traces);
+    if (projectTraces.size() == 1) {
+      Map.Entry<String, Traces> entry = projectTraces.entrySet().iterator().next();
+      TraceExportException failure = trySend(entry.getValue(), entry.getKey());
+      if (failure != null) {
+        throw failure;
+      }
+      return;
+    }
+
+    final String[] projectIds = projectTraces.keySet().toArray(new String[0]);
+    final Traces[] sentTraces = projectTraces.values().toArray(new Traces[0]);
+    // Each project's failure is written by the thread that sends the project, and read after the
+    // latch is released.
+    final TraceExportException[] failures = new TraceExportException[projectIds.length];
+    if (executor == null) {
+      for (int i = 0; i < projectIds.length; i++) {
+        failures[i] = trySend(sentTraces[i], projectIds[i]);
+      }
+    } else {
+      final CountDownLatch done = new CountDownLatch(projectIds.length);
+      for (int i = 0; i < projectIds.length; i++) {
+        final int project = i;
+        Runnable sender = new Runnable() {
+          @Override
+          public void run() {
+            try {
+              failures[project] = trySend(sentTraces[project], projectIds[project]);
+            } finally {
+              done.countDown();
+            }
+          }
+        };
+        try {
+          executor.execute(sender);
+        } catch (RejectedExecutionException ex) {
+          // Send the project on this thread rather than leaving the latch waiting for it.
+          sender.run();
+        }
+      }
+      boolean interrupted = false;
+      while (true) {
+        try {
+          done.await();
+          break;
+        } catch (InterruptedException ex) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    List<TraceExportException> failed = new ArrayList<TraceExportException>();
+    List<Traces> failedTraces = new ArrayList<Traces>();
+    for (int i = 0; i < failures.length; i++) {
+      if (failures[i] != null) {
+        failed.add(failures[i]);
+        failedTraces.add(sentTraces[i]);
+      }
+    }
+    if (!failed.isEmpty()) {
+      throw TraceExportException.combine(failed, failedTraces);
+    }
   }
 
-  private void processTraces(Traces traces, String projectId) {
-    URL url;
-    String urlString = String.format("%s/v1/projects/%s/traces", hostUrl, projectId);
+  /**
+   * Sends the trace messages of a project, and returns the failure, or null if they were sent.
+   */
+  private TraceExportException trySend(Traces traces, String projectId) {
     try {
-      url = new URL(urlString);
-    } catch (MalformedURLException ex) {
-      logger.severe("Malformed URL: " + urlString);
-      return;
+      processTraces(traces, projectId);
+      return null;
+    } catch (TraceExportException ex) {
+      return ex;
+    } catch (RuntimeException ex) {
+      return new TraceExportException("Failed to send trace messages", ex, false);
     }
+  }
 
-    String jsonRequest;
-    try {
-      jsonRequest = JsonFormat.printer().print(traces);
-    } catch (InvalidProtocolBufferException ex) {
-      logger.severe("Failed to format: " + traces.toString());
-      return;
+  private void processTraces(Traces traces, String projectId) {
+    URL url = urls.get(projectId);
+    if (url == null) {
+      String urlString = String.format("%s/v1/projects/%s/traces", hostUrl, projectId);
+      try {
+        url = new URL(urlString);
+      } catch (MalformedURLException ex) {
+        throw new TraceExportException("Malformed URL: " + urlString, ex, false);
+      }
+      urls.putIfAbsent(projectId, url);
     }
 
+    long start = System.nanoTime();
     try {
       HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      connection.setConnectTimeout(connectTimeoutMillis);
+      connection.setReadTimeout(readTimeoutMillis);
       connection.setRequestMethod("POST");
       connection.setRequestProperty("X-HTTP-Method-Override", "PATCH");
-      connection.setRequestProperty("Content-Type", "application/json");
-      connection.setRequestProperty(
-          "Authorization", "Bearer " + oAuth2Credentials.getAccessToken().getTokenValue());
+      connection.setRequestProperty("Content-Type", encoding.contentType);
+      if (compress) {
+        connection.setRequestProperty("Content-Encoding", "gzip");
+      }
+      connection.setRequestProperty("Authorization", "Bearer " + getAccessToken().getTokenValue());
       connection.setDoOutput(true);
-      OutputStream out = connection.getOutputStream();
-      out.write(jsonRequest.getBytes());
-      out.close();
+      connection.setChunkedStreamingMode(0);
+      writeTraces(traces, connection.getOutputStream());
       // Use the connection to make the request. This also sets the connection's response code.
-      InputStream responseStream = connection.getInputStream();
       int responseCode = connection.getResponseCode();
+      InputStream responseStream =
+          responseCode < 400 ? connection.getInputStream() : connection.getErrorStream();
+      // Reading the whole response lets the connection be reused for the next request.
+      byte[] responseBytes = new byte[0];
+      if (responseStream != null) {
+        try {
+          responseBytes = ByteStreams.toByteArray(responseStream);
+        } finally {
+          responseStream.close();
+        }
+      }
       if (responseCode != 200) {
-        byte[] responseBytes = ByteStreams.toByteArray(responseStream);
-        logger.severe(String.format("Unsuccessful patchTraces (%s):\nResponse: %s",
-            responseCode, new String(responseBytes)));
+        metrics.recordExportError(System.nanoTime() - start);
+        throw new TraceExportException(String.format("Unsuccessful patchTraces (%s):\nResponse: %s",
+            responseCode, new String(responseBytes, Charsets.UTF_8)), null,
+            responseCode == 429 || responseCode >= 500);
       }
+      metrics.recordExport(spanCount(traces), System.nanoTime() - start);
     } catch (IOException ex) {
-      logger.severe("Failed to send: " + traces.toString());
+      metrics.recordExportError(System.nanoTime() - start);
+      throw new TraceExportException("Failed to send trace messages", ex, true);
+    }
+  }
+
+  /**
+   * Returns the metrics this trace consumer records into.
+   *
+   * @return the metrics.
+   */
+  public TraceExportMetrics getMetrics() {
+    return metrics;
+  }
+
+  private static int spanCount(Traces traces) {
+    int spanCount = 0;
+    for (Trace trace : traces.getTracesList()) {
+      spanCount += trace.getSpansCount();
+    }
+    return spanCount;
+  }
+
+  private void writeTraces(Traces traces, OutputStream out) throws IOException {
+    if (compress) {
+      out = new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
     }
+    try {
+      if (encoding == Encoding.PROTOBUF) {
+        traces.writeTo(out);
+      } else {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, Charsets.UTF_8));
+        printer.appendTo(traces, writer);
+        writer.flush();
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private AccessToken getAccessToken() throws IOException {
+    AccessToken accessToken = oAuth2Credentials.getAccessToken();
+    if (accessToken == null || expiresWithin(accessToken, 0)) {
+      oAuth2Credentials.refresh();
+      accessToken = oAuth2Credentials.getAccessToken();
+    }
+    return accessToken;
+  }
+
+  private void scheduleRefresh(ScheduledExecutorService credentialsRefresher) {
+    credentialsRefresher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        AccessToken accessToken = oAuth2Credentials.getAccessToken();
+        if (accessToken == null || expiresWithin(accessToken, REFRESH_MARGIN_MILLIS)) {
+          try {
+            oAuth2Credentials.refresh();
+          } catch (IOException ex) {
+            logger.log(Level.WARNING, "Failed to refresh credentials", ex);
+          } catch (RuntimeException ex) {
+            logger.log(Level.WARNING, "Failed to refresh credentials", ex);
+          }
+        }
+      }
+    }, 0, REFRESH_PERIOD_SECONDS, TimeUnit.SECONDS);
+  }
+
+  private static boolean expiresWithin(AccessToken accessToken, long millis) {
+    Date expirationTime = accessToken.getExpirationTime();
+    return expirationTime != null
+        && expirationTime.getTime() - System.currentTimeMillis() <= millis;
   }
 }
@@ -0,0 +1,299 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.http.v1;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.OAuth2Credentials;
+import com.google.cloud.trace.v1.consumer.SizedBufferingTraceConsumer;
+import com.google.cloud.trace.v1.consumer.TraceExportException;
+import com.google.cloud.trace.v1.metrics.TraceExportMetrics;
+import com.google.cloud.trace.v1.util.ProtoTraceSizer;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.devtools.cloudtrace.v1.Traces;
+import com.google.protobuf.util.JsonFormat;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpTraceConsumerTest {
+  private final OAuth2Credentials credentials = OAuth2Credentials.create(new AccessToken("token",
+      new Date(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1))));
+
+  private HttpServer server;
+  private String hostUrl;
+  private final List<HttpExchange> exchanges = new CopyOnWriteArrayList<HttpExchange>();
+  private final List<byte[]> bodies = new CopyOnWriteArrayList<byte[]>();
+  private volatile int responseCode = 200;
+  // The project whose requests fail with the response code, or null if all requests do.
+  private volatile String failingProjectId;
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        exchanges.add(exchange);
+        bodies.add(ByteStreams.toByteArray(exchange.getRequestBody()));
+        byte[] response = "{}".getBytes(Charsets.UTF_8);
+        String path = exchange.getRequestURI().getPath();
+        boolean failing = failingProjectId == null
+            || path.equals("/v1/projects/" + failingProjectId + "/traces");
+        exchange.sendResponseHeaders(failing ? responseCode : 200, response.length);
+        exchange.getResponseBody().write(response);
+        exchange.close();
+      }
+    });
+    server.start();
+    hostUrl = "http://localhost:" + server.getAddress().getPort();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Test
+  public void testConstructorSendsUncompressedJson() throws IOException {
+    HttpTraceConsumer consumer = new HttpTraceConsumer(credentials, hostUrl);
+
+    consumer.receive(traces("project"));
+
+    assertThat(exchanges).hasSize(1);
+    HttpExchange exchange = exchanges.get(0);
+    assertThat(exchange.getRequestURI().getPath()).isEqualTo("/v1/projects/project/traces");
+    assertThat(exchange.getRequestHeaders().getFirst("X-HTTP-Method-Override"))
+        .isEqualTo("PATCH");
+    assertThat(exchange.getRequestHeaders().getFirst("Authorization")).isEqualTo("Bearer token");
+    assertThat(exchange.getRequestHeaders().getFirst("Content-Type"))
+        .isEqualTo("application/json");
+    assertThat(exchange.getRequestHeaders().containsKey("Content-Encoding")).isFalse();
+    Traces.Builder received = Traces.newBuilder();
+    JsonFormat.parser().merge(new String(bodies.get(0), Charsets.UTF_8), received);
+    assertThat(received.build()).isEqualTo(traces("project"));
+  }
+
+  @Test
+  public void testBuilderCompressesProtobufWhenEnabled() throws IOException {
+    HttpTraceConsumer consumer = HttpTraceConsumer.builder(credentials)
+        .setHostUrl(hostUrl)
+        .setEncoding(HttpTraceConsumer.Encoding.PROTOBUF)
+        .setCompress(true)
+        .build();
+
+    consumer.receive(traces("project"));
+
+    assertThat(exchanges).hasSize(1);
+    HttpExchange exchange = exchanges.get(0);
+    assertThat(exchange.getRequestHeaders().getFirst("Content-Type"))
+        .isEqualTo("application/x-protobuf");
+    assertThat(exchange.getRequestHeaders().getFirst("Content-Encoding")).isEqualTo("gzip");
+    InputStream body = new GZIPInputStream(new ByteArrayInputStream(bodies.get(0)));
+    assertThat(Traces.parseFrom(body)).isEqualTo(traces("project"));
+  }
+
+  @Test
+  public void testBuilderDoesNotCompressByDefault() {
+    HttpTraceConsumer consumer = HttpTraceConsumer.builder(credentials)
+        .setHostUrl(hostUrl)
+        .build();
+
+    consumer.receive(traces("project"));
+
+    assertThat(exchanges.get(0).getRequestHeaders().containsKey("Content-Encoding")).isFalse();
+  }
+
+  @Test
+  public void testSendsOneRequestForEachProject() {
+    HttpTraceConsumer consumer = new HttpTraceConsumer(credentials, hostUrl);
+
+    consumer.receive(twoProjects());
+
+    assertThat(exchanges).hasSize(2);
+  }
+
+  @Test
+  public void testFailedRequestsAreLoggedByDefault() {
+    responseCode = 503;
+    HttpTraceConsumer consumer = new HttpTraceConsumer(credentials, hostUrl);
+
+    consumer.receive(traces("project"));
+
+    assertThat(exchanges).hasSize(1);
+    assertThat(consumer.getMetrics().getExportErrors()).isEqualTo(1L);
+  }
+
+  @Test
+  public void testFailedExportDoesNotPropagateOutOfBufferingConsumer() {
+    responseCode = 503;
+    HttpTraceConsumer consumer = new HttpTraceConsumer(credentials, hostUrl);
+    SizedBufferingTraceConsumer bufferingConsumer =
+        new SizedBufferingTraceConsumer(consumer, new ProtoTraceSizer(), 1);
+
+    bufferingConsumer.receive(traces("project"));
+
+    assertThat(exchanges).hasSize(1);
+    assertThat(consumer.getMetrics().getExportErrors()).isEqualTo(1L);
+  }
+
+  @Test
+  public void testServerErrorIsRetryable() {
+    responseCode = 503;
+    HttpTraceConsumer consumer = throwingConsumer();
+
+    try {
+      consumer.receive(traces("project"));
+      fail();
+    } catch (TraceExportException ex) {
+      assertThat(ex.isRetryable()).isTrue();
+    }
+  }
+
+  @Test
+  public void testClientErrorIsNotRetryable() {
+    responseCode = 400;
+    HttpTraceConsumer consumer = throwingConsumer();
+
+    try {
+      consumer.receive(traces("project"));
+      fail();
+    } catch (TraceExportException ex) {
+      assertThat(ex.isRetryable()).isFalse();
+    }
+  }
+
+  @Test
+  public void testFailureCarriesOnlyTheTracesOfFailedProjects() {
+    responseCode = 503;
+    failingProjectId = "project-2";
+    HttpTraceConsumer consumer = throwingConsumer();
+
+    try {
+      consumer.receive(twoProjects());
+      fail();
+    } catch (TraceExportException ex) {
+      assertThat(ex.isRetryable()).isTrue();
+      assertThat(ex.getUnsentTraces()).isEqualTo(traces("project-2"));
+    }
+
+    // The project after the failed project is still sent.
+    assertThat(exchanges).hasSize(2);
+  }
+
+  @Test
+  public void testExecutorFailureCarriesOnlyTheTracesOfFailedProjects() {
+    responseCode = 503;
+    failingProjectId = "project-1";
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    HttpTraceConsumer consumer = HttpTraceConsumer.builder(credentials)
+        .setHostUrl(hostUrl)
+        .setExecutor(executor)
+        .setThrowFailures(true)
+        .build();
+
+    try {
+      consumer.receive(twoProjects());
+      fail();
+    } catch (TraceExportException ex) {
+      assertThat(ex.getUnsentTraces()).isEqualTo(traces("project-1"));
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(exchanges).hasSize(2);
+  }
+
+  @Test
+  public void testRejectedProjectsAreSentOnCallingThread() {
+    HttpTraceConsumer consumer = new HttpTraceConsumer(credentials, hostUrl, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        throw new RejectedExecutionException();
+      }
+    });
+
+    consumer.receive(twoProjects());
+
+    assertThat(exchanges).hasSize(2);
+  }
+
+  @Test
+  public void testRecordsExportMetrics() {
+    TraceExportMetrics metrics = new TraceExportMetrics();
+    HttpTraceConsumer consumer = HttpTraceConsumer.builder(credentials)
+        .setHostUrl(hostUrl)
+        .setMetrics(metrics)
+        .setThrowFailures(true)
+        .build();
+
+    consumer.receive(traces("project"));
+    responseCode = 503;
+    try {
+      consumer.receive(traces("project"));
+      fail();
+    } catch (TraceExportException expected) {
+    }
+
+    assertThat(consumer.getMetrics()).isSameAs(metrics);
+    assertThat(metrics.getSpansExported()).isEqualTo(1L);
+    assertThat(metrics.getExportErrors()).isEqualTo(1L);
+    assertThat(metrics.getExportLatencyMillis().getCount()).isEqualTo(2L);
+  }
+
+  private HttpTraceConsumer throwingConsumer() {
+    return HttpTraceConsumer.builder(credentials)
+        .setHostUrl(hostUrl)
+        .setThrowFailures(true)
+        .build();
+  }
+
+  private static Traces twoProjects() {
+    return Traces.newBuilder()
+        .addAllTraces(traces("project-1").getTracesList())
+        .addAllTraces(traces("project-2").getTracesList())
+        .build();
+  }
+
+  private static Traces traces(String projectId) {
+    return Traces.newBuilder()
+        .addTraces(Trace.newBuilder()
+            .setProjectId(projectId)
+            .setTraceId("1")
+            .addSpans(TraceSpan.newBuilder().setSpanId(1).setName("span")))
+        .build();
+  }
+}
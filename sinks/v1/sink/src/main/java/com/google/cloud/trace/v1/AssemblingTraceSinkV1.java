@@ -0,0 +1,275 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1;
+
+import com.google.cloud.trace.core.Labels;
+import com.google.cloud.trace.core.SpanContext;
+import com.google.cloud.trace.core.SpanId;
+import com.google.cloud.trace.core.SpanKind;
+import com.google.cloud.trace.core.StackTrace;
+import com.google.cloud.trace.core.Timestamp;
+import com.google.cloud.trace.core.TraceId;
+import com.google.cloud.trace.sink.TraceSink;
+import com.google.cloud.trace.v1.consumer.TraceConsumer;
+import com.google.cloud.trace.v1.producer.TraceProducer;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link TraceSink} that assembles the trace events of each span into a single Stackdriver Trace
+ * API v1 trace message, and dispatches that message to a trace consumer when the span ends.
+ *
+ * <p>Unlike {@link TraceSinkV1}, which sends one trace message per trace event, this sink keeps a
+ * trace span message builder for every open span, keyed by trace and span identifier, and records
+ * the start, label annotation and stack trace events of the span on that builder. The completed
+ * trace span message is built once, when the end span event is received. Trace events for spans
+ * that this sink did not see start, or that have already ended, are sent to the trace consumer as
+ * individual trace messages, as {@link TraceSinkV1} does.
+ *
+ * <p>The number of open spans is bounded. Spans that are still open after the maximum span age,
+ * such as the spans of abandoned contexts, are evicted as later spans start: their trace span
+ * messages are sent to the trace consumer without an end time, and later trace events for them are
+ * sent as individual trace messages. While the maximum number of spans is open, the start events of
+ * further spans are sent as individual trace messages as well. The operations on this sink are
+ * thread-safe.
+ *
+ * @see TraceSink
+ * @see TraceSinkV1
+ * @see TraceConsumer
+ * @see TraceProducer
+ */
+public class AssemblingTraceSinkV1 implements TraceSink {
+  private static final int DEFAULT_MAX_OPEN_SPANS = 10000;
+  private static final long DEFAULT_MAX_SPAN_AGE_MINUTES = 10;
+
+  private final String projectId;
+  private final TraceProducer traceProducer;
+  private final TraceConsumer traceConsumer;
+  private final int maxOpenSpans;
+  private final long maxSpanAgeNanos;
+
+  private final ConcurrentHashMap<SpanKey, SpanRecord> openSpans;
+  // The time after which the next start span event looks for spans older than the maximum age.
+  private final AtomicLong nextEvictionNanos;
+
+  /**
+   * Creates an assembling TraceSink.
+   *
+   * @param projectId       a string containing the project identifier of the Google Cloud Platform
+   *                        project that owns the trace information.
+   * @param traceProducer   a trace producer that converts trace events to API v1 trace messages.
+   * @param traceConsumer   a trace consumer that accepts API v1 trace messages.
+   */
+  public AssemblingTraceSinkV1(
+      String projectId, TraceProducer traceProducer, TraceConsumer traceConsumer) {
+    this(projectId, traceProducer, traceConsumer, DEFAULT_MAX_OPEN_SPANS,
+        DEFAULT_MAX_SPAN_AGE_MINUTES, TimeUnit.MINUTES);
+  }
+
+  /**
+   * Creates an assembling TraceSink with a bound on its open spans.
+   *
+   * @param projectId       a string containing the project identifier of the Google Cloud Platform
+   *                        project that owns the trace information.
+   * @param traceProducer   a trace producer that converts trace events to API v1 trace messages.
+   * @param traceConsumer   a trace consumer that accepts API v1 trace messages.
+   * @param maxOpenSpans    the maximum number of spans that are assembled at the same time.
+   * @param maxSpanAge      the time after which an open span is evicted.
+   * @param unit            the unit of the maximum span age.
+   */
+  public AssemblingTraceSinkV1(String projectId, TraceProducer traceProducer,
+      TraceConsumer traceConsumer, int maxOpenSpans, long maxSpanAge, TimeUnit unit) {
+    if (maxOpenSpans <= 0) {
+      throw new IllegalArgumentException("Max open spans must be > 0.");
+    }
+    if (maxSpanAge <= 0) {
+      throw new IllegalArgumentException("Max span age must be > 0.");
+    }
+    this.projectId = projectId;
+    this.traceProducer = traceProducer;
+    this.traceConsumer = traceConsumer;
+    this.maxOpenSpans = maxOpenSpans;
+    this.maxSpanAgeNanos = unit.toNanos(maxSpanAge);
+    this.openSpans = new ConcurrentHashMap<SpanKey, SpanRecord>();
+    this.nextEvictionNanos = new AtomicLong(System.nanoTime() + maxSpanAgeNanos);
+  }
+
+  @Override
+  public void startSpan(SpanContext context, SpanContext parentContext,
+      SpanKind spanKind, String name, Timestamp timestamp) {
+    if (context.getTraceOptions().getTraceEnabled()) {
+      long now = System.nanoTime();
+      long nextEviction = nextEvictionNanos.get();
+      if (now - nextEviction >= 0
+          && nextEvictionNanos.compareAndSet(nextEviction, now + maxSpanAgeNanos / 2)) {
+        evictExpiredSpans(now);
+      }
+      SpanKey key = new SpanKey(context);
+      if (openSpans.size() >= maxOpenSpans && !openSpans.containsKey(key)) {
+        Trace trace = traceProducer.generateStartSpan(
+            projectId, context, parentContext, spanKind, name, timestamp);
+        traceConsumer.receive(Traces.newBuilder().addTraces(trace).build());
+        return;
+      }
+      SpanRecord record = new SpanRecord(context, now);
+      traceProducer.applyStartSpan(
+          record.spanBuilder, context, parentContext, spanKind, name, timestamp);
+      SpanRecord previous = openSpans.putIfAbsent(key, record);
+      if (previous != null) {
+        synchronized (previous) {
+          traceProducer.applyStartSpan(
+              previous.spanBuilder, context, parentContext, spanKind, name, timestamp);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void endSpan(SpanContext context, Timestamp timestamp) {
+    if (context.getTraceOptions().getTraceEnabled()) {
+      SpanRecord record = openSpans.remove(new SpanKey(context));
+      Trace trace = null;
+      if (record != null) {
+        synchronized (record) {
+          if (!record.ended) {
+            record.ended = true;
+            TraceSpan span =
+                traceProducer.applyEndSpan(record.spanBuilder, context, timestamp).build();
+            trace = traceProducer.generateTrace(projectId, context, span);
+          }
+        }
+      }
+      if (trace == null) {
+        trace = traceProducer.generateEndSpan(projectId, context, timestamp);
+      }
+      traceConsumer.receive(Traces.newBuilder().addTraces(trace).build());
+    }
+  }
+
+  @Override
+  public void annotateSpan(SpanContext context, Labels labels) {
+    if (context.getTraceOptions().getTraceEnabled()) {
+      SpanRecord record = openSpans.get(new SpanKey(context));
+      if (record != null) {
+        synchronized (record) {
+          if (!record.ended) {
+            traceProducer.applyAnnotateSpan(record.spanBuilder, context, labels);
+            return;
+          }
+        }
+      }
+      Trace trace = traceProducer.generateAnnotateSpan(projectId, context, labels);
+      traceConsumer.receive(Traces.newBuilder().addTraces(trace).build());
+    }
+  }
+
+  @Override
+  public void setStackTrace(SpanContext context, StackTrace stackTrace) {
+    if (context.getTraceOptions().getTraceEnabled()) {
+      SpanRecord record = openSpans.get(new SpanKey(context));
+      if (record != null) {
+        synchronized (record) {
+          if (!record.ended) {
+            traceProducer.applySetStackTrace(record.spanBuilder, context, stackTrace);
+            return;
+          }
+        }
+      }
+      Trace trace = traceProducer.generateSetStackTrace(projectId, context, stackTrace);
+      traceConsumer.receive(Traces.newBuilder().addTraces(trace).build());
+    }
+  }
+
+  /**
+   * Returns the number of spans that have been started but not yet ended.
+   *
+   * @return the number of open spans.
+   */
+  public int getOpenSpanCount() {
+    return openSpans.size();
+  }
+
+  /**
+   * Sends the trace span messages of the spans that have been open for longer than the maximum
+   * span age to the trace consumer, without an end time, and stops assembling them.
+   */
+  private void evictExpiredSpans(long now) {
+    Iterator<Map.Entry<SpanKey, SpanRecord>> iterator = openSpans.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<SpanKey, SpanRecord> entry = iterator.next();
+      SpanRecord record = entry.getValue();
+      if (now - record.startNanos < maxSpanAgeNanos) {
+        continue;
+      }
+      if (!openSpans.remove(entry.getKey(), record)) {
+        continue;
+      }
+      Trace trace;
+      synchronized (record) {
+        if (record.ended) {
+          continue;
+        }
+        record.ended = true;
+        trace = traceProducer.generateTrace(projectId, record.context, record.spanBuilder.build());
+      }
+      traceConsumer.receive(Traces.newBuilder().addTraces(trace).build());
+    }
+  }
+
+  private static class SpanKey {
+    private final TraceId traceId;
+    private final SpanId spanId;
+
+    private SpanKey(SpanContext context) {
+      this.traceId = context.getTraceId();
+      this.spanId = context.getSpanId();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof SpanKey)) {
+        return false;
+      }
+      SpanKey that = (SpanKey) obj;
+      return traceId.equals(that.traceId) && spanId.equals(that.spanId);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * traceId.hashCode() + spanId.hashCode();
+    }
+  }
+
+  private static class SpanRecord {
+    private final TraceSpan.Builder spanBuilder = TraceSpan.newBuilder();
+    private final SpanContext context;
+    private final long startNanos;
+    private boolean ended = false;
+
+    private SpanRecord(SpanContext context, long startNanos) {
+      this.context = context;
+      this.startNanos = startNanos;
+    }
+  }
+}
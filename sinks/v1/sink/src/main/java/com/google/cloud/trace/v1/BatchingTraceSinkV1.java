@@ -0,0 +1,272 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1;
+
+import com.google.cloud.trace.core.Labels;
+import com.google.cloud.trace.core.SpanContext;
+import com.google.cloud.trace.core.SpanKind;
+import com.google.cloud.trace.core.StackTrace;
+import com.google.cloud.trace.core.Timestamp;
+import com.google.cloud.trace.sink.TraceSink;
+import com.google.cloud.trace.v1.consumer.TraceConsumer;
+import com.google.cloud.trace.v1.producer.TraceProducer;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.io.Closeable;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link TraceSink} that converts trace events to Stackdriver Trace API v1 trace messages, collects
+ * them in a small batch for each thread, and dispatches each batch to a trace consumer as a single
+ * {@link Traces} message.
+ *
+ * <p>{@link TraceSinkV1} sends every trace event to the trace consumer as it happens. This sink
+ * instead adds the trace message of each trace event to a batch that belongs to the calling thread,
+ * and sends the batch when it holds the batch size of trace messages, when the outermost span
+ * started on the thread ends, or when the first trace message in the batch is older than the
+ * maximum batch delay. The maximum batch delay is checked when a trace event is received, and,
+ * once the sink is started, periodically on the given scheduled executor service, which sends the
+ * batches of idle threads and forgets the batches of threads that have died. Closing the sink
+ * stops the periodic task and sends the batches of all threads.
+ *
+ * <p>Trace events don't take locks: a thread hands its trace messages to the periodic task through
+ * a lock-free queue.
+ *
+ * @see TraceSink
+ * @see TraceSinkV1
+ * @see TraceConsumer
+ * @see TraceProducer
+ */
+public class BatchingTraceSinkV1 implements TraceSink, Closeable {
+  private static final Logger logger = Logger.getLogger(BatchingTraceSinkV1.class.getName());
+
+  private final String projectId;
+  private final TraceProducer traceProducer;
+  private final TraceConsumer traceConsumer;
+  private final int batchSize;
+  private final long maxBatchDelayMillis;
+  private final long maxBatchDelayNanos;
+  private final ScheduledExecutorService scheduler;
+  private ScheduledFuture<?> flusher;
+  private boolean closed;
+
+  private final Set<Batch> batches =
+      Collections.newSetFromMap(new ConcurrentHashMap<Batch, Boolean>());
+  private final ThreadLocal<Batch> threadBatch = new ThreadLocal<Batch>() {
+    @Override
+    protected Batch initialValue() {
+      Batch batch = new Batch(Thread.currentThread());
+      batches.add(batch);
+      return batch;
+    }
+  };
+
+  /**
+   * Creates a batching TraceSink. Call {@link #start()} to periodically send the batches of idle
+   * threads.
+   *
+   * @param projectId           a string containing the project identifier of the Google Cloud
+   *                            Platform project that owns the trace information.
+   * @param traceProducer       a trace producer that converts trace events to API v1 trace messages.
+   * @param traceConsumer       a trace consumer that accepts API v1 trace messages.
+   * @param batchSize           the maximum number of trace messages in a batch.
+   * @param maxBatchDelayMillis the maximum time in milliseconds that a trace message is batched.
+   * @param scheduler           a scheduled executor service used to send the batches of idle
+   *                            threads.
+   */
+  public BatchingTraceSinkV1(String projectId, TraceProducer traceProducer,
+      TraceConsumer traceConsumer, int batchSize, long maxBatchDelayMillis,
+      ScheduledExecutorService scheduler) {
+    this.projectId = projectId;
+    this.traceProducer = traceProducer;
+    this.traceConsumer = traceConsumer;
+    this.batchSize = batchSize;
+    this.maxBatchDelayMillis = maxBatchDelayMillis;
+    this.maxBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxBatchDelayMillis);
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Starts periodically sending the batches of idle threads on the scheduled executor service.
+   */
+  public synchronized void start() {
+    if (closed) {
+      throw new IllegalStateException("The sink is closed.");
+    }
+    if (flusher != null) {
+      return;
+    }
+    flusher = scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          flushExpired();
+        } catch (RuntimeException ex) {
+          logger.log(Level.WARNING, "Failed to send batched trace messages", ex);
+        }
+      }
+    }, maxBatchDelayMillis, maxBatchDelayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Closes this sink: stops periodically sending the batches of idle threads, and sends the batches
+   * of all threads to the trace consumer.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      closed = true;
+      if (flusher != null) {
+        flusher.cancel(false);
+        flusher = null;
+      }
+    }
+    flush();
+  }
+
+  @Override
+  public void startSpan(SpanContext context, SpanContext parentContext,
+      SpanKind spanKind, String name, Timestamp timestamp) {
+    if (context.getTraceOptions().getTraceEnabled()) {
+      Trace trace = traceProducer.generateStartSpan(
+          projectId, context, parentContext, spanKind, name, timestamp);
+      add(trace, 1);
+    }
+  }
+
+  @Override
+  public void endSpan(SpanContext context, Timestamp timestamp) {
+    if (context.getTraceOptions().getTraceEnabled()) {
+      Trace trace = traceProducer.generateEndSpan(projectId, context, timestamp);
+      add(trace, -1);
+    }
+  }
+
+  @Override
+  public void annotateSpan(SpanContext context, Labels labels) {
+    if (context.getTraceOptions().getTraceEnabled()) {
+      Trace trace = traceProducer.generateAnnotateSpan(projectId, context, labels);
+      add(trace, 0);
+    }
+  }
+
+  @Override
+  public void setStackTrace(SpanContext context, StackTrace stackTrace) {
+    if (context.getTraceOptions().getTraceEnabled()) {
+      Trace trace = traceProducer.generateSetStackTrace(projectId, context, stackTrace);
+      add(trace, 0);
+    }
+  }
+
+  /**
+   * Sends the batches of all threads to the trace consumer.
+   */
+  public void flush() {
+    flushBatches(false);
+  }
+
+  private void flushExpired() {
+    flushBatches(true);
+  }
+
+  private void flushBatches(boolean expiredOnly) {
+    long now = System.nanoTime();
+    for (Batch batch : batches) {
+      // The batch of a thread that has died is sent right away, since nothing else will send it.
+      Thread thread = batch.thread.get();
+      boolean dead = thread == null || !thread.isAlive();
+      if (dead) {
+        batches.remove(batch);
+      }
+      Traces traces = batch.take(expiredOnly && !dead, now);
+      if (traces != null) {
+        traceConsumer.receive(traces);
+      }
+    }
+  }
+
+  private void add(Trace trace, int depthChange) {
+    Traces traces = threadBatch.get().add(trace, depthChange);
+    if (traces != null) {
+      traceConsumer.receive(traces);
+    }
+  }
+
+  private class Batch {
+    private final WeakReference<Thread> thread;
+    // Trace messages are added by the thread and taken by it or by the periodic task.
+    private final ConcurrentLinkedQueue<Trace> traces = new ConcurrentLinkedQueue<Trace>();
+    private final AtomicInteger traceCount = new AtomicInteger();
+    private volatile long firstTraceTime;
+    // The number of spans that were started on the thread and have not ended yet. Only the thread
+    // reads and writes it.
+    private int depth = 0;
+
+    private Batch(Thread thread) {
+      this.thread = new WeakReference<Thread>(thread);
+    }
+
+    /**
+     * Adds a trace message to this batch, and returns the batched trace messages if the batch should
+     * be sent, or null otherwise. Only the thread of this batch calls this method.
+     */
+    private Traces add(Trace trace, int depthChange) {
+      long now = System.nanoTime();
+      traces.add(trace);
+      int count = traceCount.incrementAndGet();
+      if (count == 1) {
+        firstTraceTime = now;
+      }
+      depth = Math.max(0, depth + depthChange);
+      if (count >= batchSize
+          || (depthChange < 0 && depth == 0)
+          || now - firstTraceTime >= maxBatchDelayNanos) {
+        return take();
+      }
+      return null;
+    }
+
+    private Traces take(boolean expiredOnly, long now) {
+      if (traces.isEmpty() || (expiredOnly && now - firstTraceTime < maxBatchDelayNanos)) {
+        return null;
+      }
+      return take();
+    }
+
+    private Traces take() {
+      Traces.Builder tracesBuilder = null;
+      int count = 0;
+      for (Trace trace = traces.poll(); trace != null; trace = traces.poll()) {
+        if (tracesBuilder == null) {
+          tracesBuilder = Traces.newBuilder();
+        }
+        tracesBuilder.addTraces(trace);
+        count++;
+      }
+      traceCount.addAndGet(-count);
+      return tracesBuilder == null ? null : tracesBuilder.build();
+    }
+  }
+}
@@ -19,9 +19,13 @@ import com.google.cloud.trace.core.SpanContext;
 import com.google.cloud.trace.core.SpanKind;
 import com.google.cloud.trace.core.StackTrace;
 import com.google.cloud.trace.core.Timestamp;
+import com.google.cloud.trace.core.TraceId;
 import com.google.cloud.trace.sink.TraceSink;
+import com.google.cloud.trace.v1.consumer.AsyncFlushableTraceConsumer;
 import com.google.cloud.trace.v1.consumer.TraceConsumer;
 import com.google.cloud.trace.v1.producer.TraceProducer;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.devtools.cloudtrace.v1.Trace;
 import com.google.devtools.cloudtrace.v1.Traces;
 
@@ -96,4 +100,21 @@ public class TraceSinkV1 implements TraceSink {
       traceConsumer.receive(Traces.newBuilder().addTraces(trace).build());
     }
   }
+
+  /**
+   * Starts flushing the buffered spans of one trace of this sink's project, if the trace consumer
+   * buffers trace messages and can flush them asynchronously.
+   *
+   * @param traceId the trace identifier of the trace.
+   * @return a future that completes when the spans of the trace have been flushed, or immediately
+   *     if the trace consumer can't flush them asynchronously.
+   * @see AsyncFlushableTraceConsumer#flushTraceAsync(String, String)
+   */
+  public ListenableFuture<Void> flushTraceAsync(TraceId traceId) {
+    if (traceConsumer instanceof AsyncFlushableTraceConsumer) {
+      return ((AsyncFlushableTraceConsumer) traceConsumer)
+          .flushTraceAsync(projectId, traceId.getApiString());
+    }
+    return Futures.immediateFuture(null);
+  }
 }
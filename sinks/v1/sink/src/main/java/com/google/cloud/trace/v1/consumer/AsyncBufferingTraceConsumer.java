@@ -0,0 +1,348 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.consumer;
+
+import com.google.cloud.trace.v1.util.BufferLimits;
+import com.google.cloud.trace.v1.util.LoadSheddingPolicy;
+import com.google.cloud.trace.v1.util.MemoryBudget;
+import com.google.cloud.trace.v1.util.Sizer;
+import com.google.cloud.trace.v1.util.TraceBuffer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A flushable trace consumer that auto-flushes when its buffered trace messages exceed its buffer size
+ * or have been buffered for longer than its scheduled delay.
+ *
+ * <p>Unlike {@link ScheduledBufferingTraceConsumer}, this consumer never takes a lock when it receives
+ * trace messages. Received trace messages are appended to a lock-free queue, and a single long-lived
+ * flusher thread drains the queue, combines the trace messages and sends them to the delegate trace
+ * consumer. The flusher thread wakes up when the buffer size is reached or when the scheduled delay
+ * has passed since the first trace message of the current batch was received, so the threads that
+ * produce trace messages never wait for the delegate trace consumer. The flusher thread is started
+ * when the first trace message is received. The operations on this trace consumer are thread-safe.
+ *
+ * <p>If buffer limits are given, they bound the spans and serialized bytes waiting in the queue. A
+ * traces message that would exceed them is handled by the load shedding policy of the limits:
+ * {@link LoadSheddingPolicy#DROP_OLDEST_TRACES} removes the oldest queued traces messages, and the
+ * dropped spans are counted.
+ *
+ * <p>{@link #close()} stops the flusher thread once it has flushed the queued trace messages.
+ * Trace messages received after the trace consumer is closed are dropped and counted.
+ *
+ * @see BufferLimits
+ * @see FlushableTraceConsumer
+ * @see Sizer
+ * @see Traces
+ * @see TraceConsumer
+ */
+public class AsyncBufferingTraceConsumer implements FlushableTraceConsumer, Closeable {
+  private static final Logger logger =
+      Logger.getLogger(AsyncBufferingTraceConsumer.class.getName());
+
+  private final TraceConsumer traceConsumer;
+  private final Sizer<Trace> traceSizer;
+  private final int bufferSize;
+  private final long scheduledDelayNanos;
+  private final ThreadFactory threadFactory;
+  private final BufferLimits limits;
+
+  private final ConcurrentLinkedQueue<Traces> queue = new ConcurrentLinkedQueue<Traces>();
+  private final AtomicInteger size = new AtomicInteger();
+  // The number of spans and serialized bytes in the queue, only counted when there are limits.
+  private final AtomicInteger queuedSpans = new AtomicInteger();
+  private final AtomicInteger queuedBytes = new AtomicInteger();
+  private final AtomicLong droppedSpanCount = new AtomicLong();
+  private final AtomicBoolean started = new AtomicBoolean();
+  private volatile Thread flusher = null;
+  private volatile boolean closed = false;
+
+  private final Object flushMonitor = new Object();
+
+  /**
+   * Creates a buffering trace consumer that uses a daemon thread to flush its buffer, with the
+   * default buffer limits for its buffer size.
+   *
+   * @param traceConsumer  a trace consumer that serves as this trace consumer's delegate.
+   * @param traceSizer     a sizer used to estimate the size of trace messages.
+   * @param bufferSize     the size of this trace consumer's trace message buffer.
+   * @param scheduledDelay the scheduled delay of this trace consumer in seconds.
+   */
+  public AsyncBufferingTraceConsumer(TraceConsumer traceConsumer, Sizer<Trace> traceSizer,
+      int bufferSize, int scheduledDelay) {
+    this(traceConsumer, traceSizer, bufferSize, scheduledDelay,
+        BufferLimits.forBufferSize(bufferSize));
+  }
+
+  /**
+   * Creates a buffering trace consumer with buffer limits that uses a daemon thread to flush its
+   * buffer.
+   *
+   * @param traceConsumer  a trace consumer that serves as this trace consumer's delegate.
+   * @param traceSizer     a sizer used to estimate the size of trace messages.
+   * @param bufferSize     the size of this trace consumer's trace message buffer.
+   * @param scheduledDelay the scheduled delay of this trace consumer in seconds.
+   * @param limits         the limits of this trace consumer's queue.
+   */
+  public AsyncBufferingTraceConsumer(TraceConsumer traceConsumer, Sizer<Trace> traceSizer,
+      int bufferSize, int scheduledDelay, BufferLimits limits) {
+    this(traceConsumer, traceSizer, bufferSize, scheduledDelay,
+        new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("cloud-trace-flusher-%d")
+            .build(),
+        limits);
+  }
+
+  /**
+   * Creates a buffering trace consumer with the default buffer limits for its buffer size.
+   *
+   * @param traceConsumer  a trace consumer that serves as this trace consumer's delegate.
+   * @param traceSizer     a sizer used to estimate the size of trace messages.
+   * @param bufferSize     the size of this trace consumer's trace message buffer.
+   * @param scheduledDelay the scheduled delay of this trace consumer in seconds.
+   * @param threadFactory  a thread factory used to create the flusher thread of this trace consumer.
+   */
+  public AsyncBufferingTraceConsumer(TraceConsumer traceConsumer, Sizer<Trace> traceSizer,
+      int bufferSize, int scheduledDelay, ThreadFactory threadFactory) {
+    this(traceConsumer, traceSizer, bufferSize, scheduledDelay, threadFactory,
+        BufferLimits.forBufferSize(bufferSize));
+  }
+
+  /**
+   * Creates a buffering trace consumer with buffer limits.
+   *
+   * @param traceConsumer  a trace consumer that serves as this trace consumer's delegate.
+   * @param traceSizer     a sizer used to estimate the size of trace messages.
+   * @param bufferSize     the size of this trace consumer's trace message buffer.
+   * @param scheduledDelay the scheduled delay of this trace consumer in seconds.
+   * @param threadFactory  a thread factory used to create the flusher thread of this trace consumer.
+   * @param limits         the limits of this trace consumer's queue.
+   */
+  public AsyncBufferingTraceConsumer(TraceConsumer traceConsumer, Sizer<Trace> traceSizer,
+      int bufferSize, int scheduledDelay, ThreadFactory threadFactory, BufferLimits limits) {
+    this.traceConsumer = traceConsumer;
+    this.traceSizer = traceSizer;
+    this.bufferSize = bufferSize;
+    this.scheduledDelayNanos = TimeUnit.SECONDS.toNanos(scheduledDelay);
+    this.threadFactory = threadFactory;
+    this.limits = limits;
+  }
+
+  @Override
+  public void receive(Traces traces) {
+    if (traces.getTracesCount() == 0) {
+      return;
+    }
+    if (closed) {
+      droppedSpanCount.addAndGet(spanCount(traces));
+      return;
+    }
+    if (limits != BufferLimits.unlimited()) {
+      traces = reserve(traces);
+      if (traces == null) {
+        return;
+      }
+    }
+    int tracesSize = 0;
+    for (Trace trace : traces.getTracesList()) {
+      tracesSize += traceSizer.size(trace);
+    }
+    // The size is added before the traces message is queued, so the flusher never subtracts it
+    // first and never sees a negative size.
+    int previous = size.getAndAdd(tracesSize);
+    queue.offer(traces);
+    // Only the first trace message of a batch and the trace message that fills the buffer need to
+    // wake up the flusher thread.
+    if (previous == 0 || (previous < bufferSize && previous + tracesSize >= bufferSize)) {
+      wakeFlusher();
+    }
+  }
+
+  @Override
+  public void flush() {
+    synchronized (flushMonitor) {
+      TraceBuffer traceBuffer = new TraceBuffer();
+      Traces traces;
+      while ((traces = queue.poll()) != null) {
+        for (Trace trace : traces.getTracesList()) {
+          traceBuffer.put(trace);
+        }
+        release(traces);
+      }
+      if (!traceBuffer.isEmpty()) {
+        traceConsumer.receive(traceBuffer.getTraces());
+      }
+    }
+  }
+
+  /**
+   * Closes this trace consumer: stops its flusher thread, waiting for it to flush the queued trace
+   * messages, and flushes the trace messages that were queued meanwhile.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    Thread thread = flusher;
+    if (thread != null && thread != Thread.currentThread()) {
+      LockSupport.unpark(thread);
+      try {
+        thread.join();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    flush();
+  }
+
+  /**
+   * Returns the number of trace span messages this trace consumer dropped because its buffer limits
+   * were exceeded or because it was closed.
+   *
+   * @return the number of dropped spans.
+   */
+  public long getDroppedSpanCount() {
+    return droppedSpanCount.get();
+  }
+
+  /**
+   * Reserves room in the queue for a traces message, shedding load if needed, and returns the
+   * traces message to add to the queue, or null if it was dropped.
+   */
+  private Traces reserve(Traces traces) {
+    int spanCount = spanCount(traces);
+    if (tryReserve(spanCount, traces.getSerializedSize())) {
+      return traces;
+    }
+    switch (limits.getPolicy()) {
+      case DROP_OLDEST_TRACES:
+        // Polling the queue is safe while the flusher drains it, because each traces message is
+        // removed by exactly one thread.
+        Traces oldest;
+        while ((oldest = queue.poll()) != null) {
+          release(oldest);
+          droppedSpanCount.addAndGet(spanCount(oldest));
+          if (tryReserve(spanCount, traces.getSerializedSize())) {
+            return traces;
+          }
+        }
+        break;
+      case DROP_PAYLOADS:
+        Traces withoutPayloads = MemoryBudget.dropPayloads(traces);
+        if (tryReserve(spanCount, withoutPayloads.getSerializedSize())) {
+          return withoutPayloads;
+        }
+        break;
+      case DROP_NEWEST:
+      default:
+        break;
+    }
+    droppedSpanCount.addAndGet(spanCount);
+    return null;
+  }
+
+  private boolean tryReserve(int spanCount, int bytes) {
+    // The non-short-circuit operator updates both counters, so both can be rolled back.
+    if (queuedSpans.addAndGet(spanCount) > limits.getMaxSpans()
+        | queuedBytes.addAndGet(bytes) > limits.getMaxBytes()) {
+      queuedSpans.addAndGet(-spanCount);
+      queuedBytes.addAndGet(-bytes);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Releases the room in the queue of a traces message that was removed from the queue.
+   */
+  private void release(Traces traces) {
+    int tracesSize = 0;
+    for (Trace trace : traces.getTracesList()) {
+      tracesSize += traceSizer.size(trace);
+    }
+    size.addAndGet(-tracesSize);
+    if (limits != BufferLimits.unlimited()) {
+      queuedSpans.addAndGet(-spanCount(traces));
+      queuedBytes.addAndGet(-traces.getSerializedSize());
+    }
+  }
+
+  private static int spanCount(Traces traces) {
+    int spanCount = 0;
+    for (Trace trace : traces.getTracesList()) {
+      spanCount += trace.getSpansCount();
+    }
+    return spanCount;
+  }
+
+  private void wakeFlusher() {
+    Thread thread = flusher;
+    if (thread == null && started.compareAndSet(false, true)) {
+      thread = threadFactory.newThread(new Flusher());
+      flusher = thread;
+      thread.start();
+    } else if (thread != null) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  private class Flusher implements Runnable {
+    @Override
+    public void run() {
+      // The time at which the first trace message of the current batch was seen, or -1 if the
+      // buffer was empty.
+      long batchStart = -1;
+      while (!closed) {
+        int currentSize = size.get();
+        if (currentSize <= 0) {
+          batchStart = -1;
+          LockSupport.park(this);
+          continue;
+        }
+        long now = System.nanoTime();
+        if (batchStart == -1) {
+          batchStart = now;
+        }
+        long remaining = batchStart + scheduledDelayNanos - now;
+        if (currentSize < bufferSize && remaining > 0) {
+          LockSupport.parkNanos(this, remaining);
+          continue;
+        }
+        try {
+          flush();
+        } catch (RuntimeException ex) {
+          logger.log(Level.WARNING, "Failed to flush trace messages", ex);
+        }
+        batchStart = -1;
+      }
+      try {
+        flush();
+      } catch (RuntimeException ex) {
+        logger.log(Level.WARNING, "Failed to flush trace messages", ex);
+      }
+    }
+  }
+}
@@ -0,0 +1,59 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.consumer;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An interface for a trace consumer that can be flushed without blocking, and closed.
+ *
+ * @see FlushableTraceConsumer
+ * @see TraceConsumer
+ */
+public interface AsyncFlushableTraceConsumer extends FlushableTraceConsumer {
+  /**
+   * Starts flushing this trace consumer without waiting for the flush to complete.
+   *
+   * @return a future that completes when the flushed trace messages have been accepted by the
+   *     delegate trace consumer, or fails with the exception that the delegate trace consumer
+   *     threw.
+   */
+  ListenableFuture<Void> flushAsync();
+
+  /**
+   * Starts flushing the buffered spans of one trace without waiting for the flush to complete,
+   * leaving the spans of other traces buffered. This lets a request handler send the spans of its
+   * own trace when it completes, for example on platforms that suspend the application between
+   * requests.
+   *
+   * @param projectId the project identifier of the trace.
+   * @param traceId   the trace identifier of the trace.
+   * @return a future that completes when the spans of the trace have been accepted by the delegate
+   *     trace consumer, or immediately if no spans of the trace are buffered.
+   */
+  ListenableFuture<Void> flushTraceAsync(String projectId, String traceId);
+
+  /**
+   * Closes this trace consumer, flushing its buffered trace messages and waiting at most the given
+   * time for the flush to complete. Trace messages received after this trace consumer is closed are
+   * dropped.
+   *
+   * @param timeout the maximum time to wait.
+   * @param unit    the unit of the timeout.
+   * @return true if the buffered trace messages were flushed before the timeout elapsed.
+   */
+  boolean close(long timeout, TimeUnit unit);
+}
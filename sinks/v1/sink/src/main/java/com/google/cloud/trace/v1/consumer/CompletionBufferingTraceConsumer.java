@@ -0,0 +1,489 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.consumer;
+
+import com.google.cloud.trace.v1.metrics.TraceExportMetrics;
+import com.google.cloud.trace.v1.util.BufferLimits;
+import com.google.cloud.trace.v1.util.Sizer;
+import com.google.cloud.trace.v1.util.TimingWheel;
+import com.google.cloud.trace.v1.util.TraceBuffer;
+import com.google.cloud.trace.v1.util.TraceKey;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An asynchronously flushable trace consumer that buffers the spans of each trace until the trace
+ * completes, and then sends the whole trace with the next batch. The operations on this trace
+ * consumer are thread-safe.
+ *
+ * <p>A trace completes when its local root span ends. A span without a parent span is the root span
+ * of its trace. Otherwise, as trace sinks that send a trace message when a span starts send the
+ * start of a parent span before the starts of its child spans, the first started span of a trace
+ * that this trace consumer receives is taken as the local root span of the trace. Trace sinks that
+ * only send spans once they end, like {@code AssemblingTraceSinkV1}, send child spans before their
+ * parent spans, so their traces only complete if their root span is local, and otherwise are sent
+ * once they reach the maximum trace age. Completed traces are
+ * batched, and the batch is handed to the delegate trace consumer once its size reaches the buffer
+ * size, or at the next tick otherwise. Traces that don't complete within the maximum trace age,
+ * tracked by a timing wheel, are sent with the next batch as they are. Sending complete traces
+ * both lowers the delay of their export, and the number of trace messages that are sent for each
+ * trace.
+ *
+ * <p>If buffer limits are given, trace messages of traces that haven't completed that would
+ * exceed them are handled by the load shedding policy of the limits, and the dropped spans are
+ * counted. The trace consumer records the spans it receives, merges and drops, the number of
+ * buffered spans, and the size and latency of each flush in its metrics.
+ *
+ * @see AsyncFlushableTraceConsumer
+ * @see ScheduledBufferingTraceConsumer
+ * @see TimingWheel
+ * @see TraceExportMetrics
+ */
+public class CompletionBufferingTraceConsumer implements AsyncFlushableTraceConsumer {
+  private static final Logger logger =
+      Logger.getLogger(CompletionBufferingTraceConsumer.class.getName());
+
+  private final TraceConsumer traceConsumer;
+  private final Sizer<Trace> traceSizer;
+  private final int bufferSize;
+  private final int maxTraceAgeTicks;
+  private final long tickMillis;
+  private final ScheduledExecutorService scheduler;
+  private final TraceExportMetrics metrics;
+
+  private final AtomicLong droppedSpanCount = new AtomicLong();
+  private final AtomicLong completedTraceCount = new AtomicLong();
+  private final AtomicLong expiredTraceCount = new AtomicLong();
+
+  private final Object monitor = new Object();
+
+  // The traces that haven't completed yet.
+  private final TraceBuffer pendingBuffer;
+  private final Map<TraceKey, PendingTrace> pendingTraces = new HashMap<TraceKey, PendingTrace>();
+  private final TimingWheel<TraceKey> timingWheel;
+  // The traces that are sent with the next batch.
+  private Traces.Builder batch = Traces.newBuilder();
+  private int batchSize = 0;
+  private int batchSpanCount = 0;
+  private boolean closed = false;
+  private ScheduledFuture<?> ticker = null;
+  private Future<?> sender = null;
+
+  /**
+   * Creates a completion buffering trace consumer that ticks every second, with the default buffer
+   * limits for its batch size.
+   *
+   * @param traceConsumer a trace consumer that serves as this trace consumer's delegate.
+   * @param traceSizer    a sizer used to estimate the size of trace messages.
+   * @param bufferSize    the size of the batches of completed trace messages.
+   * @param maxTraceAge   the maximum number of seconds the spans of a trace that doesn't complete
+   *                      are buffered.
+   * @param scheduler     a scheduled executor service used to send batches.
+   */
+  public CompletionBufferingTraceConsumer(TraceConsumer traceConsumer, Sizer<Trace> traceSizer,
+      int bufferSize, int maxTraceAge, ScheduledExecutorService scheduler) {
+    this(traceConsumer, traceSizer, bufferSize, maxTraceAge, 1000, scheduler,
+        BufferLimits.forBufferSize(bufferSize), new TraceExportMetrics());
+  }
+
+  /**
+   * Creates a completion buffering trace consumer with buffer limits that records into the given
+   * metrics.
+   *
+   * @param traceConsumer a trace consumer that serves as this trace consumer's delegate.
+   * @param traceSizer    a sizer used to estimate the size of trace messages.
+   * @param bufferSize    the size of the batches of completed trace messages.
+   * @param maxTraceAge   the maximum number of seconds the spans of a trace that doesn't complete
+   *                      are buffered.
+   * @param tickMillis    the number of milliseconds between ticks, which is the longest time a
+   *                      completed trace waits for its batch to be sent.
+   * @param scheduler     a scheduled executor service used to send batches.
+   * @param limits        the limits of the buffer of traces that haven't completed.
+   * @param metrics       the metrics this trace consumer records into.
+   */
+  public CompletionBufferingTraceConsumer(TraceConsumer traceConsumer, Sizer<Trace> traceSizer,
+      int bufferSize, int maxTraceAge, long tickMillis, ScheduledExecutorService scheduler,
+      BufferLimits limits, TraceExportMetrics metrics) {
+    if (maxTraceAge <= 0) {
+      throw new IllegalArgumentException("Max trace age must be > 0.");
+    }
+    if (tickMillis <= 0) {
+      throw new IllegalArgumentException("Tick must be > 0.");
+    }
+    this.traceConsumer = traceConsumer;
+    this.traceSizer = traceSizer;
+    this.bufferSize = bufferSize;
+    this.maxTraceAgeTicks =
+        (int) Math.max(1, (TimeUnit.SECONDS.toMillis(maxTraceAge) + tickMillis - 1) / tickMillis);
+    this.tickMillis = tickMillis;
+    this.scheduler = scheduler;
+    this.metrics = metrics;
+    this.pendingBuffer = new TraceBuffer(limits);
+    this.timingWheel = new TimingWheel<TraceKey>(maxTraceAgeTicks);
+  }
+
+  @Override
+  public void receive(Traces traces) {
+    int received = 0;
+    int dropped = 0;
+    int buffered;
+    synchronized(monitor) {
+      if (closed) {
+        int spanCount = spanCount(traces);
+        droppedSpanCount.addAndGet(spanCount);
+        metrics.recordReceived(spanCount, 0, spanCount);
+        return;
+      }
+      int previousSpanCount = bufferedSpanCount();
+      for (Trace trace : traces.getTracesList()) {
+        if (trace.getSpansCount() == 0) {
+          continue;
+        }
+        received += trace.getSpansCount();
+        TraceKey traceKey = new TraceKey(trace.getProjectId(), trace.getTraceId());
+        PendingTrace pending = pendingTraces.get(traceKey);
+        if (pending == null) {
+          pending = new PendingTrace(timingWheel.schedule(traceKey, maxTraceAgeTicks));
+          pendingTraces.put(traceKey, pending);
+        }
+        pending.findRootSpan(trace);
+        dropped += pendingBuffer.put(trace);
+        if (pending.hasRootSpan && endsSpan(trace, pending.rootSpanId) && moveToBatch(traceKey)) {
+          completedTraceCount.incrementAndGet();
+        }
+      }
+      buffered = bufferedSpanCount() - previousSpanCount;
+      metrics.recordBufferedSpans(buffered);
+      if (batchSize >= bufferSize && sender == null) {
+        sender = scheduler.submit(sendable());
+      }
+      if (ticker == null && (!pendingTraces.isEmpty() || batchSpanCount > 0)) {
+        ticker = scheduler.scheduleAtFixedRate(
+            tickable(), tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (dropped > 0) {
+      droppedSpanCount.addAndGet(dropped);
+    }
+    // Spans that neither grew the buffer nor were dropped were merged into buffered spans.
+    metrics.recordReceived(received, Math.max(0, received - dropped - buffered), dropped);
+  }
+
+  @Override
+  public void flush() {
+    long start = System.nanoTime();
+    Traces traces;
+    synchronized(monitor) {
+      moveAllToBatch();
+      traces = takeBatch();
+    }
+    if (traces != null) {
+      send(traces, start);
+    }
+  }
+
+  @Override
+  public ListenableFuture<Void> flushAsync() {
+    long start = System.nanoTime();
+    Traces traces;
+    synchronized(monitor) {
+      moveAllToBatch();
+      traces = takeBatch();
+    }
+    if (traces == null) {
+      return Futures.immediateFuture(null);
+    }
+    return sendAsync(traces, start);
+  }
+
+  @Override
+  public ListenableFuture<Void> flushTraceAsync(String projectId, String traceId) {
+    long start = System.nanoTime();
+    Traces traces;
+    synchronized(monitor) {
+      moveToBatch(new TraceKey(projectId, traceId));
+      traces = takeBatch();
+    }
+    if (traces == null) {
+      return Futures.immediateFuture(null);
+    }
+    return sendAsync(traces, start);
+  }
+
+  @Override
+  public boolean close(long timeout, TimeUnit unit) {
+    synchronized(monitor) {
+      closed = true;
+      if (ticker != null) {
+        ticker.cancel(false);
+        ticker = null;
+      }
+    }
+    ListenableFuture<Void> future = flushAsync();
+    try {
+      future.get(timeout, unit);
+      return true;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException ex) {
+      return false;
+    } catch (TimeoutException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Advances the timing wheel, moves the traces that reached the maximum trace age to the batch,
+   * and sends the batch.
+   */
+  private void tick() {
+    long start = System.nanoTime();
+    Traces traces;
+    synchronized(monitor) {
+      for (TraceKey traceKey : timingWheel.advance()) {
+        PendingTrace pending = pendingTraces.get(traceKey);
+        // Traces that completed and started again have a later deadline.
+        if (pending != null && pending.deadline == timingWheel.getTick()
+            && moveToBatch(traceKey)) {
+          expiredTraceCount.incrementAndGet();
+        }
+      }
+      traces = takeBatch();
+      if (traces == null && pendingTraces.isEmpty() && ticker != null) {
+        // Stop ticking while there is nothing to send.
+        ticker.cancel(false);
+        ticker = null;
+      }
+    }
+    if (traces != null) {
+      send(traces, start);
+    }
+  }
+
+  /**
+   * Moves a trace that hasn't completed to the batch, and returns false if none of its spans are
+   * buffered, for example because they were dropped.
+   */
+  private boolean moveToBatch(TraceKey traceKey) {
+    pendingTraces.remove(traceKey);
+    Trace trace = pendingBuffer.removeTrace(traceKey.getProjectId(), traceKey.getTraceId());
+    if (trace == null) {
+      return false;
+    }
+    addToBatch(trace);
+    return true;
+  }
+
+  private void moveAllToBatch() {
+    for (Trace trace : pendingBuffer.getTraces().getTracesList()) {
+      addToBatch(trace);
+    }
+    pendingBuffer.release();
+    pendingTraces.clear();
+    timingWheel.clear();
+  }
+
+  private void addToBatch(Trace trace) {
+    batch.addTraces(trace);
+    batchSize += traceSizer.size(trace);
+    batchSpanCount += trace.getSpansCount();
+  }
+
+  /**
+   * Takes the batch of trace messages to send, or returns null if the batch is empty.
+   */
+  private Traces takeBatch() {
+    if (batch.getTracesCount() == 0) {
+      return null;
+    }
+    Traces traces = batch.build();
+    metrics.recordBufferedSpans(-batchSpanCount);
+    batch = Traces.newBuilder();
+    batchSize = 0;
+    batchSpanCount = 0;
+    return traces;
+  }
+
+  private int bufferedSpanCount() {
+    return pendingBuffer.getSpanCount() + batchSpanCount;
+  }
+
+  private ListenableFuture<Void> sendAsync(final Traces traces, final long start) {
+    final SettableFuture<Void> future = SettableFuture.create();
+    Runnable sender = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          send(traces, start);
+          future.set(null);
+        } catch (RuntimeException ex) {
+          future.setException(ex);
+        }
+      }
+    };
+    try {
+      scheduler.execute(sender);
+    } catch (RejectedExecutionException ex) {
+      // The scheduler is shutting down, so don't let the buffered trace messages be lost with it.
+      Thread thread = new Thread(sender, "trace-flush");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    return future;
+  }
+
+  private void send(Traces traces, long start) {
+    try {
+      traceConsumer.receive(traces);
+    } finally {
+      metrics.recordFlush(spanCount(traces), System.nanoTime() - start);
+    }
+  }
+
+  private Runnable sendable() {
+    return new Runnable() {
+      @Override
+      public void run() {
+        long start = System.nanoTime();
+        Traces traces;
+        synchronized(monitor) {
+          sender = null;
+          traces = takeBatch();
+        }
+        if (traces != null) {
+          send(traces, start);
+        }
+      }
+    };
+  }
+
+  private Runnable tickable() {
+    return new Runnable() {
+      @Override
+      public void run() {
+        try {
+          tick();
+        } catch (RuntimeException ex) {
+          // Keep ticking; an exception would cancel the scheduled ticks.
+          logger.log(Level.WARNING, "Failed to send trace messages", ex);
+        }
+      }
+    };
+  }
+
+  private static boolean endsSpan(Trace trace, long spanId) {
+    for (TraceSpan span : trace.getSpansList()) {
+      if (span.getSpanId() == spanId && span.hasEndTime()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int spanCount(Traces traces) {
+    int spanCount = 0;
+    for (Trace trace : traces.getTracesList()) {
+      spanCount += trace.getSpansCount();
+    }
+    return spanCount;
+  }
+
+  /**
+   * Returns the number of trace span messages this trace consumer dropped because its buffer limits
+   * were exceeded or it was closed.
+   *
+   * @return the number of dropped spans.
+   */
+  public long getDroppedSpanCount() {
+    return droppedSpanCount.get();
+  }
+
+  /**
+   * Returns the number of traces that were sent because their local root span ended.
+   *
+   * @return the number of completed traces.
+   */
+  public long getCompletedTraceCount() {
+    return completedTraceCount.get();
+  }
+
+  /**
+   * Returns the number of traces that were sent because they reached the maximum trace age before
+   * they completed.
+   *
+   * @return the number of expired traces.
+   */
+  public long getExpiredTraceCount() {
+    return expiredTraceCount.get();
+  }
+
+  /**
+   * Returns the metrics this trace consumer records into.
+   *
+   * @return the metrics.
+   */
+  public TraceExportMetrics getMetrics() {
+    return metrics;
+  }
+
+  private static class PendingTrace {
+    private final long deadline;
+    private boolean hasRootSpan = false;
+    private long rootSpanId;
+    private boolean started = false;
+
+    private PendingTrace(long deadline) {
+      this.deadline = deadline;
+    }
+
+    /**
+     * Takes the span of a trace message without a parent span, or else the first span that starts
+     * without ending, as the local root span. Trace messages that end spans don't carry their
+     * parent span.
+     */
+    private void findRootSpan(Trace trace) {
+      for (TraceSpan span : trace.getSpansList()) {
+        if (!span.hasStartTime()) {
+          continue;
+        }
+        if (span.getParentSpanId() == 0) {
+          hasRootSpan = true;
+          rootSpanId = span.getSpanId();
+        } else if (!started && !hasRootSpan && !span.hasEndTime()) {
+          hasRootSpan = true;
+          rootSpanId = span.getSpanId();
+        }
+        started = true;
+      }
+    }
+  }
+}
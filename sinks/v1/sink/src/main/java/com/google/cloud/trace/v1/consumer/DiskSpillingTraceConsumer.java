@@ -0,0 +1,484 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.consumer;
+
+import com.google.devtools.cloudtrace.v1.Traces;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A flushable trace consumer that writes trace messages to local disk when its delegate trace
+ * consumer fails, and replays them in order once the delegate trace consumer accepts trace messages
+ * again.
+ *
+ * <p>Trace messages that cannot be sent are appended to fixed-size segment files in a directory,
+ * which are memory-mapped so that spilled trace messages never occupy the heap. Each record in a
+ * segment file holds a serialized traces message with its length and CRC32 checksum, and the read
+ * offset of each segment file is stored in its header and forced to disk whenever it advances, so
+ * trace messages that were already replayed are not sent again after a crash and records that were
+ * only partly written are discarded. Segment files that are left in the directory are replayed when
+ * this trace consumer is created.
+ *
+ * <p>While spilled trace messages remain, newly received trace messages are also spilled, so the
+ * delegate trace consumer always receives trace messages in order. The spilled trace messages are
+ * replayed when {@link #flush()} is called and, if a scheduled executor service is given,
+ * periodically, but never by the threads that call {@link #receive(Traces)}. Replaying doesn't
+ * hold the lock that receiving takes while the delegate trace consumer is called. Trace messages
+ * that the delegate trace consumer rejects with a {@link TraceExportException} that isn't
+ * retryable are dropped and counted instead of being spilled or replayed again, so that they don't
+ * block the trace messages behind them. When the disk budget is used up, newly received trace
+ * messages are dropped and counted. The memory mappings of segment files are released before the
+ * files are deleted. The operations on this trace consumer are thread-safe.
+ *
+ * @see FlushableTraceConsumer
+ * @see Traces
+ * @see TraceConsumer
+ */
+public class DiskSpillingTraceConsumer implements FlushableTraceConsumer {
+  private static final Logger logger =
+      Logger.getLogger(DiskSpillingTraceConsumer.class.getName());
+
+  private static final String SEGMENT_PREFIX = "trace-segment-";
+  private static final String SEGMENT_SUFFIX = ".dat";
+
+  private final TraceConsumer traceConsumer;
+  private final File directory;
+  private final int segmentSize;
+  private final int maxSegments;
+
+  private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+  // Held while replaying, so that only one thread replays and removes segments at a time.
+  private final Object replayLock = new Object();
+  private long nextSequence = 0;
+  private long droppedTraceCount = 0;
+  private long rejectedTraceCount = 0;
+
+  /**
+   * Creates a disk spilling trace consumer that replays spilled trace messages when it is flushed.
+   *
+   * @param traceConsumer a trace consumer that serves as this trace consumer's delegate.
+   * @param directory     the directory that contains the segment files.
+   * @param segmentSize   the size of each segment file in bytes.
+   * @param maxDiskBytes  the maximum number of bytes of all of the segment files.
+   * @throws IOException if the directory can't be created or the segment files can't be read.
+   */
+  public DiskSpillingTraceConsumer(TraceConsumer traceConsumer, File directory, int segmentSize,
+      long maxDiskBytes) throws IOException {
+    if (segmentSize <= Segment.HEADER_SIZE + Segment.RECORD_HEADER_SIZE) {
+      throw new IllegalArgumentException("Segment size is too small.");
+    }
+    if (maxDiskBytes < segmentSize) {
+      throw new IllegalArgumentException("Max disk bytes must be >= segment size.");
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Failed to create directory: " + directory);
+    }
+    this.traceConsumer = traceConsumer;
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxSegments = (int) Math.min(Integer.MAX_VALUE, maxDiskBytes / segmentSize);
+    openSegments();
+  }
+
+  /**
+   * Creates a disk spilling trace consumer that also periodically replays spilled trace messages.
+   *
+   * @param traceConsumer       a trace consumer that serves as this trace consumer's delegate.
+   * @param directory           the directory that contains the segment files.
+   * @param segmentSize         the size of each segment file in bytes.
+   * @param maxDiskBytes        the maximum number of bytes of all of the segment files.
+   * @param scheduler           a scheduled executor service used to replay spilled trace messages.
+   * @param replayDelayMillis   the delay in milliseconds between replays.
+   * @throws IOException if the directory can't be created or the segment files can't be read.
+   */
+  public DiskSpillingTraceConsumer(TraceConsumer traceConsumer, File directory, int segmentSize,
+      long maxDiskBytes, ScheduledExecutorService scheduler, long replayDelayMillis)
+      throws IOException {
+    this(traceConsumer, directory, segmentSize, maxDiskBytes);
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          flush();
+        } catch (RuntimeException ex) {
+          logger.log(Level.WARNING, "Failed to replay spilled trace messages", ex);
+        }
+      }
+    }, replayDelayMillis, replayDelayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public synchronized void receive(Traces traces) {
+    if (traces.getTracesCount() == 0) {
+      return;
+    }
+    if (segments.isEmpty()) {
+      try {
+        traceConsumer.receive(traces);
+        return;
+      } catch (TraceExportException ex) {
+        if (!ex.isRetryable()) {
+          reject(traces, ex);
+          return;
+        }
+        logger.log(Level.WARNING, "Failed to send trace messages, spilling them to disk", ex);
+      } catch (RuntimeException ex) {
+        logger.log(Level.WARNING, "Failed to send trace messages, spilling them to disk", ex);
+      }
+    }
+    spill(traces);
+  }
+
+  /**
+   * Replays the spilled trace messages of this trace consumer to the delegate trace consumer, until
+   * all of them have been sent or the delegate trace consumer fails with a retryable failure.
+   */
+  @Override
+  public void flush() {
+    replay();
+  }
+
+  /**
+   * Returns the number of segment files of this trace consumer that hold spilled trace messages.
+   *
+   * @return the number of segment files.
+   */
+  public synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Returns the number of trace messages dropped because the disk budget was used up.
+   *
+   * @return the number of dropped trace messages.
+   */
+  public synchronized long getDroppedTraceCount() {
+    return droppedTraceCount;
+  }
+
+  /**
+   * Returns the number of trace messages dropped because the delegate trace consumer rejected them
+   * with a failure that isn't retryable.
+   *
+   * @return the number of rejected trace messages.
+   */
+  public synchronized long getRejectedTraceCount() {
+    return rejectedTraceCount;
+  }
+
+  private void spill(Traces traces) {
+    byte[] record = traces.toByteArray();
+    if (Segment.HEADER_SIZE + Segment.RECORD_HEADER_SIZE + record.length > segmentSize) {
+      drop(traces, "larger than a segment file");
+      return;
+    }
+    try {
+      Segment tail = segments.peekLast();
+      if (tail == null || !tail.append(record)) {
+        if (segments.size() >= maxSegments) {
+          drop(traces, "the disk budget is used up");
+          return;
+        }
+        tail = Segment.create(segmentFile(nextSequence++), segmentSize);
+        segments.addLast(tail);
+        tail.append(record);
+      }
+    } catch (IOException ex) {
+      logger.log(Level.WARNING, "Failed to spill trace messages to disk", ex);
+      droppedTraceCount += traces.getTracesCount();
+    }
+  }
+
+  private void drop(Traces traces, String reason) {
+    logger.warning("Dropped " + traces.getTracesCount() + " trace messages: " + reason);
+    droppedTraceCount += traces.getTracesCount();
+  }
+
+  private void reject(Traces traces, TraceExportException ex) {
+    logger.log(Level.WARNING,
+        "Dropped " + traces.getTracesCount() + " trace messages: rejected by the delegate", ex);
+    rejectedTraceCount += traces.getTracesCount();
+  }
+
+  private void replay() {
+    synchronized (replayLock) {
+      while (true) {
+        // Only the replaying thread removes segments, so the head segment stays valid while the
+        // lock is released; receiving threads only append to the tail segment.
+        Segment head;
+        byte[] record;
+        synchronized (this) {
+          head = segments.peekFirst();
+          if (head == null) {
+            return;
+          }
+          record = head.peek();
+          if (record == null) {
+            segments.removeFirst();
+            head.delete();
+            continue;
+          }
+        }
+        Traces traces;
+        try {
+          traces = Traces.parseFrom(record);
+        } catch (InvalidProtocolBufferException ex) {
+          logger.log(Level.WARNING, "Skipped a corrupt spilled record in " + head.file, ex);
+          advance(head);
+          continue;
+        }
+        try {
+          traceConsumer.receive(traces);
+        } catch (TraceExportException ex) {
+          if (ex.isRetryable()) {
+            logger.log(Level.FINE, "Failed to replay spilled trace messages", ex);
+            return;
+          }
+          synchronized (this) {
+            reject(traces, ex);
+          }
+        } catch (RuntimeException ex) {
+          logger.log(Level.FINE, "Failed to replay spilled trace messages", ex);
+          return;
+        }
+        advance(head);
+      }
+    }
+  }
+
+  private synchronized void advance(Segment head) {
+    head.advance();
+  }
+
+  private void openSegments() throws IOException {
+    String[] names = directory.list(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    if (names == null) {
+      throw new IOException("Failed to list directory: " + directory);
+    }
+    // The sequence numbers are zero-padded, so the names sort in sequence order.
+    Arrays.sort(names);
+    for (String name : names) {
+      String sequence =
+          name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+      try {
+        nextSequence = Math.max(nextSequence, Long.parseLong(sequence) + 1);
+      } catch (NumberFormatException ex) {
+        continue;
+      }
+      Segment segment = Segment.open(new File(directory, name));
+      if (segment == null) {
+        logger.warning("Skipped an invalid segment file: " + name);
+      } else {
+        segments.addLast(segment);
+      }
+    }
+  }
+
+  private File segmentFile(long sequence) {
+    return new File(directory,
+        String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+  }
+
+  /**
+   * A memory-mapped segment file. The header holds a magic number and the read offset, and is
+   * followed by records that each hold a length, a CRC32 checksum and a serialized traces message.
+   */
+  private static class Segment {
+    private static final int MAGIC = 0x54524331;
+    private static final int HEADER_SIZE = 8;
+    private static final int READ_OFFSET_POSITION = 4;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private int readOffset;
+    private int writeOffset;
+
+    private Segment(File file, MappedByteBuffer buffer, int readOffset, int writeOffset) {
+      this.file = file;
+      this.buffer = buffer;
+      this.readOffset = readOffset;
+      this.writeOffset = writeOffset;
+    }
+
+    private static Segment create(File file, int size) throws IOException {
+      MappedByteBuffer buffer = map(file, size);
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(READ_OFFSET_POSITION, HEADER_SIZE);
+      buffer.force();
+      return new Segment(file, buffer, HEADER_SIZE, HEADER_SIZE);
+    }
+
+    /**
+     * Opens an existing segment file, or returns null if the file isn't a valid segment file.
+     */
+    private static Segment open(File file) throws IOException {
+      long length = file.length();
+      if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+        return null;
+      }
+      MappedByteBuffer buffer = map(file, (int) length);
+      int readOffset = buffer.getInt(READ_OFFSET_POSITION);
+      if (buffer.getInt(0) != MAGIC || readOffset < HEADER_SIZE || readOffset > length) {
+        return null;
+      }
+      // Find the end of the last complete record; a record that was only partly written before a
+      // crash fails its checksum and is overwritten by the next append.
+      int writeOffset = readOffset;
+      byte[] record;
+      while ((record = readRecord(buffer, writeOffset)) != null) {
+        writeOffset += RECORD_HEADER_SIZE + record.length;
+      }
+      return new Segment(file, buffer, readOffset, writeOffset);
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      try {
+        randomAccessFile.setLength(size);
+        return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      } finally {
+        // The mapping stays valid after the file is closed.
+        randomAccessFile.close();
+      }
+    }
+
+    private static byte[] readRecord(MappedByteBuffer buffer, int offset) {
+      if (offset + RECORD_HEADER_SIZE > buffer.capacity()) {
+        return null;
+      }
+      int length = buffer.getInt(offset);
+      if (length <= 0 || length > buffer.capacity() - offset - RECORD_HEADER_SIZE) {
+        return null;
+      }
+      int checksum = buffer.getInt(offset + 4);
+      byte[] record = new byte[length];
+      for (int i = 0; i < length; i++) {
+        record[i] = buffer.get(offset + RECORD_HEADER_SIZE + i);
+      }
+      return checksum(record) == checksum ? record : null;
+    }
+
+    private static int checksum(byte[] record) {
+      CRC32 crc = new CRC32();
+      crc.update(record, 0, record.length);
+      return (int) crc.getValue();
+    }
+
+    /**
+     * Appends a record to this segment, or returns false if the record doesn't fit.
+     */
+    private boolean append(byte[] record) {
+      if (writeOffset + RECORD_HEADER_SIZE + record.length > buffer.capacity()) {
+        return false;
+      }
+      int offset = writeOffset + RECORD_HEADER_SIZE;
+      for (int i = 0; i < record.length; i++) {
+        buffer.put(offset + i, record[i]);
+      }
+      buffer.putInt(writeOffset + 4, checksum(record));
+      // The length is written last, so a record is only visible once it is complete.
+      buffer.putInt(writeOffset, record.length);
+      writeOffset += RECORD_HEADER_SIZE + record.length;
+      return true;
+    }
+
+    /**
+     * Returns the next unread record of this segment, or null if all of the records have been read.
+     */
+    private byte[] peek() {
+      if (readOffset >= writeOffset) {
+        return null;
+      }
+      byte[] record = readRecord(buffer, readOffset);
+      if (record == null) {
+        logger.warning("Skipped the corrupt remainder of " + file);
+        readOffset = writeOffset;
+      }
+      return record;
+    }
+
+    /**
+     * Marks the record returned by {@link #peek()} as read, and forces the new read offset to disk.
+     */
+    private void advance() {
+      readOffset += RECORD_HEADER_SIZE + buffer.getInt(readOffset);
+      buffer.putInt(READ_OFFSET_POSITION, readOffset);
+      buffer.force();
+    }
+
+    /**
+     * Releases the memory mapping of this segment and deletes its file. Unless the mapping is
+     * released, the disk space of the deleted file stays in use until the buffer is collected.
+     */
+    private void delete() {
+      unmap(buffer);
+      if (!file.delete()) {
+        logger.warning("Failed to delete " + file);
+      }
+    }
+
+    /**
+     * Releases a memory mapping, through {@code sun.misc.Unsafe.invokeCleaner} on Java 9 and later,
+     * or through the cleaner of the direct buffer on earlier versions. The buffer must not be used
+     * afterwards. If neither is available, the mapping is released when the buffer is collected.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+      try {
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        return;
+      } catch (NoSuchMethodException ex) {
+        // Java 8 and earlier; fall back to the cleaner of the direct buffer.
+      } catch (Exception ex) {
+        logger.log(Level.FINE, "Failed to unmap a segment file", ex);
+        return;
+      }
+      try {
+        Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(buffer);
+        if (cleaner != null) {
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+      } catch (Exception ex) {
+        logger.log(Level.FINE, "Failed to unmap a segment file", ex);
+      }
+    }
+  }
+}
@@ -0,0 +1,34 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.consumer;
+
+import com.google.cloud.trace.v1.util.EncodedTraces;
+
+/**
+ * An interface for a consumer of encoded traces messages. The consumer takes ownership of each
+ * encoded traces message it receives, and must release it once it no longer needs its bytes,
+ * whether or not it could use them.
+ *
+ * @see EncodedTraces
+ * @see EncodingTraceConsumer
+ */
+public interface EncodedTraceConsumer {
+  /**
+   * Consumes an encoded traces message.
+   *
+   * @param traces an encoded traces message.
+   */
+  void receive(EncodedTraces traces);
+}
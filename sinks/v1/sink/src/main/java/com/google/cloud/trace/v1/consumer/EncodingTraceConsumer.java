@@ -0,0 +1,167 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.consumer;
+
+import com.google.cloud.trace.v1.util.BufferPool;
+import com.google.cloud.trace.v1.util.EncodedTraces;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A flushable trace consumer that encodes each trace message it receives into pooled buffers as
+ * soon as it arrives, and sends the encoded trace messages of each project to an encoded trace
+ * consumer in batches of a maximum serialized size.
+ *
+ * <p>Trace messages are not merged, so this trace consumer is meant to receive trace messages
+ * of completed spans, for example from an {@link com.google.cloud.trace.v1.AssemblingTraceSinkV1},
+ * which the Stackdriver Trace API combines by their trace identifiers. Each span is then
+ * serialized exactly once on its way to the API. A batch is sent when adding a trace message would
+ * make it larger than the maximum batch size, when the trace consumer is flushed, and, if a
+ * scheduled executor service is given, once the oldest encoded trace message has waited for the
+ * scheduled delay. The operations on this trace consumer are thread-safe.
+ *
+ * @see BufferPool
+ * @see EncodedTraceConsumer
+ * @see EncodedTraces
+ * @see FlushableTraceConsumer
+ */
+public class EncodingTraceConsumer implements FlushableTraceConsumer {
+  private final EncodedTraceConsumer traceConsumer;
+  private final BufferPool pool;
+  private final int maxBatchSize;
+  private final int scheduledDelay;
+  private final ScheduledExecutorService scheduler;
+
+  private final Object monitor = new Object();
+  private final Map<String, EncodedTraces.Builder> batches =
+      new HashMap<String, EncodedTraces.Builder>();
+  private ScheduledFuture<?> flusher = null;
+
+  /**
+   * Creates an encoding trace consumer that sends batches when they are full or when it is
+   * flushed.
+   *
+   * @param traceConsumer an encoded trace consumer that serves as this trace consumer's delegate.
+   * @param pool          the buffer pool that trace messages are encoded into.
+   * @param maxBatchSize  the maximum serialized size in bytes of the batches sent to the delegate.
+   */
+  public EncodingTraceConsumer(EncodedTraceConsumer traceConsumer, BufferPool pool,
+      int maxBatchSize) {
+    this(traceConsumer, pool, maxBatchSize, 0, null);
+  }
+
+  /**
+   * Creates an encoding trace consumer that also sends batches after a scheduled delay.
+   *
+   * @param traceConsumer  an encoded trace consumer that serves as this trace consumer's delegate.
+   * @param pool           the buffer pool that trace messages are encoded into.
+   * @param maxBatchSize   the maximum serialized size in bytes of the batches sent to the
+   *                       delegate.
+   * @param scheduledDelay the scheduled delay of this trace consumer in seconds.
+   * @param scheduler      a scheduled executor service used to automatically flush this trace
+   *                       consumer, or null to flush only when batches are full or on request.
+   */
+  public EncodingTraceConsumer(EncodedTraceConsumer traceConsumer, BufferPool pool,
+      int maxBatchSize, int scheduledDelay, ScheduledExecutorService scheduler) {
+    if (maxBatchSize <= 0) {
+      throw new IllegalArgumentException("Max batch size must be > 0.");
+    }
+    this.traceConsumer = traceConsumer;
+    this.pool = pool;
+    this.maxBatchSize = maxBatchSize;
+    this.scheduledDelay = scheduledDelay;
+    this.scheduler = scheduler;
+  }
+
+  @Override
+  public void receive(Traces traces) {
+    List<EncodedTraces> full = null;
+    synchronized(monitor) {
+      for (Trace trace : traces.getTracesList()) {
+        EncodedTraces.Builder batch = batches.get(trace.getProjectId());
+        if (batch != null && !batch.isEmpty()
+            && batch.getSerializedSize() + EncodedTraces.fieldSize(trace) > maxBatchSize) {
+          if (full == null) {
+            full = new ArrayList<EncodedTraces>();
+          }
+          full.add(batch.build());
+          batch = null;
+        }
+        if (batch == null) {
+          batch = EncodedTraces.builder(trace.getProjectId(), pool);
+          batches.put(trace.getProjectId(), batch);
+        }
+        batch.add(trace);
+      }
+      if (scheduler != null && flusher == null && !batches.isEmpty()) {
+        flusher = scheduler.schedule(new Runnable() {
+          @Override
+          public void run() {
+            flush();
+          }
+        }, scheduledDelay, TimeUnit.SECONDS);
+      }
+    }
+    if (full != null) {
+      send(full);
+    }
+  }
+
+  @Override
+  public void flush() {
+    List<EncodedTraces> all = new ArrayList<EncodedTraces>();
+    synchronized(monitor) {
+      for (EncodedTraces.Builder batch : batches.values()) {
+        if (!batch.isEmpty()) {
+          all.add(batch.build());
+        }
+      }
+      batches.clear();
+      if (flusher != null) {
+        flusher.cancel(false);
+        flusher = null;
+      }
+    }
+    send(all);
+  }
+
+  /**
+   * Sends each batch independently, so that a failed batch doesn't keep the others from being sent,
+   * and then throws the first failure. A failed batch is released in case the delegate didn't.
+   */
+  private void send(List<EncodedTraces> encodedTraces) {
+    RuntimeException failure = null;
+    for (EncodedTraces traces : encodedTraces) {
+      try {
+        traceConsumer.receive(traces);
+      } catch (RuntimeException ex) {
+        traces.release();
+        if (failure == null) {
+          failure = ex;
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
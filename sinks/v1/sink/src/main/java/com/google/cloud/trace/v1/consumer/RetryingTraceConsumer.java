@@ -0,0 +1,380 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.consumer;
+
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A trace consumer that retries trace messages that its delegate trace consumer fails to send.
+ *
+ * <p>Retries are scheduled on a scheduled executor service after a jittered exponential backoff,
+ * so the calling thread never sleeps. Three mechanisms keep retries from multiplying load on a
+ * failing backend:
+ * <ul>
+ *   <li>a retry budget, which allows a fixed ratio of retries to first attempts, plus a small
+ *   reserve for bursts;</li>
+ *   <li>a circuit breaker, which opens after a number of consecutive retryable failures and holds
+ *   back all trace messages until the open interval has passed, and then lets a single attempt
+ *   through to probe the backend;</li>
+ *   <li>a limit on the number of traces messages waiting to be retried.</li>
+ * </ul>
+ * Trace messages are dropped and counted when they run out of attempts, when the retry budget or
+ * the pending limit is exhausted, or when the delegate trace consumer throws a
+ * {@link TraceExportException} that isn't retryable. When the delegate trace consumer sent some of
+ * the trace messages, only the {@link TraceExportException#getUnsentTraces() unsent} trace messages
+ * are retried. The operations on this trace consumer are thread-safe.
+ *
+ * @see TraceConsumer
+ * @see TraceExportException
+ */
+public class RetryingTraceConsumer implements TraceConsumer {
+  private static final Logger logger = Logger.getLogger(RetryingTraceConsumer.class.getName());
+
+  public static class Builder {
+    private final TraceConsumer traceConsumer;
+    private final ScheduledExecutorService scheduler;
+    private int maxAttempts = 5;
+    private long initialBackoffMillis = 500;
+    private long maxBackoffMillis = 30000;
+    private double backoffMultiplier = 2.0;
+    private double retryRatio = 0.2;
+    private int minRetryTokens = 10;
+    private int failureThreshold = 5;
+    private long openMillis = 30000;
+    private int maxPendingRetries = 100;
+
+    private Builder(TraceConsumer traceConsumer, ScheduledExecutorService scheduler) {
+      this.traceConsumer = traceConsumer;
+      this.scheduler = scheduler;
+    }
+
+    /**
+     * Sets the maximum number of attempts to send a traces message, including the first attempt.
+     * Optional. Defaults to 5.
+     */
+    public Builder setMaxAttempts(int maxAttempts) {
+      if (maxAttempts <= 0) {
+        throw new IllegalArgumentException("Max attempts must be > 0.");
+      }
+      this.maxAttempts = maxAttempts;
+      return this;
+    }
+
+    /**
+     * Sets the backoff before the first retry, the maximum backoff, and the factor by which the
+     * backoff grows after each retry. Each backoff is jittered to between half and all of its
+     * value. Optional. Defaults to 500ms, 30s and 2.
+     */
+    public Builder setBackoff(long initialBackoffMillis, long maxBackoffMillis,
+        double backoffMultiplier) {
+      if (initialBackoffMillis <= 0 || maxBackoffMillis < initialBackoffMillis) {
+        throw new IllegalArgumentException("Backoff must be > 0 and <= max backoff.");
+      }
+      if (backoffMultiplier < 1.0) {
+        throw new IllegalArgumentException("Backoff multiplier must be >= 1.");
+      }
+      this.initialBackoffMillis = initialBackoffMillis;
+      this.maxBackoffMillis = maxBackoffMillis;
+      this.backoffMultiplier = backoffMultiplier;
+      return this;
+    }
+
+    /**
+     * Sets the retry budget, as the number of retries allowed for each first attempt and the
+     * number of retries that are always allowed in a burst. Optional. Defaults to 0.2 and 10.
+     */
+    public Builder setRetryBudget(double retryRatio, int minRetryTokens) {
+      if (retryRatio < 0 || minRetryTokens < 0) {
+        throw new IllegalArgumentException("Retry budget must be >= 0.");
+      }
+      this.retryRatio = retryRatio;
+      this.minRetryTokens = minRetryTokens;
+      return this;
+    }
+
+    /**
+     * Sets the number of consecutive failures that open the circuit breaker, and the time for which
+     * it stays open. Optional. Defaults to 5 and 30s.
+     */
+    public Builder setCircuitBreaker(int failureThreshold, long openMillis) {
+      if (failureThreshold <= 0 || openMillis <= 0) {
+        throw new IllegalArgumentException("Circuit breaker settings must be > 0.");
+      }
+      this.failureThreshold = failureThreshold;
+      this.openMillis = openMillis;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of traces messages waiting to be retried. Optional. Defaults to 100.
+     */
+    public Builder setMaxPendingRetries(int maxPendingRetries) {
+      if (maxPendingRetries < 0) {
+        throw new IllegalArgumentException("Max pending retries must be >= 0.");
+      }
+      this.maxPendingRetries = maxPendingRetries;
+      return this;
+    }
+
+    /**
+     * Builds a new RetryingTraceConsumer.
+     */
+    public RetryingTraceConsumer build() {
+      return new RetryingTraceConsumer(this);
+    }
+  }
+
+  /**
+   * Returns a new builder.
+   *
+   * @param traceConsumer a trace consumer that serves as the delegate of the trace consumer.
+   * @param scheduler     a scheduled executor service used to retry trace messages.
+   * @return the new builder.
+   */
+  public static Builder builder(TraceConsumer traceConsumer, ScheduledExecutorService scheduler) {
+    return new Builder(traceConsumer, scheduler);
+  }
+
+  private final TraceConsumer traceConsumer;
+  private final ScheduledExecutorService scheduler;
+  private final int maxAttempts;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+  private final double backoffMultiplier;
+  private final int maxPendingRetries;
+  private final RetryBudget retryBudget;
+  private final CircuitBreaker circuitBreaker;
+
+  private final Random random = new Random();
+  private final AtomicInteger pendingRetries = new AtomicInteger();
+  private final AtomicLong droppedSpanCount = new AtomicLong();
+
+  private RetryingTraceConsumer(Builder builder) {
+    this.traceConsumer = builder.traceConsumer;
+    this.scheduler = builder.scheduler;
+    this.maxAttempts = builder.maxAttempts;
+    this.initialBackoffMillis = builder.initialBackoffMillis;
+    this.maxBackoffMillis = builder.maxBackoffMillis;
+    this.backoffMultiplier = builder.backoffMultiplier;
+    this.maxPendingRetries = builder.maxPendingRetries;
+    this.retryBudget = new RetryBudget(builder.retryRatio, builder.minRetryTokens);
+    this.circuitBreaker = new CircuitBreaker(builder.failureThreshold, builder.openMillis);
+  }
+
+  @Override
+  public void receive(Traces traces) {
+    if (traces.getTracesCount() == 0) {
+      return;
+    }
+    retryBudget.deposit();
+    attempt(traces, 1);
+  }
+
+  /**
+   * Returns the number of trace span messages that were dropped after failing to be sent.
+   *
+   * @return the number of dropped spans.
+   */
+  public long getDroppedSpanCount() {
+    return droppedSpanCount.get();
+  }
+
+  /**
+   * Returns the number of traces messages waiting to be retried.
+   *
+   * @return the number of pending retries.
+   */
+  public int getPendingRetryCount() {
+    return pendingRetries.get();
+  }
+
+  /**
+   * Returns true if the circuit breaker is open, so trace messages are being held back.
+   *
+   * @return true if the circuit breaker is open.
+   */
+  public boolean isCircuitOpen() {
+    return circuitBreaker.remainingOpenMillis() > 0;
+  }
+
+  private void attempt(Traces traces, int attempt) {
+    long remainingOpenMillis = circuitBreaker.remainingOpenMillis();
+    if (remainingOpenMillis > 0 || !circuitBreaker.tryAcquire()) {
+      // Hold the trace messages back without sending them while the circuit is open. This doesn't
+      // count as an attempt.
+      if (!schedule(traces, attempt, Math.max(remainingOpenMillis, initialBackoffMillis))) {
+        drop(traces, "the circuit breaker is open", null);
+      }
+      return;
+    }
+    try {
+      traceConsumer.receive(traces);
+      circuitBreaker.onSuccess();
+    } catch (RuntimeException ex) {
+      if (ex instanceof TraceExportException
+          && ((TraceExportException) ex).getUnsentTraces() != null) {
+        // The other trace messages were sent, so they must not be sent again.
+        traces = ((TraceExportException) ex).getUnsentTraces();
+      }
+      if (ex instanceof TraceExportException && !((TraceExportException) ex).isRetryable()) {
+        // The backend rejected the trace messages themselves, so it is reachable and the failure
+        // doesn't count toward opening the circuit.
+        circuitBreaker.onSuccess();
+        drop(traces, "the failure isn't retryable", ex);
+        return;
+      }
+      circuitBreaker.onFailure();
+      if (attempt >= maxAttempts) {
+        drop(traces, "out of attempts", ex);
+      } else if (!retryBudget.withdraw()) {
+        drop(traces, "the retry budget is exhausted", ex);
+      } else if (!schedule(traces, attempt + 1, backoffMillis(attempt))) {
+        drop(traces, "too many pending retries", ex);
+      }
+    }
+  }
+
+  private boolean schedule(final Traces traces, final int attempt, long delayMillis) {
+    if (pendingRetries.incrementAndGet() > maxPendingRetries) {
+      pendingRetries.decrementAndGet();
+      return false;
+    }
+    try {
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          pendingRetries.decrementAndGet();
+          attempt(traces, attempt);
+        }
+      }, delayMillis, TimeUnit.MILLISECONDS);
+      return true;
+    } catch (RejectedExecutionException ex) {
+      pendingRetries.decrementAndGet();
+      return false;
+    }
+  }
+
+  private long backoffMillis(int attempt) {
+    double backoff = initialBackoffMillis * Math.pow(backoffMultiplier, attempt - 1);
+    long cappedBackoff = (long) Math.min(backoff, maxBackoffMillis);
+    double jitter;
+    synchronized (random) {
+      jitter = random.nextDouble();
+    }
+    return cappedBackoff / 2 + (long) (jitter * (cappedBackoff - cappedBackoff / 2));
+  }
+
+  private void drop(Traces traces, String reason, Throwable cause) {
+    int spanCount = 0;
+    for (Trace trace : traces.getTracesList()) {
+      spanCount += trace.getSpansCount();
+    }
+    droppedSpanCount.addAndGet(spanCount);
+    logger.log(Level.WARNING, "Dropped " + spanCount + " spans: " + reason, cause);
+  }
+
+  /**
+   * A token bucket that earns a fraction of a token for each first attempt and spends a token for
+   * each retry.
+   */
+  private static class RetryBudget {
+    private final double retryRatio;
+    private final double maxTokens;
+    private double tokens;
+
+    private RetryBudget(double retryRatio, int minRetryTokens) {
+      this.retryRatio = retryRatio;
+      this.maxTokens = minRetryTokens + 100 * retryRatio;
+      this.tokens = minRetryTokens;
+    }
+
+    private synchronized void deposit() {
+      tokens = Math.min(maxTokens, tokens + retryRatio);
+    }
+
+    private synchronized boolean withdraw() {
+      if (tokens < 1.0) {
+        return false;
+      }
+      tokens -= 1.0;
+      return true;
+    }
+  }
+
+  /**
+   * A circuit breaker that opens after a number of consecutive failures. Once the open interval has
+   * passed, a single attempt is let through; the circuit closes if it succeeds and opens again if
+   * it fails.
+   */
+  private static class CircuitBreaker {
+    private final int failureThreshold;
+    private final long openNanos;
+    private int consecutiveFailures = 0;
+    private boolean open = false;
+    private long openUntil;
+    private boolean probing = false;
+
+    private CircuitBreaker(int failureThreshold, long openMillis) {
+      this.failureThreshold = failureThreshold;
+      this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    private synchronized long remainingOpenMillis() {
+      if (!open) {
+        return 0;
+      }
+      return Math.max(0, TimeUnit.NANOSECONDS.toMillis(openUntil - System.nanoTime()));
+    }
+
+    /**
+     * Returns true if an attempt may be made. After the open interval, only one attempt at a time
+     * is allowed until the circuit closes.
+     */
+    private synchronized boolean tryAcquire() {
+      if (!open) {
+        return true;
+      }
+      if (probing || openUntil - System.nanoTime() > 0) {
+        return false;
+      }
+      probing = true;
+      return true;
+    }
+
+    private synchronized void onSuccess() {
+      consecutiveFailures = 0;
+      open = false;
+      probing = false;
+    }
+
+    private synchronized void onFailure() {
+      consecutiveFailures++;
+      if (probing || consecutiveFailures >= failureThreshold) {
+        open = true;
+        openUntil = System.nanoTime() + openNanos;
+        probing = false;
+      }
+    }
+  }
+}
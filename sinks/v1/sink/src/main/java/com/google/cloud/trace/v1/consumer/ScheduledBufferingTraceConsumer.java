@@ -14,42 +14,276 @@
 
 package com.google.cloud.trace.v1.consumer;
 
+import com.google.cloud.trace.v1.metrics.TraceExportMetrics;
+import com.google.cloud.trace.v1.util.AdaptiveFlushPolicy;
+import com.google.cloud.trace.v1.util.BufferLimits;
+import com.google.cloud.trace.v1.util.MemoryBudget;
+import com.google.cloud.trace.v1.util.MemoryPressure;
+import com.google.cloud.trace.v1.util.ProtoTraceSizer;
 import com.google.cloud.trace.v1.util.Sizer;
+import com.google.cloud.trace.v1.util.SlabPool;
+import com.google.cloud.trace.v1.util.SlabTraceBuffer;
 import com.google.cloud.trace.v1.util.TraceBuffer;
+import com.google.cloud.trace.v1.util.TraceKey;
+import com.google.cloud.trace.v1.util.TracePriorities;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.devtools.cloudtrace.v1.Trace;
 import com.google.devtools.cloudtrace.v1.Traces;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A flushable trace consumer that auto-flushes when its buffered trace messages exceed its buffer size
+ * An asynchronously flushable trace consumer that auto-flushes when its buffered trace messages exceed its buffer size
  * or have been buffered for longer than its scheduled delay. The operations on this trace consumer are
  * thread-safe.
  *
+ * <p>If buffer limits are given, trace messages that would exceed them are handled by the load
+ * shedding policy of the limits, and the dropped spans are counted.
+ *
+ * <p>The trace consumer records the spans it receives, merges and drops, the number of buffered
+ * spans, and the size and latency of each flush in its metrics.
+ *
+ * <p>{@link #flushAsync()} hands the buffered trace messages to the delegate trace consumer on the
+ * scheduled executor service, and {@link #close(long, TimeUnit)} drains the buffer within a deadline
+ * when the application shuts down. If the scheduled executor service no longer accepts tasks, the
+ * buffered trace messages are handed over on a new thread instead.
+ * {@link #flushTraceAsync(String, String)} flushes the spans of a single trace in the same way.
+ *
+ * <p>If a slab pool is given, buffered spans are stored outside of the Java heap in a
+ * {@link SlabTraceBuffer} and only decoded when they are flushed.
+ *
+ * <p>If an adaptive flush policy is given, the buffer size and the scheduled delay are taken from
+ * the policy, which adapts them to the size, the latency and the backlog of each export. A full
+ * buffer is then flushed no sooner than the minimum interval of the policy after the start of the
+ * previous flush, so that the target number of requests per second holds at peaks too, unless the
+ * memory budget reports pressure.
+ *
+ * <p>If priority limits are given, trace messages of high priority traces, as classified by
+ * {@link TracePriorities}, are kept in a separate trace message buffer with the priority limits,
+ * so that they aren't shed when routine trace messages exceed the buffer limits, and they are
+ * handed to the delegate trace consumer before the other trace messages of each flush. Spans of a
+ * trace that were buffered before the trace became high priority are moved to the priority buffer.
+ *
+ * <p>With a {@link ProtoTraceSizer}, the size of the buffered trace messages is their exact
+ * serialized size, as kept by their trace buffers while spans are merged, rather than the sum of
+ * the sizes of the received trace messages.
+ *
+ * <p>If a memory budget is given, the size of buffered trace messages is reserved from the budget
+ * while they are buffered and until they have been sent, and the trace consumer degrades with the
+ * memory pressure the budget reports: it flushes early, then drops the payloads of new trace
+ * messages, and then drops new trace messages, as do trace messages that don't fit in the budget.
+ * Trace messages of high priority traces are exempt: they are buffered whole, and reserved from
+ * the budget even when it is exhausted.
+ * Trace consumers with many options are easier to create with a {@link Builder}.
+ *
+ * @see AdaptiveFlushPolicy
+ * @see AsyncFlushableTraceConsumer
+ * @see BufferLimits
  * @see FlushableTraceConsumer
+ * @see MemoryBudget
  * @see Sizer
+ * @see SlabTraceBuffer
  * @see Traces
  * @see TraceConsumer
+ * @see TraceExportMetrics
+ * @see TracePriorities
  */
-public class ScheduledBufferingTraceConsumer implements FlushableTraceConsumer {
+public class ScheduledBufferingTraceConsumer implements AsyncFlushableTraceConsumer {
+  // The number of recent high priority traces whose later trace messages stay high priority.
+  private static final int MAX_PRIORITY_TRACES = 1024;
+
+  /**
+   * A builder of scheduled buffering trace consumers.
+   */
+  public static class Builder {
+    private final TraceConsumer traceConsumer;
+    private final Sizer<Trace> traceSizer;
+    private final ScheduledExecutorService scheduler;
+    private int bufferSize = 32 * 1024;
+    private int scheduledDelay = 15;
+    private AdaptiveFlushPolicy flushPolicy;
+    private BufferLimits limits;
+    private BufferLimits priorityLimits;
+    private TraceExportMetrics metrics;
+    private SlabPool slabPool;
+    private MemoryBudget memoryBudget;
+
+    private Builder(TraceConsumer traceConsumer, Sizer<Trace> traceSizer,
+        ScheduledExecutorService scheduler) {
+      this.traceConsumer = traceConsumer;
+      this.traceSizer = traceSizer;
+      this.scheduler = scheduler;
+    }
+
+    /**
+     * Sets the size of the trace message buffer. Optional. Defaults to 32kb.
+     *
+     * @param bufferSize the size of the trace message buffer.
+     * @return this builder.
+     */
+    public Builder setBufferSize(int bufferSize) {
+      this.bufferSize = bufferSize;
+      return this;
+    }
+
+    /**
+     * Sets the scheduled delay. Optional. Defaults to 15 seconds.
+     *
+     * @param scheduledDelay the scheduled delay in seconds.
+     * @return this builder.
+     */
+    public Builder setScheduledDelay(int scheduledDelay) {
+      this.scheduledDelay = scheduledDelay;
+      return this;
+    }
+
+    /**
+     * Sets an adaptive flush policy, which replaces the buffer size and the scheduled delay.
+     * Optional.
+     *
+     * @param flushPolicy the policy that adapts the buffer size and the scheduled delay.
+     * @return this builder.
+     */
+    public Builder setFlushPolicy(AdaptiveFlushPolicy flushPolicy) {
+      this.flushPolicy = flushPolicy;
+      return this;
+    }
+
+    /**
+     * Sets the limits of the trace message buffer. Optional. Defaults to the default buffer limits
+     * for the buffer size. {@link BufferLimits#unlimited()} disables the limits.
+     *
+     * @param limits the limits of the trace message buffer.
+     * @return this builder.
+     */
+    public Builder setLimits(BufferLimits limits) {
+      this.limits = limits;
+      return this;
+    }
+
+    /**
+     * Sets the limits of a separate buffer for high priority trace messages. Optional. By default,
+     * high priority trace messages aren't buffered separately.
+     *
+     * @param priorityLimits the limits of the high priority trace message buffer.
+     * @return this builder.
+     */
+    public Builder setPriorityLimits(BufferLimits priorityLimits) {
+      this.priorityLimits = priorityLimits;
+      return this;
+    }
+
+    /**
+     * Sets the metrics the trace consumer records into. Optional. Defaults to new metrics.
+     *
+     * @param metrics the metrics.
+     * @return this builder.
+     */
+    public Builder setMetrics(TraceExportMetrics metrics) {
+      this.metrics = metrics;
+      return this;
+    }
+
+    /**
+     * Sets a slab pool that stores buffered spans outside of the Java heap. Optional. By default,
+     * spans are buffered on the heap.
+     *
+     * @param slabPool the slab pool that provides the storage of buffered spans.
+     * @return this builder.
+     */
+    public Builder setSlabPool(SlabPool slabPool) {
+      this.slabPool = slabPool;
+      return this;
+    }
+
+    /**
+     * Sets a memory budget that buffered trace messages are reserved from. Optional. By default,
+     * the trace consumer doesn't react to memory pressure.
+     *
+     * @param memoryBudget the memory budget, which may be shared with other scheduled buffering
+     *                     trace consumers.
+     * @return this builder.
+     */
+    public Builder setMemoryBudget(MemoryBudget memoryBudget) {
+      this.memoryBudget = memoryBudget;
+      return this;
+    }
+
+    /**
+     * Builds a new scheduled buffering trace consumer.
+     *
+     * @return the scheduled buffering trace consumer.
+     */
+    public ScheduledBufferingTraceConsumer build() {
+      return new ScheduledBufferingTraceConsumer(traceConsumer, traceSizer, bufferSize,
+          scheduledDelay, scheduler,
+          limits != null ? limits : BufferLimits.forBufferSize(bufferSize),
+          metrics != null ? metrics : new TraceExportMetrics(), slabPool, flushPolicy,
+          priorityLimits, memoryBudget);
+    }
+  }
+
+  /**
+   * Returns a new builder.
+   *
+   * @param traceConsumer a trace consumer that serves as the trace consumer's delegate.
+   * @param traceSizer    a sizer used to estimate the size of trace messages.
+   * @param scheduler     a scheduled executor service used to automatically flush the trace
+   *                      consumer.
+   * @return the new builder.
+   */
+  public static Builder builder(TraceConsumer traceConsumer, Sizer<Trace> traceSizer,
+      ScheduledExecutorService scheduler) {
+    return new Builder(traceConsumer, traceSizer, scheduler);
+  }
+
   private final TraceConsumer traceConsumer;
   private final Sizer<Trace> traceSizer;
+  // Whether the buffered trace messages are sized by the serialized size of the trace buffers.
+  private final boolean exactSize;
   private final int bufferSize;
   private final int scheduledDelay;
   private final ScheduledExecutorService scheduler;
+  private final BufferLimits limits;
+  private final TraceExportMetrics metrics;
+  private final SlabPool slabPool;
+  private final AdaptiveFlushPolicy flushPolicy;
+  private final BufferLimits priorityLimits;
+  private final MemoryBudget memoryBudget;
 
-  private TraceBuffer traceBuffer = new TraceBuffer();
+  private TraceBuffer traceBuffer;
+  // A released trace buffer that is reused by the next swap, so that its storage is recycled.
+  private TraceBuffer spareBuffer;
+  // The buffer of high priority trace messages, or null if there is no priority buffer.
+  private TraceBuffer priorityBuffer;
+  private TraceBuffer sparePriorityBuffer;
+  private final Map<TraceKey, Boolean> priorityTraces;
+  private final AtomicLong droppedSpanCount = new AtomicLong();
 
   private final Object monitor = new Object();
 
   private int size = 0;
+  private boolean closed = false;
   private Future<?> autoFlusher = null;
+  // The time of the start of the last flush, or zero if the buffer was never flushed.
+  private long lastFlushNanos = 0;
   private ScheduledFuture<?> flusher = null;
 
   /**
-   * Creates a buffering trace consumer.
+   * Creates a buffering trace consumer with the default buffer limits for its buffer size.
    *
    * @param traceConsumer      a trace consumer that serves as this trace consumer's delegate.
    * @param traceSizer     a sizer used to estimate the size of trace messages.
@@ -59,39 +293,269 @@ public class ScheduledBufferingTraceConsumer implements FlushableTraceConsumer {
    */
   public ScheduledBufferingTraceConsumer(TraceConsumer traceConsumer, Sizer<Trace> traceSizer, int bufferSize,
       int scheduledDelay, ScheduledExecutorService scheduler) {
+    this(traceConsumer, traceSizer, bufferSize, scheduledDelay, scheduler,
+        BufferLimits.forBufferSize(bufferSize), new TraceExportMetrics(), null, null, null,
+        null);
+  }
+
+  private ScheduledBufferingTraceConsumer(TraceConsumer traceConsumer, Sizer<Trace> traceSizer,
+      int bufferSize, int scheduledDelay, ScheduledExecutorService scheduler,
+      BufferLimits limits, TraceExportMetrics metrics, SlabPool slabPool,
+      AdaptiveFlushPolicy flushPolicy, BufferLimits priorityLimits, MemoryBudget memoryBudget) {
     this.traceConsumer = traceConsumer;
     this.traceSizer = traceSizer;
+    this.exactSize = traceSizer instanceof ProtoTraceSizer;
     this.bufferSize = bufferSize;
     this.scheduledDelay = scheduledDelay;
     this.scheduler = scheduler;
+    this.limits = limits;
+    this.metrics = metrics;
+    this.slabPool = slabPool;
+    this.flushPolicy = flushPolicy;
+    this.priorityLimits = priorityLimits;
+    this.memoryBudget = memoryBudget;
+    this.traceBuffer = newTraceBuffer();
+    if (priorityLimits != null) {
+      this.priorityBuffer = new TraceBuffer(priorityLimits);
+      this.priorityTraces = new LinkedHashMap<TraceKey, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TraceKey, Boolean> eldest) {
+          return size() > MAX_PRIORITY_TRACES;
+        }
+      };
+    } else {
+      this.priorityTraces = null;
+    }
   }
 
   @Override
   public void receive(Traces traces) {
+    int received = 0;
+    int dropped = 0;
+    int buffered;
     synchronized(monitor) {
+      if (closed) {
+        int spanCount = 0;
+        for (Trace trace : traces.getTracesList()) {
+          spanCount += trace.getSpansCount();
+        }
+        droppedSpanCount.addAndGet(spanCount);
+        metrics.recordReceived(spanCount, 0, spanCount);
+        return;
+      }
+      int previousSpanCount = getBufferedSpanCount();
+      int currentBufferSize = getBufferSize();
+      MemoryPressure pressure =
+          memoryBudget != null ? memoryBudget.getPressure() : MemoryPressure.NONE;
       for (Trace trace : traces.getTracesList()) {
-        traceBuffer.put(trace);
-        size += traceSizer.size(trace);
-        if (size >= bufferSize) {
+        received += trace.getSpansCount();
+        // High priority traces are classified before the budget is checked, so that memory
+        // pressure neither drops them nor their payloads.
+        boolean highPriority = memoryBudget != null && isHighPriority(trace);
+        if (pressure == MemoryPressure.DROP_PAYLOADS && !highPriority) {
+          trace = MemoryBudget.dropPayloads(trace);
+        }
+        int traceSize = traceSizer.size(trace);
+        if (highPriority) {
+          memoryBudget.reserve(traceSize);
+        } else if (memoryBudget != null && (pressure == MemoryPressure.DROP_SPANS
+            || !memoryBudget.tryReserve(traceSize))) {
+          dropped += trace.getSpansCount();
+          pressure = MemoryPressure.DROP_SPANS;
+          continue;
+        }
+        dropped += put(trace);
+        size += traceSize;
+        if (exactSize) {
+          // Merged and dropped spans grow the buffers less than the size of their trace message.
+          int bufferedSize = getBufferedSize();
+          if (size > bufferedSize) {
+            release(size - bufferedSize);
+            size = bufferedSize;
+          }
+        }
+        if (size >= currentBufferSize || (pressure != MemoryPressure.NONE && size > 0)) {
           if (autoFlusher == null) {
-            autoFlusher = scheduler.submit(flushable());
+            long waitNanos = pressure == MemoryPressure.NONE ? getAutoFlushWaitNanos() : 0;
+            autoFlusher = waitNanos > 0
+                ? scheduler.schedule(flushable(), waitNanos, TimeUnit.NANOSECONDS)
+                : scheduler.submit(flushable());
           }
         } else {
           if ((flusher == null) && (autoFlusher == null)) {
-            flusher = scheduler.schedule(flushable(), scheduledDelay, TimeUnit.SECONDS);
+            flusher = scheduler.schedule(flushable(), getScheduledDelayMillis(),
+                TimeUnit.MILLISECONDS);
           }
         }
       }
+      buffered = getBufferedSpanCount() - previousSpanCount;
+      metrics.recordBufferedSpans(buffered);
+    }
+    if (dropped > 0) {
+      droppedSpanCount.addAndGet(dropped);
+    }
+    // Spans that neither grew the buffer nor were dropped were merged into buffered spans.
+    metrics.recordReceived(received, Math.max(0, received - dropped - buffered), dropped);
+  }
+
+  /**
+   * Returns true if a trace message is of high priority, or belongs to a trace that became high
+   * priority. Must be called with the monitor held.
+   */
+  private boolean isHighPriority(Trace trace) {
+    if (TracePriorities.isHighPriority(trace)) {
+      return true;
     }
+    return priorityTraces != null && !priorityTraces.isEmpty()
+        && priorityTraces.containsKey(new TraceKey(trace.getProjectId(), trace.getTraceId()));
+  }
+
+  /**
+   * Buffers a trace message in the trace buffer of its priority, moves the buffered spans of its
+   * trace to the priority buffer when the trace becomes high priority, and returns the number of
+   * dropped spans. Must be called with the monitor held.
+   */
+  private int put(Trace trace) {
+    if (priorityBuffer == null) {
+      return traceBuffer.put(trace);
+    }
+    if (!TracePriorities.isHighPriority(trace)) {
+      if (priorityTraces.isEmpty() || priorityTraces.get(
+          new TraceKey(trace.getProjectId(), trace.getTraceId())) == null) {
+        return traceBuffer.put(trace);
+      }
+      return priorityBuffer.put(trace);
+    }
+    int dropped = 0;
+    TraceKey key = new TraceKey(trace.getProjectId(), trace.getTraceId());
+    if (priorityTraces.put(key, Boolean.TRUE) == null) {
+      Trace earlier = traceBuffer.removeTrace(trace.getProjectId(), trace.getTraceId());
+      if (earlier != null) {
+        dropped += priorityBuffer.put(earlier);
+      }
+    }
+    return dropped + priorityBuffer.put(trace);
   }
 
   @Override
   public void flush() {
-    TraceBuffer previous;
+    long start = System.nanoTime();
+    Batch batch = swap();
+    int spanCount = batch.getSpanCount();
+    List<Traces> traces = read(batch);
+    if (!traces.isEmpty()) {
+      send(traces, spanCount, start, batch.reservedBytes);
+    } else {
+      release(batch.reservedBytes);
+    }
+  }
+
+  @Override
+  public ListenableFuture<Void> flushAsync() {
+    long start = System.nanoTime();
+    Batch batch = swap();
+    int spanCount = batch.getSpanCount();
+    List<Traces> traces = read(batch);
+    if (traces.isEmpty()) {
+      release(batch.reservedBytes);
+      return Futures.immediateFuture(null);
+    }
+    return sendAsync(traces, spanCount, start, batch.reservedBytes);
+  }
+
+  @Override
+  public ListenableFuture<Void> flushTraceAsync(String projectId, String traceId) {
+    long start = System.nanoTime();
+    Traces.Builder traces = Traces.newBuilder();
+    int spanCount = 0;
+    int reservedBytes;
     synchronized(monitor) {
-      previous = traceBuffer;
-      traceBuffer = new TraceBuffer();
+      int previousSize = size;
+      int previousBufferedSize = getBufferedSize();
+      Trace priorityTrace = null;
+      if (priorityBuffer != null) {
+        priorityTrace = priorityBuffer.removeTrace(projectId, traceId);
+      }
+      Trace trace = traceBuffer.removeTrace(projectId, traceId);
+      for (Trace removed : new Trace[] {priorityTrace, trace}) {
+        if (removed != null) {
+          traces.addTraces(removed);
+          spanCount += removed.getSpansCount();
+          if (!exactSize) {
+            size = Math.max(0, size - traceSizer.size(removed));
+          }
+        }
+      }
+      if (exactSize) {
+        size = Math.max(0, size - (previousBufferedSize - getBufferedSize()));
+      }
+      if (spanCount == 0) {
+        return Futures.immediateFuture(null);
+      }
+      reservedBytes = previousSize - size;
+      metrics.recordBufferedSpans(-spanCount);
+    }
+    return sendAsync(Collections.singletonList(traces.build()), spanCount, start, reservedBytes);
+  }
+
+  private ListenableFuture<Void> sendAsync(final List<Traces> traces, final int spanCount,
+      final long start, final int reservedBytes) {
+    final SettableFuture<Void> future = SettableFuture.create();
+    Runnable sender = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          send(traces, spanCount, start, reservedBytes);
+          future.set(null);
+        } catch (RuntimeException ex) {
+          future.setException(ex);
+        }
+      }
+    };
+    try {
+      scheduler.execute(sender);
+    } catch (RejectedExecutionException ex) {
+      // The scheduler is shutting down, so don't let the buffered trace messages be lost with it.
+      Thread thread = new Thread(sender, "trace-flush");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    return future;
+  }
+
+  @Override
+  public boolean close(long timeout, TimeUnit unit) {
+    synchronized(monitor) {
+      closed = true;
+    }
+    ListenableFuture<Void> future = flushAsync();
+    try {
+      future.get(timeout, unit);
+      return true;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException ex) {
+      return false;
+    } catch (TimeoutException ex) {
+      return false;
+    }
+  }
+
+  private Batch swap() {
+    Batch previous;
+    synchronized(monitor) {
+      // The reserved bytes are released once the swapped out trace messages have been sent.
+      previous = new Batch(priorityBuffer, traceBuffer, size);
+      traceBuffer = spareBuffer != null ? spareBuffer : newTraceBuffer();
+      spareBuffer = null;
+      if (priorityBuffer != null) {
+        priorityBuffer = sparePriorityBuffer != null
+            ? sparePriorityBuffer : new TraceBuffer(priorityLimits);
+        sparePriorityBuffer = null;
+      }
       size = 0;
+      lastFlushNanos = System.nanoTime();
       if (autoFlusher != null) {
         autoFlusher.cancel(false);
         autoFlusher = null;
@@ -100,11 +564,122 @@ public class ScheduledBufferingTraceConsumer implements FlushableTraceConsumer {
         flusher.cancel(false);
         flusher = null;
       }
+      metrics.recordBufferedSpans(-previous.getSpanCount());
+    }
+    return previous;
+  }
+
+  private int getBufferedSpanCount() {
+    int spanCount = traceBuffer.getSpanCount();
+    if (priorityBuffer != null) {
+      spanCount += priorityBuffer.getSpanCount();
+    }
+    return spanCount;
+  }
+
+  private TraceBuffer newTraceBuffer() {
+    if (slabPool == null) {
+      return new TraceBuffer(limits);
+    }
+    return new SlabTraceBuffer(limits, slabPool);
+  }
+
+  /**
+   * Reads the trace messages of the trace buffers that were swapped out, high priority trace
+   * messages first, and keeps the released trace buffers to swap in next time.
+   */
+  private List<Traces> read(Batch batch) {
+    List<Traces> traces = new ArrayList<Traces>(2);
+    if (batch.priority != null) {
+      if (!batch.priority.isEmpty()) {
+        traces.add(batch.priority.getTraces());
+      }
+      batch.priority.release();
+    }
+    if (!batch.traces.isEmpty()) {
+      traces.add(batch.traces.getTraces());
+    }
+    batch.traces.release();
+    synchronized(monitor) {
+      if (spareBuffer == null) {
+        spareBuffer = batch.traces;
+      }
+      if (batch.priority != null && sparePriorityBuffer == null) {
+        sparePriorityBuffer = batch.priority;
+      }
+    }
+    return traces;
+  }
+
+  private void send(List<Traces> batches, int spanCount, long start, int reservedBytes) {
+    long exportStart = System.nanoTime();
+    try {
+      for (Traces traces : batches) {
+        traceConsumer.receive(traces);
+      }
+    } finally {
+      release(reservedBytes);
+      long end = System.nanoTime();
+      metrics.recordFlush(spanCount, end - start);
+      if (flushPolicy != null) {
+        int exportedSize = 0;
+        for (Traces traces : batches) {
+          if (exactSize) {
+            exportedSize += traces.getSerializedSize();
+            continue;
+          }
+          for (Trace trace : traces.getTracesList()) {
+            exportedSize += traceSizer.size(trace);
+          }
+        }
+        int backlogSize;
+        synchronized(monitor) {
+          backlogSize = size;
+        }
+        flushPolicy.recordExport(exportedSize, end - exportStart, backlogSize);
+      }
+    }
+  }
+
+  private void release(int reservedBytes) {
+    if (memoryBudget != null && reservedBytes > 0) {
+      memoryBudget.release(reservedBytes);
+    }
+  }
+
+  /**
+   * Returns the serialized size of the buffered trace messages. Must be called with the monitor
+   * held.
+   */
+  private int getBufferedSize() {
+    int bufferedSize = traceBuffer.getSerializedSize();
+    if (priorityBuffer != null) {
+      bufferedSize += priorityBuffer.getSerializedSize();
     }
-    if (!previous.isEmpty()) {
-      Traces traces = previous.getTraces();
-      traceConsumer.receive(traces);
+    return bufferedSize;
+  }
+
+  /**
+   * Returns the number of nanoseconds until a full buffer may be flushed without exceeding the
+   * target number of requests per second of the flush policy. Must be called with the monitor
+   * held.
+   */
+  private long getAutoFlushWaitNanos() {
+    if (flushPolicy == null || lastFlushNanos == 0) {
+      return 0;
     }
+    long nextFlushNanos =
+        lastFlushNanos + TimeUnit.MILLISECONDS.toNanos(flushPolicy.getMinIntervalMillis());
+    return Math.max(0, nextFlushNanos - System.nanoTime());
+  }
+
+  private int getBufferSize() {
+    return flushPolicy != null ? flushPolicy.getBufferSize() : bufferSize;
+  }
+
+  private long getScheduledDelayMillis() {
+    return flushPolicy != null
+        ? flushPolicy.getDelayMillis() : TimeUnit.SECONDS.toMillis(scheduledDelay);
   }
 
   private Runnable flushable() {
@@ -115,4 +690,47 @@ public class ScheduledBufferingTraceConsumer implements FlushableTraceConsumer {
       }
     };
   }
+
+  /**
+   * The trace buffers swapped out by a flush.
+   */
+  private static class Batch {
+    private final TraceBuffer priority;
+    private final TraceBuffer traces;
+    // The estimated size of the trace messages, which is reserved from the memory budget.
+    private final int reservedBytes;
+
+    private Batch(TraceBuffer priority, TraceBuffer traces, int reservedBytes) {
+      this.priority = priority;
+      this.traces = traces;
+      this.reservedBytes = reservedBytes;
+    }
+
+    private int getSpanCount() {
+      int spanCount = traces.getSpanCount();
+      if (priority != null) {
+        spanCount += priority.getSpanCount();
+      }
+      return spanCount;
+    }
+  }
+
+  /**
+   * Returns the number of trace span messages this trace consumer dropped because its buffer limits
+   * were exceeded.
+   *
+   * @return the number of dropped spans.
+   */
+  public long getDroppedSpanCount() {
+    return droppedSpanCount.get();
+  }
+
+  /**
+   * Returns the metrics this trace consumer records into.
+   *
+   * @return the metrics.
+   */
+  public TraceExportMetrics getMetrics() {
+    return metrics;
+  }
 }
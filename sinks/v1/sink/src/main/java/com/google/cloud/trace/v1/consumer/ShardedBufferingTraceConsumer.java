@@ -0,0 +1,294 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.consumer;
+
+import com.google.cloud.trace.v1.util.BufferLimits;
+import com.google.cloud.trace.v1.util.ProtoTraceSizer;
+import com.google.cloud.trace.v1.util.Sizer;
+import com.google.cloud.trace.v1.util.TraceBuffer;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A flushable trace consumer that spreads its buffered trace messages over a number of independent
+ * shards. Each trace message is routed to a shard by its project identifier and trace identifier,
+ * so all of the trace messages of a trace are combined in the same shard.
+ *
+ * <p>Each shard has its own trace message buffer, buffer size accounting and lock, so threads that
+ * send trace messages for different traces rarely contend with each other. A shard auto-flushes when
+ * its buffered trace messages exceed the buffer size, and its trace messages are sent to the
+ * delegate trace consumer on the given executor, so several shards can be sent in parallel, up to
+ * the number of threads of the executor. If a scheduled executor service is given, each shard also
+ * auto-flushes once its first buffered trace message has waited for the scheduled delay, so trace
+ * messages are sent during quiet periods too. The operations on this trace consumer are
+ * thread-safe.
+ *
+ * <p>With a {@link ProtoTraceSizer}, the size of the buffered trace messages of a shard is the
+ * exact serialized size of its trace buffer, in which merged spans are only counted once.
+ *
+ * <p>If buffer limits are given, they apply to the trace message buffer of each shard, and the
+ * spans dropped by the load shedding policy of the limits are counted.
+ *
+ * @see BufferLimits
+ * @see FlushableTraceConsumer
+ * @see Sizer
+ * @see Traces
+ * @see TraceConsumer
+ */
+public class ShardedBufferingTraceConsumer implements FlushableTraceConsumer {
+  private static final Logger logger =
+      Logger.getLogger(ShardedBufferingTraceConsumer.class.getName());
+
+  private final TraceConsumer traceConsumer;
+  private final Sizer<Trace> traceSizer;
+  private final boolean exactSize;
+  private final int bufferSize;
+  private final Executor executor;
+  private final int scheduledDelay;
+  private final ScheduledExecutorService scheduler;
+  private final BufferLimits limits;
+  private final Shard[] shards;
+  private final AtomicLong droppedSpanCount = new AtomicLong();
+
+  /**
+   * Creates a sharded buffering trace consumer that sends buffered trace messages on the thread that
+   * fills or flushes a shard.
+   *
+   * @param traceConsumer a trace consumer that serves as this trace consumer's delegate.
+   * @param traceSizer    a sizer used to estimate the size of trace messages.
+   * @param bufferSize    the size of the trace message buffer of each shard.
+   * @param shardCount    the number of shards.
+   */
+  public ShardedBufferingTraceConsumer(TraceConsumer traceConsumer, Sizer<Trace> traceSizer,
+      int bufferSize, int shardCount) {
+    this(traceConsumer, traceSizer, bufferSize, shardCount, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Creates a sharded buffering trace consumer with the default buffer limits for the buffer size
+   * of each shard.
+   *
+   * @param traceConsumer a trace consumer that serves as this trace consumer's delegate.
+   * @param traceSizer    a sizer used to estimate the size of trace messages.
+   * @param bufferSize    the size of the trace message buffer of each shard.
+   * @param shardCount    the number of shards.
+   * @param executor      an executor used to send the buffered trace messages of the shards.
+   */
+  public ShardedBufferingTraceConsumer(TraceConsumer traceConsumer, Sizer<Trace> traceSizer,
+      int bufferSize, int shardCount, Executor executor) {
+    this(traceConsumer, traceSizer, bufferSize, shardCount, executor,
+        BufferLimits.forBufferSize(bufferSize));
+  }
+
+  /**
+   * Creates a sharded buffering trace consumer with buffer limits.
+   *
+   * @param traceConsumer a trace consumer that serves as this trace consumer's delegate.
+   * @param traceSizer    a sizer used to estimate the size of trace messages.
+   * @param bufferSize    the size of the trace message buffer of each shard.
+   * @param shardCount    the number of shards.
+   * @param executor      an executor used to send the buffered trace messages of the shards.
+   * @param limits        the limits of the trace message buffer of each shard.
+   */
+  public ShardedBufferingTraceConsumer(TraceConsumer traceConsumer, Sizer<Trace> traceSizer,
+      int bufferSize, int shardCount, Executor executor, BufferLimits limits) {
+    this(traceConsumer, traceSizer, bufferSize, shardCount, executor, 0, null, limits);
+  }
+
+  /**
+   * Creates a sharded buffering trace consumer with buffer limits that also auto-flushes each shard
+   * after a scheduled delay. The buffered trace messages of the shards are sent on the scheduled
+   * executor service, so it should have a thread for each shard that should be sent in parallel.
+   *
+   * @param traceConsumer  a trace consumer that serves as this trace consumer's delegate.
+   * @param traceSizer     a sizer used to estimate the size of trace messages.
+   * @param bufferSize     the size of the trace message buffer of each shard.
+   * @param shardCount     the number of shards.
+   * @param scheduledDelay the scheduled delay of each shard in seconds.
+   * @param scheduler      a scheduled executor service used to flush the shards and to send their
+   *                       buffered trace messages.
+   * @param limits         the limits of the trace message buffer of each shard.
+   */
+  public ShardedBufferingTraceConsumer(TraceConsumer traceConsumer, Sizer<Trace> traceSizer,
+      int bufferSize, int shardCount, int scheduledDelay, ScheduledExecutorService scheduler,
+      BufferLimits limits) {
+    this(traceConsumer, traceSizer, bufferSize, shardCount, scheduler, scheduledDelay, scheduler,
+        limits);
+  }
+
+  private ShardedBufferingTraceConsumer(TraceConsumer traceConsumer, Sizer<Trace> traceSizer,
+      int bufferSize, int shardCount, Executor executor, int scheduledDelay,
+      ScheduledExecutorService scheduler, BufferLimits limits) {
+    if (shardCount <= 0) {
+      throw new IllegalArgumentException("Shard count must be > 0.");
+    }
+    this.traceConsumer = traceConsumer;
+    this.traceSizer = traceSizer;
+    this.exactSize = traceSizer instanceof ProtoTraceSizer;
+    this.bufferSize = bufferSize;
+    this.executor = executor;
+    this.scheduledDelay = scheduledDelay;
+    this.scheduler = scheduler;
+    this.limits = limits;
+    this.shards = new Shard[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      shards[i] = new Shard();
+    }
+  }
+
+  @Override
+  public void receive(Traces traces) {
+    for (Trace trace : traces.getTracesList()) {
+      Shard shard = shards[shardIndex(trace)];
+      TraceBuffer full = shard.put(trace, exactSize ? 0 : traceSizer.size(trace));
+      if (full != null) {
+        executor.execute(sender(full, null));
+      }
+    }
+  }
+
+  /**
+   * Flushes all of the shards of this trace consumer, and waits until the buffered trace messages
+   * have been sent to the delegate trace consumer.
+   */
+  @Override
+  public void flush() {
+    CountDownLatch done = new CountDownLatch(shards.length);
+    for (Shard shard : shards) {
+      TraceBuffer previous = shard.take();
+      if (previous == null) {
+        done.countDown();
+      } else {
+        executor.execute(sender(previous, done));
+      }
+    }
+    boolean interrupted = false;
+    while (true) {
+      try {
+        done.await();
+        break;
+      } catch (InterruptedException ex) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Returns the number of trace span messages this trace consumer dropped because the buffer limits
+   * of its shards were exceeded.
+   *
+   * @return the number of dropped spans.
+   */
+  public long getDroppedSpanCount() {
+    return droppedSpanCount.get();
+  }
+
+  /**
+   * Returns the number of shards of this trace consumer.
+   *
+   * @return the number of shards.
+   */
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  private int shardIndex(Trace trace) {
+    int hash = 31 * trace.getProjectId().hashCode() + trace.getTraceId().hashCode();
+    hash ^= (hash >>> 16);
+    return (hash & Integer.MAX_VALUE) % shards.length;
+  }
+
+  private Runnable sender(final TraceBuffer traceBuffer, final CountDownLatch done) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        try {
+          traceConsumer.receive(traceBuffer.getTraces());
+        } catch (RuntimeException ex) {
+          logger.log(Level.WARNING, "Failed to send trace messages", ex);
+        } finally {
+          if (done != null) {
+            done.countDown();
+          }
+        }
+      }
+    };
+  }
+
+  private class Shard implements Runnable {
+    private TraceBuffer traceBuffer = new TraceBuffer(limits);
+    private int size = 0;
+    private ScheduledFuture<?> flusher = null;
+
+    /**
+     * Adds a trace message to this shard, and returns the buffered trace messages if the shard is
+     * full, or null otherwise.
+     */
+    private synchronized TraceBuffer put(Trace trace, int traceSize) {
+      int dropped = traceBuffer.put(trace);
+      if (dropped > 0) {
+        droppedSpanCount.addAndGet(dropped);
+      }
+      size = exactSize ? traceBuffer.getSerializedSize() : size + traceSize;
+      if (size >= bufferSize) {
+        return take();
+      }
+      if (flusher == null && scheduler != null) {
+        flusher = scheduler.schedule(this, scheduledDelay, TimeUnit.SECONDS);
+      }
+      return null;
+    }
+
+    /**
+     * Flushes this shard after the scheduled delay, on the scheduled executor service.
+     */
+    @Override
+    public void run() {
+      TraceBuffer previous = take();
+      if (previous != null) {
+        sender(previous, null).run();
+      }
+    }
+
+    /**
+     * Removes and returns the buffered trace messages of this shard, or null if the shard is empty.
+     */
+    private synchronized TraceBuffer take() {
+      if (flusher != null) {
+        flusher.cancel(false);
+        flusher = null;
+      }
+      if (traceBuffer.isEmpty()) {
+        return null;
+      }
+      TraceBuffer previous = traceBuffer;
+      traceBuffer = new TraceBuffer(limits);
+      size = 0;
+      return previous;
+    }
+  }
+}
@@ -14,42 +14,66 @@
 
 package com.google.cloud.trace.v1.consumer;
 
+import com.google.cloud.trace.v1.util.BufferLimits;
 import com.google.cloud.trace.v1.util.TraceBuffer;
 import com.google.devtools.cloudtrace.v1.Trace;
 import com.google.devtools.cloudtrace.v1.Traces;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A trace consumer that buffers trace messages until it is flushed. When flushed, this consumer sends its
  * buffered trace messages to a delegate trace consumer. The operations on this trace consumer are
  * thread-safe.
  *
+ * <p>If buffer limits are given, trace messages that would exceed them are handled by the load
+ * shedding policy of the limits, and the dropped spans are counted.
+ *
+ * @see BufferLimits
  * @see FlushableTraceConsumer
  * @see Traces
  * @see TraceConsumer
  */
 public class SimpleBufferingTraceConsumer implements FlushableTraceConsumer {
   private final TraceConsumer traceConsumer;
+  private final BufferLimits limits;
   private TraceBuffer traceBuffer;
+  private final AtomicLong droppedSpanCount = new AtomicLong();
 
   private final Object monitor = new Object();
 
   /**
-   * Creates a trace consumer that buffers trace messages until it is flushed.
+   * Creates a trace consumer that buffers trace messages until it is flushed, within the default
+   * buffer limits.
    *
    * @param traceConsumer a trace consumer that serves as the delegate of this trace consumer.
    */
   public SimpleBufferingTraceConsumer(TraceConsumer traceConsumer) {
+    this(traceConsumer, BufferLimits.defaults());
+  }
+
+  /**
+   * Creates a trace consumer that buffers trace messages until it is flushed, within buffer limits.
+   *
+   * @param traceConsumer a trace consumer that serves as the delegate of this trace consumer.
+   * @param limits        the limits of this trace consumer's trace message buffer.
+   */
+  public SimpleBufferingTraceConsumer(TraceConsumer traceConsumer, BufferLimits limits) {
     this.traceConsumer = traceConsumer;
-    this.traceBuffer = new TraceBuffer();
+    this.limits = limits;
+    this.traceBuffer = new TraceBuffer(limits);
   }
 
   @Override
   public void receive(Traces traces) {
+    int dropped = 0;
     synchronized(monitor) {
       for (Trace trace : traces.getTracesList()) {
-        traceBuffer.put(trace);
+        dropped += traceBuffer.put(trace);
       }
     }
+    if (dropped > 0) {
+      droppedSpanCount.addAndGet(dropped);
+    }
   }
 
   @Override
@@ -57,11 +81,21 @@ public class SimpleBufferingTraceConsumer implements FlushableTraceConsumer {
     TraceBuffer previous;
     synchronized(monitor) {
       previous = traceBuffer;
-      traceBuffer = new TraceBuffer();
+      traceBuffer = new TraceBuffer(limits);
     }
     if (!previous.isEmpty()) {
       Traces traces = previous.getTraces();
       traceConsumer.receive(traces);
     }
   }
+
+  /**
+   * Returns the number of trace span messages this trace consumer dropped because its buffer limits
+   * were exceeded.
+   *
+   * @return the number of dropped spans.
+   */
+  public long getDroppedSpanCount() {
+    return droppedSpanCount.get();
+  }
 }
@@ -14,16 +14,25 @@
 
 package com.google.cloud.trace.v1.consumer;
 
+import com.google.cloud.trace.v1.util.BufferLimits;
+import com.google.cloud.trace.v1.util.ProtoTraceSizer;
 import com.google.cloud.trace.v1.util.Sizer;
 import com.google.cloud.trace.v1.util.TraceBuffer;
 import com.google.devtools.cloudtrace.v1.Trace;
 import com.google.devtools.cloudtrace.v1.Traces;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A flushable trace consumer that auto-flushes when its buffered trace messages exceed its buffer size.
  * This consumer uses a trace sizer to estimate the size of its buffered trace messages. The operations
- * on this trace consumer are thread-safe.
+ * on this trace consumer are thread-safe. With a {@link ProtoTraceSizer}, the size of the buffered
+ * trace messages is the exact serialized size of the trace buffer, in which merged spans are only
+ * counted once.
  *
+ * <p>If buffer limits are given, trace messages that would exceed them are handled by the load
+ * shedding policy of the limits, and the dropped spans are counted.
+ *
+ * @see BufferLimits
  * @see FlushableTraceConsumer
  * @see Sizer
  * @see Traces
@@ -32,38 +41,69 @@ import com.google.devtools.cloudtrace.v1.Traces;
 public class SizedBufferingTraceConsumer implements FlushableTraceConsumer {
   private final TraceConsumer traceConsumer;
   private final Sizer<Trace> traceSizer;
+  private final boolean exactSize;
   private final int bufferSize;
+  private final BufferLimits limits;
   private TraceBuffer traceBuffer;
+  private final AtomicLong droppedSpanCount = new AtomicLong();
 
   private int size;
 
   private final Object monitor = new Object();
 
   /**
-   * Creates a buffering trace consumer.
+   * Creates a buffering trace consumer with the default buffer limits for its buffer size.
    *
    * @param traceConsumer  a trace consumer that serves as this trace consumer's delegate.
    * @param traceSizer a sizer used to estimate the size of trace messages.
    * @param bufferSize the size of this trace consumer's trace message buffer.
    */
   public SizedBufferingTraceConsumer(TraceConsumer traceConsumer, Sizer<Trace> traceSizer, int bufferSize) {
+    this(traceConsumer, traceSizer, bufferSize, BufferLimits.forBufferSize(bufferSize));
+  }
+
+  /**
+   * Creates a buffering trace consumer with buffer limits.
+   *
+   * @param traceConsumer  a trace consumer that serves as this trace consumer's delegate.
+   * @param traceSizer a sizer used to estimate the size of trace messages.
+   * @param bufferSize the size of this trace consumer's trace message buffer.
+   * @param limits     the limits of this trace consumer's trace message buffer.
+   */
+  public SizedBufferingTraceConsumer(TraceConsumer traceConsumer, Sizer<Trace> traceSizer,
+      int bufferSize, BufferLimits limits) {
     this.traceConsumer = traceConsumer;
     this.traceSizer = traceSizer;
+    this.exactSize = traceSizer instanceof ProtoTraceSizer;
     this.bufferSize = bufferSize;
-    this.traceBuffer = new TraceBuffer();
+    this.limits = limits;
+    this.traceBuffer = new TraceBuffer(limits);
     this.size = 0;
   }
 
   @Override
   public void receive(Traces traces) {
+    boolean full;
+    int dropped = 0;
     synchronized(monitor) {
       for (Trace trace : traces.getTracesList()) {
-        size += traceSizer.size(trace);
-        traceBuffer.put(trace);
-        if (size >= bufferSize) {
-          flush();
+        if (!exactSize) {
+          size += traceSizer.size(trace);
         }
+        dropped += traceBuffer.put(trace);
       }
+      if (exactSize) {
+        size = traceBuffer.getSerializedSize();
+      }
+      full = size >= bufferSize;
+    }
+    if (dropped > 0) {
+      droppedSpanCount.addAndGet(dropped);
+    }
+    // Flush outside of the monitor, so that other threads can keep buffering trace messages while
+    // the delegate trace consumer sends this buffer.
+    if (full) {
+      flush();
     }
   }
 
@@ -72,7 +112,7 @@ public class SizedBufferingTraceConsumer implements FlushableTraceConsumer {
     TraceBuffer previous;
     synchronized(monitor) {
       previous = traceBuffer;
-      traceBuffer = new TraceBuffer();
+      traceBuffer = new TraceBuffer(limits);
       size = 0;
     }
     if (!previous.isEmpty()) {
@@ -80,4 +120,14 @@ public class SizedBufferingTraceConsumer implements FlushableTraceConsumer {
       traceConsumer.receive(traces);
     }
   }
+
+  /**
+   * Returns the number of trace span messages this trace consumer dropped because its buffer limits
+   * were exceeded.
+   *
+   * @return the number of dropped spans.
+   */
+  public long getDroppedSpanCount() {
+    return droppedSpanCount.get();
+  }
 }
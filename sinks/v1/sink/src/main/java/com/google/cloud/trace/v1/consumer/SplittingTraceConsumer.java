@@ -0,0 +1,118 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.consumer;
+
+import com.google.cloud.trace.v1.util.ProtoTraceSizer;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.devtools.cloudtrace.v1.Traces;
+
+/**
+ * A trace consumer that splits trace messages into several traces messages, each of which is no
+ * larger than a maximum serialized size, before sending them to its delegate trace consumer.
+ *
+ * <p>Traces messages that fit are passed through unchanged. Larger traces messages are split
+ * between traces, packing as many traces as fit into each traces message, and a trace that does
+ * not fit into a traces message on its own is split between its spans into several trace messages
+ * with the same trace identifiers. A single span that is larger than the maximum size is sent on
+ * its own.
+ *
+ * @see ProtoTraceSizer
+ * @see Traces
+ * @see TraceConsumer
+ */
+public class SplittingTraceConsumer implements TraceConsumer {
+  private final TraceConsumer traceConsumer;
+  private final int maxTracesSize;
+
+  /**
+   * Creates a splitting trace consumer.
+   *
+   * @param traceConsumer a trace consumer that serves as this trace consumer's delegate.
+   * @param maxTracesSize the maximum serialized size in bytes of the traces messages sent to the
+   *                      delegate trace consumer.
+   */
+  public SplittingTraceConsumer(TraceConsumer traceConsumer, int maxTracesSize) {
+    if (maxTracesSize <= 0) {
+      throw new IllegalArgumentException("Maximum traces size must be > 0.");
+    }
+    this.traceConsumer = traceConsumer;
+    this.maxTracesSize = maxTracesSize;
+  }
+
+  @Override
+  public void receive(Traces traces) {
+    if (traces.getSerializedSize() <= maxTracesSize) {
+      traceConsumer.receive(traces);
+      return;
+    }
+    Batch batch = new Batch();
+    for (Trace trace : traces.getTracesList()) {
+      int traceSize = ProtoTraceSizer.traceFieldSize(trace.getSerializedSize());
+      if (traceSize <= maxTracesSize) {
+        batch.add(trace, traceSize);
+      } else {
+        splitTrace(trace, batch);
+      }
+    }
+    batch.send();
+  }
+
+  private void splitTrace(Trace trace, Batch batch) {
+    int headerSize = ProtoTraceSizer.traceHeaderSize(trace.getProjectId(), trace.getTraceId());
+    Trace.Builder part = null;
+    int partBodySize = 0;
+    for (TraceSpan span : trace.getSpansList()) {
+      int spanSize = ProtoTraceSizer.spanFieldSize(span);
+      if (part != null
+          && ProtoTraceSizer.traceFieldSize(partBodySize + spanSize) > maxTracesSize) {
+        batch.add(part.build(), ProtoTraceSizer.traceFieldSize(partBodySize));
+        part = null;
+      }
+      if (part == null) {
+        part = Trace.newBuilder()
+            .setProjectId(trace.getProjectId())
+            .setTraceId(trace.getTraceId());
+        partBodySize = headerSize;
+      }
+      part.addSpans(span);
+      partBodySize += spanSize;
+    }
+    if (part != null) {
+      batch.add(part.build(), ProtoTraceSizer.traceFieldSize(partBodySize));
+    }
+  }
+
+  private class Batch {
+    private Traces.Builder tracesBuilder = Traces.newBuilder();
+    private int size = 0;
+
+    private void add(Trace trace, int traceSize) {
+      if (tracesBuilder.getTracesCount() > 0 && size + traceSize > maxTracesSize) {
+        send();
+      }
+      tracesBuilder.addTraces(trace);
+      size += traceSize;
+    }
+
+    private void send() {
+      if (tracesBuilder.getTracesCount() > 0) {
+        traceConsumer.receive(tracesBuilder.build());
+        tracesBuilder = Traces.newBuilder();
+        size = 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,186 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.consumer;
+
+import com.google.cloud.trace.v1.util.BufferLimits;
+import com.google.cloud.trace.v1.util.Sizer;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A flushable trace consumer that sends the same trace messages to several delegate trace
+ * consumers, or branches.
+ *
+ * <p>Each branch has its own bounded queue and flusher thread, provided by an
+ * {@link AsyncBufferingTraceConsumer}, and its own buffer limits, whose load shedding policy
+ * decides which trace messages are dropped when the branch falls behind. Receiving trace messages
+ * only appends them to the queues, so a slow or failing branch delays neither the other branches
+ * nor the threads that produce trace messages. {@link #close()} closes every branch, which stops
+ * its flusher thread. The operations on this trace consumer are thread-safe.
+ *
+ * @see AsyncBufferingTraceConsumer
+ * @see BufferLimits
+ * @see TraceConsumer
+ */
+public class TeeTraceConsumer implements FlushableTraceConsumer, Closeable {
+  private static final Logger logger = Logger.getLogger(TeeTraceConsumer.class.getName());
+
+  /**
+   * A builder of tee trace consumers.
+   */
+  public static class Builder {
+    private final Sizer<Trace> traceSizer;
+    private final List<AsyncBufferingTraceConsumer> branches =
+        new ArrayList<AsyncBufferingTraceConsumer>();
+
+    private Builder(Sizer<Trace> traceSizer) {
+      this.traceSizer = traceSizer;
+    }
+
+    /**
+     * Adds a branch that sends trace messages to the given trace consumer.
+     *
+     * @param traceConsumer  the trace consumer of the branch.
+     * @param bufferSize     the size of the branch's trace message buffer.
+     * @param scheduledDelay the scheduled delay of the branch in seconds.
+     * @param limits         the limits of the branch's queue, which must not be unlimited.
+     * @return this builder.
+     */
+    public Builder addBranch(TraceConsumer traceConsumer, int bufferSize, int scheduledDelay,
+        BufferLimits limits) {
+      if (limits == BufferLimits.unlimited()) {
+        throw new IllegalArgumentException("Branches must have bounded queues.");
+      }
+      branches.add(new AsyncBufferingTraceConsumer(traceConsumer, traceSizer, bufferSize,
+          scheduledDelay,
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("cloud-trace-tee-" + branches.size() + "-%d")
+              .build(),
+          limits));
+      return this;
+    }
+
+    /**
+     * Builds a new tee trace consumer.
+     *
+     * @return the tee trace consumer.
+     */
+    public TeeTraceConsumer build() {
+      if (branches.isEmpty()) {
+        throw new IllegalStateException("A tee trace consumer needs at least one branch.");
+      }
+      return new TeeTraceConsumer(ImmutableList.copyOf(branches));
+    }
+  }
+
+  /**
+   * Returns a new builder.
+   *
+   * @param traceSizer a sizer used to estimate the size of trace messages in the branches.
+   * @return the new builder.
+   */
+  public static Builder builder(Sizer<Trace> traceSizer) {
+    return new Builder(traceSizer);
+  }
+
+  private final List<AsyncBufferingTraceConsumer> branches;
+
+  private TeeTraceConsumer(List<AsyncBufferingTraceConsumer> branches) {
+    this.branches = branches;
+  }
+
+  @Override
+  public void receive(Traces traces) {
+    for (AsyncBufferingTraceConsumer branch : branches) {
+      try {
+        branch.receive(traces);
+      } catch (RuntimeException ex) {
+        logger.log(Level.WARNING, "Failed to queue trace messages", ex);
+      }
+    }
+  }
+
+  /**
+   * Flushes every branch, even if flushing one of them fails.
+   *
+   * @throws RuntimeException the exception of the first branch that failed to flush.
+   */
+  @Override
+  public void flush() {
+    RuntimeException failure = null;
+    for (AsyncBufferingTraceConsumer branch : branches) {
+      try {
+        branch.flush();
+      } catch (RuntimeException ex) {
+        if (failure == null) {
+          failure = ex;
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Closes every branch, even if closing one of them fails. Each branch flushes its queued trace
+   * messages and stops its flusher thread; trace messages received afterwards are dropped.
+   *
+   * @throws RuntimeException the exception of the first branch that failed to close.
+   */
+  @Override
+  public void close() {
+    RuntimeException failure = null;
+    for (AsyncBufferingTraceConsumer branch : branches) {
+      try {
+        branch.close();
+      } catch (RuntimeException ex) {
+        if (failure == null) {
+          failure = ex;
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Returns the number of branches of this trace consumer.
+   *
+   * @return the number of branches.
+   */
+  public int getBranchCount() {
+    return branches.size();
+  }
+
+  /**
+   * Returns the number of trace span messages a branch dropped because its queue was full.
+   *
+   * @param branch the index of the branch, in the order in which the branches were added.
+   * @return the number of dropped spans.
+   */
+  public long getDroppedSpanCount(int branch) {
+    return branches.get(branch).getDroppedSpanCount();
+  }
+}
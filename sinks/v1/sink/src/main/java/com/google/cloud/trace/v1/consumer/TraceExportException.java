@@ -0,0 +1,107 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.consumer;
+
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.util.List;
+
+/**
+ * An exception thrown by a trace consumer when trace messages couldn't be sent. The exception tells
+ * whether sending the same trace messages again may succeed, and, when only some of the trace
+ * messages were sent, which trace messages are left to send.
+ *
+ * @see RetryingTraceConsumer
+ * @see TraceConsumer
+ */
+public class TraceExportException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  private final boolean retryable;
+  private final Traces unsentTraces;
+
+  /**
+   * Creates a trace export exception.
+   *
+   * @param message   a message that describes the failure.
+   * @param cause     the cause of the failure, or null.
+   * @param retryable whether sending the same trace messages again may succeed.
+   */
+  public TraceExportException(String message, Throwable cause, boolean retryable) {
+    this(message, cause, retryable, null);
+  }
+
+  /**
+   * Creates a trace export exception for trace messages that were partly sent.
+   *
+   * @param message      a message that describes the failure.
+   * @param cause        the cause of the failure, or null.
+   * @param retryable    whether sending the unsent trace messages again may succeed.
+   * @param unsentTraces the trace messages that weren't sent, or null if none of the trace
+   *                     messages may have been sent.
+   */
+  public TraceExportException(String message, Throwable cause, boolean retryable,
+      Traces unsentTraces) {
+    super(message, cause);
+    this.retryable = retryable;
+    this.unsentTraces = unsentTraces;
+  }
+
+  /**
+   * Combines the failures of the trace messages of several projects, which were sent separately,
+   * into a trace export exception whose unsent trace messages are the trace messages of the failed
+   * projects. If any failure is retryable, the combined failure is retryable, and only the trace
+   * messages of the projects whose failure is retryable are left to send.
+   *
+   * @param failures     the failures of the projects whose trace messages weren't sent.
+   * @param failedTraces the trace messages of the failed projects, in the order of the failures.
+   * @return the combined trace export exception.
+   */
+  public static TraceExportException combine(List<TraceExportException> failures,
+      List<Traces> failedTraces) {
+    boolean retryable = false;
+    for (TraceExportException failure : failures) {
+      retryable |= failure.isRetryable();
+    }
+    Traces.Builder unsentTraces = Traces.newBuilder();
+    for (int i = 0; i < failures.size(); i++) {
+      if (!retryable || failures.get(i).isRetryable()) {
+        unsentTraces.addAllTraces(failedTraces.get(i).getTracesList());
+      }
+    }
+    TraceExportException first = failures.get(0);
+    return new TraceExportException(String.format("Failed to send the trace messages of %d %s: %s",
+        failures.size(), failures.size() == 1 ? "project" : "projects", first.getMessage()),
+        first, retryable, unsentTraces.build());
+  }
+
+  /**
+   * Returns whether sending the same trace messages again may succeed.
+   *
+   * @return true if the failure is transient.
+   */
+  public boolean isRetryable() {
+    return retryable;
+  }
+
+  /**
+   * Returns the trace messages that weren't sent, or null if none of the trace messages may have
+   * been sent.
+   *
+   * @return the unsent trace messages, or null.
+   */
+  public Traces getUnsentTraces() {
+    return unsentTraces;
+  }
+}
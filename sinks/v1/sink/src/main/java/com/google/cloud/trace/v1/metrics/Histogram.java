@@ -0,0 +1,91 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram with fixed buckets. Each bucket counts the recorded values that are no larger than
+ * its upper bound and larger than the upper bound of the previous bucket; a last bucket counts the
+ * values that are larger than all of the upper bounds. Recording a value doesn't allocate or lock.
+ *
+ * @see HistogramSnapshot
+ */
+public class Histogram {
+  private final long[] bucketBounds;
+  private final AtomicLongArray bucketCounts;
+  private final StripedCounter sum = new StripedCounter();
+
+  /**
+   * Creates a histogram.
+   *
+   * @param bucketBounds the upper bounds of the buckets of this histogram, in increasing order.
+   */
+  public Histogram(long... bucketBounds) {
+    for (int i = 1; i < bucketBounds.length; i++) {
+      if (bucketBounds[i] <= bucketBounds[i - 1]) {
+        throw new IllegalArgumentException("Bucket bounds must be increasing.");
+      }
+    }
+    this.bucketBounds = bucketBounds.clone();
+    this.bucketCounts = new AtomicLongArray(bucketBounds.length + 1);
+  }
+
+  /**
+   * Creates a histogram with exponential bucket bounds.
+   *
+   * @param firstBound  the upper bound of the first bucket.
+   * @param factor      the factor between the upper bounds of successive buckets.
+   * @param bucketCount the number of buckets with upper bounds.
+   * @return the new histogram.
+   */
+  public static Histogram exponential(long firstBound, int factor, int bucketCount) {
+    if (firstBound <= 0 || factor <= 1 || bucketCount <= 0) {
+      throw new IllegalArgumentException("Exponential buckets must be increasing.");
+    }
+    long[] bounds = new long[bucketCount];
+    long bound = firstBound;
+    for (int i = 0; i < bucketCount; i++) {
+      bounds[i] = bound;
+      bound *= factor;
+    }
+    return new Histogram(bounds);
+  }
+
+  /**
+   * Records a value in this histogram.
+   *
+   * @param value the value to record.
+   */
+  public void record(long value) {
+    int index = Arrays.binarySearch(bucketBounds, value);
+    bucketCounts.incrementAndGet(index >= 0 ? index : -index - 1);
+    sum.add(value);
+  }
+
+  /**
+   * Returns a snapshot of the bucket counts of this histogram.
+   *
+   * @return the snapshot.
+   */
+  public HistogramSnapshot snapshot() {
+    long[] counts = new long[bucketCounts.length()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = bucketCounts.get(i);
+    }
+    return new HistogramSnapshot(bucketBounds.clone(), counts, sum.get());
+  }
+}
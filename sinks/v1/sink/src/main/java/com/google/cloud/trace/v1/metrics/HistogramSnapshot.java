@@ -0,0 +1,111 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * An immutable snapshot of the buckets of a histogram. Snapshots are exposed through JMX as
+ * composite data.
+ *
+ * @see Histogram
+ */
+public class HistogramSnapshot {
+  private final long[] bucketBounds;
+  private final long[] bucketCounts;
+  private final long sum;
+
+  /**
+   * Creates a histogram snapshot.
+   *
+   * @param bucketBounds the upper bounds of the buckets.
+   * @param bucketCounts the counts of the buckets, with one more count than there are bounds for
+   *                     the values larger than all of the bounds.
+   * @param sum          the sum of the recorded values.
+   */
+  @ConstructorProperties({"bucketBounds", "bucketCounts", "sum"})
+  public HistogramSnapshot(long[] bucketBounds, long[] bucketCounts, long sum) {
+    if (bucketCounts.length != bucketBounds.length + 1) {
+      throw new IllegalArgumentException("There must be one more bucket count than bounds.");
+    }
+    this.bucketBounds = bucketBounds;
+    this.bucketCounts = bucketCounts;
+    this.sum = sum;
+  }
+
+  /**
+   * Returns the upper bounds of the buckets.
+   */
+  public long[] getBucketBounds() {
+    return bucketBounds.clone();
+  }
+
+  /**
+   * Returns the counts of the buckets. The last count is of the values larger than all of the
+   * bounds.
+   */
+  public long[] getBucketCounts() {
+    return bucketCounts.clone();
+  }
+
+  /**
+   * Returns the number of recorded values.
+   */
+  public long getCount() {
+    long count = 0;
+    for (long bucketCount : bucketCounts) {
+      count += bucketCount;
+    }
+    return count;
+  }
+
+  /**
+   * Returns the sum of the recorded values.
+   */
+  public long getSum() {
+    return sum;
+  }
+
+  /**
+   * Returns the mean of the recorded values, or zero if no values were recorded.
+   */
+  public double getMean() {
+    long count = getCount();
+    return count == 0 ? 0 : (double) sum / count;
+  }
+
+  /**
+   * Returns an upper bound of the given quantile of the recorded values: the upper bound of the
+   * bucket that contains the quantile, or {@link Long#MAX_VALUE} if the quantile is larger than all
+   * of the bounds.
+   *
+   * @param quantile a quantile between 0 and 1.
+   * @return the upper bound of the quantile.
+   */
+  public long getQuantileBound(double quantile) {
+    if (quantile < 0 || quantile > 1) {
+      throw new IllegalArgumentException("Quantile must be between 0 and 1.");
+    }
+    long rank = (long) Math.ceil(quantile * getCount());
+    long seen = 0;
+    for (int i = 0; i < bucketBounds.length; i++) {
+      seen += bucketCounts[i];
+      if (seen >= rank) {
+        return bucketBounds[i];
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads its updates over several cells, so threads that update the counter at
+ * the same time rarely contend on the same cache line. Reading the counter sums the cells, so reads
+ * are slower than updates; the sum is not an atomic snapshot of concurrent updates.
+ */
+public class StripedCounter {
+  // Cells are spaced a cache line apart, assuming 64 byte cache lines.
+  private static final int CELL_SPACING = 8;
+  private static final int STRIPES = stripes();
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * CELL_SPACING);
+
+  /**
+   * Adds one to this counter.
+   */
+  public void increment() {
+    add(1);
+  }
+
+  /**
+   * Adds a value to this counter.
+   *
+   * @param value the value to add.
+   */
+  public void add(long value) {
+    cells.getAndAdd(cellIndex(), value);
+  }
+
+  /**
+   * Returns the sum of the values added to this counter.
+   *
+   * @return the value of this counter.
+   */
+  public long get() {
+    long sum = 0;
+    for (int i = 0; i < cells.length(); i += CELL_SPACING) {
+      sum += cells.get(i);
+    }
+    return sum;
+  }
+
+  private static int cellIndex() {
+    long id = Thread.currentThread().getId();
+    // Spread consecutive thread identifiers over the stripes.
+    int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+    return ((hash >>> 16) & (STRIPES - 1)) * CELL_SPACING;
+  }
+
+  private static int stripes() {
+    int processors = Runtime.getRuntime().availableProcessors();
+    return Integer.highestOneBit(Math.max(1, Math.min(processors, 64)) * 2 - 1);
+  }
+}
@@ -0,0 +1,189 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The metrics of a trace export pipeline. Trace consumers record into the metrics they are given,
+ * so one metrics instance can be shared by the buffering and exporting stages of a pipeline to give
+ * a view of the whole pipeline. The metrics can be read through this class or, once registered,
+ * through JMX. Recording is thread-safe and doesn't lock.
+ *
+ * @see TraceExportMetricsMXBean
+ */
+public class TraceExportMetrics implements TraceExportMetricsMXBean {
+  /**
+   * The domain of the object names under which metrics are registered.
+   */
+  public static final String DOMAIN = "com.google.cloud.trace.v1";
+
+  private final StripedCounter spansReceived = new StripedCounter();
+  private final StripedCounter spansMerged = new StripedCounter();
+  private final StripedCounter spansDropped = new StripedCounter();
+  private final StripedCounter spansExported = new StripedCounter();
+  private final StripedCounter exportErrors = new StripedCounter();
+  private final AtomicLong bufferedSpans = new AtomicLong();
+  // 1 to 32768 spans, and 1ms to 32s.
+  private final Histogram batchSpanCounts = Histogram.exponential(1, 2, 16);
+  private final Histogram flushLatencyMillis = Histogram.exponential(1, 2, 16);
+  private final Histogram exportLatencyMillis = Histogram.exponential(1, 2, 16);
+
+  private ObjectName objectName;
+
+  /**
+   * Records trace span messages received by a buffering trace consumer.
+   *
+   * @param received the number of spans received.
+   * @param merged   the number of received spans that were merged into buffered spans.
+   * @param dropped  the number of spans dropped because of buffer limits.
+   */
+  public void recordReceived(int received, int merged, int dropped) {
+    spansReceived.add(received);
+    if (merged > 0) {
+      spansMerged.add(merged);
+    }
+    if (dropped > 0) {
+      spansDropped.add(dropped);
+    }
+  }
+
+  /**
+   * Records a change in the number of buffered trace span messages.
+   *
+   * @param delta the change in the number of buffered spans.
+   */
+  public void recordBufferedSpans(long delta) {
+    if (delta != 0) {
+      bufferedSpans.addAndGet(delta);
+    }
+  }
+
+  /**
+   * Records the flush of a buffer.
+   *
+   * @param spanCount    the number of spans that were flushed.
+   * @param elapsedNanos the time it took to flush the buffer in nanoseconds.
+   */
+  public void recordFlush(int spanCount, long elapsedNanos) {
+    batchSpanCounts.record(spanCount);
+    flushLatencyMillis.record(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+  }
+
+  /**
+   * Records a successful API call to the Stackdriver Trace API.
+   *
+   * @param spanCount    the number of spans that were sent.
+   * @param elapsedNanos the time the API call took in nanoseconds.
+   */
+  public void recordExport(int spanCount, long elapsedNanos) {
+    spansExported.add(spanCount);
+    exportLatencyMillis.record(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+  }
+
+  /**
+   * Records a failed API call to the Stackdriver Trace API.
+   *
+   * @param elapsedNanos the time the API call took in nanoseconds.
+   */
+  public void recordExportError(long elapsedNanos) {
+    exportErrors.increment();
+    exportLatencyMillis.record(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+  }
+
+  @Override
+  public long getSpansReceived() {
+    return spansReceived.get();
+  }
+
+  @Override
+  public long getSpansMerged() {
+    return spansMerged.get();
+  }
+
+  @Override
+  public long getSpansDropped() {
+    return spansDropped.get();
+  }
+
+  @Override
+  public long getSpansExported() {
+    return spansExported.get();
+  }
+
+  @Override
+  public long getExportErrors() {
+    return exportErrors.get();
+  }
+
+  @Override
+  public long getBufferedSpans() {
+    return bufferedSpans.get();
+  }
+
+  @Override
+  public HistogramSnapshot getBatchSpanCounts() {
+    return batchSpanCounts.snapshot();
+  }
+
+  @Override
+  public HistogramSnapshot getFlushLatencyMillis() {
+    return flushLatencyMillis.snapshot();
+  }
+
+  @Override
+  public HistogramSnapshot getExportLatencyMillis() {
+    return exportLatencyMillis.snapshot();
+  }
+
+  /**
+   * Registers these metrics with the platform MBean server, under the object name
+   * {@code com.google.cloud.trace.v1:type=TraceExportMetrics,name=<name>}.
+   *
+   * @param name the name that distinguishes these metrics from other registered metrics.
+   * @return the object name under which the metrics were registered.
+   * @throws JMException if the metrics couldn't be registered.
+   */
+  public synchronized ObjectName register(String name) throws JMException {
+    if (objectName != null) {
+      throw new IllegalStateException("Metrics are already registered as " + objectName);
+    }
+    ObjectName newObjectName =
+        new ObjectName(DOMAIN + ":type=TraceExportMetrics,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, newObjectName);
+    objectName = newObjectName;
+    return objectName;
+  }
+
+  /**
+   * Unregisters these metrics from the platform MBean server, if they are registered.
+   *
+   * @throws JMException if the metrics couldn't be unregistered.
+   */
+  public synchronized void unregister() throws JMException {
+    if (objectName != null) {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+      objectName = null;
+    }
+  }
+}
@@ -0,0 +1,70 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.metrics;
+
+/**
+ * The management interface of the metrics of a trace export pipeline.
+ *
+ * @see TraceExportMetrics
+ */
+public interface TraceExportMetricsMXBean {
+  /**
+   * Returns the number of trace span messages received by buffering trace consumers.
+   */
+  long getSpansReceived();
+
+  /**
+   * Returns the number of received trace span messages that were merged into a buffered trace span
+   * message with the same span identifier.
+   */
+  long getSpansMerged();
+
+  /**
+   * Returns the number of trace span messages dropped because of buffer limits.
+   */
+  long getSpansDropped();
+
+  /**
+   * Returns the number of trace span messages sent to the Stackdriver Trace API.
+   */
+  long getSpansExported();
+
+  /**
+   * Returns the number of API calls to the Stackdriver Trace API that failed.
+   */
+  long getExportErrors();
+
+  /**
+   * Returns the number of trace span messages that are buffered.
+   */
+  long getBufferedSpans();
+
+  /**
+   * Returns the distribution of the number of trace span messages in each flushed buffer.
+   */
+  HistogramSnapshot getBatchSpanCounts();
+
+  /**
+   * Returns the distribution of the time in milliseconds it took to flush a buffer, including
+   * handing the flushed trace messages to the next trace consumer.
+   */
+  HistogramSnapshot getFlushLatencyMillis();
+
+  /**
+   * Returns the distribution of the time in milliseconds taken by API calls to the Stackdriver
+   * Trace API, whether or not they succeeded.
+   */
+  HistogramSnapshot getExportLatencyMillis();
+}
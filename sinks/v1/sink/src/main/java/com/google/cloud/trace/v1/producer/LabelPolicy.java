@@ -0,0 +1,245 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.producer;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A class that represents the limits a trace producer applies to span labels before it builds
+ * trace span messages: the number of labels of a span, the length of label keys and values, and
+ * the label keys that are allowed or denied.
+ *
+ * <p>Labels whose keys are denied, aren't allowed, or are longer than the maximum key length are
+ * dropped, and so are labels past the maximum number of labels of a span. Values longer than the
+ * maximum value length are truncated. Key patterns match a key exactly, or match every key that
+ * starts with the pattern if the pattern ends with {@code *}. If allowed keys are given, only
+ * labels with allowed keys are kept. Denied keys take precedence over allowed keys.
+ *
+ * @see TraceProducer
+ */
+public class LabelPolicy {
+  private static final LabelPolicy UNLIMITED = builder().build();
+
+  /**
+   * A builder of label policies.
+   */
+  public static class Builder {
+    private int maxLabels = Integer.MAX_VALUE;
+    private int maxKeyLength = Integer.MAX_VALUE;
+    private int maxValueLength = Integer.MAX_VALUE;
+    private final List<String> allowedKeys = new ArrayList<String>();
+    private final List<String> deniedKeys = new ArrayList<String>();
+
+    private Builder() {}
+
+    /**
+     * Sets the maximum number of labels of a span. Optional. Defaults to unlimited.
+     *
+     * @param maxLabels the maximum number of labels of a span.
+     * @return this builder.
+     */
+    public Builder setMaxLabels(int maxLabels) {
+      if (maxLabels < 0) {
+        throw new IllegalArgumentException("Max labels must be >= 0.");
+      }
+      this.maxLabels = maxLabels;
+      return this;
+    }
+
+    /**
+     * Sets the maximum length of label keys. Optional. Defaults to unlimited.
+     *
+     * @param maxKeyLength the maximum number of characters of a label key.
+     * @return this builder.
+     */
+    public Builder setMaxKeyLength(int maxKeyLength) {
+      if (maxKeyLength <= 0) {
+        throw new IllegalArgumentException("Max key length must be > 0.");
+      }
+      this.maxKeyLength = maxKeyLength;
+      return this;
+    }
+
+    /**
+     * Sets the maximum length of label values. Optional. Defaults to unlimited.
+     *
+     * @param maxValueLength the maximum number of characters of a label value.
+     * @return this builder.
+     */
+    public Builder setMaxValueLength(int maxValueLength) {
+      if (maxValueLength < 0) {
+        throw new IllegalArgumentException("Max value length must be >= 0.");
+      }
+      this.maxValueLength = maxValueLength;
+      return this;
+    }
+
+    /**
+     * Adds a pattern of label keys that are allowed. Optional. By default, all keys are allowed.
+     *
+     * @param keyPattern a label key, or a key prefix followed by {@code *}.
+     * @return this builder.
+     */
+    public Builder allowKey(String keyPattern) {
+      allowedKeys.add(checkPattern(keyPattern));
+      return this;
+    }
+
+    /**
+     * Adds a pattern of label keys that are denied. Optional. By default, no keys are denied.
+     *
+     * @param keyPattern a label key, or a key prefix followed by {@code *}.
+     * @return this builder.
+     */
+    public Builder denyKey(String keyPattern) {
+      deniedKeys.add(checkPattern(keyPattern));
+      return this;
+    }
+
+    /**
+     * Builds a new label policy.
+     *
+     * @return the label policy.
+     */
+    public LabelPolicy build() {
+      return new LabelPolicy(maxLabels, maxKeyLength, maxValueLength,
+          ImmutableList.copyOf(allowedKeys), ImmutableList.copyOf(deniedKeys));
+    }
+
+    private static String checkPattern(String keyPattern) {
+      if (keyPattern == null || keyPattern.isEmpty()) {
+        throw new IllegalArgumentException("Key pattern must not be empty.");
+      }
+      return keyPattern;
+    }
+  }
+
+  /**
+   * Returns a label policy that keeps all labels unchanged.
+   *
+   * @return the unlimited label policy.
+   */
+  public static LabelPolicy unlimited() {
+    return UNLIMITED;
+  }
+
+  /**
+   * Returns a new builder.
+   *
+   * @return the new builder.
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private final int maxLabels;
+  private final int maxKeyLength;
+  private final int maxValueLength;
+  private final List<String> allowedKeys;
+  private final List<String> deniedKeys;
+
+  private LabelPolicy(int maxLabels, int maxKeyLength, int maxValueLength,
+      List<String> allowedKeys, List<String> deniedKeys) {
+    this.maxLabels = maxLabels;
+    this.maxKeyLength = maxKeyLength;
+    this.maxValueLength = maxValueLength;
+    this.allowedKeys = allowedKeys;
+    this.deniedKeys = deniedKeys;
+  }
+
+  /**
+   * Returns whether a label with the given key is kept.
+   *
+   * @param key the label key.
+   * @return true if the key isn't too long, isn't denied, and is allowed.
+   */
+  public boolean isAllowed(String key) {
+    if (key.length() > maxKeyLength || matches(deniedKeys, key)) {
+      return false;
+    }
+    return allowedKeys.isEmpty() || matches(allowedKeys, key);
+  }
+
+  /**
+   * Returns a label value truncated to the maximum value length. The value isn't split in the
+   * middle of a surrogate pair.
+   *
+   * @param value the label value.
+   * @return the value, or its truncated prefix.
+   */
+  public String truncateValue(String value) {
+    if (value.length() <= maxValueLength) {
+      return value;
+    }
+    int end = maxValueLength;
+    if (end > 0 && Character.isHighSurrogate(value.charAt(end - 1))) {
+      end--;
+    }
+    return value.substring(0, end);
+  }
+
+  /**
+   * Returns the maximum number of labels of a span.
+   *
+   * @return the maximum number of labels of a span.
+   */
+  public int getMaxLabels() {
+    return maxLabels;
+  }
+
+  /**
+   * Returns the maximum length of label keys.
+   *
+   * @return the maximum number of characters of a label key.
+   */
+  public int getMaxKeyLength() {
+    return maxKeyLength;
+  }
+
+  /**
+   * Returns the maximum length of label values.
+   *
+   * @return the maximum number of characters of a label value.
+   */
+  public int getMaxValueLength() {
+    return maxValueLength;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("maxLabels", maxLabels)
+        .add("maxKeyLength", maxKeyLength)
+        .add("maxValueLength", maxValueLength)
+        .add("allowedKeys", allowedKeys)
+        .add("deniedKeys", deniedKeys)
+        .toString();
+  }
+
+  private static boolean matches(List<String> patterns, String key) {
+    for (int i = 0; i < patterns.size(); i++) {
+      String pattern = patterns.get(i);
+      if (pattern.endsWith("*")
+          ? key.startsWith(pattern.substring(0, pattern.length() - 1))
+          : key.equals(pattern)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -17,19 +17,41 @@ package com.google.cloud.trace.v1.producer;
 import com.google.cloud.trace.core.Label;
 import com.google.cloud.trace.core.Labels;
 import com.google.cloud.trace.core.SpanContext;
+import com.google.cloud.trace.core.SpanId;
 import com.google.cloud.trace.core.SpanKind;
 import com.google.cloud.trace.core.StackFrame;
 import com.google.cloud.trace.core.StackTrace;
 import com.google.cloud.trace.core.Timestamp;
 import com.google.cloud.trace.core.TraceId;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
 import com.google.devtools.cloudtrace.v1.Trace;
 import com.google.devtools.cloudtrace.v1.TraceSpan;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A class that contains helper methods to convert trace events to Stackdriver Trace API v1 trace
- * messages. Each method creates a new trace message with a single span that represents the trace
- * event.
+ * messages. Each generate method creates a new trace message with a single span that represents the
+ * trace event. Each apply method instead records the trace event on an existing trace span message
+ * builder, so that all of the events of a span can be assembled into a single trace span message.
  *
+ * <p>Stack traces are encoded as JSON labels. The encoded labels of recently seen stack traces are
+ * cached, since the same call sites tend to be traced over and over.
+ *
+ * <p>Label annotations are filtered and truncated by a label policy before they are recorded, so
+ * that arbitrary label values, such as the string forms of traced method arguments, don't inflate
+ * trace span messages. The stack trace label isn't subject to the label policy. The label keys of
+ * each span are tracked from its first label annotation until its end span event, so that the
+ * maximum number of labels applies to the span rather than to each label annotation, even when
+ * each event is converted into a separate trace message. The label keys of at most 4096 open spans
+ * are tracked; the count of a span whose keys were evicted starts over.
+ *
+ * @see LabelPolicy
  * @see Labels
  * @see SpanKind
  * @see StackTrace
@@ -38,6 +60,66 @@ import com.google.devtools.cloudtrace.v1.TraceSpan;
  * @see SpanContext
  */
 public class TraceProducer {
+  private static final int DEFAULT_STACK_TRACE_CACHE_SIZE = 1024;
+  private static final int MAX_TRACKED_SPANS = 4096;
+
+  private final Cache<StackTrace, String> stackTraceCache;
+  private final LabelPolicy labelPolicy;
+  // The label keys recorded for each open span, or null if the number of labels isn't limited.
+  private final ConcurrentMap<Map.Entry<TraceId, SpanId>, Set<String>> spanLabelKeys;
+  private final AtomicLong droppedLabelCount = new AtomicLong();
+  private final AtomicLong truncatedLabelCount = new AtomicLong();
+
+  /**
+   * Creates a trace producer.
+   */
+  public TraceProducer() {
+    this(DEFAULT_STACK_TRACE_CACHE_SIZE);
+  }
+
+  /**
+   * Creates a trace producer that caches the encoded labels of a number of stack traces.
+   *
+   * @param stackTraceCacheSize the maximum number of cached stack trace labels.
+   */
+  public TraceProducer(int stackTraceCacheSize) {
+    this(stackTraceCacheSize, LabelPolicy.unlimited());
+  }
+
+  /**
+   * Creates a trace producer that applies a label policy to label annotations.
+   *
+   * @param labelPolicy the label policy.
+   */
+  public TraceProducer(LabelPolicy labelPolicy) {
+    this(DEFAULT_STACK_TRACE_CACHE_SIZE, labelPolicy);
+  }
+
+  /**
+   * Creates a trace producer that caches the encoded labels of a number of stack traces and
+   * applies a label policy to label annotations.
+   *
+   * @param stackTraceCacheSize the maximum number of cached stack trace labels.
+   * @param labelPolicy         the label policy.
+   */
+  public TraceProducer(int stackTraceCacheSize, LabelPolicy labelPolicy) {
+    if (stackTraceCacheSize < 0) {
+      throw new IllegalArgumentException("Stack trace cache size must be >= 0.");
+    }
+    if (labelPolicy == null) {
+      throw new IllegalArgumentException("Label policy must not be null.");
+    }
+    this.stackTraceCache = CacheBuilder.newBuilder()
+        .maximumSize(stackTraceCacheSize)
+        .<StackTrace, String>build();
+    this.labelPolicy = labelPolicy;
+    this.spanLabelKeys = labelPolicy.getMaxLabels() == Integer.MAX_VALUE ? null
+        : CacheBuilder.newBuilder()
+            .maximumSize(MAX_TRACKED_SPANS)
+            .<Map.Entry<TraceId, SpanId>, Set<String>>build()
+            .asMap();
+  }
+
   /**
    * Converts a start span event into an API v1 trace message.
    *
@@ -52,24 +134,8 @@ public class TraceProducer {
   public Trace generateStartSpan(String projectId, SpanContext context,
       SpanContext parentContext, SpanKind spanKind, String name, Timestamp timestamp) {
     TraceSpan.Builder spanBuilder =
-        TraceSpan.newBuilder()
-            .setSpanId(context.getSpanId().getSpanId())
-            .setKind(toSpanKindProto(spanKind))
-            .setName(name)
-            .setStartTime(toTimestamp(timestamp));
-
-    if (parentContext.getTraceId().equals(context.getTraceId())
-        && parentContext.getSpanId().isValid()) {
-      spanBuilder.setParentSpanId(parentContext.getSpanId().getSpanId());
-    }
-
-    Trace.Builder traceBuilder =
-        Trace.newBuilder()
-            .setProjectId(projectId)
-            .setTraceId(formatTraceId(context.getTraceId()))
-            .addSpans(spanBuilder.build());
-
-    return traceBuilder.build();
+        applyStartSpan(TraceSpan.newBuilder(), context, parentContext, spanKind, name, timestamp);
+    return generateTrace(projectId, context, spanBuilder.build());
   }
 
   /**
@@ -81,18 +147,8 @@ public class TraceProducer {
    * @return a trace message that represents the end span event.
    */
   public Trace generateEndSpan(String projectId, SpanContext context, Timestamp timestamp) {
-    TraceSpan.Builder spanBuilder =
-        TraceSpan.newBuilder()
-            .setSpanId(context.getSpanId().getSpanId())
-            .setEndTime(toTimestamp(timestamp));
-
-    Trace.Builder traceBuilder =
-        Trace.newBuilder()
-            .setProjectId(projectId)
-            .setTraceId(formatTraceId(context.getTraceId()))
-            .addSpans(spanBuilder.build());
-
-    return traceBuilder.build();
+    TraceSpan.Builder spanBuilder = applyEndSpan(TraceSpan.newBuilder(), context, timestamp);
+    return generateTrace(projectId, context, spanBuilder.build());
   }
 
   /**
@@ -104,37 +160,194 @@ public class TraceProducer {
    * @return a trace message that represents the span label annotation event.
    */
   public Trace generateAnnotateSpan(String projectId, SpanContext context, Labels labels) {
-    TraceSpan.Builder spanBuilder =
-        TraceSpan.newBuilder().setSpanId(context.getSpanId().getSpanId());
+    TraceSpan.Builder spanBuilder = applyAnnotateSpan(TraceSpan.newBuilder(), context, labels);
+    return generateTrace(projectId, context, spanBuilder.build());
+  }
 
-    for (Label label : labels.getLabels()) {
-      spanBuilder.putLabels(label.getKey(), label.getValue());
-    }
+  /**
+   * Converts a stack trace annotation event into an API v1 trace message.
+   *
+   * @param projectId  a string that contains the Google Cloud Platform project identifier.
+   * @param context    a span context that represents the event span.
+   * @param stackTrace a stack trace containing the stack trace annotations for the event span.
+   * @return a trace message that represents the stack trace annotation event.
+   */
+  public Trace generateSetStackTrace(
+      String projectId, SpanContext context, StackTrace stackTrace) {
+    TraceSpan.Builder spanBuilder =
+        applySetStackTrace(TraceSpan.newBuilder(), context, stackTrace);
+    return generateTrace(projectId, context, spanBuilder.build());
+  }
 
+  /**
+   * Wraps a trace span message in an API v1 trace message.
+   *
+   * @param projectId a string that contains the Google Cloud Platform project identifier.
+   * @param context   a span context that represents the span.
+   * @param span      a trace span message to wrap.
+   * @return a trace message that contains the trace span message.
+   */
+  public Trace generateTrace(String projectId, SpanContext context, TraceSpan span) {
     Trace.Builder traceBuilder =
         Trace.newBuilder()
             .setProjectId(projectId)
             .setTraceId(formatTraceId(context.getTraceId()))
-            .addSpans(spanBuilder.build());
+            .addSpans(span);
 
     return traceBuilder.build();
   }
 
   /**
-   * Converts a stack trace annotation event into an API v1 trace message.
+   * Applies a start span event to a trace span message builder.
    *
-   * @param projectId  a string that contains the Google Cloud Platform project identifier.
-   * @param context    a span context that represents the event span.
-   * @param stackTrace a stack trace containing the stack trace annotations for the event span.
-   * @return a trace message that represents the stack trace annotation event.
+   * @param spanBuilder   a trace span message builder that receives the event.
+   * @param context       a span context that represents the event span.
+   * @param parentContext a span context that represents the parent span of the event span.
+   * @param spanKind      the span kind of the event span.
+   * @param name          a string containing the name of the event span.
+   * @param timestamp     a timestamp that represents the start time of the event span.
+   * @return the trace span message builder.
    */
-  public Trace generateSetStackTrace(
-      String projectId, SpanContext context, StackTrace stackTrace) {
+  public TraceSpan.Builder applyStartSpan(TraceSpan.Builder spanBuilder, SpanContext context,
+      SpanContext parentContext, SpanKind spanKind, String name, Timestamp timestamp) {
+    spanBuilder
+        .setSpanId(context.getSpanId().getSpanId())
+        .setKind(toSpanKindProto(spanKind))
+        .setName(name)
+        .setStartTime(toTimestamp(timestamp));
 
-    TraceSpan.Builder spanBuilder =
-        TraceSpan.newBuilder().setSpanId(context.getSpanId().getSpanId());
+    if (parentContext.getTraceId().equals(context.getTraceId())
+        && parentContext.getSpanId().isValid()) {
+      spanBuilder.setParentSpanId(parentContext.getSpanId().getSpanId());
+    }
+    return spanBuilder;
+  }
 
-    StringBuffer stackTraceValue = new StringBuffer("{\"stack_frame\":[");
+  /**
+   * Applies an end span event to a trace span message builder.
+   *
+   * @param spanBuilder a trace span message builder that receives the event.
+   * @param context     a span context that represents the event span.
+   * @param timestamp   a timestamp that represents the end time of the event span.
+   * @return the trace span message builder.
+   */
+  public TraceSpan.Builder applyEndSpan(
+      TraceSpan.Builder spanBuilder, SpanContext context, Timestamp timestamp) {
+    if (spanLabelKeys != null) {
+      spanLabelKeys.remove(spanKey(context));
+    }
+    return spanBuilder
+        .setSpanId(context.getSpanId().getSpanId())
+        .setEndTime(toTimestamp(timestamp));
+  }
+
+  /**
+   * Applies a span label annotation event to a trace span message builder.
+   *
+   * @param spanBuilder a trace span message builder that receives the event.
+   * @param context     a span context that represents the event span.
+   * @param labels      a labels containing the label annotations for the event span.
+   * @return the trace span message builder.
+   */
+  public TraceSpan.Builder applyAnnotateSpan(
+      TraceSpan.Builder spanBuilder, SpanContext context, Labels labels) {
+    spanBuilder.setSpanId(context.getSpanId().getSpanId());
+    if (labelPolicy == LabelPolicy.unlimited()) {
+      for (Label label : labels.getLabels()) {
+        spanBuilder.putLabels(label.getKey(), label.getValue());
+      }
+      return spanBuilder;
+    }
+    Set<String> keys = spanLabelKeys != null ? labelKeys(context) : null;
+    for (Label label : labels.getLabels()) {
+      String key = label.getKey();
+      if (!labelPolicy.isAllowed(key) || (keys != null && !addLabelKey(keys, key))) {
+        droppedLabelCount.incrementAndGet();
+        continue;
+      }
+      String value = labelPolicy.truncateValue(label.getValue());
+      if (value.length() != label.getValue().length()) {
+        truncatedLabelCount.incrementAndGet();
+      }
+      spanBuilder.putLabels(key, value);
+    }
+    return spanBuilder;
+  }
+
+  /**
+   * Applies a stack trace annotation event to a trace span message builder.
+   *
+   * @param spanBuilder a trace span message builder that receives the event.
+   * @param context     a span context that represents the event span.
+   * @param stackTrace  a stack trace containing the stack trace annotations for the event span.
+   * @return the trace span message builder.
+   */
+  public TraceSpan.Builder applySetStackTrace(
+      TraceSpan.Builder spanBuilder, SpanContext context, StackTrace stackTrace) {
+    String stackTraceValue = stackTraceCache.getIfPresent(stackTrace);
+    if (stackTraceValue == null) {
+      stackTraceValue = formatStackTrace(stackTrace);
+      stackTraceCache.put(stackTrace, stackTraceValue);
+    }
+    return spanBuilder
+        .setSpanId(context.getSpanId().getSpanId())
+        .putLabels("/stacktrace", stackTraceValue);
+  }
+
+  /**
+   * Returns the number of labels that were dropped by the label policy.
+   *
+   * @return the number of dropped labels.
+   */
+  public long getDroppedLabelCount() {
+    return droppedLabelCount.get();
+  }
+
+  /**
+   * Returns the number of label values that were truncated by the label policy.
+   *
+   * @return the number of truncated label values.
+   */
+  public long getTruncatedLabelCount() {
+    return truncatedLabelCount.get();
+  }
+
+  private Set<String> labelKeys(SpanContext context) {
+    Map.Entry<TraceId, SpanId> spanKey = spanKey(context);
+    Set<String> keys = spanLabelKeys.get(spanKey);
+    if (keys == null) {
+      Set<String> newKeys = new HashSet<String>();
+      keys = spanLabelKeys.putIfAbsent(spanKey, newKeys);
+      if (keys == null) {
+        keys = newKeys;
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Records a label key of a span, and returns false if the key is new and the span already has
+   * the maximum number of labels. Replacing the value of a recorded key doesn't add a label.
+   */
+  private boolean addLabelKey(Set<String> keys, String key) {
+    synchronized (keys) {
+      if (keys.contains(key)) {
+        return true;
+      }
+      if (keys.size() >= labelPolicy.getMaxLabels()) {
+        return false;
+      }
+      keys.add(key);
+      return true;
+    }
+  }
+
+  private static Map.Entry<TraceId, SpanId> spanKey(SpanContext context) {
+    return Maps.immutableEntry(context.getTraceId(), context.getSpanId());
+  }
+
+  private static String formatStackTrace(StackTrace stackTrace) {
+    StringBuilder stackTraceValue = new StringBuilder("{\"stack_frame\":[");
     for (int i = 0; i < stackTrace.getStackFrames().size(); i++) {
       if (i != 0) {
         stackTraceValue.append(",");
@@ -157,17 +370,7 @@ public class TraceProducer {
       stackTraceValue.append("}");
     }
     stackTraceValue.append("]}");
-
-    spanBuilder.putLabels(
-        "/stacktrace", stackTraceValue.toString());
-
-    Trace.Builder traceBuilder =
-        Trace.newBuilder()
-            .setProjectId(projectId)
-            .setTraceId(formatTraceId(context.getTraceId()))
-            .addSpans(spanBuilder.build());
-
-    return traceBuilder.build();
+    return stackTraceValue.toString();
   }
 
   private String formatTraceId(TraceId traceId) {
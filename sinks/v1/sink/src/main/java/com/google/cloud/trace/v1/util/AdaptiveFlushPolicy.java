@@ -0,0 +1,209 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A policy that adapts the buffer size and the flush interval of a buffering trace consumer to the
+ * observed latency of its exports, with additive increase and multiplicative decrease.
+ *
+ * <p>After each export, the buffer size is halved if the export took longer than the target
+ * latency, and grows by a fixed step otherwise, so that batches are as large as the backend can
+ * take within the target latency. The flush interval is halved when trace messages that arrived
+ * during the export already fill the buffer again, and grows by a fixed step otherwise, so that
+ * exports are rare when traffic is quiet and frequent at peaks. The flush interval never drops
+ * below the interval of the target number of requests per second, which is also the
+ * {@link #getMinIntervalMillis() minimum interval} between the starts of flushes that buffering
+ * trace consumers wait for before flushing a full buffer. Both values stay within their
+ * configured ranges. The operations on this policy are thread-safe.
+ */
+public class AdaptiveFlushPolicy {
+  // The number of additive steps from the minimum to the maximum of a range.
+  private static final int STEPS = 16;
+
+  /**
+   * A builder of adaptive flush policies.
+   */
+  public static class Builder {
+    private int minBufferSize = 4 * 1024;
+    private int maxBufferSize = 1024 * 1024;
+    private long minDelayMillis = 100;
+    private long maxDelayMillis = 15000;
+    private long targetLatencyMillis = 1000;
+    private double targetRequestsPerSecond = 10;
+
+    private Builder() {}
+
+    /**
+     * Sets the range of the buffer size. Optional. Defaults to 4kb to 1mb.
+     *
+     * @param minBufferSize the smallest buffer size.
+     * @param maxBufferSize the largest buffer size.
+     * @return this builder.
+     */
+    public Builder setBufferSizeRange(int minBufferSize, int maxBufferSize) {
+      if (minBufferSize <= 0 || maxBufferSize < minBufferSize) {
+        throw new IllegalArgumentException("Buffer sizes must be > 0 and min <= max.");
+      }
+      this.minBufferSize = minBufferSize;
+      this.maxBufferSize = maxBufferSize;
+      return this;
+    }
+
+    /**
+     * Sets the range of the flush interval. Optional. Defaults to 100ms to 15s.
+     *
+     * @param minDelay the shortest flush interval.
+     * @param maxDelay the longest flush interval.
+     * @param unit     the unit of the flush intervals.
+     * @return this builder.
+     */
+    public Builder setDelayRange(long minDelay, long maxDelay, TimeUnit unit) {
+      if (minDelay <= 0 || maxDelay < minDelay) {
+        throw new IllegalArgumentException("Delays must be > 0 and min <= max.");
+      }
+      this.minDelayMillis = unit.toMillis(minDelay);
+      this.maxDelayMillis = unit.toMillis(maxDelay);
+      return this;
+    }
+
+    /**
+     * Sets the target latency of an export. Optional. Defaults to 1s.
+     *
+     * @param targetLatency the target latency.
+     * @param unit          the unit of the target latency.
+     * @return this builder.
+     */
+    public Builder setTargetLatency(long targetLatency, TimeUnit unit) {
+      if (targetLatency <= 0) {
+        throw new IllegalArgumentException("Target latency must be > 0.");
+      }
+      this.targetLatencyMillis = unit.toMillis(targetLatency);
+      return this;
+    }
+
+    /**
+     * Sets the target number of export requests per second. Optional. Defaults to 10.
+     *
+     * @param targetRequestsPerSecond the largest number of requests per second to aim for.
+     * @return this builder.
+     */
+    public Builder setTargetRequestsPerSecond(double targetRequestsPerSecond) {
+      if (!(targetRequestsPerSecond > 0)) {
+        throw new IllegalArgumentException("Target requests per second must be > 0.");
+      }
+      this.targetRequestsPerSecond = targetRequestsPerSecond;
+      return this;
+    }
+
+    /**
+     * Builds a new adaptive flush policy, which starts at the minimum buffer size and the maximum
+     * flush interval.
+     *
+     * @return the adaptive flush policy.
+     */
+    public AdaptiveFlushPolicy build() {
+      long minInterval = Math.max(minDelayMillis,
+          (long) Math.ceil(TimeUnit.SECONDS.toMillis(1) / targetRequestsPerSecond));
+      return new AdaptiveFlushPolicy(minBufferSize, maxBufferSize, Math.min(minInterval,
+          maxDelayMillis), maxDelayMillis, TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis));
+    }
+  }
+
+  /**
+   * Returns a new builder.
+   *
+   * @return the new builder.
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  private final int minBufferSize;
+  private final int maxBufferSize;
+  private final int bufferSizeStep;
+  private final long minDelayMillis;
+  private final long maxDelayMillis;
+  private final long delayStepMillis;
+  private final long targetLatencyNanos;
+
+  private volatile int bufferSize;
+  private volatile long delayMillis;
+
+  private AdaptiveFlushPolicy(int minBufferSize, int maxBufferSize, long minDelayMillis,
+      long maxDelayMillis, long targetLatencyNanos) {
+    this.minBufferSize = minBufferSize;
+    this.maxBufferSize = maxBufferSize;
+    this.bufferSizeStep = Math.max(1, (maxBufferSize - minBufferSize) / STEPS);
+    this.minDelayMillis = minDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+    this.delayStepMillis = Math.max(1, (maxDelayMillis - minDelayMillis) / STEPS);
+    this.targetLatencyNanos = targetLatencyNanos;
+    this.bufferSize = minBufferSize;
+    this.delayMillis = maxDelayMillis;
+  }
+
+  /**
+   * Adapts the buffer size and the flush interval to an export.
+   *
+   * @param exportedSize the size of the exported trace messages, as estimated by the sizer of the
+   *                     buffering trace consumer.
+   * @param latencyNanos the time the export took in nanoseconds.
+   * @param backlogSize  the size of the trace messages that were buffered when the export
+   *                     completed.
+   */
+  public synchronized void recordExport(int exportedSize, long latencyNanos, int backlogSize) {
+    if (latencyNanos > targetLatencyNanos) {
+      bufferSize = Math.max(minBufferSize, bufferSize / 2);
+    } else if (exportedSize >= bufferSize) {
+      // Only grow batches that were limited by the buffer size rather than by the interval.
+      bufferSize = (int) Math.min(maxBufferSize, (long) bufferSize + bufferSizeStep);
+    }
+    if (backlogSize >= bufferSize) {
+      delayMillis = Math.max(minDelayMillis, delayMillis / 2);
+    } else {
+      delayMillis = Math.min(maxDelayMillis, delayMillis + delayStepMillis);
+    }
+  }
+
+  /**
+   * Returns the current buffer size.
+   *
+   * @return the size of buffered trace messages at which the buffer is flushed.
+   */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Returns the minimum interval between the starts of two flushes, which is the interval of the
+   * target number of requests per second, or the minimum flush interval if it is longer.
+   *
+   * @return the shortest time in milliseconds between the starts of two flushes.
+   */
+  public long getMinIntervalMillis() {
+    return minDelayMillis;
+  }
+
+  /**
+   * Returns the current flush interval.
+   *
+   * @return the longest time in milliseconds that trace messages are buffered.
+   */
+  public long getDelayMillis() {
+    return delayMillis;
+  }
+}
@@ -0,0 +1,205 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * A class that represents the capacity of a trace buffer, as a maximum number of spans and a
+ * maximum serialized size, and the policy used to shed load when a trace message would exceed the
+ * capacity.
+ *
+ * <p>Buffer limits may also cap the number of spans and the serialized size of each trace, so that
+ * a single runaway trace can't fill the buffer. Spans past the caps of their trace are dropped
+ * regardless of the load shedding policy.
+ *
+ * <p>Buffering trace consumers default to {@link #forBufferSize(int)} limits, which hold a few full
+ * buffers and drop the oldest traces past them. {@link #unlimited()} limits have to be requested
+ * explicitly, because a buffer that never sheds load grows without bound while its delegate is
+ * slow or unavailable.
+ *
+ * @see LoadSheddingPolicy
+ * @see TraceBuffer
+ */
+public class BufferLimits {
+  /**
+   * The minimum serialized size in bytes of default buffer limits.
+   */
+  public static final int DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+  /**
+   * The number of full buffers default buffer limits hold.
+   */
+  public static final int DEFAULT_BUFFER_MULTIPLE = 4;
+
+  private static final BufferLimits DEFAULT =
+      new BufferLimits(Integer.MAX_VALUE, DEFAULT_MAX_BYTES, LoadSheddingPolicy.DROP_OLDEST_TRACES);
+
+  private static final BufferLimits UNLIMITED =
+      new BufferLimits(Integer.MAX_VALUE, Integer.MAX_VALUE, LoadSheddingPolicy.DROP_NEWEST);
+
+  private final int maxSpans;
+  private final int maxBytes;
+  private final LoadSheddingPolicy policy;
+  private final int maxSpansPerTrace;
+  private final int maxBytesPerTrace;
+
+  /**
+   * Returns buffer limits that never shed load.
+   *
+   * @return the unlimited buffer limits.
+   */
+  public static BufferLimits unlimited() {
+    return UNLIMITED;
+  }
+
+  /**
+   * Returns the default buffer limits of a trace buffer that isn't flushed by size: at most
+   * {@link #DEFAULT_MAX_BYTES} bytes, dropping the oldest traces past them.
+   *
+   * @return the default buffer limits.
+   */
+  public static BufferLimits defaults() {
+    return DEFAULT;
+  }
+
+  /**
+   * Returns the default buffer limits of a trace buffer that is flushed when it reaches a buffer
+   * size: {@link #DEFAULT_BUFFER_MULTIPLE} full buffers, and at least {@link #DEFAULT_MAX_BYTES}
+   * bytes, dropping the oldest traces past them.
+   *
+   * @param bufferSize the size of the trace buffer.
+   * @return the default buffer limits for the buffer size.
+   */
+  public static BufferLimits forBufferSize(int bufferSize) {
+    long maxBytes = (long) bufferSize * DEFAULT_BUFFER_MULTIPLE;
+    if (maxBytes <= DEFAULT_MAX_BYTES) {
+      return DEFAULT;
+    }
+    return new BufferLimits(Integer.MAX_VALUE, (int) Math.min(maxBytes, Integer.MAX_VALUE),
+        LoadSheddingPolicy.DROP_OLDEST_TRACES);
+  }
+
+  /**
+   * Creates buffer limits.
+   *
+   * @param maxSpans the maximum number of spans in a trace buffer.
+   * @param maxBytes the maximum serialized size in bytes of a trace buffer.
+   * @param policy   the policy used to shed load when a trace message would exceed the limits.
+   */
+  public BufferLimits(int maxSpans, int maxBytes, LoadSheddingPolicy policy) {
+    this(maxSpans, maxBytes, policy, Integer.MAX_VALUE, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Creates buffer limits that also cap each trace.
+   *
+   * @param maxSpans         the maximum number of spans in a trace buffer.
+   * @param maxBytes         the maximum serialized size in bytes of a trace buffer.
+   * @param policy           the policy used to shed load when a trace message would exceed the
+   *                         limits.
+   * @param maxSpansPerTrace the maximum number of spans of a trace in a trace buffer.
+   * @param maxBytesPerTrace the maximum serialized size in bytes of the spans of a trace in a
+   *                         trace buffer.
+   */
+  public BufferLimits(int maxSpans, int maxBytes, LoadSheddingPolicy policy, int maxSpansPerTrace,
+      int maxBytesPerTrace) {
+    if (maxSpans <= 0) {
+      throw new IllegalArgumentException("Max spans must be > 0.");
+    }
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("Max bytes must be > 0.");
+    }
+    if (policy == null) {
+      throw new IllegalArgumentException("Load shedding policy must not be null.");
+    }
+    if (maxSpansPerTrace <= 0) {
+      throw new IllegalArgumentException("Max spans per trace must be > 0.");
+    }
+    if (maxBytesPerTrace <= 0) {
+      throw new IllegalArgumentException("Max bytes per trace must be > 0.");
+    }
+    this.maxSpans = maxSpans;
+    this.maxBytes = maxBytes;
+    this.policy = policy;
+    this.maxSpansPerTrace = maxSpansPerTrace;
+    this.maxBytesPerTrace = maxBytesPerTrace;
+  }
+
+  /**
+   * Returns the maximum number of spans.
+   *
+   * @return the maximum number of spans.
+   */
+  public int getMaxSpans() {
+    return maxSpans;
+  }
+
+  /**
+   * Returns the maximum serialized size in bytes.
+   *
+   * @return the maximum serialized size.
+   */
+  public int getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Returns the load shedding policy.
+   *
+   * @return the load shedding policy.
+   */
+  public LoadSheddingPolicy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * Returns the maximum number of spans of a trace.
+   *
+   * @return the maximum number of spans of a trace.
+   */
+  public int getMaxSpansPerTrace() {
+    return maxSpansPerTrace;
+  }
+
+  /**
+   * Returns the maximum serialized size in bytes of the spans of a trace.
+   *
+   * @return the maximum serialized size of a trace.
+   */
+  public int getMaxBytesPerTrace() {
+    return maxBytesPerTrace;
+  }
+
+  /**
+   * Returns true if these buffer limits cap the spans or the serialized size of each trace.
+   *
+   * @return true if traces are capped.
+   */
+  public boolean hasTraceLimits() {
+    return maxSpansPerTrace != Integer.MAX_VALUE || maxBytesPerTrace != Integer.MAX_VALUE;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("maxSpans", maxSpans)
+        .add("maxBytes", maxBytes)
+        .add("policy", policy)
+        .add("maxSpansPerTrace", maxSpansPerTrace)
+        .add("maxBytesPerTrace", maxBytesPerTrace)
+        .toString();
+  }
+}
@@ -0,0 +1,98 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of fixed-size byte buffers that trace messages are encoded into. Buffers are returned to
+ * the pool once the encoded trace messages have been sent, so that steady-state encoding doesn't
+ * allocate. The pool keeps at most a maximum number of idle buffers; buffers released beyond that
+ * are left to the garbage collector. The operations on this pool are thread-safe.
+ *
+ * @see EncodedTraces
+ */
+public class BufferPool {
+  private final int bufferSize;
+  private final int maxPooledBuffers;
+  private final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+  private final AtomicInteger pooledBuffers = new AtomicInteger();
+
+  /**
+   * Creates a buffer pool.
+   *
+   * @param bufferSize       the size in bytes of the buffers of this pool.
+   * @param maxPooledBuffers the maximum number of idle buffers kept by this pool.
+   */
+  public BufferPool(int bufferSize, int maxPooledBuffers) {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("Buffer size must be > 0.");
+    }
+    if (maxPooledBuffers < 0) {
+      throw new IllegalArgumentException("Max pooled buffers must be >= 0.");
+    }
+    this.bufferSize = bufferSize;
+    this.maxPooledBuffers = maxPooledBuffers;
+  }
+
+  /**
+   * Takes a buffer from this pool, or allocates a new buffer if the pool is empty.
+   *
+   * @return a buffer of the size of this pool's buffers.
+   */
+  public byte[] acquire() {
+    byte[] buffer = buffers.poll();
+    if (buffer == null) {
+      return new byte[bufferSize];
+    }
+    pooledBuffers.decrementAndGet();
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer to this pool. Buffers of other sizes are ignored.
+   *
+   * @param buffer a buffer that is no longer used.
+   */
+  public void release(byte[] buffer) {
+    if (buffer.length != bufferSize) {
+      return;
+    }
+    if (pooledBuffers.incrementAndGet() > maxPooledBuffers) {
+      pooledBuffers.decrementAndGet();
+      return;
+    }
+    buffers.offer(buffer);
+  }
+
+  /**
+   * Returns the size in bytes of the buffers of this pool.
+   *
+   * @return the buffer size.
+   */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Returns the number of idle buffers in this pool.
+   *
+   * @return the number of pooled buffers.
+   */
+  public int getPooledBufferCount() {
+    return pooledBuffers.get();
+  }
+}
@@ -0,0 +1,270 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.Traces;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A traces message of a single project that has already been serialized into buffers of a buffer
+ * pool. Each trace message is encoded once when it is added, and the encoded bytes are written
+ * as they are when the traces message is sent, without building an intermediate traces message.
+ *
+ * <p>The buffers belong to the encoded traces message until {@link #release()} is called, which
+ * returns them to the buffer pool. The encoded traces message must not be used after it has been
+ * released.
+ *
+ * @see BufferPool
+ * @see Traces
+ */
+public class EncodedTraces {
+  /**
+   * A builder that encodes trace messages into the buffers of a buffer pool. Trace messages are
+   * never split between buffers; a trace message that is larger than the buffers of the pool is
+   * encoded into a buffer of its own.
+   */
+  public static class Builder {
+    private final String projectId;
+    private final BufferPool pool;
+    private final List<byte[]> buffers = new ArrayList<byte[]>();
+    private int[] lengths = new int[4];
+    private byte[] current;
+    private int position;
+    private int serializedSize;
+    private int spanCount;
+
+    private Builder(String projectId, BufferPool pool) {
+      this.projectId = projectId;
+      this.pool = pool;
+    }
+
+    /**
+     * Encodes a trace message into the traces message.
+     *
+     * @param trace a trace message of the project of the traces message.
+     * @return this.
+     */
+    public Builder add(Trace trace) {
+      int fieldSize = fieldSize(trace);
+      if (current == null || position + fieldSize > current.length) {
+        finishBuffer();
+        current = fieldSize <= pool.getBufferSize() ? pool.acquire() : new byte[fieldSize];
+      }
+      CodedOutputStream out = CodedOutputStream.newInstance(current, position, fieldSize);
+      try {
+        out.writeMessage(ProtoTraceSizer.TRACES_TRACES_FIELD, trace);
+        out.checkNoSpaceLeft();
+      } catch (IOException ex) {
+        throw new IllegalStateException("Failed to encode trace message", ex);
+      }
+      position += fieldSize;
+      serializedSize += fieldSize;
+      spanCount += trace.getSpansCount();
+      return this;
+    }
+
+    /**
+     * Returns the serialized size of the trace messages encoded so far.
+     *
+     * @return the number of bytes of the encoded trace messages.
+     */
+    public int getSerializedSize() {
+      return serializedSize;
+    }
+
+    /**
+     * Returns the number of trace span messages encoded so far.
+     *
+     * @return the number of spans.
+     */
+    public int getSpanCount() {
+      return spanCount;
+    }
+
+    /**
+     * Returns true if no trace messages have been encoded.
+     */
+    public boolean isEmpty() {
+      return serializedSize == 0;
+    }
+
+    /**
+     * Builds the encoded traces message. The builder must not be used afterwards.
+     *
+     * @return the encoded traces message.
+     */
+    public EncodedTraces build() {
+      finishBuffer();
+      return new EncodedTraces(projectId, pool, buffers, Arrays.copyOf(lengths, buffers.size()),
+          serializedSize, spanCount);
+    }
+
+    private void finishBuffer() {
+      if (current == null) {
+        return;
+      }
+      if (position == 0) {
+        pool.release(current);
+      } else {
+        if (buffers.size() == lengths.length) {
+          lengths = Arrays.copyOf(lengths, lengths.length * 2);
+        }
+        lengths[buffers.size()] = position;
+        buffers.add(current);
+      }
+      current = null;
+      position = 0;
+    }
+  }
+
+  /**
+   * Returns a new builder.
+   *
+   * @param projectId the project identifier of the trace messages.
+   * @param pool      the buffer pool the trace messages are encoded into.
+   * @return the new builder.
+   */
+  public static Builder builder(String projectId, BufferPool pool) {
+    return new Builder(projectId, pool);
+  }
+
+  /**
+   * Returns the number of bytes that a trace message adds to an encoded traces message.
+   *
+   * @param trace a trace message.
+   * @return the serialized size of the trace message as a field of a traces message.
+   */
+  public static int fieldSize(Trace trace) {
+    return ProtoTraceSizer.traceFieldSize(trace.getSerializedSize());
+  }
+
+  private final String projectId;
+  private final BufferPool pool;
+  private final List<byte[]> buffers;
+  private final int[] lengths;
+  private final int serializedSize;
+  private final int spanCount;
+  private final AtomicBoolean released = new AtomicBoolean();
+
+  private EncodedTraces(String projectId, BufferPool pool, List<byte[]> buffers, int[] lengths,
+      int serializedSize, int spanCount) {
+    this.projectId = projectId;
+    this.pool = pool;
+    this.buffers = buffers;
+    this.lengths = lengths;
+    this.serializedSize = serializedSize;
+    this.spanCount = spanCount;
+  }
+
+  /**
+   * Returns the project identifier of the trace messages.
+   *
+   * @return the project identifier.
+   */
+  public String getProjectId() {
+    return projectId;
+  }
+
+  /**
+   * Returns the serialized size of the traces message.
+   *
+   * @return the number of bytes of the encoded traces message.
+   */
+  public int getSerializedSize() {
+    return serializedSize;
+  }
+
+  /**
+   * Returns the number of trace span messages in the traces message.
+   *
+   * @return the number of spans.
+   */
+  public int getSpanCount() {
+    return spanCount;
+  }
+
+  /**
+   * Writes the encoded traces message to an output stream.
+   *
+   * @param out the output stream.
+   * @throws IOException if writing to the output stream fails.
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    checkNotReleased();
+    for (int i = 0; i < buffers.size(); i++) {
+      out.write(buffers.get(i), 0, lengths[i]);
+    }
+  }
+
+  /**
+   * Returns an input stream that reads the encoded traces message.
+   *
+   * @return the input stream.
+   */
+  public InputStream newInputStream() {
+    checkNotReleased();
+    List<InputStream> streams = new ArrayList<InputStream>(buffers.size());
+    for (int i = 0; i < buffers.size(); i++) {
+      streams.add(new ByteArrayInputStream(buffers.get(i), 0, lengths[i]));
+    }
+    return new SequenceInputStream(Collections.enumeration(streams));
+  }
+
+  /**
+   * Decodes the traces message. This builds the message objects that encoding avoids, so it is
+   * meant for trace consumers that can't send encoded trace messages.
+   *
+   * @return the decoded traces message.
+   */
+  public Traces toTraces() {
+    try {
+      return Traces.parseFrom(newInputStream());
+    } catch (InvalidProtocolBufferException ex) {
+      throw new IllegalStateException("Failed to decode encoded traces message", ex);
+    } catch (IOException ex) {
+      throw new IllegalStateException("Failed to decode encoded traces message", ex);
+    }
+  }
+
+  /**
+   * Returns the buffers of this encoded traces message to the buffer pool. Releasing an encoded
+   * traces message more than once has no effect.
+   */
+  public void release() {
+    if (released.compareAndSet(false, true)) {
+      for (byte[] buffer : buffers) {
+        pool.release(buffer);
+      }
+    }
+  }
+
+  private void checkNotReleased() {
+    if (released.get()) {
+      throw new IllegalStateException("Encoded traces message has been released.");
+    }
+  }
+}
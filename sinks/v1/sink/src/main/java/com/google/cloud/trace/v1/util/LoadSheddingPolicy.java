@@ -0,0 +1,37 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+/**
+ * The policies a trace buffer uses to shed load when a trace message would exceed its limits.
+ *
+ * @see BufferLimits
+ * @see TraceBuffer
+ */
+public enum LoadSheddingPolicy {
+  /**
+   * Drops the trace message that would exceed the limits.
+   */
+  DROP_NEWEST,
+  /**
+   * Drops whole buffered traces, oldest first, until the trace message fits.
+   */
+  DROP_OLDEST_TRACES,
+  /**
+   * Drops the labels, including stack traces, of the trace message that would exceed the limits,
+   * and drops the trace message if it still doesn't fit.
+   */
+  DROP_PAYLOADS
+}
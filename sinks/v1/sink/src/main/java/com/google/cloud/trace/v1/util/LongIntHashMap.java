@@ -0,0 +1,120 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from long keys to non-negative int values, such as the positions of
+ * spans in a span buffer. Keys and values are kept in primitive arrays, so neither lookups nor
+ * insertions allocate, and clearing the map keeps its arrays for reuse unless they have grown
+ * beyond a retained capacity. Entries can't be removed individually.
+ */
+class LongIntHashMap {
+  private static final int MIN_CAPACITY = 8;
+
+  private final int maxRetainedCapacity;
+  private long[] keys;
+  // Values plus one, or zero for empty slots.
+  private int[] values;
+  private int size;
+
+  /**
+   * Creates a map.
+   *
+   * @param maxRetainedCapacity the largest number of slots that are kept when the map is cleared.
+   */
+  LongIntHashMap(int maxRetainedCapacity) {
+    this.maxRetainedCapacity = maxRetainedCapacity;
+    this.keys = new long[MIN_CAPACITY];
+    this.values = new int[MIN_CAPACITY];
+  }
+
+  /**
+   * Returns the value of the given key, or -1 if the map doesn't contain the key.
+   */
+  int get(long key) {
+    return values[slot(key)] - 1;
+  }
+
+  /**
+   * Sets the value of the given key.
+   */
+  void put(long key, int value) {
+    int slot = slot(key);
+    if (values[slot] == 0) {
+      // Keep the table at most half full.
+      if ((size + 1) * 2 > keys.length) {
+        resize(keys.length * 2);
+        slot = slot(key);
+      }
+      keys[slot] = key;
+      size++;
+    }
+    values[slot] = value + 1;
+  }
+
+  /**
+   * Returns the number of keys in this map.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Removes all of the keys from this map.
+   */
+  void clear() {
+    if (keys.length > maxRetainedCapacity) {
+      keys = new long[MIN_CAPACITY];
+      values = new int[MIN_CAPACITY];
+    } else if (size > 0) {
+      Arrays.fill(values, 0);
+    }
+    size = 0;
+  }
+
+  private int slot(long key) {
+    int mask = keys.length - 1;
+    int slot = hash(key) & mask;
+    while (values[slot] != 0 && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void resize(int capacity) {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    keys = new long[capacity];
+    values = new int[capacity];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldValues[i] != 0) {
+        int slot = slot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  /**
+   * Spreads the bits of a key, so that keys that only differ in their upper bits, or that are
+   * sequential, don't collide.
+   */
+  static int hash(long key) {
+    int hash = (int) (key ^ (key >>> 32)) * 0x9e3779b9;
+    return hash ^ (hash >>> 16);
+  }
+}
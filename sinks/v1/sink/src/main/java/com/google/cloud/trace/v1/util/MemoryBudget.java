@@ -0,0 +1,340 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * A byte budget shared by the scheduled buffering trace consumers of a process, which also reacts
+ * to the pressure on the Java heap.
+ *
+ * <p>{@link com.google.cloud.trace.v1.consumer.ScheduledBufferingTraceConsumer}s reserve the
+ * estimated size of the trace messages they buffer from
+ * the budget, and release it once the trace messages have been sent. The memory pressure is the
+ * worse of the fill ratio of the budget and, once {@link #startMonitoring()} has been called, the
+ * occupancy of the heap memory pools, mapped to {@link MemoryPressure} levels by three ratios.
+ *
+ * <p>Heap pressure is detected with {@link MemoryPoolMXBean} threshold notifications on the tenured
+ * heap pools, preferring the collection usage thresholds, which report the occupancy after garbage
+ * collection, so checking the pressure costs nothing while the heap is healthy. Once pressure was
+ * detected, the heap occupancy is checked again at most every 100 milliseconds until it recedes.
+ * The thresholds of the memory pools are process-wide, so monitoring only sets the thresholds that
+ * aren't set yet, and resets them when it stops. A threshold that other code set lower is left in
+ * place, since its notifications come early enough; while a threshold that other code set higher
+ * is in place, the heap occupancy is polled at most every 100 milliseconds instead. The operations
+ * on this class are thread-safe.
+ *
+ * @see MemoryPressure
+ */
+public class MemoryBudget {
+  private static final long RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final long maxBytes;
+  private final double flushEarlyRatio;
+  private final double dropPayloadsRatio;
+  private final double dropSpansRatio;
+  private final AtomicLong reservedBytes = new AtomicLong();
+
+  private volatile MemoryPressure heapPressure = MemoryPressure.NONE;
+  private volatile long nextCheckNanos;
+  private List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+  // The thresholds this budget set on memory pools that had none, which are reset when it stops.
+  private Map<MemoryPoolMXBean, Long> ownThresholds = new HashMap<MemoryPoolMXBean, Long>();
+  // Whether the heap is polled, because a memory pool has a higher threshold set by other code.
+  private volatile boolean pollHeap = false;
+  private NotificationListener listener;
+
+  /**
+   * Creates a memory budget that flushes early at 70%, drops payloads at 80% and drops spans at 90%
+   * of the budget or of the heap.
+   *
+   * @param maxBytes the number of bytes of trace messages that may be buffered in the process.
+   */
+  public MemoryBudget(long maxBytes) {
+    this(maxBytes, 0.7, 0.8, 0.9);
+  }
+
+  /**
+   * Creates a memory budget.
+   *
+   * @param maxBytes          the number of bytes of trace messages that may be buffered in the
+   *                          process.
+   * @param flushEarlyRatio   the fill ratio from which buffered trace messages are flushed early.
+   * @param dropPayloadsRatio the fill ratio from which payloads are dropped.
+   * @param dropSpansRatio    the fill ratio from which spans are dropped.
+   */
+  public MemoryBudget(long maxBytes, double flushEarlyRatio, double dropPayloadsRatio,
+      double dropSpansRatio) {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("Max bytes must be > 0.");
+    }
+    if (!(flushEarlyRatio > 0 && flushEarlyRatio <= dropPayloadsRatio
+        && dropPayloadsRatio <= dropSpansRatio && dropSpansRatio <= 1)) {
+      throw new IllegalArgumentException("Ratios must be increasing and in (0, 1].");
+    }
+    this.maxBytes = maxBytes;
+    this.flushEarlyRatio = flushEarlyRatio;
+    this.dropPayloadsRatio = dropPayloadsRatio;
+    this.dropSpansRatio = dropSpansRatio;
+  }
+
+  /**
+   * Reserves bytes from this budget, unless that would exceed the budget.
+   *
+   * @param bytes the number of bytes to reserve.
+   * @return true if the bytes were reserved.
+   */
+  public boolean tryReserve(long bytes) {
+    while (true) {
+      long reserved = reservedBytes.get();
+      if (reserved + bytes > maxBytes) {
+        return false;
+      }
+      if (reservedBytes.compareAndSet(reserved, reserved + bytes)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Reserves bytes from this budget even if that exceeds the budget, for trace messages that must
+   * not be dropped.
+   *
+   * @param bytes the number of bytes to reserve.
+   */
+  public void reserve(long bytes) {
+    reservedBytes.addAndGet(bytes);
+  }
+
+  /**
+   * Releases bytes that were reserved from this budget.
+   *
+   * @param bytes the number of bytes to release.
+   */
+  public void release(long bytes) {
+    reservedBytes.addAndGet(-bytes);
+  }
+
+  /**
+   * Returns the current memory pressure.
+   *
+   * @return the worse of the pressure on this budget and the pressure on the heap.
+   */
+  public MemoryPressure getPressure() {
+    MemoryPressure heap = heapPressure;
+    if ((heap != MemoryPressure.NONE || pollHeap) && System.nanoTime() - nextCheckNanos >= 0) {
+      heap = checkHeap();
+    }
+    MemoryPressure budget = pressure((double) reservedBytes.get() / maxBytes);
+    return budget.compareTo(heap) > 0 ? budget : heap;
+  }
+
+  /**
+   * Starts monitoring the heap memory pools, by listening for threshold notifications, and setting
+   * the thresholds that aren't set yet to the flush early ratio.
+   */
+  public synchronized void startMonitoring() {
+    if (listener != null) {
+      return;
+    }
+    List<MemoryPoolMXBean> monitored = new ArrayList<MemoryPoolMXBean>();
+    Map<MemoryPoolMXBean, Long> owned = new HashMap<MemoryPoolMXBean, Long>();
+    boolean poll = false;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (!isTenured(pool)) {
+        continue;
+      }
+      long threshold = (long) (pool.getUsage().getMax() * flushEarlyRatio);
+      long current = getThreshold(pool);
+      if (current == 0) {
+        setThreshold(pool, threshold);
+        owned.put(pool, threshold);
+      } else if (current > threshold) {
+        // Lowering the threshold would notify the code that set it early, so poll instead.
+        poll = true;
+      }
+      monitored.add(pool);
+    }
+    pools = monitored;
+    ownThresholds = owned;
+    pollHeap = poll;
+    listener = new NotificationListener() {
+      @Override
+      public void handleNotification(Notification notification, Object handback) {
+        String type = notification.getType();
+        if (MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(type)
+            || MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(type)) {
+          checkHeap();
+        }
+      }
+    };
+    ((NotificationEmitter) ManagementFactory.getMemoryMXBean())
+        .addNotificationListener(listener, null, null);
+    checkHeap();
+  }
+
+  /**
+   * Stops monitoring the heap memory pools, and resets the thresholds that monitoring set, unless
+   * other code changed them since.
+   */
+  public synchronized void stopMonitoring() {
+    if (listener == null) {
+      return;
+    }
+    try {
+      ((NotificationEmitter) ManagementFactory.getMemoryMXBean())
+          .removeNotificationListener(listener);
+    } catch (ListenerNotFoundException ex) {
+      // The listener is gone already.
+    }
+    listener = null;
+    for (Map.Entry<MemoryPoolMXBean, Long> entry : ownThresholds.entrySet()) {
+      if (getThreshold(entry.getKey()) == entry.getValue()) {
+        setThreshold(entry.getKey(), 0);
+      }
+    }
+    ownThresholds = new HashMap<MemoryPoolMXBean, Long>();
+    pools = new ArrayList<MemoryPoolMXBean>();
+    pollHeap = false;
+    heapPressure = MemoryPressure.NONE;
+  }
+
+  /**
+   * Returns the threshold of a memory pool that monitoring uses, or zero if it isn't set.
+   */
+  @VisibleForTesting
+  static long getThreshold(MemoryPoolMXBean pool) {
+    return pool.isCollectionUsageThresholdSupported()
+        ? pool.getCollectionUsageThreshold() : pool.getUsageThreshold();
+  }
+
+  @VisibleForTesting
+  static void setThreshold(MemoryPoolMXBean pool, long threshold) {
+    if (pool.isCollectionUsageThresholdSupported()) {
+      pool.setCollectionUsageThreshold(threshold);
+    } else {
+      pool.setUsageThreshold(threshold);
+    }
+  }
+
+  /**
+   * Returns the size of this budget.
+   *
+   * @return the number of bytes of trace messages that may be buffered in the process.
+   */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Returns the number of bytes reserved from this budget.
+   *
+   * @return the number of reserved bytes.
+   */
+  public long getReservedBytes() {
+    return reservedBytes.get();
+  }
+
+  /**
+   * Returns whether a memory pool holds the tenured objects of the heap. The eden and survivor
+   * spaces are routinely full between collections, so they don't indicate memory pressure; they
+   * don't support usage thresholds, and their names are checked for collectors that differ.
+   */
+  @VisibleForTesting
+  static boolean isTenured(MemoryPoolMXBean pool) {
+    if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported()
+        || pool.getUsage().getMax() <= 0) {
+      return false;
+    }
+    String name = pool.getName().toLowerCase();
+    return !name.contains("eden") && !name.contains("survivor");
+  }
+
+  /**
+   * Returns a trace message without the labels of its spans, which buffering trace consumers
+   * keep instead of the original trace message under {@link MemoryPressure#DROP_PAYLOADS}.
+   *
+   * @param trace the trace message.
+   * @return the trace message without span labels.
+   */
+  public static Trace dropPayloads(Trace trace) {
+    Trace.Builder builder = trace.toBuilder();
+    for (TraceSpan.Builder span : builder.getSpansBuilderList()) {
+      span.clearLabels();
+    }
+    return builder.build();
+  }
+
+  /**
+   * Returns trace messages without the labels of their spans.
+   *
+   * @param traces the trace messages.
+   * @return the trace messages without span labels.
+   * @see #dropPayloads(Trace)
+   */
+  public static Traces dropPayloads(Traces traces) {
+    Traces.Builder builder = traces.toBuilder();
+    for (int i = 0; i < builder.getTracesCount(); i++) {
+      builder.setTraces(i, dropPayloads(builder.getTraces(i)));
+    }
+    return builder.build();
+  }
+
+  private synchronized MemoryPressure checkHeap() {
+    double ratio = 0;
+    for (MemoryPoolMXBean pool : pools) {
+      MemoryUsage usage = pool.isCollectionUsageThresholdSupported()
+          ? pool.getCollectionUsage() : pool.getUsage();
+      if (usage != null && usage.getMax() > 0) {
+        ratio = Math.max(ratio, (double) usage.getUsed() / usage.getMax());
+      }
+    }
+    MemoryPressure pressure = pressure(ratio);
+    heapPressure = pressure;
+    nextCheckNanos = System.nanoTime() + RECHECK_NANOS;
+    return pressure;
+  }
+
+  private MemoryPressure pressure(double ratio) {
+    if (ratio >= dropSpansRatio) {
+      return MemoryPressure.DROP_SPANS;
+    }
+    if (ratio >= dropPayloadsRatio) {
+      return MemoryPressure.DROP_PAYLOADS;
+    }
+    if (ratio >= flushEarlyRatio) {
+      return MemoryPressure.FLUSH_EARLY;
+    }
+    return MemoryPressure.NONE;
+  }
+}
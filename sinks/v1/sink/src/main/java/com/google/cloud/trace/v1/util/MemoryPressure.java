@@ -0,0 +1,41 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+/**
+ * The levels of memory pressure a memory budget reports, in increasing order of severity. Scheduled
+ * buffering trace consumers degrade step by step as the pressure rises.
+ *
+ * @see MemoryBudget
+ */
+public enum MemoryPressure {
+  /**
+   * Trace messages are buffered normally.
+   */
+  NONE,
+  /**
+   * Buffered trace messages are flushed early, so that they don't stay in memory.
+   */
+  FLUSH_EARLY,
+  /**
+   * Buffered trace messages are flushed early, and the labels, including stack traces, of new
+   * trace messages are dropped.
+   */
+  DROP_PAYLOADS,
+  /**
+   * Buffered trace messages are flushed early, and new trace messages are dropped.
+   */
+  DROP_SPANS
+}
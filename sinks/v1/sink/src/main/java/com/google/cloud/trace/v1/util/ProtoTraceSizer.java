@@ -0,0 +1,155 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.devtools.cloudtrace.v1.TraceSpanOrBuilder;
+import com.google.devtools.cloudtrace.v1.Traces;
+import com.google.protobuf.CodedOutputStream;
+import java.util.Map;
+
+/**
+ * A class for sizing traces by their exact protocol buffer wire size.
+ *
+ * <p>The size of a trace is the number of bytes that the trace adds to a {@link Traces} message,
+ * including the field tag and length prefix of the trace. Unlike {@link RoughTraceSizer}, string
+ * fields are sized by their UTF-8 encoded length and numeric fields by their encoded length.
+ *
+ * @see Sizer
+ * @see Trace
+ */
+public class ProtoTraceSizer implements Sizer<Trace> {
+  // Field numbers of the Stackdriver Trace API v1 messages.
+  static final int TRACES_TRACES_FIELD = 1;
+  static final int TRACE_PROJECT_ID_FIELD = 1;
+  static final int TRACE_TRACE_ID_FIELD = 2;
+  static final int TRACE_SPANS_FIELD = 3;
+  private static final int SPAN_SPAN_ID_FIELD = 1;
+  private static final int SPAN_KIND_FIELD = 2;
+  private static final int SPAN_NAME_FIELD = 3;
+  private static final int SPAN_START_TIME_FIELD = 4;
+  private static final int SPAN_END_TIME_FIELD = 5;
+  private static final int SPAN_PARENT_SPAN_ID_FIELD = 6;
+  private static final int SPAN_LABELS_FIELD = 7;
+  private static final int MAP_KEY_FIELD = 1;
+  private static final int MAP_VALUE_FIELD = 2;
+
+  /**
+   * Sizes a trace.
+   *
+   * @param trace a trace to be sized.
+   * @return the number of bytes that the trace adds to a traces message.
+   */
+  @Override
+  public int size(Trace trace) {
+    return CodedOutputStream.computeMessageSize(TRACES_TRACES_FIELD, trace);
+  }
+
+  /**
+   * Returns the number of bytes that a trace with the given body size adds to a traces message.
+   *
+   * @param traceBodySize the serialized size of a trace.
+   * @return the size of the trace as a field of a traces message.
+   */
+  public static int traceFieldSize(int traceBodySize) {
+    return lengthDelimitedSize(TRACES_TRACES_FIELD, traceBodySize);
+  }
+
+  /**
+   * Returns the number of bytes of the project identifier and trace identifier fields of a trace.
+   *
+   * @param projectId the project identifier of the trace.
+   * @param traceId   the trace identifier of the trace.
+   * @return the serialized size of a trace without spans.
+   */
+  public static int traceHeaderSize(String projectId, String traceId) {
+    int size = 0;
+    if (!projectId.isEmpty()) {
+      size += CodedOutputStream.computeStringSize(TRACE_PROJECT_ID_FIELD, projectId);
+    }
+    if (!traceId.isEmpty()) {
+      size += CodedOutputStream.computeStringSize(TRACE_TRACE_ID_FIELD, traceId);
+    }
+    return size;
+  }
+
+  /**
+   * Returns the number of bytes that a span builder would add to a trace message once built.
+   */
+  static int spanFieldSize(TraceSpanOrBuilder span) {
+    return lengthDelimitedSize(TRACE_SPANS_FIELD, spanSize(span));
+  }
+
+  /**
+   * Returns the number of bytes that a span adds to a trace message.
+   *
+   * @param span a span.
+   * @return the size of the span as a field of a trace message.
+   */
+  public static int spanFieldSize(TraceSpan span) {
+    return CodedOutputStream.computeMessageSize(TRACE_SPANS_FIELD, span);
+  }
+
+  /**
+   * Returns the serialized size of a span, computed from the fields of the span, so that the size
+   * of a span builder can be found without building the span.
+   */
+  static int spanSize(TraceSpanOrBuilder span) {
+    int size = 0;
+    if (span.getSpanId() != 0) {
+      size += CodedOutputStream.computeFixed64Size(SPAN_SPAN_ID_FIELD, span.getSpanId());
+    }
+    if (span.getKindValue() != 0) {
+      size += CodedOutputStream.computeEnumSize(SPAN_KIND_FIELD, span.getKindValue());
+    }
+    String name = span.getName();
+    if (!name.isEmpty()) {
+      size += CodedOutputStream.computeStringSize(SPAN_NAME_FIELD, name);
+    }
+    if (span.hasStartTime()) {
+      size += CodedOutputStream.computeMessageSize(SPAN_START_TIME_FIELD, span.getStartTime());
+    }
+    if (span.hasEndTime()) {
+      size += CodedOutputStream.computeMessageSize(SPAN_END_TIME_FIELD, span.getEndTime());
+    }
+    if (span.getParentSpanId() != 0) {
+      size += CodedOutputStream.computeFixed64Size(
+          SPAN_PARENT_SPAN_ID_FIELD, span.getParentSpanId());
+    }
+    for (Map.Entry<String, String> label : span.getLabelsMap().entrySet()) {
+      size += labelFieldSize(label.getKey(), label.getValue());
+    }
+    return size;
+  }
+
+  /**
+   * Returns the number of bytes that a label adds to a span message.
+   */
+  static int labelFieldSize(String key, String value) {
+    // Map entries always contain both the key and the value fields.
+    int entrySize = CodedOutputStream.computeStringSize(MAP_KEY_FIELD, key)
+        + CodedOutputStream.computeStringSize(MAP_VALUE_FIELD, value);
+    return lengthDelimitedSize(SPAN_LABELS_FIELD, entrySize);
+  }
+
+  /**
+   * Returns the number of bytes of a length-delimited field with the given body size.
+   */
+  static int lengthDelimitedSize(int fieldNumber, int bodySize) {
+    return CodedOutputStream.computeTagSize(fieldNumber)
+        + CodedOutputStream.computeUInt32SizeNoTag(bodySize) + bodySize;
+  }
+}
@@ -0,0 +1,101 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of fixed-size direct byte buffers, or slabs, that buffered spans are stored in outside of
+ * the Java heap. Allocating direct byte buffers is expensive and their memory is only freed once
+ * the garbage collector finds them, so slabs are returned to the pool when the spans stored in them
+ * have been flushed. The pool keeps at most a maximum number of idle slabs; slabs released beyond
+ * that are left to the garbage collector. The operations on this pool are thread-safe.
+ *
+ * @see SlabTraceBuffer
+ */
+public class SlabPool {
+  private final int slabSize;
+  private final int maxPooledSlabs;
+  private final ConcurrentLinkedQueue<ByteBuffer> slabs = new ConcurrentLinkedQueue<ByteBuffer>();
+  private final AtomicInteger pooledSlabs = new AtomicInteger();
+
+  /**
+   * Creates a slab pool.
+   *
+   * @param slabSize       the size in bytes of the slabs of this pool.
+   * @param maxPooledSlabs the maximum number of idle slabs kept by this pool.
+   */
+  public SlabPool(int slabSize, int maxPooledSlabs) {
+    if (slabSize <= 0) {
+      throw new IllegalArgumentException("Slab size must be > 0.");
+    }
+    if (maxPooledSlabs < 0) {
+      throw new IllegalArgumentException("Max pooled slabs must be >= 0.");
+    }
+    this.slabSize = slabSize;
+    this.maxPooledSlabs = maxPooledSlabs;
+  }
+
+  /**
+   * Takes a slab from this pool, or allocates a new slab if the pool is empty.
+   *
+   * @return an empty direct byte buffer with the capacity of this pool's slabs.
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer slab = slabs.poll();
+    if (slab == null) {
+      return ByteBuffer.allocateDirect(slabSize);
+    }
+    pooledSlabs.decrementAndGet();
+    slab.clear();
+    return slab;
+  }
+
+  /**
+   * Returns a slab to this pool. Byte buffers of other capacities are ignored.
+   *
+   * @param slab a slab that is no longer used.
+   */
+  public void release(ByteBuffer slab) {
+    if (!slab.isDirect() || slab.capacity() != slabSize) {
+      return;
+    }
+    if (pooledSlabs.incrementAndGet() > maxPooledSlabs) {
+      pooledSlabs.decrementAndGet();
+      return;
+    }
+    slabs.offer(slab);
+  }
+
+  /**
+   * Returns the size in bytes of the slabs of this pool.
+   *
+   * @return the slab size.
+   */
+  public int getSlabSize() {
+    return slabSize;
+  }
+
+  /**
+   * Returns the number of idle slabs in this pool.
+   *
+   * @return the number of pooled slabs.
+   */
+  public int getPooledSlabCount() {
+    return pooledSlabs.get();
+  }
+}
@@ -0,0 +1,118 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A span buffer that stores its trace span messages in the slabs of a slab trace buffer. The span
+ * addresses and sizes of the stored spans are kept in arrays, indexed by an open-addressing hash
+ * map of span identifiers, so that buffering a span doesn't allocate any objects on the heap
+ * beyond the occasional growth of the arrays.
+ *
+ * <p>Combining a trace span message with a stored span decodes the stored span on the heap, and
+ * appends the combined span to the slabs, leaving the previous copy unused until the trace buffer
+ * is released. A trace sink that sends several trace span messages for each span, such as a start,
+ * annotations and an end, therefore uses several times the size of the combined spans in slab
+ * storage; a buffer of such spans should be flushed, and its slabs released, accordingly.
+ *
+ * @see SlabTraceBuffer
+ */
+class SlabSpanBuffer implements SpanStore {
+  private static final int INITIAL_CAPACITY = 4;
+  private static final int MAX_RETAINED_SPANS = 256;
+
+  private final SlabTraceBuffer storage;
+  private final LongIntHashMap spanIndex = new LongIntHashMap(MAX_RETAINED_SPANS * 2);
+  private long[] addresses = new long[INITIAL_CAPACITY];
+  private int[] sizes = new int[INITIAL_CAPACITY];
+  private int spanCount;
+  private int serializedSize;
+
+  SlabSpanBuffer(SlabTraceBuffer storage) {
+    this.storage = storage;
+  }
+
+  @Override
+  public int put(TraceSpan span) {
+    long spanId = span.getSpanId();
+    int position = spanIndex.get(spanId);
+    int sizeChange;
+    if (position < 0) {
+      if (spanCount == addresses.length) {
+        addresses = Arrays.copyOf(addresses, spanCount * 2);
+        sizes = Arrays.copyOf(sizes, spanCount * 2);
+      }
+      position = spanCount++;
+      store(position, span);
+      spanIndex.put(spanId, position);
+      sizeChange = ProtoTraceSizer.spanFieldSize(span);
+    } else {
+      TraceSpan previous = storage.read(addresses[position], sizes[position]);
+      TraceSpan merged = previous.toBuilder().mergeFrom(span).build();
+      store(position, merged);
+      sizeChange = ProtoTraceSizer.spanFieldSize(merged) - ProtoTraceSizer.spanFieldSize(previous);
+    }
+    serializedSize += sizeChange;
+    return sizeChange;
+  }
+
+  /**
+   * Decodes builders for all of the trace span messages contained in this span buffer, in the
+   * order in which they were first buffered.
+   */
+  @Override
+  public Iterable<TraceSpan.Builder> getSpans() {
+    List<TraceSpan.Builder> spans = new ArrayList<TraceSpan.Builder>(spanCount);
+    for (int i = 0; i < spanCount; i++) {
+      spans.add(storage.read(addresses[i], sizes[i]).toBuilder());
+    }
+    return spans;
+  }
+
+  @Override
+  public boolean contains(long spanId) {
+    return spanIndex.get(spanId) >= 0;
+  }
+
+  @Override
+  public int getSpanCount() {
+    return spanCount;
+  }
+
+  @Override
+  public int getSerializedSize() {
+    return serializedSize;
+  }
+
+  @Override
+  public void clear() {
+    if (addresses.length > MAX_RETAINED_SPANS) {
+      addresses = new long[INITIAL_CAPACITY];
+      sizes = new int[INITIAL_CAPACITY];
+    }
+    spanIndex.clear();
+    spanCount = 0;
+    serializedSize = 0;
+  }
+
+  private void store(int position, TraceSpan span) {
+    addresses[position] = storage.write(span);
+    sizes[position] = span.getSerializedSize();
+  }
+}
@@ -0,0 +1,154 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A trace buffer that stores the spans of its trace messages in direct byte buffers outside of the
+ * Java heap. Each span is stored in its protocol buffer wire format in a slab taken from a slab
+ * pool, and is only decoded again when the trace messages are read, so buffered spans don't add to
+ * the work of the garbage collector. Only a small index of the spans of each trace is kept on the
+ * heap.
+ *
+ * <p>Storage is append-only: when a span is combined with another span that has the same span
+ * identifier, the combined span is stored again, and the storage of spans that are combined or
+ * dropped is only reclaimed when the trace buffer is released. Spans larger than a slab are
+ * stored in their own direct byte buffer, which isn't returned to the pool.
+ *
+ * @see SlabPool
+ * @see TraceBuffer
+ */
+public class SlabTraceBuffer extends TraceBuffer {
+  private final SlabPool pool;
+  private final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+  // The slab that spans are appended to, and its index in the list of slabs.
+  private ByteBuffer slab;
+  private int slabIndex;
+  private byte[] scratch = new byte[256];
+
+  /**
+   * Creates a slab trace buffer without limits.
+   *
+   * @param pool the slab pool that provides the storage of this trace buffer.
+   */
+  public SlabTraceBuffer(SlabPool pool) {
+    this(BufferLimits.unlimited(), pool);
+  }
+
+  /**
+   * Creates a slab trace buffer.
+   *
+   * @param limits the limits of this trace buffer.
+   * @param pool   the slab pool that provides the storage of this trace buffer.
+   */
+  public SlabTraceBuffer(BufferLimits limits, SlabPool pool) {
+    super(limits);
+    this.pool = pool;
+  }
+
+  /**
+   * Releases the storage of this trace buffer, returning its slabs to the slab pool. The trace
+   * buffer is empty afterwards.
+   */
+  @Override
+  public void release() {
+    super.release();
+    for (ByteBuffer released : slabs) {
+      pool.release(released);
+    }
+    slabs.clear();
+    slab = null;
+  }
+
+  /**
+   * Returns the number of direct byte buffers that store the spans of this trace buffer.
+   *
+   * @return the number of slabs.
+   */
+  public int getSlabCount() {
+    return slabs.size();
+  }
+
+  @Override
+  SpanStore newSpanBuffer() {
+    return new SlabSpanBuffer(this);
+  }
+
+  /**
+   * Stores a span, and returns the address of the stored span. The address holds the index of the
+   * slab in its upper 32 bits and the offset of the span in the slab in its lower 32 bits.
+   */
+  long write(TraceSpan span) {
+    int size = span.getSerializedSize();
+    ByteBuffer target;
+    int targetIndex;
+    if (size > pool.getSlabSize()) {
+      target = ByteBuffer.allocateDirect(size);
+      targetIndex = slabs.size();
+      slabs.add(target);
+    } else {
+      if (slab == null || slab.remaining() < size) {
+        slab = pool.acquire();
+        slabIndex = slabs.size();
+        slabs.add(slab);
+      }
+      target = slab;
+      targetIndex = slabIndex;
+    }
+    int offset = target.position();
+    byte[] bytes = scratch(size);
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes, 0, size);
+    try {
+      span.writeTo(out);
+    } catch (IOException ex) {
+      throw new IllegalStateException("Failed to store span", ex);
+    }
+    target.put(bytes, 0, size);
+    return ((long) targetIndex << 32) | offset;
+  }
+
+  /**
+   * Decodes the span of the given size that is stored at the given address.
+   */
+  TraceSpan read(long address, int size) {
+    ByteBuffer source = slabs.get((int) (address >>> 32)).duplicate();
+    source.position((int) address);
+    byte[] bytes = scratch(size);
+    source.get(bytes, 0, size);
+    try {
+      return TraceSpan.parser().parseFrom(bytes, 0, size);
+    } catch (InvalidProtocolBufferException ex) {
+      throw new IllegalStateException("Failed to decode stored span", ex);
+    }
+  }
+
+  /**
+   * Returns a scratch array of at least the given size. Spans are encoded and decoded through a
+   * heap array that is reused, and copied to and from the slabs in bulk, rather than encoded
+   * directly into the slabs, which relies on unsafe memory access.
+   */
+  private byte[] scratch(int size) {
+    if (scratch.length < size) {
+      scratch = new byte[Math.max(size, scratch.length * 2)];
+    }
+    return scratch;
+  }
+}
@@ -15,47 +15,127 @@
 package com.google.cloud.trace.v1.util;
 
 import com.google.devtools.cloudtrace.v1.TraceSpan;
-import java.util.HashMap;
+import java.util.Arrays;
 
 /**
  * A buffer for trace span messages that combines messages for the same span.
  *
+ * <p>Spans are indexed by an open-addressing hash map of their primitive span identifiers, and
+ * their builders are kept in an array in the order in which the spans were first buffered. A span
+ * buffer can be cleared and reused, which recycles its builders.
+ *
  * @see Iterable
  * @see TraceSpan
  * @see TraceSpan.Builder
  */
-public class SpanBuffer {
-  private final HashMap<Long, TraceSpan.Builder> spanMap;
+public class SpanBuffer implements SpanStore {
+  private static final int INITIAL_CAPACITY = 4;
+  // The most spans whose storage is kept when a span buffer is cleared, so that a single large
+  // trace doesn't pin memory.
+  private static final int MAX_RETAINED_SPANS = 256;
+
+  private final LongIntHashMap spanIndex;
+  private TraceSpan.Builder[] spans;
+  private int spanCount;
+  private int serializedSize;
 
   /**
    * Creates a span buffer.
    */
   public SpanBuffer() {
-    this.spanMap = new HashMap<Long, TraceSpan.Builder>();
+    this.spanIndex = new LongIntHashMap(MAX_RETAINED_SPANS * 2);
+    this.spans = new TraceSpan.Builder[INITIAL_CAPACITY];
+    this.spanCount = 0;
+    this.serializedSize = 0;
   }
 
   /**
    * Adds a trace span message to this span buffer.
    *
    * @param span the trace span message to add to this buffer.
+   * @return the change in the serialized size of this span buffer.
    */
-  public void put(TraceSpan span) {
+  public int put(TraceSpan span) {
     long spanId = span.getSpanId();
-    TraceSpan.Builder builder = spanMap.get(spanId);
-    if (builder == null) {
-      spanMap.put(spanId, span.toBuilder());
+    int position = spanIndex.get(spanId);
+    int sizeChange;
+    if (position < 0) {
+      if (spanCount == spans.length) {
+        spans = Arrays.copyOf(spans, spans.length * 2);
+      }
+      position = spanCount++;
+      TraceSpan.Builder builder = spans[position];
+      if (builder == null) {
+        spans[position] = span.toBuilder();
+      } else {
+        builder.mergeFrom(span);
+      }
+      spanIndex.put(spanId, position);
+      sizeChange = ProtoTraceSizer.spanFieldSize(span);
     } else {
-      spanMap.put(spanId, builder.mergeFrom(span));
+      TraceSpan.Builder builder = spans[position];
+      int previousSize = ProtoTraceSizer.spanFieldSize(builder);
+      builder.mergeFrom(span);
+      sizeChange = ProtoTraceSizer.spanFieldSize(builder) - previousSize;
     }
+    serializedSize += sizeChange;
+    return sizeChange;
   }
 
   /**
-   * Gets builders for all of the trace span messages contained in this span buffer.
+   * Gets builders for all of the trace span messages contained in this span buffer. The builders
+   * are reused once the span buffer is cleared.
    *
    * @return an iterable containing builders for all of the trace span messages contained in this
    * span buffer.
    */
   public Iterable<TraceSpan.Builder> getSpans() {
-    return spanMap.values();
+    return Arrays.asList(spans).subList(0, spanCount);
+  }
+
+  /**
+   * Returns true if this span buffer contains a trace span message with the given span identifier.
+   *
+   * @param spanId the span identifier.
+   * @return true if the span buffer contains the span.
+   */
+  public boolean contains(long spanId) {
+    return spanIndex.get(spanId) >= 0;
+  }
+
+  /**
+   * Returns the number of trace span messages in this span buffer.
+   *
+   * @return the number of spans.
+   */
+  public int getSpanCount() {
+    return spanCount;
+  }
+
+  /**
+   * Returns the number of bytes that the trace span messages in this span buffer add to a trace
+   * message when serialized.
+   *
+   * @return the serialized size of the trace span messages in this span buffer.
+   */
+  public int getSerializedSize() {
+    return serializedSize;
+  }
+
+  /**
+   * Removes all of the trace span messages from this span buffer, keeping their builders for
+   * reuse.
+   */
+  public void clear() {
+    if (spans.length > MAX_RETAINED_SPANS) {
+      spans = new TraceSpan.Builder[INITIAL_CAPACITY];
+    } else {
+      for (int i = 0; i < spanCount; i++) {
+        spans[i].clear();
+      }
+    }
+    spanIndex.clear();
+    spanCount = 0;
+    serializedSize = 0;
   }
 }
@@ -0,0 +1,71 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+
+/**
+ * An interface for the storage of the trace span messages of a trace in a trace buffer, which
+ * combines messages for the same span.
+ *
+ * @see SlabSpanBuffer
+ * @see SpanBuffer
+ * @see TraceBuffer
+ */
+interface SpanStore {
+  /**
+   * Adds a trace span message to this span store.
+   *
+   * @param span the trace span message to add to this span store.
+   * @return the change in the serialized size of this span store.
+   */
+  int put(TraceSpan span);
+
+  /**
+   * Gets builders for all of the trace span messages contained in this span store, in the order in
+   * which they were first stored.
+   *
+   * @return an iterable containing builders for all of the trace span messages.
+   */
+  Iterable<TraceSpan.Builder> getSpans();
+
+  /**
+   * Returns true if this span store contains a trace span message with the given span identifier.
+   *
+   * @param spanId the span identifier.
+   * @return true if the span store contains the span.
+   */
+  boolean contains(long spanId);
+
+  /**
+   * Returns the number of trace span messages in this span store.
+   *
+   * @return the number of spans.
+   */
+  int getSpanCount();
+
+  /**
+   * Returns the number of bytes that the trace span messages in this span store add to a trace
+   * message when serialized.
+   *
+   * @return the serialized size of the trace span messages.
+   */
+  int getSerializedSize();
+
+  /**
+   * Removes all of the trace span messages from this span store.
+   */
+  void clear();
+}
@@ -0,0 +1,105 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A timing wheel that tracks deadlines of keys in ticks. The wheel has one bucket per tick up to
+ * its horizon, so scheduling a key and advancing the wheel by one tick take constant time no
+ * matter how many keys are scheduled.
+ *
+ * <p>Keys can't be cancelled. Callers that stop tracking a key before its deadline should
+ * remember the tick that {@link #schedule} returned for it, and ignore the key when it expires at
+ * a different tick.
+ *
+ * @param <K> the type of the keys.
+ */
+public class TimingWheel<K> {
+  private final List<List<K>> buckets;
+  private long tick;
+
+  /**
+   * Creates a timing wheel.
+   *
+   * @param horizon the largest number of ticks after which a key can be scheduled to expire.
+   */
+  public TimingWheel(int horizon) {
+    if (horizon <= 0) {
+      throw new IllegalArgumentException("Horizon must be > 0.");
+    }
+    this.buckets = new ArrayList<List<K>>(horizon + 1);
+    for (int i = 0; i <= horizon; i++) {
+      buckets.add(new ArrayList<K>());
+    }
+    this.tick = 0;
+  }
+
+  /**
+   * Schedules a key to expire after the given number of ticks.
+   *
+   * @param key   the key.
+   * @param ticks the number of ticks after which the key expires, at most the horizon.
+   * @return the tick at which the key expires.
+   */
+  public long schedule(K key, int ticks) {
+    if (ticks <= 0 || ticks >= buckets.size()) {
+      throw new IllegalArgumentException("Ticks must be > 0 and <= horizon.");
+    }
+    long deadline = tick + ticks;
+    bucket(deadline).add(key);
+    return deadline;
+  }
+
+  /**
+   * Advances this timing wheel by one tick.
+   *
+   * @return the keys that expire at the new tick.
+   */
+  public List<K> advance() {
+    tick++;
+    List<K> bucket = bucket(tick);
+    if (bucket.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<K> expired = new ArrayList<K>(bucket);
+    bucket.clear();
+    return expired;
+  }
+
+  /**
+   * Returns the current tick of this timing wheel.
+   *
+   * @return the number of ticks this timing wheel was advanced.
+   */
+  public long getTick() {
+    return tick;
+  }
+
+  /**
+   * Removes all of the scheduled keys from this timing wheel.
+   */
+  public void clear() {
+    for (List<K> bucket : buckets) {
+      bucket.clear();
+    }
+  }
+
+  private List<K> bucket(long tick) {
+    return buckets.get((int) (tick % buckets.size()));
+  }
+}
@@ -17,42 +17,137 @@ package com.google.cloud.trace.v1.util;
 import com.google.devtools.cloudtrace.v1.Trace;
 import com.google.devtools.cloudtrace.v1.TraceSpan;
 import com.google.devtools.cloudtrace.v1.Traces;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * A class that buffers trace messages. Trace messages added to this buffer are combined with
  * existing trace messages when they contain the same trace identifiers, by combining the spans of
- * the matching trace messages.
+ * the matching trace messages. The exact serialized size of the buffered trace messages is kept
+ * up to date as trace messages are added.
  *
+ * <p>A trace buffer may be given buffer limits. A trace message that would make the buffer exceed
+ * its maximum number of spans or maximum serialized size is handled by the load shedding policy of
+ * the limits, and the number of spans that are dropped is returned to the caller. New spans past
+ * the caps of their trace are dropped, and the first span of a trace that lost spans this way is
+ * marked with a {@link #TRUNCATED_LABEL} label.
+ *
+ * <p>Traces are indexed by an open-addressing hash table. Trace identifiers in the 32 hexadecimal
+ * digit format of the API are compared as two longs, so looking up a trace doesn't allocate a key.
+ * Once the trace messages of a trace buffer have been read, {@link #release()} empties the buffer
+ * and keeps its storage and span buffers, so that a trace buffer that is reused across flushes
+ * allocates little beyond the builders of new spans.
+ *
+ * @see BufferLimits
  * @see Traces
  * @see Trace
  */
 public class TraceBuffer {
-  private final HashMap<TraceKey, SpanBuffer> traceMap;
+  /**
+   * The label key that marks a trace whose spans exceeded the caps of a trace buffer.
+   */
+  public static final String TRUNCATED_LABEL = "g.co/trace/truncated";
+
+  private static final int INITIAL_CAPACITY = 16;
+  // The most traces whose storage is kept when a trace buffer is released, so that a peak in
+  // traffic doesn't pin memory.
+  private static final int MAX_RETAINED_TRACES = 4096;
+  private static final int REMOVED_SLOT = -1;
+
+  private final BufferLimits limits;
+  // Traces are kept in the order in which they were first buffered, so the oldest traces can be
+  // dropped first. Removed traces leave entries with a null trace identifier, which are compacted
+  // away when the entries run out.
+  private String[] projectIds;
+  private String[] traceIds;
+  private long[] traceIdHighs;
+  private long[] traceIdLows;
+  private SpanStore[] spanBuffers;
+  private long[] firstSpanIds;
+  private boolean[] truncated;
+  private int entryCount;
+  private int traceCount;
+  // Positions of the entries plus one, zero for empty slots and REMOVED_SLOT for removed entries.
+  private int[] slots;
+  private int serializedSize;
+  private int spanCount;
 
   /**
-   * Creates a trace buffer.
+   * Creates a trace buffer without limits.
    */
   public TraceBuffer() {
-    this.traceMap = new HashMap<TraceKey, SpanBuffer>();
+    this(BufferLimits.unlimited());
+  }
+
+  /**
+   * Creates a trace buffer.
+   *
+   * @param limits the limits of this trace buffer.
+   */
+  public TraceBuffer(BufferLimits limits) {
+    this.limits = limits;
+    allocate(INITIAL_CAPACITY);
+    this.serializedSize = 0;
+    this.spanCount = 0;
   }
 
   /**
-   * Adds a trace message to this trace buffer.
+   * Adds a trace message to this trace buffer, shedding load if the trace message would exceed the
+   * limits of this trace buffer.
    *
    * @param trace a trace message to add this trace buffer.
+   * @return the number of trace span messages that were dropped.
    */
-  public void put(Trace trace) {
-    TraceKey traceKey = new TraceKey(trace.getProjectId(), trace.getTraceId());
-    SpanBuffer spans = traceMap.get(traceKey);
-    if (spans == null) {
-      spans = new SpanBuffer();
-      traceMap.put(traceKey, spans);
+  public int put(Trace trace) {
+    if (!limits.hasTraceLimits()) {
+      return shed(trace);
     }
-    for (TraceSpan span : trace.getSpansList()) {
-      spans.put(span);
+    Trace capped = cap(trace);
+    int truncatedSpans = trace.getSpansCount() - capped.getSpansCount();
+    int dropped = capped.getSpansCount() > 0 ? shed(capped) : 0;
+    if (truncatedSpans > 0) {
+      markTruncated(trace.getProjectId(), trace.getTraceId());
+    }
+    return truncatedSpans + dropped;
+  }
+
+  private int shed(Trace trace) {
+    if (limits == BufferLimits.unlimited() || fits(trace)) {
+      add(trace);
+      return 0;
+    }
+    switch (limits.getPolicy()) {
+      case DROP_OLDEST_TRACES:
+        return dropOldestTraces(trace);
+      case DROP_PAYLOADS:
+        Trace withoutPayloads = MemoryBudget.dropPayloads(trace);
+        if (fits(withoutPayloads)) {
+          add(withoutPayloads);
+          return 0;
+        }
+        return trace.getSpansCount();
+      case DROP_NEWEST:
+      default:
+        return trace.getSpansCount();
+    }
+  }
+
+  /**
+   * Removes the trace message with the given trace identifiers from this trace buffer.
+   *
+   * @param projectId the project identifier of the trace message.
+   * @param traceId   the trace identifier of the trace message.
+   * @return the removed trace message, or null if this trace buffer doesn't contain it.
+   */
+  public Trace removeTrace(String projectId, String traceId) {
+    int position = position(projectId, traceId);
+    if (position < 0) {
+      return null;
     }
+    Trace trace = toTrace(position);
+    remove(position);
+    return trace;
   }
 
   /**
@@ -62,22 +157,361 @@ public class TraceBuffer {
    */
   public Traces getTraces() {
     Traces.Builder tracesBuilder = Traces.newBuilder();
-    for (Map.Entry<TraceKey, SpanBuffer> entry : traceMap.entrySet()) {
-      Trace.Builder traceBuilder = Trace.newBuilder()
-          .setProjectId(entry.getKey().getProjectId())
-          .setTraceId(entry.getKey().getTraceId());
-      for (TraceSpan.Builder spanBuilder : entry.getValue().getSpans()) {
-        traceBuilder.addSpans(spanBuilder);
+    for (int i = 0; i < entryCount; i++) {
+      if (traceIds[i] != null) {
+        tracesBuilder.addTraces(toTrace(i));
       }
-      tracesBuilder.addTraces(traceBuilder);
     }
     return tracesBuilder.build();
   }
 
+  /**
+   * Releases the storage of this trace buffer once its trace messages have been read. The trace
+   * buffer is empty afterwards, and keeps its storage for reuse.
+   */
+  public void release() {
+    if (projectIds.length > MAX_RETAINED_TRACES) {
+      allocate(INITIAL_CAPACITY);
+    } else {
+      for (int i = 0; i < entryCount; i++) {
+        if (traceIds[i] != null) {
+          spanBuffers[i].clear();
+        }
+      }
+      Arrays.fill(projectIds, 0, entryCount, null);
+      Arrays.fill(traceIds, 0, entryCount, null);
+      Arrays.fill(slots, 0);
+    }
+    entryCount = 0;
+    traceCount = 0;
+    serializedSize = 0;
+    spanCount = 0;
+  }
+
+  /**
+   * Returns the serialized size of the traces message that {@link #getTraces()} would return.
+   *
+   * @return the number of bytes of the buffered trace messages when serialized.
+   */
+  public int getSerializedSize() {
+    return serializedSize;
+  }
+
+  /**
+   * Returns the number of trace span messages in this trace buffer.
+   *
+   * @return the number of spans.
+   */
+  public int getSpanCount() {
+    return spanCount;
+  }
+
   /**
    * Returns true if the TraceBuffer is empty.
    */
   public boolean isEmpty() {
-    return traceMap.isEmpty();
+    return traceCount == 0;
+  }
+
+  /**
+   * Returns true if adding a trace message can't make this buffer exceed its limits. The increase
+   * in serialized size is bounded by the serialized size of the trace message.
+   */
+  private boolean fits(Trace trace) {
+    int position = position(trace.getProjectId(), trace.getTraceId());
+    SpanStore spans = position < 0 ? null : spanBuffers[position];
+    int newSpans = 0;
+    for (TraceSpan span : trace.getSpansList()) {
+      if (spans == null || !spans.contains(span.getSpanId())) {
+        newSpans++;
+      }
+    }
+    return (long) spanCount + newSpans <= limits.getMaxSpans()
+        && (long) serializedSize + ProtoTraceSizer.traceFieldSize(trace.getSerializedSize())
+            <= limits.getMaxBytes();
+  }
+
+  /**
+   * Returns the trace message without the new spans that would exceed the caps of its trace.
+   * Spans that are already buffered are always kept, since they only update buffered spans.
+   */
+  private Trace cap(Trace trace) {
+    int position = position(trace.getProjectId(), trace.getTraceId());
+    SpanStore spans = position < 0 ? null : spanBuffers[position];
+    int count = spans == null ? 0 : spans.getSpanCount();
+    long bytes = spans == null ? 0 : spans.getSerializedSize();
+    List<TraceSpan> kept = null;
+    for (int i = 0; i < trace.getSpansCount(); i++) {
+      TraceSpan span = trace.getSpans(i);
+      boolean keep = spans != null && spans.contains(span.getSpanId());
+      if (!keep) {
+        int size = ProtoTraceSizer.spanFieldSize(span);
+        if (count < limits.getMaxSpansPerTrace() && bytes + size <= limits.getMaxBytesPerTrace()) {
+          count++;
+          bytes += size;
+          keep = true;
+        }
+      }
+      if (!keep && kept == null) {
+        kept = new ArrayList<TraceSpan>(trace.getSpansList().subList(0, i));
+      } else if (keep && kept != null) {
+        kept.add(span);
+      }
+    }
+    if (kept == null) {
+      return trace;
+    }
+    return trace.toBuilder().clearSpans().addAllSpans(kept).build();
+  }
+
+  /**
+   * Marks the buffered trace with the given identifiers as truncated, by adding a label to its
+   * first span, unless it is marked already or isn't buffered.
+   */
+  private void markTruncated(String projectId, String traceId) {
+    int position = position(projectId, traceId);
+    if (position < 0 || truncated[position]) {
+      return;
+    }
+    truncated[position] = true;
+    add(Trace.newBuilder()
+        .setProjectId(projectId)
+        .setTraceId(traceId)
+        .addSpans(TraceSpan.newBuilder()
+            .setSpanId(firstSpanIds[position])
+            .putLabels(TRUNCATED_LABEL, "true"))
+        .build());
+  }
+
+  private boolean exceedsLimits() {
+    return spanCount > limits.getMaxSpans() || serializedSize > limits.getMaxBytes();
+  }
+
+  private int dropOldestTraces(Trace trace) {
+    int position = add(trace);
+    int dropped = 0;
+    for (int i = 0; exceedsLimits() && i < entryCount; i++) {
+      if (i != position && traceIds[i] != null) {
+        dropped += remove(i);
+      }
+    }
+    if (exceedsLimits()) {
+      // The trace doesn't fit even on its own.
+      dropped += remove(position);
+    }
+    return dropped;
+  }
+
+  /**
+   * Creates the span store that holds the spans of a trace that isn't buffered yet. Subclasses in
+   * this package may store spans differently by returning their own span stores.
+   *
+   * @return a new, empty span store.
+   */
+  SpanStore newSpanBuffer() {
+    return new SpanBuffer();
+  }
+
+  private Trace toTrace(int position) {
+    Trace.Builder traceBuilder = Trace.newBuilder()
+        .setProjectId(projectIds[position])
+        .setTraceId(traceIds[position]);
+    for (TraceSpan.Builder spanBuilder : spanBuffers[position].getSpans()) {
+      traceBuilder.addSpans(spanBuilder);
+    }
+    return traceBuilder.build();
+  }
+
+  private int remove(int position) {
+    SpanStore spans = spanBuffers[position];
+    int removedSpans = spans.getSpanCount();
+    serializedSize -= ProtoTraceSizer.traceFieldSize(
+        ProtoTraceSizer.traceHeaderSize(projectIds[position], traceIds[position])
+            + spans.getSerializedSize());
+    spanCount -= removedSpans;
+    slots[slot(position)] = REMOVED_SLOT;
+    spans.clear();
+    projectIds[position] = null;
+    traceIds[position] = null;
+    traceCount--;
+    return removedSpans;
+  }
+
+  private int add(Trace trace) {
+    String projectId = trace.getProjectId();
+    String traceId = trace.getTraceId();
+    int position = position(projectId, traceId);
+    int headerSize = ProtoTraceSizer.traceHeaderSize(projectId, traceId);
+    if (position < 0) {
+      position = addEntry(projectId, traceId);
+    } else {
+      serializedSize -= ProtoTraceSizer.traceFieldSize(
+          headerSize + spanBuffers[position].getSerializedSize());
+    }
+    SpanStore spans = spanBuffers[position];
+    if (spans.getSpanCount() == 0 && trace.getSpansCount() > 0) {
+      firstSpanIds[position] = trace.getSpans(0).getSpanId();
+    }
+    spanCount -= spans.getSpanCount();
+    for (TraceSpan span : trace.getSpansList()) {
+      spans.put(span);
+    }
+    spanCount += spans.getSpanCount();
+    serializedSize += ProtoTraceSizer.traceFieldSize(headerSize + spans.getSerializedSize());
+    return position;
+  }
+
+  private int addEntry(String projectId, String traceId) {
+    if (entryCount == projectIds.length) {
+      // Compact the entries of removed traces if that frees enough entries, otherwise grow.
+      rehash(traceCount * 2 <= projectIds.length ? projectIds.length : projectIds.length * 2);
+    }
+    int position = entryCount++;
+    projectIds[position] = projectId;
+    traceIds[position] = traceId;
+    if (isApiTraceId(traceId)) {
+      traceIdHighs[position] = parseHex(traceId, 0);
+      traceIdLows[position] = parseHex(traceId, 16);
+    } else {
+      traceIdHighs[position] = 0;
+      traceIdLows[position] = 0;
+    }
+    if (spanBuffers[position] == null) {
+      spanBuffers[position] = newSpanBuffer();
+    }
+    truncated[position] = false;
+    insert(position);
+    traceCount++;
+    return position;
+  }
+
+  /**
+   * Returns the position of the entry of the given trace, or -1 if the trace isn't buffered.
+   */
+  private int position(String projectId, String traceId) {
+    long high = 0;
+    long low = 0;
+    if (isApiTraceId(traceId)) {
+      high = parseHex(traceId, 0);
+      low = parseHex(traceId, 16);
+    }
+    int mask = slots.length - 1;
+    int slot = hash(projectId, traceId, high, low) & mask;
+    while (slots[slot] != 0) {
+      int position = slots[slot] - 1;
+      if (position >= 0
+          && traceIdHighs[position] == high
+          && traceIdLows[position] == low
+          // Trace identifiers that aren't in the API format are compared as strings.
+          && ((high | low) != 0 || traceId.equals(traceIds[position]))
+          && projectId.equals(projectIds[position])) {
+        return position;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the slot of the entry at the given position.
+   */
+  private int slot(int position) {
+    int mask = slots.length - 1;
+    int slot = hash(position) & mask;
+    while (slots[slot] != position + 1) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void insert(int position) {
+    int mask = slots.length - 1;
+    int slot = hash(position) & mask;
+    while (slots[slot] > 0) {
+      slot = (slot + 1) & mask;
+    }
+    slots[slot] = position + 1;
+  }
+
+  private int hash(int position) {
+    return hash(projectIds[position], traceIds[position], traceIdHighs[position],
+        traceIdLows[position]);
+  }
+
+  private static int hash(String projectId, String traceId, long high, long low) {
+    long key = (high | low) != 0 ? high * 31 + low : traceId.hashCode();
+    return LongIntHashMap.hash(key * 31 + projectId.hashCode());
+  }
+
+  private void allocate(int capacity) {
+    projectIds = new String[capacity];
+    traceIds = new String[capacity];
+    traceIdHighs = new long[capacity];
+    traceIdLows = new long[capacity];
+    spanBuffers = new SpanStore[capacity];
+    firstSpanIds = new long[capacity];
+    truncated = new boolean[capacity];
+    // Keep the hash table at most half full, counting the slots of removed entries.
+    slots = new int[capacity * 2];
+  }
+
+  /**
+   * Moves the entries of the buffered traces to the front of entry arrays of the given capacity,
+   * in the order in which they were buffered, and rebuilds the hash table.
+   */
+  private void rehash(int capacity) {
+    String[] oldProjectIds = projectIds;
+    String[] oldTraceIds = traceIds;
+    long[] oldTraceIdHighs = traceIdHighs;
+    long[] oldTraceIdLows = traceIdLows;
+    SpanStore[] oldSpanBuffers = spanBuffers;
+    long[] oldFirstSpanIds = firstSpanIds;
+    boolean[] oldTruncated = truncated;
+    if (capacity == projectIds.length) {
+      Arrays.fill(slots, 0);
+    } else {
+      allocate(capacity);
+    }
+    int count = 0;
+    for (int i = 0; i < entryCount; i++) {
+      SpanStore spans = oldSpanBuffers[i];
+      if (oldTraceIds[i] != null) {
+        projectIds[count] = oldProjectIds[i];
+        traceIds[count] = oldTraceIds[i];
+        traceIdHighs[count] = oldTraceIdHighs[i];
+        traceIdLows[count] = oldTraceIdLows[i];
+        firstSpanIds[count] = oldFirstSpanIds[i];
+        truncated[count] = oldTruncated[i];
+        // Swap the span buffers, so that the span buffers of removed traces are kept for reuse.
+        oldSpanBuffers[i] = spanBuffers[count];
+        spanBuffers[count] = spans;
+        insert(count);
+        count++;
+      }
+    }
+    Arrays.fill(projectIds, count, entryCount, null);
+    Arrays.fill(traceIds, count, entryCount, null);
+    entryCount = count;
+  }
+
+  private static boolean isApiTraceId(String traceId) {
+    if (traceId.length() != 32) {
+      return false;
+    }
+    for (int i = 0; i < 32; i++) {
+      char c = traceId.charAt(i);
+      if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static long parseHex(String traceId, int start) {
+    long value = 0;
+    for (int i = start; i < start + 16; i++) {
+      value = (value << 4) | Character.digit(traceId.charAt(i), 16);
+    }
+    return value;
   }
 }
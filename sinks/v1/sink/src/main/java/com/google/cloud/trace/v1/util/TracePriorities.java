@@ -0,0 +1,52 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+
+/**
+ * Classifies trace messages into priority classes. A trace message has a high priority if one of
+ * its spans recorded an exception, or had tracing explicitly enabled when it was started.
+ */
+public final class TracePriorities {
+  /**
+   * The label key of the class of an exception thrown in a span.
+   */
+  public static final String EXCEPTION_CLASS_LABEL = "g.co/exception/class";
+
+  /**
+   * The label key that marks a span whose tracing was explicitly enabled.
+   */
+  public static final String FORCED_LABEL = "g.co/trace/forced";
+
+  private TracePriorities() {}
+
+  /**
+   * Returns whether a trace message has a high priority.
+   *
+   * @param trace the trace message.
+   * @return true if one of the spans of the trace message has a priority label.
+   */
+  public static boolean isHighPriority(Trace trace) {
+    for (TraceSpan span : trace.getSpansList()) {
+      if (span.getLabelsCount() > 0 && (span.containsLabels(EXCEPTION_CLASS_LABEL)
+          || span.containsLabels(FORCED_LABEL))) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A class for splitting traces messages by the project identifiers of their trace messages, so that
+ * the trace messages of each project can be sent to the Stackdriver Trace API for that project.
+ *
+ * @see Traces
+ * @see Trace
+ */
+public class TracesByProject {
+  private TracesByProject() {}
+
+  /**
+   * Splits a traces message by project identifier.
+   *
+   * @param traces a traces message to split.
+   * @return a map from each project identifier in the traces message to a traces message containing
+   * the trace messages of that project, in the order in which the project identifiers first appear.
+   */
+  public static Map<String, Traces> split(Traces traces) {
+    if (traces.getTracesCount() == 0) {
+      return Collections.emptyMap();
+    }
+    String firstProjectId = traces.getTraces(0).getProjectId();
+    boolean singleProject = true;
+    for (Trace trace : traces.getTracesList()) {
+      if (!trace.getProjectId().equals(firstProjectId)) {
+        singleProject = false;
+        break;
+      }
+    }
+    if (singleProject) {
+      return Collections.singletonMap(firstProjectId, traces);
+    }
+
+    Map<String, Traces.Builder> builders = new LinkedHashMap<String, Traces.Builder>();
+    for (Trace trace : traces.getTracesList()) {
+      Traces.Builder builder = builders.get(trace.getProjectId());
+      if (builder == null) {
+        builder = Traces.newBuilder();
+        builders.put(trace.getProjectId(), builder);
+      }
+      builder.addTraces(trace);
+    }
+    Map<String, Traces> projectTraces = new LinkedHashMap<String, Traces>();
+    for (Map.Entry<String, Traces.Builder> entry : builders.entrySet()) {
+      projectTraces.put(entry.getKey(), entry.getValue().build());
+    }
+    return projectTraces;
+  }
+}
@@ -0,0 +1,202 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.google.cloud.trace.core.Labels;
+import com.google.cloud.trace.core.SpanContext;
+import com.google.cloud.trace.core.SpanId;
+import com.google.cloud.trace.core.SpanKind;
+import com.google.cloud.trace.core.Timestamp;
+import com.google.cloud.trace.core.TraceId;
+import com.google.cloud.trace.core.TraceOptions;
+import com.google.cloud.trace.v1.consumer.TraceConsumer;
+import com.google.cloud.trace.v1.producer.TraceProducer;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class AssemblingTraceSinkV1Test {
+  private static final TraceId traceId = new TraceId(BigInteger.valueOf(10));
+  private static final SpanContext root =
+      new SpanContext(traceId, new SpanId(0), TraceOptions.forTraceEnabled());
+  private static final SpanContext parent =
+      new SpanContext(traceId, new SpanId(20), TraceOptions.forTraceEnabled());
+  private static final SpanContext child =
+      new SpanContext(traceId, new SpanId(30), TraceOptions.forTraceEnabled());
+
+  @Test
+  public void testAssemblesSpanEvents() {
+    ArgumentCaptor<Traces> tracesCaptor = ArgumentCaptor.forClass(Traces.class);
+    TraceConsumer mockConsumer = mock(TraceConsumer.class);
+    AssemblingTraceSinkV1 sink =
+        new AssemblingTraceSinkV1("1", new TraceProducer(), mockConsumer);
+
+    sink.startSpan(child, parent, SpanKind.RPC_CLIENT, "child", timestamp(1));
+    sink.annotateSpan(child, Labels.builder().add("a", "b").build());
+    sink.annotateSpan(child, Labels.builder().add("c", "d").build());
+    assertThat(sink.getOpenSpanCount()).isEqualTo(1);
+    sink.endSpan(child, timestamp(2));
+    assertThat(sink.getOpenSpanCount()).isEqualTo(0);
+
+    verify(mockConsumer, times(1)).receive(tracesCaptor.capture());
+    Traces traces = tracesCaptor.getValue();
+    assertThat(traces.getTracesCount()).isEqualTo(1);
+    Trace trace = traces.getTraces(0);
+    assertThat(trace.getProjectId()).isEqualTo("1");
+    assertThat(trace.getTraceId()).isEqualTo("0000000000000000000000000000000a");
+    assertThat(trace.getSpansCount()).isEqualTo(1);
+    TraceSpan span = trace.getSpans(0);
+    assertThat(span.getSpanId()).isEqualTo(30L);
+    assertThat(span.getParentSpanId()).isEqualTo(20L);
+    assertThat(span.getName()).isEqualTo("child");
+    assertThat(span.getKind()).isEqualTo(TraceSpan.SpanKind.RPC_CLIENT);
+    assertThat(span.getStartTime().getSeconds()).isEqualTo(1L);
+    assertThat(span.getEndTime().getSeconds()).isEqualTo(2L);
+    assertThat(span.getLabelsMap()).containsEntry("a", "b");
+    assertThat(span.getLabelsMap()).containsEntry("c", "d");
+  }
+
+  @Test
+  public void testEventsForUnknownSpansArePassedThrough() {
+    ArgumentCaptor<Traces> tracesCaptor = ArgumentCaptor.forClass(Traces.class);
+    TraceConsumer mockConsumer = mock(TraceConsumer.class);
+    AssemblingTraceSinkV1 sink =
+        new AssemblingTraceSinkV1("1", new TraceProducer(), mockConsumer);
+
+    sink.annotateSpan(child, Labels.builder().add("a", "b").build());
+    sink.endSpan(child, timestamp(2));
+
+    verify(mockConsumer, times(2)).receive(tracesCaptor.capture());
+    List<Traces> traceBatches = tracesCaptor.getAllValues();
+    assertThat(traceBatches.get(0).getTraces(0).getSpans(0).getLabelsMap())
+        .containsEntry("a", "b");
+    assertThat(traceBatches.get(1).getTraces(0).getSpans(0).getEndTime().getSeconds())
+        .isEqualTo(2L);
+  }
+
+  @Test
+  public void testIgnoresDisabledSpans() {
+    TraceConsumer mockConsumer = mock(TraceConsumer.class);
+    AssemblingTraceSinkV1 sink =
+        new AssemblingTraceSinkV1("1", new TraceProducer(), mockConsumer);
+    SpanContext disabled = child.overrideOptions(TraceOptions.forTraceDisabled());
+
+    sink.startSpan(disabled, parent, SpanKind.RPC_CLIENT, "child", timestamp(1));
+    sink.endSpan(disabled, timestamp(2));
+
+    assertThat(sink.getOpenSpanCount()).isEqualTo(0);
+    verify(mockConsumer, never()).receive(any(Traces.class));
+  }
+
+  @Test
+  public void testSpansOfDifferentTracesAreAssembledSeparately() {
+    TestTraceConsumer consumer = new TestTraceConsumer();
+    AssemblingTraceSinkV1 sink = new AssemblingTraceSinkV1("1", new TraceProducer(), consumer);
+    SpanContext other = new SpanContext(
+        new TraceId(BigInteger.valueOf(11)), child.getSpanId(), TraceOptions.forTraceEnabled());
+
+    sink.startSpan(child, parent, SpanKind.RPC_CLIENT, "child", timestamp(1));
+    sink.startSpan(other, parent, SpanKind.RPC_CLIENT, "other", timestamp(1));
+    assertThat(sink.getOpenSpanCount()).isEqualTo(2);
+    sink.endSpan(child, timestamp(2));
+    sink.endSpan(other, timestamp(3));
+
+    assertThat(consumer.received).hasSize(2);
+    assertThat(consumer.received.get(0).getTraces(0).getSpans(0).getName()).isEqualTo("child");
+    assertThat(consumer.received.get(1).getTraces(0).getSpans(0).getName()).isEqualTo("other");
+  }
+
+  @Test
+  public void testStartEventsArePassedThroughWhenMaxSpansAreOpen() {
+    TestTraceConsumer consumer = new TestTraceConsumer();
+    AssemblingTraceSinkV1 sink = new AssemblingTraceSinkV1(
+        "1", new TraceProducer(), consumer, 1, 1, TimeUnit.HOURS);
+
+    sink.startSpan(parent, root, SpanKind.RPC_SERVER, "parent", timestamp(1));
+    sink.startSpan(child, parent, SpanKind.RPC_CLIENT, "child", timestamp(2));
+
+    assertThat(sink.getOpenSpanCount()).isEqualTo(1);
+    assertThat(consumer.received).hasSize(1);
+    TraceSpan span = consumer.received.get(0).getTraces(0).getSpans(0);
+    assertThat(span.getName()).isEqualTo("child");
+    assertThat(span.getStartTime().getSeconds()).isEqualTo(2L);
+  }
+
+  @Test
+  public void testSpansOlderThanMaxAgeAreEvicted() throws Exception {
+    TestTraceConsumer consumer = new TestTraceConsumer();
+    AssemblingTraceSinkV1 sink = new AssemblingTraceSinkV1(
+        "1", new TraceProducer(), consumer, 10, 1, TimeUnit.MILLISECONDS);
+
+    sink.startSpan(child, parent, SpanKind.RPC_CLIENT, "child", timestamp(1));
+    sink.annotateSpan(child, Labels.builder().add("a", "b").build());
+    Thread.sleep(10);
+    sink.startSpan(parent, root, SpanKind.RPC_SERVER, "parent", timestamp(2));
+
+    assertThat(sink.getOpenSpanCount()).isEqualTo(1);
+    assertThat(consumer.received).hasSize(1);
+    TraceSpan span = consumer.received.get(0).getTraces(0).getSpans(0);
+    assertThat(span.getName()).isEqualTo("child");
+    assertThat(span.getLabelsMap()).containsEntry("a", "b");
+    assertThat(span.hasEndTime()).isFalse();
+
+    sink.endSpan(child, timestamp(3));
+    assertThat(consumer.received).hasSize(2);
+    assertThat(consumer.received.get(1).getTraces(0).getSpans(0).getEndTime().getSeconds())
+        .isEqualTo(3L);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMaxOpenSpansMustBePositive() {
+    new AssemblingTraceSinkV1(
+        "1", new TraceProducer(), new TestTraceConsumer(), 0, 1, TimeUnit.MINUTES);
+  }
+
+  private static Timestamp timestamp(final long seconds) {
+    return new Timestamp() {
+      @Override
+      public long getSeconds() {
+        return seconds;
+      }
+
+      @Override
+      public int getNanos() {
+        return 0;
+      }
+    };
+  }
+
+  private static class TestTraceConsumer implements TraceConsumer {
+    private final List<Traces> received = new CopyOnWriteArrayList<Traces>();
+
+    @Override
+    public void receive(Traces traces) {
+      received.add(traces);
+    }
+  }
+}
@@ -0,0 +1,152 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.google.cloud.trace.core.Labels;
+import com.google.cloud.trace.core.SpanContext;
+import com.google.cloud.trace.core.SpanId;
+import com.google.cloud.trace.core.SpanKind;
+import com.google.cloud.trace.core.Timestamp;
+import com.google.cloud.trace.core.TraceId;
+import com.google.cloud.trace.core.TraceOptions;
+import com.google.cloud.trace.v1.consumer.TraceConsumer;
+import com.google.cloud.trace.v1.producer.TraceProducer;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class BatchingTraceSinkV1Test {
+  private static final TraceId traceId = new TraceId(BigInteger.valueOf(10));
+  private static final SpanContext invalid =
+      new SpanContext(traceId, SpanId.invalid(), TraceOptions.forTraceEnabled());
+  private static final SpanContext root =
+      new SpanContext(traceId, new SpanId(20), TraceOptions.forTraceEnabled());
+  private static final SpanContext child =
+      new SpanContext(traceId, new SpanId(30), TraceOptions.forTraceEnabled());
+
+  @Test
+  public void testSendsBatchWhenOutermostSpanEnds() {
+    ArgumentCaptor<Traces> tracesCaptor = ArgumentCaptor.forClass(Traces.class);
+    TraceConsumer mockConsumer = mock(TraceConsumer.class);
+    BatchingTraceSinkV1 sink =
+        new BatchingTraceSinkV1("1", new TraceProducer(), mockConsumer, 100, 60000,
+            mock(ScheduledExecutorService.class));
+
+    sink.startSpan(root, invalid, SpanKind.RPC_SERVER, "root", timestamp(1));
+    sink.startSpan(child, root, SpanKind.RPC_CLIENT, "child", timestamp(2));
+    sink.annotateSpan(child, Labels.builder().add("a", "b").build());
+    sink.endSpan(child, timestamp(3));
+    verify(mockConsumer, never()).receive(any(Traces.class));
+    sink.endSpan(root, timestamp(4));
+
+    verify(mockConsumer, times(1)).receive(tracesCaptor.capture());
+    assertThat(tracesCaptor.getValue().getTracesCount()).isEqualTo(5);
+  }
+
+  @Test
+  public void testSendsBatchOfIdleThreadAfterDelay() throws InterruptedException {
+    ArgumentCaptor<Traces> tracesCaptor = ArgumentCaptor.forClass(Traces.class);
+    TraceConsumer mockConsumer = mock(TraceConsumer.class);
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    try {
+      final BatchingTraceSinkV1 sink =
+          new BatchingTraceSinkV1("1", new TraceProducer(), mockConsumer, 100, 50, scheduler);
+      sink.start();
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          sink.startSpan(root, invalid, SpanKind.RPC_SERVER, "root", timestamp(1));
+        }
+      };
+      thread.start();
+      thread.join();
+
+      verify(mockConsumer, timeout(5000).times(1)).receive(tracesCaptor.capture());
+      assertThat(tracesCaptor.getValue().getTracesCount()).isEqualTo(1);
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testSendsBatchWhenFull() {
+    ArgumentCaptor<Traces> tracesCaptor = ArgumentCaptor.forClass(Traces.class);
+    TraceConsumer mockConsumer = mock(TraceConsumer.class);
+    BatchingTraceSinkV1 sink =
+        new BatchingTraceSinkV1("1", new TraceProducer(), mockConsumer, 2, 60000,
+            mock(ScheduledExecutorService.class));
+
+    sink.startSpan(root, invalid, SpanKind.RPC_SERVER, "root", timestamp(1));
+    sink.annotateSpan(root, Labels.builder().add("a", "b").build());
+    sink.annotateSpan(root, Labels.builder().add("c", "d").build());
+    sink.flush();
+
+    verify(mockConsumer, times(2)).receive(tracesCaptor.capture());
+    List<Traces> traceBatches = tracesCaptor.getAllValues();
+    assertThat(traceBatches.get(0).getTracesCount()).isEqualTo(2);
+    assertThat(traceBatches.get(1).getTracesCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testCloseCancelsPeriodicTaskAndSendsBatches() {
+    ArgumentCaptor<Traces> tracesCaptor = ArgumentCaptor.forClass(Traces.class);
+    TraceConsumer mockConsumer = mock(TraceConsumer.class);
+    ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+    scheduler.setRemoveOnCancelPolicy(true);
+    try {
+      BatchingTraceSinkV1 sink =
+          new BatchingTraceSinkV1("1", new TraceProducer(), mockConsumer, 100, 60000, scheduler);
+      assertThat(scheduler.getQueue()).isEmpty();
+      sink.start();
+      assertThat(scheduler.getQueue()).hasSize(1);
+
+      sink.startSpan(root, invalid, SpanKind.RPC_SERVER, "root", timestamp(1));
+      sink.close();
+
+      assertThat(scheduler.getQueue()).isEmpty();
+      verify(mockConsumer, times(1)).receive(tracesCaptor.capture());
+      assertThat(tracesCaptor.getValue().getTracesCount()).isEqualTo(1);
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
+
+  private static Timestamp timestamp(final long seconds) {
+    return new Timestamp() {
+      @Override
+      public long getSeconds() {
+        return seconds;
+      }
+
+      @Override
+      public int getNanos() {
+        return 0;
+      }
+    };
+  }
+}
@@ -0,0 +1,130 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.cloud.trace.core.SpanContext;
+import com.google.cloud.trace.core.SpanId;
+import com.google.cloud.trace.core.SpanKind;
+import com.google.cloud.trace.core.Timestamp;
+import com.google.cloud.trace.core.TraceId;
+import com.google.cloud.trace.core.TraceOptions;
+import com.google.cloud.trace.v1.consumer.ScheduledBufferingTraceConsumer;
+import com.google.cloud.trace.v1.consumer.TraceConsumer;
+import com.google.cloud.trace.v1.metrics.TraceExportMetrics;
+import com.google.cloud.trace.v1.producer.TraceProducer;
+import com.google.cloud.trace.v1.util.ProtoTraceSizer;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TraceSinkV1Test {
+  private static final TraceId traceId1 = new TraceId(BigInteger.valueOf(10));
+  private static final TraceId traceId2 = new TraceId(BigInteger.valueOf(11));
+  private static final SpanContext root1 =
+      new SpanContext(traceId1, new SpanId(0), TraceOptions.forTraceEnabled());
+  private static final SpanContext span1 =
+      new SpanContext(traceId1, new SpanId(20), TraceOptions.forTraceEnabled());
+  private static final SpanContext root2 =
+      new SpanContext(traceId2, new SpanId(0), TraceOptions.forTraceEnabled());
+  private static final SpanContext span2 =
+      new SpanContext(traceId2, new SpanId(30), TraceOptions.forTraceEnabled());
+
+  private ScheduledExecutorService scheduler;
+  private TestTraceConsumer delegate;
+  private TraceExportMetrics metrics;
+  private ScheduledBufferingTraceConsumer consumer;
+
+  @Before
+  public void setUp() {
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+    delegate = new TestTraceConsumer();
+    metrics = new TraceExportMetrics();
+    consumer = ScheduledBufferingTraceConsumer
+        .builder(delegate, new ProtoTraceSizer(), scheduler)
+        .setBufferSize(1024 * 1024)
+        .setScheduledDelay(60)
+        .setMetrics(metrics)
+        .build();
+  }
+
+  @After
+  public void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void testFlushTraceAsyncSendsOnlyThatTrace() throws Exception {
+    TraceSinkV1 sink = new TraceSinkV1("project", new TraceProducer(), consumer);
+
+    sink.startSpan(span1, root1, SpanKind.RPC_SERVER, "span1", timestamp(1));
+    sink.startSpan(span2, root2, SpanKind.RPC_SERVER, "span2", timestamp(1));
+    sink.flushTraceAsync(traceId1).get(10, TimeUnit.SECONDS);
+
+    assertThat(delegate.received).hasSize(1);
+    assertThat(delegate.received.get(0).getTracesCount()).isEqualTo(1);
+    assertThat(delegate.received.get(0).getTraces(0).getTraceId())
+        .isEqualTo(traceId1.getApiString());
+    assertThat(metrics.getBufferedSpans()).isEqualTo(1L);
+
+    consumer.flush();
+
+    assertThat(delegate.received).hasSize(2);
+    assertThat(delegate.received.get(1).getTraces(0).getTraceId())
+        .isEqualTo(traceId2.getApiString());
+    assertThat(metrics.getBufferedSpans()).isEqualTo(0L);
+  }
+
+  @Test
+  public void testFlushTraceAsyncWithoutAsyncFlushableConsumerIsDone() {
+    TraceSinkV1 sink = new TraceSinkV1("project", new TraceProducer(), delegate);
+
+    sink.startSpan(span1, root1, SpanKind.RPC_SERVER, "span1", timestamp(1));
+
+    assertThat(sink.flushTraceAsync(traceId1).isDone()).isTrue();
+    assertThat(delegate.received).hasSize(1);
+  }
+
+  private static Timestamp timestamp(final long seconds) {
+    return new Timestamp() {
+      @Override
+      public long getSeconds() {
+        return seconds;
+      }
+
+      @Override
+      public int getNanos() {
+        return 0;
+      }
+    };
+  }
+
+  private static class TestTraceConsumer implements TraceConsumer {
+    private final List<Traces> received = new CopyOnWriteArrayList<Traces>();
+
+    @Override
+    public void receive(Traces traces) {
+      received.add(traces);
+    }
+  }
+}
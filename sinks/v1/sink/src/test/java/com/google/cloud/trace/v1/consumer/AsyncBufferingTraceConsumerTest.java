@@ -0,0 +1,109 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.consumer;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.google.cloud.trace.v1.util.Sizer;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class AsyncBufferingTraceConsumerTest {
+  private static final Sizer<Trace> tenBytes = new Sizer<Trace>() {
+    @Override
+    public int size(Trace sizeable) {
+      return 10;
+    }
+  };
+
+  @Test
+  public void testFlushesWhenBufferIsFull() {
+    ArgumentCaptor<Traces> tracesCaptor = ArgumentCaptor.forClass(Traces.class);
+    TraceConsumer mockSink = mock(TraceConsumer.class);
+    Trace trace1 = Trace.newBuilder().setProjectId("1").setTraceId("1").build();
+    Trace trace2 = Trace.newBuilder().setProjectId("1").setTraceId("2").build();
+    Trace trace3 = Trace.newBuilder().setProjectId("1").setTraceId("3").build();
+
+    FlushableTraceConsumer bufferedSink =
+        new AsyncBufferingTraceConsumer(mockSink, tenBytes, 25, 3600);
+    bufferedSink.receive(Traces.newBuilder().addTraces(trace1).build()); // buffer size: 10
+    bufferedSink.receive(Traces.newBuilder().addTraces(trace2).build()); // buffer size: 20
+    bufferedSink.receive(Traces.newBuilder().addTraces(trace3).build()); // buffer size: 30
+    // should flush on the flusher thread
+
+    verify(mockSink, timeout(5000).times(1)).receive(tracesCaptor.capture());
+    List<Traces> traceBatches = tracesCaptor.getAllValues();
+    assertThat(traceBatches).hasSize(1);
+    assertThat(traceBatches.get(0).getTracesList()).containsExactly(trace1, trace2, trace3);
+  }
+
+  @Test
+  public void testFlush() {
+    ArgumentCaptor<Traces> tracesCaptor = ArgumentCaptor.forClass(Traces.class);
+    TraceConsumer mockSink = mock(TraceConsumer.class);
+    Trace trace1 = Trace.newBuilder().setProjectId("1").setTraceId("1").build();
+    Trace trace2 = Trace.newBuilder().setProjectId("1").setTraceId("2").build();
+
+    FlushableTraceConsumer bufferedSink =
+        new AsyncBufferingTraceConsumer(mockSink, tenBytes, 1000, 3600);
+    bufferedSink.receive(Traces.newBuilder().addTraces(trace1).build());
+    bufferedSink.receive(Traces.newBuilder().addTraces(trace2).build());
+    bufferedSink.flush();
+    bufferedSink.flush();
+
+    verify(mockSink, times(1)).receive(tracesCaptor.capture());
+    assertThat(tracesCaptor.getValue().getTracesList()).containsExactly(trace1, trace2);
+  }
+
+  @Test
+  public void testCloseFlushesAndStopsFlusherThread() {
+    ArgumentCaptor<Traces> tracesCaptor = ArgumentCaptor.forClass(Traces.class);
+    TraceConsumer mockSink = mock(TraceConsumer.class);
+    Trace trace1 = Trace.newBuilder().setProjectId("1").setTraceId("1").build();
+    Trace trace2 = Trace.newBuilder().setProjectId("1").setTraceId("2")
+        .addSpans(TraceSpan.newBuilder().setSpanId(1)).build();
+    final List<Thread> threads = new ArrayList<Thread>();
+
+    AsyncBufferingTraceConsumer bufferedSink =
+        new AsyncBufferingTraceConsumer(mockSink, tenBytes, 1000, 3600, new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            threads.add(thread);
+            return thread;
+          }
+        });
+    bufferedSink.receive(Traces.newBuilder().addTraces(trace1).build());
+    bufferedSink.close();
+    bufferedSink.receive(Traces.newBuilder().addTraces(trace2).build());
+
+    verify(mockSink, times(1)).receive(tracesCaptor.capture());
+    assertThat(tracesCaptor.getValue().getTracesList()).containsExactly(trace1);
+    assertThat(threads).hasSize(1);
+    assertThat(threads.get(0).isAlive()).isFalse();
+    assertThat(bufferedSink.getDroppedSpanCount()).isEqualTo(1L);
+  }
+}
@@ -0,0 +1,171 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.consumer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.cloud.trace.v1.metrics.TraceExportMetrics;
+import com.google.cloud.trace.v1.util.BufferLimits;
+import com.google.cloud.trace.v1.util.ProtoTraceSizer;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.devtools.cloudtrace.v1.Traces;
+import com.google.protobuf.Timestamp;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompletionBufferingTraceConsumerTest {
+  private ScheduledExecutorService scheduler;
+  private TestTraceConsumer delegate;
+  private CompletionBufferingTraceConsumer consumer;
+
+  @Before
+  public void setUp() {
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+    delegate = new TestTraceConsumer();
+    consumer = new CompletionBufferingTraceConsumer(delegate, new ProtoTraceSizer(), 1024 * 1024,
+        1, 10, scheduler, BufferLimits.unlimited(), new TraceExportMetrics());
+  }
+
+  @After
+  public void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void testSendsTraceWhenLocalRootSpanEnds() throws Exception {
+    consumer.receive(startSpan("1", 1, 0));
+    consumer.receive(startSpan("1", 2, 1));
+    consumer.receive(endSpan("1", 2));
+    Thread.sleep(100);
+    assertThat(delegate.received).isEmpty();
+
+    consumer.receive(endSpan("1", 1));
+    Thread.sleep(100);
+
+    assertThat(delegate.received).hasSize(1);
+    assertThat(delegate.received.get(0).getTraces(0).getSpansCount()).isEqualTo(2);
+    assertThat(consumer.getCompletedTraceCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void testSendsTraceWhenLocalRootSpanWithRemoteParentEnds() throws Exception {
+    consumer.receive(startSpan("1", 2, 1));
+    consumer.receive(startSpan("1", 3, 2));
+    consumer.receive(endSpan("1", 3));
+    Thread.sleep(100);
+    assertThat(delegate.received).isEmpty();
+
+    consumer.receive(endSpan("1", 2));
+    Thread.sleep(100);
+
+    assertThat(delegate.received).hasSize(1);
+    assertThat(consumer.getCompletedTraceCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void testSendsAssembledTraceWhenRootSpanEnds() throws Exception {
+    consumer.receive(span("1", 2, 1));
+    consumer.receive(span("1", 3, 1));
+    Thread.sleep(100);
+    assertThat(delegate.received).isEmpty();
+
+    consumer.receive(span("1", 1, 0));
+    Thread.sleep(100);
+
+    assertThat(delegate.received).hasSize(1);
+    assertThat(delegate.received.get(0).getTraces(0).getSpansCount()).isEqualTo(3);
+    assertThat(consumer.getCompletedTraceCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void testSendsTraceThatDoesNotCompleteAfterMaxAge() throws Exception {
+    consumer.receive(startSpan("1", 1, 0));
+
+    Thread.sleep(1500);
+
+    assertThat(delegate.received).containsExactly(startSpan("1", 1, 0));
+    assertThat(consumer.getExpiredTraceCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void testFlushTraceAsyncSendsTraceThatDoesNotComplete() throws Exception {
+    consumer.receive(startSpan("1", 1, 0));
+    consumer.receive(startSpan("2", 2, 0));
+
+    consumer.flushTraceAsync("project", "1").get(10, TimeUnit.SECONDS);
+
+    assertThat(delegate.received).containsExactly(startSpan("1", 1, 0));
+  }
+
+  @Test
+  public void testCloseDrainsBufferAndDropsLaterTraces() {
+    consumer.receive(startSpan("1", 1, 0));
+
+    assertThat(consumer.close(10, TimeUnit.SECONDS)).isTrue();
+    consumer.receive(startSpan("2", 2, 0));
+
+    assertThat(delegate.received).containsExactly(startSpan("1", 1, 0));
+    assertThat(consumer.getDroppedSpanCount()).isEqualTo(1L);
+  }
+
+  private static Traces startSpan(String traceId, long spanId, long parentSpanId) {
+    return traces(traceId, TraceSpan.newBuilder()
+        .setSpanId(spanId)
+        .setParentSpanId(parentSpanId)
+        .setStartTime(Timestamp.newBuilder().setSeconds(1))
+        .build());
+  }
+
+  private static Traces span(String traceId, long spanId, long parentSpanId) {
+    return traces(traceId, TraceSpan.newBuilder()
+        .setSpanId(spanId)
+        .setParentSpanId(parentSpanId)
+        .setStartTime(Timestamp.newBuilder().setSeconds(1))
+        .setEndTime(Timestamp.newBuilder().setSeconds(2))
+        .build());
+  }
+
+  private static Traces endSpan(String traceId, long spanId) {
+    return traces(traceId, TraceSpan.newBuilder()
+        .setSpanId(spanId)
+        .setEndTime(Timestamp.newBuilder().setSeconds(2))
+        .build());
+  }
+
+  private static Traces traces(String traceId, TraceSpan span) {
+    return Traces.newBuilder()
+        .addTraces(Trace.newBuilder()
+            .setProjectId("project")
+            .setTraceId(traceId)
+            .addSpans(span))
+        .build();
+  }
+
+  private static class TestTraceConsumer implements TraceConsumer {
+    private final List<Traces> received = new CopyOnWriteArrayList<Traces>();
+
+    @Override
+    public void receive(Traces traces) {
+      received.add(traces);
+    }
+  }
+}
@@ -0,0 +1,166 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.consumer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DiskSpillingTraceConsumerTest {
+  private File directory;
+  private FailingTraceConsumer delegate;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("trace-spill", "");
+    assertThat(directory.delete()).isTrue();
+    delegate = new FailingTraceConsumer();
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testPassesThroughWhenDelegateSucceeds() throws IOException {
+    DiskSpillingTraceConsumer consumer =
+        new DiskSpillingTraceConsumer(delegate, directory, 4096, 4096 * 4);
+
+    consumer.receive(traces("1"));
+
+    assertThat(delegate.received).containsExactly(traces("1"));
+    assertThat(consumer.getSegmentCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testSpillsAndReplaysInOrder() throws IOException {
+    DiskSpillingTraceConsumer consumer =
+        new DiskSpillingTraceConsumer(delegate, directory, 4096, 4096 * 4);
+
+    delegate.failing = true;
+    consumer.receive(traces("1"));
+    consumer.receive(traces("2"));
+    assertThat(delegate.received).isEmpty();
+    assertThat(consumer.getSegmentCount()).isEqualTo(1);
+
+    delegate.failing = false;
+    consumer.receive(traces("3"));
+    // Receiving spills behind the spilled trace messages and leaves replaying to flushes.
+    assertThat(delegate.received).isEmpty();
+    consumer.flush();
+
+    assertThat(delegate.received)
+        .containsExactly(traces("1"), traces("2"), traces("3")).inOrder();
+    assertThat(consumer.getSegmentCount()).isEqualTo(0);
+    assertThat(directory.list()).isEmpty();
+  }
+
+  @Test
+  public void testReplaysUnreadRecordsAfterRestart() throws IOException {
+    DiskSpillingTraceConsumer consumer =
+        new DiskSpillingTraceConsumer(delegate, directory, 4096, 4096 * 4);
+    delegate.failing = true;
+    consumer.receive(traces("1"));
+    consumer.receive(traces("2"));
+    consumer.receive(traces("3"));
+    // Let the first record be replayed before the delegate fails again.
+    delegate.successesBeforeFailure = 1;
+    delegate.failing = false;
+    consumer.flush();
+    assertThat(delegate.received).containsExactly(traces("1"));
+
+    FailingTraceConsumer restarted = new FailingTraceConsumer();
+    new DiskSpillingTraceConsumer(restarted, directory, 4096, 4096 * 4).flush();
+
+    assertThat(restarted.received).containsExactly(traces("2"), traces("3")).inOrder();
+  }
+
+  @Test
+  public void testDropsWhenDiskBudgetIsUsedUp() throws IOException {
+    DiskSpillingTraceConsumer consumer =
+        new DiskSpillingTraceConsumer(delegate, directory, 64, 64);
+    delegate.failing = true;
+
+    for (int i = 0; i < 10; i++) {
+      consumer.receive(traces(Integer.toString(i)));
+    }
+
+    assertThat(consumer.getSegmentCount()).isEqualTo(1);
+    assertThat(consumer.getDroppedTraceCount()).isGreaterThan(0L);
+  }
+
+  @Test
+  public void testDropsRecordsRejectedPermanently() throws IOException {
+    DiskSpillingTraceConsumer consumer =
+        new DiskSpillingTraceConsumer(delegate, directory, 4096, 4096 * 4);
+    delegate.failing = true;
+    consumer.receive(traces("1"));
+    consumer.receive(traces("2"));
+
+    delegate.failing = false;
+    delegate.rejected = traces("1");
+    consumer.flush();
+
+    assertThat(delegate.received).containsExactly(traces("2"));
+    assertThat(consumer.getRejectedTraceCount()).isEqualTo(1L);
+    assertThat(consumer.getSegmentCount()).isEqualTo(0);
+
+    consumer.receive(traces("1"));
+    assertThat(consumer.getRejectedTraceCount()).isEqualTo(2L);
+    assertThat(consumer.getSegmentCount()).isEqualTo(0);
+  }
+
+  private static Traces traces(String traceId) {
+    return Traces.newBuilder()
+        .addTraces(Trace.newBuilder().setProjectId("project").setTraceId(traceId))
+        .build();
+  }
+
+  private static class FailingTraceConsumer implements TraceConsumer {
+    private final List<Traces> received = new ArrayList<Traces>();
+    private boolean failing = false;
+    private int successesBeforeFailure = -1;
+    private Traces rejected;
+
+    @Override
+    public void receive(Traces traces) {
+      if (traces.equals(rejected)) {
+        throw new TraceExportException("invalid argument", null, false);
+      }
+      if (failing || successesBeforeFailure == 0) {
+        throw new RuntimeException("unavailable");
+      }
+      if (successesBeforeFailure > 0) {
+        successesBeforeFailure--;
+      }
+      received.add(traces);
+    }
+  }
+}
@@ -0,0 +1,136 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.consumer;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.cloud.trace.v1.util.BufferPool;
+import com.google.cloud.trace.v1.util.EncodedTraces;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class EncodingTraceConsumerTest {
+  @Test
+  public void testEncodedTracesDecodeToReceivedTraces() {
+    BufferPool pool = new BufferPool(128, 4);
+    TestEncodedTraceConsumer delegate = new TestEncodedTraceConsumer();
+    EncodingTraceConsumer consumer = new EncodingTraceConsumer(delegate, pool, 1024 * 1024);
+    Traces traces = Traces.newBuilder()
+        .addTraces(trace("project", "1", 10))
+        .addTraces(trace("project", "2", 500))
+        .addTraces(trace("project", "3", 10))
+        .build();
+
+    consumer.receive(traces);
+    assertThat(delegate.received).isEmpty();
+    consumer.flush();
+
+    assertThat(delegate.received).containsExactly(traces);
+    assertThat(delegate.sizes).containsExactly(traces.getSerializedSize());
+    assertThat(delegate.spanCounts).containsExactly(3);
+  }
+
+  @Test
+  public void testSendsBatchesOfEachProject() {
+    BufferPool pool = new BufferPool(128, 4);
+    TestEncodedTraceConsumer delegate = new TestEncodedTraceConsumer();
+    Trace first = trace("project", "1", 40);
+    EncodingTraceConsumer consumer =
+        new EncodingTraceConsumer(delegate, pool, EncodedTraces.fieldSize(first) * 2);
+
+    consumer.receive(Traces.newBuilder()
+        .addTraces(first)
+        .addTraces(trace("other", "2", 40))
+        .addTraces(trace("project", "3", 40))
+        .addTraces(trace("project", "4", 40))
+        .build());
+
+    // The third trace of the project doesn't fit into the first batch.
+    assertThat(delegate.received).containsExactly(Traces.newBuilder()
+        .addTraces(first)
+        .addTraces(trace("project", "3", 40))
+        .build());
+
+    consumer.flush();
+    assertThat(delegate.received).hasSize(3);
+    assertThat(pool.getPooledBufferCount()).isGreaterThan(0);
+  }
+
+  @Test
+  public void testSendsRemainingBatchesWhenOneFails() {
+    BufferPool pool = new BufferPool(128, 4);
+    final List<String> received = new ArrayList<String>();
+    EncodedTraceConsumer delegate = new EncodedTraceConsumer() {
+      @Override
+      public void receive(EncodedTraces traces) {
+        received.add(traces.getProjectId());
+        if (traces.getProjectId().equals("failing")) {
+          throw new IllegalStateException("Failed to export");
+        }
+        traces.release();
+      }
+    };
+    EncodingTraceConsumer consumer = new EncodingTraceConsumer(delegate, pool, 1024 * 1024);
+    consumer.receive(Traces.newBuilder()
+        .addTraces(trace("failing", "1", 10))
+        .addTraces(trace("project", "2", 10))
+        .addTraces(trace("other", "3", 10))
+        .build());
+
+    try {
+      consumer.flush();
+      fail("Expected an illegal state exception.");
+    } catch (IllegalStateException ex) {
+      // The failure is thrown once all batches were sent.
+    }
+
+    assertThat(received).containsExactly("failing", "project", "other");
+    assertThat(pool.getPooledBufferCount()).isEqualTo(3);
+  }
+
+  private static Trace trace(String projectId, String traceId, int nameLength) {
+    StringBuilder name = new StringBuilder();
+    for (int i = 0; i < nameLength; i++) {
+      name.append('a');
+    }
+    return Trace.newBuilder()
+        .setProjectId(projectId)
+        .setTraceId(traceId)
+        .addSpans(TraceSpan.newBuilder().setSpanId(1).setName(name.toString()))
+        .build();
+  }
+
+  private static class TestEncodedTraceConsumer implements EncodedTraceConsumer {
+    private final List<Traces> received = new ArrayList<Traces>();
+    private final List<Integer> sizes = new ArrayList<Integer>();
+    private final List<Integer> spanCounts = new ArrayList<Integer>();
+
+    @Override
+    public void receive(EncodedTraces traces) {
+      try {
+        received.add(traces.toTraces());
+        sizes.add(traces.getSerializedSize());
+        spanCounts.add(traces.getSpanCount());
+      } finally {
+        traces.release();
+      }
+    }
+  }
+}
@@ -0,0 +1,220 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.consumer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RetryingTraceConsumerTest {
+  private ManualScheduler scheduler;
+  private FailingTraceConsumer delegate;
+
+  @Before
+  public void setUp() {
+    scheduler = new ManualScheduler();
+    delegate = new FailingTraceConsumer();
+  }
+
+  @After
+  public void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void testRetriesUntilDelegateSucceeds() {
+    RetryingTraceConsumer consumer = RetryingTraceConsumer.builder(delegate, scheduler)
+        .setBackoff(100, 1000, 2.0)
+        .build();
+
+    delegate.failures = 2;
+    consumer.receive(traces("1"));
+    assertThat(delegate.received).isEmpty();
+    assertThat(consumer.getPendingRetryCount()).isEqualTo(1);
+
+    scheduler.runPending();
+    scheduler.runPending();
+
+    assertThat(delegate.received).containsExactly(traces("1"));
+    assertThat(consumer.getPendingRetryCount()).isEqualTo(0);
+    assertThat(consumer.getDroppedSpanCount()).isEqualTo(0L);
+    // The second backoff is longer than the first, but both are jittered to at least half.
+    assertThat(scheduler.delays.get(0)).isAtLeast(50L);
+    assertThat(scheduler.delays.get(1)).isAtLeast(100L);
+  }
+
+  @Test
+  public void testDropsAfterMaxAttempts() {
+    RetryingTraceConsumer consumer = RetryingTraceConsumer.builder(delegate, scheduler)
+        .setMaxAttempts(2)
+        .build();
+
+    delegate.failures = 10;
+    consumer.receive(traces("1"));
+    scheduler.runPending();
+
+    assertThat(delegate.attempts).isEqualTo(2);
+    assertThat(consumer.getPendingRetryCount()).isEqualTo(0);
+    assertThat(consumer.getDroppedSpanCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void testDoesNotRetryNonRetryableFailures() {
+    RetryingTraceConsumer consumer = RetryingTraceConsumer.builder(delegate, scheduler).build();
+
+    delegate.failures = 1;
+    delegate.retryable = false;
+    consumer.receive(traces("1"));
+
+    assertThat(delegate.attempts).isEqualTo(1);
+    assertThat(consumer.getPendingRetryCount()).isEqualTo(0);
+    assertThat(consumer.getDroppedSpanCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void testRetryBudgetLimitsRetries() {
+    RetryingTraceConsumer consumer = RetryingTraceConsumer.builder(delegate, scheduler)
+        .setRetryBudget(0, 2)
+        .setCircuitBreaker(100, 1000)
+        .build();
+
+    delegate.failures = 100;
+    for (int i = 0; i < 5; i++) {
+      consumer.receive(traces(Integer.toString(i)));
+    }
+
+    assertThat(consumer.getPendingRetryCount()).isEqualTo(2);
+    assertThat(consumer.getDroppedSpanCount()).isEqualTo(3L);
+  }
+
+  @Test
+  public void testOpenCircuitHoldsBackTraces() {
+    RetryingTraceConsumer consumer = RetryingTraceConsumer.builder(delegate, scheduler)
+        .setCircuitBreaker(2, 60000)
+        .build();
+
+    delegate.failures = 2;
+    consumer.receive(traces("1"));
+    consumer.receive(traces("2"));
+    assertThat(consumer.isCircuitOpen()).isTrue();
+
+    consumer.receive(traces("3"));
+
+    // The third traces message is held back without reaching the delegate.
+    assertThat(delegate.attempts).isEqualTo(2);
+    assertThat(consumer.getPendingRetryCount()).isEqualTo(3);
+    assertThat(scheduler.delays.get(2)).isGreaterThan(1000L);
+  }
+
+  @Test
+  public void testNonRetryableFailuresLeaveCircuitClosed() {
+    RetryingTraceConsumer consumer = RetryingTraceConsumer.builder(delegate, scheduler)
+        .setCircuitBreaker(2, 60000)
+        .build();
+
+    delegate.failures = 5;
+    delegate.retryable = false;
+    for (int i = 0; i < 5; i++) {
+      consumer.receive(traces(Integer.toString(i)));
+    }
+    consumer.receive(traces("5"));
+
+    assertThat(consumer.isCircuitOpen()).isFalse();
+    assertThat(delegate.attempts).isEqualTo(6);
+    assertThat(delegate.received).containsExactly(traces("5"));
+    assertThat(consumer.getDroppedSpanCount()).isEqualTo(5L);
+  }
+
+  @Test
+  public void testRetriesOnlyUnsentTraces() {
+    RetryingTraceConsumer consumer = RetryingTraceConsumer.builder(delegate, scheduler).build();
+
+    delegate.failures = 1;
+    delegate.unsentTraces = traces("2");
+    consumer.receive(Traces.newBuilder()
+        .addAllTraces(traces("1").getTracesList())
+        .addAllTraces(traces("2").getTracesList())
+        .build());
+    scheduler.runPending();
+
+    assertThat(delegate.attempts).isEqualTo(2);
+    assertThat(delegate.received).containsExactly(traces("2"));
+    assertThat(consumer.getDroppedSpanCount()).isEqualTo(0L);
+  }
+
+  private static Traces traces(String traceId) {
+    return Traces.newBuilder()
+        .addTraces(Trace.newBuilder()
+            .setProjectId("project")
+            .setTraceId(traceId)
+            .addSpans(TraceSpan.newBuilder().setSpanId(1)))
+        .build();
+  }
+
+  private static class FailingTraceConsumer implements TraceConsumer {
+    private final List<Traces> received = new ArrayList<Traces>();
+    private int failures = 0;
+    private boolean retryable = true;
+    private Traces unsentTraces;
+    private int attempts = 0;
+
+    @Override
+    public void receive(Traces traces) {
+      attempts++;
+      if (failures > 0) {
+        failures--;
+        throw new TraceExportException("unavailable", null, retryable, unsentTraces);
+      }
+      received.add(traces);
+    }
+  }
+
+  /**
+   * A scheduler that records scheduled tasks and runs them when asked instead of after a delay.
+   */
+  private static class ManualScheduler extends ScheduledThreadPoolExecutor {
+    private final List<Runnable> pending = new ArrayList<Runnable>();
+    private final List<Long> delays = new ArrayList<Long>();
+
+    private ManualScheduler() {
+      super(1);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+      pending.add(command);
+      delays.add(unit.toMillis(delay));
+      return null;
+    }
+
+    private void runPending() {
+      List<Runnable> tasks = new ArrayList<Runnable>(pending);
+      pending.clear();
+      for (Runnable task : tasks) {
+        task.run();
+      }
+    }
+  }
+}
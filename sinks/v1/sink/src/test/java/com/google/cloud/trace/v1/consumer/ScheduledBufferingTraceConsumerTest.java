@@ -0,0 +1,374 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.consumer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.cloud.trace.v1.metrics.TraceExportMetrics;
+import com.google.cloud.trace.v1.util.AdaptiveFlushPolicy;
+import com.google.cloud.trace.v1.util.BufferLimits;
+import com.google.cloud.trace.v1.util.LoadSheddingPolicy;
+import com.google.cloud.trace.v1.util.MemoryBudget;
+import com.google.cloud.trace.v1.util.ProtoTraceSizer;
+import com.google.cloud.trace.v1.util.TracePriorities;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScheduledBufferingTraceConsumerTest {
+  private ScheduledExecutorService scheduler;
+  private TestTraceConsumer delegate;
+  private ScheduledBufferingTraceConsumer consumer;
+
+  @Before
+  public void setUp() {
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+    delegate = new TestTraceConsumer();
+    consumer = new ScheduledBufferingTraceConsumer(
+        delegate, new ProtoTraceSizer(), 1024 * 1024, 60, scheduler);
+  }
+
+  @After
+  public void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void testFlushAsyncCompletesWhenDelegateAccepts() throws Exception {
+    consumer.receive(traces("1"));
+
+    consumer.flushAsync().get(10, TimeUnit.SECONDS);
+
+    assertThat(delegate.received).containsExactly(traces("1"));
+  }
+
+  @Test
+  public void testFlushAsyncOfEmptyBufferIsDone() {
+    assertThat(consumer.flushAsync().isDone()).isTrue();
+    assertThat(delegate.received).isEmpty();
+  }
+
+  @Test
+  public void testCloseDrainsBufferAndDropsLaterTraces() {
+    consumer.receive(traces("1"));
+
+    assertThat(consumer.close(10, TimeUnit.SECONDS)).isTrue();
+    consumer.receive(traces("2"));
+
+    assertThat(delegate.received).containsExactly(traces("1"));
+    assertThat(consumer.getDroppedSpanCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void testCloseGivesUpAfterTimeout() {
+    delegate.blocked = new CountDownLatch(1);
+    consumer.receive(traces("1"));
+
+    assertThat(consumer.close(10, TimeUnit.MILLISECONDS)).isFalse();
+    delegate.blocked.countDown();
+  }
+
+  @Test
+  public void testCloseDrainsAfterSchedulerShutdown() {
+    consumer.receive(traces("1"));
+    scheduler.shutdownNow();
+
+    assertThat(consumer.close(10, TimeUnit.SECONDS)).isTrue();
+    assertThat(delegate.received).containsExactly(traces("1"));
+  }
+
+  @Test
+  public void testHighPriorityTracesAreSentFirstAndNotShed() {
+    consumer = ScheduledBufferingTraceConsumer
+        .builder(delegate, new ProtoTraceSizer(), scheduler)
+        .setBufferSize(1024 * 1024)
+        .setScheduledDelay(60)
+        .setLimits(new BufferLimits(1, 1024, LoadSheddingPolicy.DROP_NEWEST))
+        .setPriorityLimits(new BufferLimits(10, 1024, LoadSheddingPolicy.DROP_NEWEST))
+        .build();
+
+    consumer.receive(traces("1"));
+    consumer.receive(traces("2"));
+    consumer.receive(failedTraces("3"));
+    consumer.flush();
+
+    assertThat(delegate.received).containsExactly(failedTraces("3"), traces("1")).inOrder();
+    assertThat(consumer.getDroppedSpanCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void testTraceBecomingHighPriorityMovesBufferedSpans() {
+    consumer = ScheduledBufferingTraceConsumer
+        .builder(delegate, new ProtoTraceSizer(), scheduler)
+        .setBufferSize(1024 * 1024)
+        .setScheduledDelay(60)
+        .setLimits(new BufferLimits(1, 1024, LoadSheddingPolicy.DROP_NEWEST))
+        .setPriorityLimits(new BufferLimits(10, 1024, LoadSheddingPolicy.DROP_NEWEST))
+        .build();
+
+    consumer.receive(traces("1"));
+    consumer.receive(failedTraces("1"));
+    consumer.receive(traces("2"));
+    consumer.flush();
+
+    assertThat(delegate.received).hasSize(2);
+    assertThat(delegate.received.get(0).getTraces(0).getSpansCount()).isEqualTo(2);
+    assertThat(delegate.received.get(1)).isEqualTo(traces("2"));
+    assertThat(consumer.getDroppedSpanCount()).isEqualTo(0L);
+  }
+
+  @Test
+  public void testMemoryPressureDropsPayloadsThenSpans() {
+    MemoryBudget budget = new MemoryBudget(1000);
+    consumer = ScheduledBufferingTraceConsumer
+        .builder(delegate, new ProtoTraceSizer(), scheduler)
+        .setBufferSize(1024 * 1024)
+        .setScheduledDelay(60)
+        .setMemoryBudget(budget)
+        .build();
+
+    budget.tryReserve(800);
+    consumer.receive(labelledTraces("1"));
+    budget.tryReserve(100);
+    consumer.receive(traces("2"));
+    budget.release(900);
+    consumer.flush();
+
+    assertThat(delegate.received).hasSize(1);
+    assertThat(delegate.received.get(0).getTraces(0).getSpans(0).getLabelsCount()).isEqualTo(0);
+    assertThat(consumer.getDroppedSpanCount()).isEqualTo(1L);
+    assertThat(budget.getReservedBytes()).isEqualTo(0L);
+  }
+
+  @Test
+  public void testHighPriorityTracesBypassFullBudget() {
+    MemoryBudget budget = new MemoryBudget(1000);
+    consumer = ScheduledBufferingTraceConsumer
+        .builder(delegate, new ProtoTraceSizer(), scheduler)
+        .setBufferSize(1024 * 1024)
+        .setScheduledDelay(60)
+        .setMemoryBudget(budget)
+        .build();
+
+    budget.tryReserve(1000);
+    consumer.receive(traces("1"));
+    consumer.receive(failedTraces("2"));
+    assertThat(budget.getReservedBytes()).isGreaterThan(1000L);
+    consumer.flush();
+
+    assertThat(delegate.received).containsExactly(failedTraces("2"));
+    assertThat(consumer.getDroppedSpanCount()).isEqualTo(1L);
+    assertThat(budget.getReservedBytes()).isEqualTo(1000L);
+  }
+
+  @Test
+  public void testMemoryBudgetIsReleasedAfterSend() throws Exception {
+    MemoryBudget budget = new MemoryBudget(1000);
+    consumer = ScheduledBufferingTraceConsumer
+        .builder(delegate, new ProtoTraceSizer(), scheduler)
+        .setBufferSize(1024 * 1024)
+        .setScheduledDelay(60)
+        .setMemoryBudget(budget)
+        .build();
+    CountDownLatch blocked = new CountDownLatch(1);
+    delegate.blocked = blocked;
+
+    consumer.receive(traces("1"));
+    long reserved = budget.getReservedBytes();
+    consumer.flushAsync();
+    Thread.sleep(50);
+
+    assertThat(reserved).isGreaterThan(0L);
+    assertThat(budget.getReservedBytes()).isEqualTo(reserved);
+    blocked.countDown();
+    for (int i = 0; i < 100 && budget.getReservedBytes() > 0; i++) {
+      Thread.sleep(10);
+    }
+    assertThat(budget.getReservedBytes()).isEqualTo(0L);
+  }
+
+  @Test
+  public void testMemoryPressureFlushesEarly() throws Exception {
+    MemoryBudget budget = new MemoryBudget(1000);
+    consumer = ScheduledBufferingTraceConsumer
+        .builder(delegate, new ProtoTraceSizer(), scheduler)
+        .setBufferSize(1024 * 1024)
+        .setScheduledDelay(60)
+        .setMemoryBudget(budget)
+        .build();
+
+    budget.tryReserve(700);
+    consumer.receive(traces("1"));
+    for (int i = 0; i < 100 && delegate.received.isEmpty(); i++) {
+      Thread.sleep(10);
+    }
+
+    assertThat(delegate.received).containsExactly(traces("1"));
+  }
+
+  @Test
+  public void testRecordsBufferingAndFlushMetrics() {
+    TraceExportMetrics metrics = new TraceExportMetrics();
+    consumer = ScheduledBufferingTraceConsumer
+        .builder(delegate, new ProtoTraceSizer(), scheduler)
+        .setBufferSize(1024 * 1024)
+        .setScheduledDelay(60)
+        .setLimits(new BufferLimits(2, 1024, LoadSheddingPolicy.DROP_NEWEST))
+        .setMetrics(metrics)
+        .build();
+
+    consumer.receive(traces("1"));
+    consumer.receive(traces("1"));
+    consumer.receive(traces("2"));
+    consumer.receive(traces("3"));
+
+    assertThat(metrics.getSpansReceived()).isEqualTo(4L);
+    assertThat(metrics.getSpansMerged()).isEqualTo(1L);
+    assertThat(metrics.getSpansDropped()).isEqualTo(1L);
+    assertThat(metrics.getBufferedSpans()).isEqualTo(2L);
+
+    consumer.flush();
+
+    assertThat(metrics.getBufferedSpans()).isEqualTo(0L);
+    assertThat(metrics.getBatchSpanCounts().getCount()).isEqualTo(1L);
+    assertThat(metrics.getBatchSpanCounts().getSum()).isEqualTo(2L);
+    assertThat(metrics.getFlushLatencyMillis().getCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void testFlushTraceAsyncSendsOnlyThatTrace() throws Exception {
+    TraceExportMetrics metrics = new TraceExportMetrics();
+    MemoryBudget budget = new MemoryBudget(1000);
+    consumer = ScheduledBufferingTraceConsumer
+        .builder(delegate, new ProtoTraceSizer(), scheduler)
+        .setBufferSize(1024 * 1024)
+        .setScheduledDelay(60)
+        .setLimits(new BufferLimits(2, 1024, LoadSheddingPolicy.DROP_NEWEST))
+        .setMetrics(metrics)
+        .setMemoryBudget(budget)
+        .build();
+
+    consumer.receive(traces("1"));
+    long firstReserved = budget.getReservedBytes();
+    consumer.receive(traces("2"));
+    long reserved = budget.getReservedBytes();
+    consumer.flushTraceAsync("project", "1").get(10, TimeUnit.SECONDS);
+
+    assertThat(delegate.received).containsExactly(traces("1"));
+    assertThat(metrics.getBufferedSpans()).isEqualTo(1L);
+    assertThat(budget.getReservedBytes()).isEqualTo(reserved - firstReserved);
+
+    // The flushed trace no longer counts toward the limits, so another trace fits.
+    consumer.receive(traces("3"));
+    consumer.flush();
+
+    assertThat(consumer.getDroppedSpanCount()).isEqualTo(0L);
+    assertThat(delegate.received).hasSize(2);
+    assertThat(delegate.received.get(1).getTracesList())
+        .containsExactly(traces("2").getTraces(0), traces("3").getTraces(0));
+    assertThat(metrics.getBufferedSpans()).isEqualTo(0L);
+    assertThat(budget.getReservedBytes()).isEqualTo(0L);
+  }
+
+  @Test
+  public void testFlushTraceAsyncOfUnbufferedTraceIsDone() {
+    consumer.receive(traces("1"));
+
+    assertThat(consumer.flushTraceAsync("project", "2").isDone()).isTrue();
+    assertThat(delegate.received).isEmpty();
+  }
+
+  @Test
+  public void testFullBuffersAreFlushedAtTargetRequestRate() throws Exception {
+    consumer = ScheduledBufferingTraceConsumer
+        .builder(delegate, new ProtoTraceSizer(), scheduler)
+        .setFlushPolicy(AdaptiveFlushPolicy.builder()
+            .setBufferSizeRange(1, 1)
+            .setDelayRange(100, 60000, TimeUnit.MILLISECONDS)
+            .setTargetRequestsPerSecond(2)
+            .build())
+        .build();
+
+    consumer.receive(traces("1"));
+    for (int i = 0; i < 100 && delegate.received.isEmpty(); i++) {
+      Thread.sleep(10);
+    }
+    consumer.receive(traces("2"));
+    Thread.sleep(100);
+
+    assertThat(delegate.received).containsExactly(traces("1"));
+    for (int i = 0; i < 100 && delegate.received.size() < 2; i++) {
+      Thread.sleep(10);
+    }
+    assertThat(delegate.received).containsExactly(traces("1"), traces("2")).inOrder();
+  }
+
+  private static Traces labelledTraces(String traceId) {
+    return Traces.newBuilder()
+        .addTraces(Trace.newBuilder()
+            .setProjectId("project")
+            .setTraceId(traceId)
+            .addSpans(TraceSpan.newBuilder()
+                .setSpanId(1)
+                .putLabels("/http/url", "/index")))
+        .build();
+  }
+
+  private static Traces failedTraces(String traceId) {
+    return Traces.newBuilder()
+        .addTraces(Trace.newBuilder()
+            .setProjectId("project")
+            .setTraceId(traceId)
+            .addSpans(TraceSpan.newBuilder()
+                .setSpanId(2)
+                .putLabels(TracePriorities.EXCEPTION_CLASS_LABEL, "java.io.IOException")))
+        .build();
+  }
+
+  private static Traces traces(String traceId) {
+    return Traces.newBuilder()
+        .addTraces(Trace.newBuilder()
+            .setProjectId("project")
+            .setTraceId(traceId)
+            .addSpans(TraceSpan.newBuilder().setSpanId(1)))
+        .build();
+  }
+
+  private static class TestTraceConsumer implements TraceConsumer {
+    private final List<Traces> received = new CopyOnWriteArrayList<Traces>();
+    private volatile CountDownLatch blocked;
+
+    @Override
+    public void receive(Traces traces) {
+      if (blocked != null) {
+        try {
+          blocked.await();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      received.add(traces);
+    }
+  }
+}
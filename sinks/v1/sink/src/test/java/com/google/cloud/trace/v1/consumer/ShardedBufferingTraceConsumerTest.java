@@ -0,0 +1,114 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.consumer;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.google.cloud.trace.v1.util.BufferLimits;
+import com.google.cloud.trace.v1.util.Sizer;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class ShardedBufferingTraceConsumerTest {
+  private static final Sizer<Trace> tenBytes = new Sizer<Trace>() {
+    @Override
+    public int size(Trace sizeable) {
+      return 10;
+    }
+  };
+
+  @Test
+  public void testCombinesTraceInOneShard() {
+    ArgumentCaptor<Traces> tracesCaptor = ArgumentCaptor.forClass(Traces.class);
+    TraceConsumer mockSink = mock(TraceConsumer.class);
+    FlushableTraceConsumer bufferedSink =
+        new ShardedBufferingTraceConsumer(mockSink, tenBytes, 1000, 8);
+    Trace start = Trace.newBuilder().setProjectId("1").setTraceId("1")
+        .addSpans(TraceSpan.newBuilder().setSpanId(1).setName("span")).build();
+    Trace end = Trace.newBuilder().setProjectId("1").setTraceId("1")
+        .addSpans(TraceSpan.newBuilder().setSpanId(1).setEndTime(
+            com.google.protobuf.Timestamp.newBuilder().setSeconds(2))).build();
+    bufferedSink.receive(Traces.newBuilder().addTraces(start).build());
+    bufferedSink.receive(Traces.newBuilder().addTraces(end).build());
+    bufferedSink.flush();
+
+    verify(mockSink, times(1)).receive(tracesCaptor.capture());
+    Traces traces = tracesCaptor.getValue();
+    assertThat(traces.getTracesCount()).isEqualTo(1);
+    assertThat(traces.getTraces(0).getSpansCount()).isEqualTo(1);
+    assertThat(traces.getTraces(0).getSpans(0).getName()).isEqualTo("span");
+    assertThat(traces.getTraces(0).getSpans(0).getEndTime().getSeconds()).isEqualTo(2L);
+  }
+
+  @Test
+  public void testFlushesAllShards() {
+    ArgumentCaptor<Traces> tracesCaptor = ArgumentCaptor.forClass(Traces.class);
+    TraceConsumer mockSink = mock(TraceConsumer.class);
+    FlushableTraceConsumer bufferedSink =
+        new ShardedBufferingTraceConsumer(mockSink, tenBytes, 1000, 1);
+    Trace trace1 = Trace.newBuilder().setProjectId("1").setTraceId("1").build();
+    Trace trace2 = Trace.newBuilder().setProjectId("1").setTraceId("2").build();
+    bufferedSink.receive(Traces.newBuilder().addTraces(trace1).addTraces(trace2).build());
+    bufferedSink.flush();
+    bufferedSink.flush();
+
+    verify(mockSink, times(1)).receive(tracesCaptor.capture());
+    assertThat(tracesCaptor.getValue().getTracesList()).containsExactly(trace1, trace2);
+  }
+
+  @Test
+  public void testFlushesFullShard() {
+    ArgumentCaptor<Traces> tracesCaptor = ArgumentCaptor.forClass(Traces.class);
+    TraceConsumer mockSink = mock(TraceConsumer.class);
+    FlushableTraceConsumer bufferedSink =
+        new ShardedBufferingTraceConsumer(mockSink, tenBytes, 25, 4);
+    for (int i = 0; i < 3; i++) {
+      Trace trace = Trace.newBuilder().setProjectId("1").setTraceId("1")
+          .addSpans(TraceSpan.newBuilder().setSpanId(i + 1)).build();
+      bufferedSink.receive(Traces.newBuilder().addTraces(trace).build());
+    }
+
+    verify(mockSink, times(1)).receive(tracesCaptor.capture());
+    assertThat(tracesCaptor.getValue().getTraces(0).getSpansCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void testFlushesShardAfterScheduledDelay() {
+    ArgumentCaptor<Traces> tracesCaptor = ArgumentCaptor.forClass(Traces.class);
+    TraceConsumer mockSink = mock(TraceConsumer.class);
+    ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    try {
+      FlushableTraceConsumer bufferedSink = new ShardedBufferingTraceConsumer(
+          mockSink, tenBytes, 1000, 2, 1, scheduler, BufferLimits.unlimited());
+      Trace trace = Trace.newBuilder().setProjectId("1").setTraceId("1")
+          .addSpans(TraceSpan.newBuilder().setSpanId(1)).build();
+      bufferedSink.receive(Traces.newBuilder().addTraces(trace).build());
+
+      verify(mockSink, timeout(5000).times(1)).receive(tracesCaptor.capture());
+      assertThat(tracesCaptor.getValue().getTracesList()).containsExactly(trace);
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,91 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.consumer;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.util.List;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class SplittingTraceConsumerTest {
+
+  @Test
+  public void testPassesThroughSmallTraces() {
+    TraceConsumer mockConsumer = mock(TraceConsumer.class);
+    Traces traces = Traces.newBuilder().addTraces(trace("1", 2)).build();
+
+    new SplittingTraceConsumer(mockConsumer, 1024).receive(traces);
+
+    verify(mockConsumer).receive(traces);
+  }
+
+  @Test
+  public void testSplitsBetweenTraces() {
+    ArgumentCaptor<Traces> tracesCaptor = ArgumentCaptor.forClass(Traces.class);
+    TraceConsumer mockConsumer = mock(TraceConsumer.class);
+    Trace trace1 = trace("1", 2);
+    Trace trace2 = trace("2", 2);
+    Trace trace3 = trace("3", 2);
+    Traces traces =
+        Traces.newBuilder().addTraces(trace1).addTraces(trace2).addTraces(trace3).build();
+    int maxSize =
+        Traces.newBuilder().addTraces(trace1).addTraces(trace2).build().getSerializedSize();
+
+    new SplittingTraceConsumer(mockConsumer, maxSize).receive(traces);
+
+    verify(mockConsumer, times(2)).receive(tracesCaptor.capture());
+    List<Traces> traceBatches = tracesCaptor.getAllValues();
+    assertThat(traceBatches.get(0).getTracesList()).containsExactly(trace1, trace2).inOrder();
+    assertThat(traceBatches.get(1).getTracesList()).containsExactly(trace3);
+  }
+
+  @Test
+  public void testSplitsLargeTraceBetweenSpans() {
+    ArgumentCaptor<Traces> tracesCaptor = ArgumentCaptor.forClass(Traces.class);
+    TraceConsumer mockConsumer = mock(TraceConsumer.class);
+    Trace trace = trace("1", 10);
+    int maxSize = Traces.newBuilder().addTraces(trace("1", 4)).build().getSerializedSize();
+
+    new SplittingTraceConsumer(mockConsumer, maxSize)
+        .receive(Traces.newBuilder().addTraces(trace).build());
+
+    verify(mockConsumer, times(3)).receive(tracesCaptor.capture());
+    int spanCount = 0;
+    for (Traces traces : tracesCaptor.getAllValues()) {
+      assertThat(traces.getSerializedSize()).isAtMost(maxSize);
+      for (Trace part : traces.getTracesList()) {
+        assertThat(part.getProjectId()).isEqualTo("project");
+        assertThat(part.getTraceId()).isEqualTo("1");
+        spanCount += part.getSpansCount();
+      }
+    }
+    assertThat(spanCount).isEqualTo(10);
+  }
+
+  private static Trace trace(String traceId, int spanCount) {
+    Trace.Builder builder = Trace.newBuilder().setProjectId("project").setTraceId(traceId);
+    for (int i = 1; i <= spanCount; i++) {
+      builder.addSpans(TraceSpan.newBuilder().setSpanId(i).setName("span"));
+    }
+    return builder.build();
+  }
+}
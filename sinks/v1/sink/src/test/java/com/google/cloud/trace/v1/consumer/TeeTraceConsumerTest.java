@@ -0,0 +1,138 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.consumer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.cloud.trace.v1.util.BufferLimits;
+import com.google.cloud.trace.v1.util.LoadSheddingPolicy;
+import com.google.cloud.trace.v1.util.ProtoTraceSizer;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+public class TeeTraceConsumerTest {
+  @Test
+  public void testSlowBranchDoesNotDelayOtherBranches() throws Exception {
+    TestTraceConsumer slow = new TestTraceConsumer();
+    slow.blocked = new CountDownLatch(1);
+    TestTraceConsumer fast = new TestTraceConsumer();
+    TeeTraceConsumer consumer = TeeTraceConsumer.builder(new ProtoTraceSizer())
+        .addBranch(slow, 1, 60, new BufferLimits(1, 1024, LoadSheddingPolicy.DROP_NEWEST))
+        .addBranch(fast, 1, 60, new BufferLimits(100, 1024, LoadSheddingPolicy.DROP_NEWEST))
+        .build();
+
+    consumer.receive(traces("1"));
+    Thread.sleep(100);
+    consumer.receive(traces("2"));
+    consumer.receive(traces("3"));
+    // The fast branch may send the last two trace messages in one batch.
+    for (int i = 0; i < 100 && fast.getTraceCount() < 3; i++) {
+      Thread.sleep(10);
+    }
+
+    assertThat(fast.getTraceCount()).isEqualTo(3);
+    assertThat(slow.received).isEmpty();
+    // The slow branch holds one trace message in its delegate and queues one more.
+    assertThat(consumer.getDroppedSpanCount(0)).isEqualTo(1L);
+    assertThat(consumer.getDroppedSpanCount(1)).isEqualTo(0L);
+    slow.blocked.countDown();
+  }
+
+  @Test
+  public void testFlushFlushesAllBranches() {
+    TestTraceConsumer first = new TestTraceConsumer();
+    TestTraceConsumer second = new TestTraceConsumer();
+    TeeTraceConsumer consumer = TeeTraceConsumer.builder(new ProtoTraceSizer())
+        .addBranch(first, 1024 * 1024, 60,
+            new BufferLimits(100, 1024, LoadSheddingPolicy.DROP_NEWEST))
+        .addBranch(second, 1024 * 1024, 60,
+            new BufferLimits(100, 1024, LoadSheddingPolicy.DROP_OLDEST_TRACES))
+        .build();
+
+    consumer.receive(traces("1"));
+    consumer.flush();
+
+    assertThat(consumer.getBranchCount()).isEqualTo(2);
+    assertThat(first.received).containsExactly(traces("1"));
+    assertThat(second.received).containsExactly(traces("1"));
+  }
+
+  @Test
+  public void testCloseClosesAllBranches() {
+    TestTraceConsumer first = new TestTraceConsumer();
+    TestTraceConsumer second = new TestTraceConsumer();
+    TeeTraceConsumer consumer = TeeTraceConsumer.builder(new ProtoTraceSizer())
+        .addBranch(first, 1024 * 1024, 60,
+            new BufferLimits(100, 1024, LoadSheddingPolicy.DROP_NEWEST))
+        .addBranch(second, 1024 * 1024, 60,
+            new BufferLimits(100, 1024, LoadSheddingPolicy.DROP_NEWEST))
+        .build();
+
+    consumer.receive(traces("1"));
+    consumer.close();
+    consumer.receive(traces("2"));
+
+    assertThat(first.received).containsExactly(traces("1"));
+    assertThat(second.received).containsExactly(traces("1"));
+    assertThat(consumer.getDroppedSpanCount(0)).isEqualTo(1L);
+    assertThat(consumer.getDroppedSpanCount(1)).isEqualTo(1L);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBranchesMustBeBounded() {
+    TeeTraceConsumer.builder(new ProtoTraceSizer())
+        .addBranch(new TestTraceConsumer(), 1024, 60, BufferLimits.unlimited());
+  }
+
+  private static Traces traces(String traceId) {
+    return Traces.newBuilder()
+        .addTraces(Trace.newBuilder()
+            .setProjectId("project")
+            .setTraceId(traceId)
+            .addSpans(TraceSpan.newBuilder().setSpanId(1)))
+        .build();
+  }
+
+  private static class TestTraceConsumer implements TraceConsumer {
+    private final List<Traces> received = new CopyOnWriteArrayList<Traces>();
+    private volatile CountDownLatch blocked;
+
+    @Override
+    public void receive(Traces traces) {
+      CountDownLatch latch = blocked;
+      if (latch != null) {
+        try {
+          latch.await();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      received.add(traces);
+    }
+
+    private int getTraceCount() {
+      int count = 0;
+      for (Traces traces : received) {
+        count += traces.getTracesCount();
+      }
+      return count;
+    }
+  }
+}
@@ -0,0 +1,74 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.metrics;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class HistogramTest {
+  @Test
+  public void testRecordsValuesInBuckets() {
+    Histogram histogram = new Histogram(10, 100, 1000);
+
+    histogram.record(0);
+    histogram.record(10);
+    histogram.record(11);
+    histogram.record(1000);
+    histogram.record(5000);
+
+    HistogramSnapshot snapshot = histogram.snapshot();
+    assertThat(snapshot.getBucketBounds()).isEqualTo(new long[] {10, 100, 1000});
+    assertThat(snapshot.getBucketCounts()).isEqualTo(new long[] {2, 1, 1, 1});
+    assertThat(snapshot.getCount()).isEqualTo(5L);
+    assertThat(snapshot.getSum()).isEqualTo(6021L);
+  }
+
+  @Test
+  public void testQuantileBound() {
+    Histogram histogram = Histogram.exponential(1, 2, 4);
+    for (int i = 0; i < 9; i++) {
+      histogram.record(1);
+    }
+    histogram.record(100);
+
+    HistogramSnapshot snapshot = histogram.snapshot();
+    assertThat(snapshot.getQuantileBound(0.5)).isEqualTo(1L);
+    assertThat(snapshot.getQuantileBound(0.9)).isEqualTo(1L);
+    assertThat(snapshot.getQuantileBound(1.0)).isEqualTo(Long.MAX_VALUE);
+  }
+
+  @Test
+  public void testStripedCounterSumsUpdates() throws InterruptedException {
+    final StripedCounter counter = new StripedCounter();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 1000; j++) {
+            counter.increment();
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertThat(counter.get()).isEqualTo(4000L);
+  }
+}
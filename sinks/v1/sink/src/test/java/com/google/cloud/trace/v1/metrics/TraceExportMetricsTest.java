@@ -0,0 +1,100 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.metrics;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import org.junit.After;
+import org.junit.Test;
+
+public class TraceExportMetricsTest {
+  private final TraceExportMetrics metrics = new TraceExportMetrics();
+
+  @After
+  public void tearDown() throws Exception {
+    metrics.unregister();
+  }
+
+  @Test
+  public void testRecordsPipelineMetrics() {
+    metrics.recordReceived(5, 1, 2);
+    metrics.recordBufferedSpans(3);
+    metrics.recordFlush(3, TimeUnit.MILLISECONDS.toNanos(4));
+    metrics.recordBufferedSpans(-3);
+    metrics.recordExport(3, TimeUnit.MILLISECONDS.toNanos(8));
+    metrics.recordExportError(TimeUnit.MILLISECONDS.toNanos(16));
+
+    assertThat(metrics.getSpansReceived()).isEqualTo(5L);
+    assertThat(metrics.getSpansMerged()).isEqualTo(1L);
+    assertThat(metrics.getSpansDropped()).isEqualTo(2L);
+    assertThat(metrics.getBufferedSpans()).isEqualTo(0L);
+    assertThat(metrics.getSpansExported()).isEqualTo(3L);
+    assertThat(metrics.getExportErrors()).isEqualTo(1L);
+    assertThat(metrics.getBatchSpanCounts().getSum()).isEqualTo(3L);
+    assertThat(metrics.getFlushLatencyMillis().getSum()).isEqualTo(4L);
+    assertThat(metrics.getExportLatencyMillis().getCount()).isEqualTo(2L);
+    assertThat(metrics.getExportLatencyMillis().getSum()).isEqualTo(24L);
+  }
+
+  @Test
+  public void testRegistersWithPlatformMBeanServer() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    metrics.recordExport(7, 0);
+
+    ObjectName objectName = metrics.register("test");
+
+    assertThat(objectName.getDomain()).isEqualTo(TraceExportMetrics.DOMAIN);
+    assertThat(server.isRegistered(objectName)).isTrue();
+    assertThat(server.getAttribute(objectName, "SpansExported")).isEqualTo(7L);
+
+    metrics.unregister();
+    assertThat(server.isRegistered(objectName)).isFalse();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testCannotRegisterTwice() throws Exception {
+    metrics.register("twice");
+    metrics.register("twice");
+  }
+
+  @Test
+  public void testHistogramSnapshotsAreCompositeData() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    metrics.recordFlush(1, 0);
+    metrics.recordFlush(3, 0);
+    ObjectName objectName = metrics.register("composite");
+
+    CompositeData data = (CompositeData) server.getAttribute(objectName, "BatchSpanCounts");
+
+    HistogramSnapshot snapshot = metrics.getBatchSpanCounts();
+    assertThat((long[]) data.get("bucketBounds")).isEqualTo(snapshot.getBucketBounds());
+    assertThat((long[]) data.get("bucketCounts")).isEqualTo(snapshot.getBucketCounts());
+    assertThat(data.get("count")).isEqualTo(2L);
+    assertThat(data.get("sum")).isEqualTo(4L);
+    assertThat(data.get("mean")).isEqualTo(2.0);
+
+    // A proxy reconstructs the snapshot from its composite data.
+    HistogramSnapshot proxied = JMX.newMXBeanProxy(
+        server, objectName, TraceExportMetricsMXBean.class).getBatchSpanCounts();
+    assertThat(proxied.getBucketCounts()).isEqualTo(snapshot.getBucketCounts());
+    assertThat(proxied.getSum()).isEqualTo(4L);
+  }
+}
@@ -0,0 +1,187 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.producer;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.cloud.trace.core.Labels;
+import com.google.cloud.trace.core.SpanContext;
+import com.google.cloud.trace.core.SpanId;
+import com.google.cloud.trace.core.TraceId;
+import com.google.cloud.trace.core.SpanKind;
+import com.google.cloud.trace.core.StackTrace;
+import com.google.cloud.trace.core.Timestamp;
+import com.google.cloud.trace.core.TraceOptions;
+import com.google.cloud.trace.v1.TraceSinkV1;
+import com.google.cloud.trace.v1.consumer.TraceConsumer;
+import com.google.cloud.trace.v1.util.TraceBuffer;
+import com.google.common.base.Charsets;
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.math.BigInteger;
+import org.junit.Test;
+
+public class TraceProducerTest {
+  private static final SpanContext context = new SpanContext(
+      new TraceId(BigInteger.valueOf(10)), new SpanId(20), TraceOptions.forTraceEnabled());
+
+  @Test
+  public void testUnlimitedPolicyKeepsLabels() {
+    TraceProducer producer = new TraceProducer();
+
+    TraceSpan span = producer.applyAnnotateSpan(TraceSpan.newBuilder(), context,
+        Labels.builder().add("a", "value").add("b", "value").build()).build();
+
+    assertThat(span.getLabelsCount()).isEqualTo(2);
+    assertThat(producer.getDroppedLabelCount()).isEqualTo(0L);
+  }
+
+  @Test
+  public void testDeniedAndUnallowedKeysAreDropped() {
+    TraceProducer producer = new TraceProducer(LabelPolicy.builder()
+        .allowKey("/http/*")
+        .allowKey("user")
+        .denyKey("/http/request/header*")
+        .build());
+
+    TraceSpan span = producer.applyAnnotateSpan(TraceSpan.newBuilder(), context,
+        Labels.builder()
+            .add("/http/url", "/index")
+            .add("/http/request/header/cookie", "secret")
+            .add("user", "alice")
+            .add("/args/0", "value")
+            .build()).build();
+
+    assertThat(span.getLabelsMap().keySet()).containsExactly("/http/url", "user");
+    assertThat(producer.getDroppedLabelCount()).isEqualTo(2L);
+  }
+
+  @Test
+  public void testLongKeysAreDroppedAndLongValuesTruncated() {
+    TraceProducer producer = new TraceProducer(LabelPolicy.builder()
+        .setMaxKeyLength(4)
+        .setMaxValueLength(3)
+        .build());
+
+    TraceSpan span = producer.applyAnnotateSpan(TraceSpan.newBuilder(), context,
+        Labels.builder().add("long key", "value").add("key", "value").add("k", "v").build())
+        .build();
+
+    assertThat(span.getLabelsMap()).containsExactly("key", "val", "k", "v");
+    assertThat(producer.getDroppedLabelCount()).isEqualTo(1L);
+    assertThat(producer.getTruncatedLabelCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void testLabelCountIsLimitedPerSpan() {
+    TraceProducer producer = new TraceProducer(LabelPolicy.builder().setMaxLabels(2).build());
+    TraceSpan.Builder spanBuilder = TraceSpan.newBuilder();
+
+    producer.applyAnnotateSpan(spanBuilder, context, Labels.builder().add("a", "1").build());
+    producer.applyAnnotateSpan(spanBuilder, context,
+        Labels.builder().add("b", "2").add("c", "3").add("a", "4").build());
+
+    assertThat(spanBuilder.getLabelsMap()).containsExactly("a", "4", "b", "2");
+    assertThat(producer.getDroppedLabelCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void testLabelCountIsLimitedPerSpanThroughSink() {
+    final TraceBuffer traceBuffer = new TraceBuffer();
+    TraceProducer producer = new TraceProducer(LabelPolicy.builder().setMaxLabels(2).build());
+    TraceSinkV1 sink = new TraceSinkV1("project", producer, new TraceConsumer() {
+      @Override
+      public void receive(Traces traces) {
+        for (Trace trace : traces.getTracesList()) {
+          traceBuffer.put(trace);
+        }
+      }
+    });
+    Timestamp timestamp = new Timestamp() {
+      @Override
+      public long getSeconds() {
+        return 1;
+      }
+
+      @Override
+      public int getNanos() {
+        return 0;
+      }
+    };
+
+    sink.startSpan(context, context, SpanKind.UNSPECIFIED, "span", timestamp);
+    sink.annotateSpan(context, Labels.builder().add("a", "1").build());
+    sink.annotateSpan(context, Labels.builder().add("b", "2").build());
+    sink.annotateSpan(context, Labels.builder().add("c", "3").add("a", "4").build());
+    sink.endSpan(context, timestamp);
+
+    TraceSpan span = traceBuffer.getTraces().getTraces(0).getSpans(0);
+    assertThat(span.getLabelsMap()).containsExactly("a", "4", "b", "2");
+    assertThat(producer.getDroppedLabelCount()).isEqualTo(1L);
+  }
+
+  @Test
+  public void testEqualStackTracesShareCachedLabel() {
+    TraceProducer producer = new TraceProducer();
+
+    String first = stackTraceLabel(producer, stackTrace());
+    String second = stackTraceLabel(producer, stackTrace());
+
+    assertThat(second).isSameAs(first);
+  }
+
+  @Test
+  public void testCachedStackTraceLabelMatchesUncachedEncoding() {
+    TraceProducer cachingProducer = new TraceProducer();
+    TraceProducer uncachedProducer = new TraceProducer(0);
+
+    stackTraceLabel(cachingProducer, stackTrace());
+    String cached = stackTraceLabel(cachingProducer, stackTrace());
+    String uncached = stackTraceLabel(uncachedProducer, stackTrace());
+
+    assertThat(cached.getBytes(Charsets.UTF_8)).isEqualTo(uncached.getBytes(Charsets.UTF_8));
+    assertThat(uncached).isEqualTo("{\"stack_frame\":["
+        + "{\"class_name\":\"com.example.Foo\",\"method_name\":\"bar\","
+        + "\"file_name\":\"Foo.java\",\"line_number\":12},"
+        + "{\"class_name\":\"com.example.Main\",\"method_name\":\"main\"}]}");
+  }
+
+  @Test
+  public void testTruncationDoesNotSplitSurrogatePairs() {
+    LabelPolicy policy = LabelPolicy.builder().setMaxValueLength(2).build();
+
+    assertThat(policy.truncateValue("a\uD83D\uDE00")).isEqualTo("a");
+    assertThat(policy.truncateValue("ab")).isEqualTo("ab");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testKeyPatternMustNotBeEmpty() {
+    LabelPolicy.builder().allowKey("");
+  }
+
+  private static String stackTraceLabel(TraceProducer producer, StackTrace stackTrace) {
+    return producer.applySetStackTrace(TraceSpan.newBuilder(), context, stackTrace)
+        .getLabelsMap()
+        .get("/stacktrace");
+  }
+
+  private static StackTrace stackTrace() {
+    return StackTrace.builder()
+        .add("com.example.Foo", "bar", "Foo.java", 12, null)
+        .add("com.example.Main", "main", null, null, null)
+        .build();
+  }
+}
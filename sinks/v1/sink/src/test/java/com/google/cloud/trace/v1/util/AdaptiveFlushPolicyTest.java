@@ -0,0 +1,70 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class AdaptiveFlushPolicyTest {
+  private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long SLOW = TimeUnit.SECONDS.toNanos(2);
+
+  private final AdaptiveFlushPolicy policy = AdaptiveFlushPolicy.builder()
+      .setBufferSizeRange(100, 1700)
+      .setDelayRange(100, 1800, TimeUnit.MILLISECONDS)
+      .setTargetLatency(1, TimeUnit.SECONDS)
+      .setTargetRequestsPerSecond(5)
+      .build();
+
+  @Test
+  public void testStartsWithSmallBuffersAndLongDelays() {
+    assertThat(policy.getBufferSize()).isEqualTo(100);
+    assertThat(policy.getDelayMillis()).isEqualTo(1800L);
+    assertThat(policy.getMinIntervalMillis()).isEqualTo(200L);
+  }
+
+  @Test
+  public void testBufferSizeGrowsAdditivelyAndShrinksMultiplicatively() {
+    for (int i = 0; i < 5; i++) {
+      policy.recordExport(policy.getBufferSize(), FAST, 0);
+    }
+    assertThat(policy.getBufferSize()).isEqualTo(600);
+
+    policy.recordExport(600, SLOW, 0);
+    assertThat(policy.getBufferSize()).isEqualTo(300);
+
+    // Batches that didn't fill the buffer don't grow it.
+    policy.recordExport(10, FAST, 0);
+    assertThat(policy.getBufferSize()).isEqualTo(300);
+  }
+
+  @Test
+  public void testDelayShrinksWithBacklogDownToTargetRequestRate() {
+    for (int i = 0; i < 10; i++) {
+      policy.recordExport(100, FAST, 1000);
+    }
+    assertThat(policy.getDelayMillis()).isEqualTo(200L);
+
+    policy.recordExport(100, FAST, 0);
+    assertThat(policy.getDelayMillis()).isEqualTo(300L);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBufferSizeRangeMustBeOrdered() {
+    AdaptiveFlushPolicy.builder().setBufferSizeRange(200, 100);
+  }
+}
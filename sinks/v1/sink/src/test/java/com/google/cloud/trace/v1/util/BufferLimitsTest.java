@@ -0,0 +1,50 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+
+public class BufferLimitsTest {
+  @Test
+  public void testDefaultsDropOldestTraces() {
+    BufferLimits limits = BufferLimits.defaults();
+
+    assertThat(limits).isNotSameAs(BufferLimits.unlimited());
+    assertThat(limits.getMaxBytes()).isEqualTo(BufferLimits.DEFAULT_MAX_BYTES);
+    assertThat(limits.getPolicy()).isEqualTo(LoadSheddingPolicy.DROP_OLDEST_TRACES);
+  }
+
+  @Test
+  public void testSmallBufferSizeUsesDefaults() {
+    assertThat(BufferLimits.forBufferSize(32 * 1024)).isSameAs(BufferLimits.defaults());
+  }
+
+  @Test
+  public void testLargeBufferSizeHoldsSeveralBuffers() {
+    BufferLimits limits = BufferLimits.forBufferSize(BufferLimits.DEFAULT_MAX_BYTES);
+
+    assertThat(limits.getMaxBytes())
+        .isEqualTo(BufferLimits.DEFAULT_MAX_BYTES * BufferLimits.DEFAULT_BUFFER_MULTIPLE);
+    assertThat(limits.getPolicy()).isEqualTo(LoadSheddingPolicy.DROP_OLDEST_TRACES);
+  }
+
+  @Test
+  public void testHugeBufferSizeDoesNotOverflow() {
+    assertThat(BufferLimits.forBufferSize(Integer.MAX_VALUE).getMaxBytes())
+        .isEqualTo(Integer.MAX_VALUE);
+  }
+}
@@ -0,0 +1,117 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class MemoryBudgetTest {
+  @Test
+  public void testReservationsStayWithinBudget() {
+    MemoryBudget budget = new MemoryBudget(100);
+
+    assertThat(budget.tryReserve(60)).isTrue();
+    assertThat(budget.tryReserve(60)).isFalse();
+    budget.release(60);
+    assertThat(budget.tryReserve(100)).isTrue();
+    assertThat(budget.getReservedBytes()).isEqualTo(100L);
+  }
+
+  @Test
+  public void testPressureRisesWithFillRatio() {
+    MemoryBudget budget = new MemoryBudget(100, 0.5, 0.7, 0.9);
+
+    assertThat(budget.getPressure()).isEqualTo(MemoryPressure.NONE);
+    budget.tryReserve(50);
+    assertThat(budget.getPressure()).isEqualTo(MemoryPressure.FLUSH_EARLY);
+    budget.tryReserve(20);
+    assertThat(budget.getPressure()).isEqualTo(MemoryPressure.DROP_PAYLOADS);
+    budget.tryReserve(20);
+    assertThat(budget.getPressure()).isEqualTo(MemoryPressure.DROP_SPANS);
+    budget.release(90);
+    assertThat(budget.getPressure()).isEqualTo(MemoryPressure.NONE);
+  }
+
+  @Test
+  public void testMonitoringCanBeStartedAndStopped() {
+    MemoryBudget budget = new MemoryBudget(100);
+
+    budget.startMonitoring();
+    budget.startMonitoring();
+    budget.stopMonitoring();
+
+    assertThat(budget.getPressure()).isEqualTo(MemoryPressure.NONE);
+  }
+
+  @Test
+  public void testMonitoringKeepsAndRestoresThresholds() {
+    List<MemoryPoolMXBean> pools = tenuredPools();
+    List<Long> originals = new ArrayList<Long>();
+    for (MemoryPoolMXBean pool : pools) {
+      originals.add(MemoryBudget.getThreshold(pool));
+    }
+    try {
+      // Other code's threshold is set on the first pool, and the other pools have none.
+      for (MemoryPoolMXBean pool : pools) {
+        MemoryBudget.setThreshold(pool, 0);
+      }
+      if (!pools.isEmpty()) {
+        MemoryBudget.setThreshold(pools.get(0), pools.get(0).getUsage().getMax() / 2);
+      }
+      List<Long> before = new ArrayList<Long>();
+      for (MemoryPoolMXBean pool : pools) {
+        before.add(MemoryBudget.getThreshold(pool));
+      }
+      MemoryBudget budget = new MemoryBudget(100, 0.7, 0.8, 0.9);
+
+      budget.startMonitoring();
+      if (!pools.isEmpty()) {
+        assertThat(MemoryBudget.getThreshold(pools.get(0))).isEqualTo(before.get(0));
+      }
+      for (int i = 1; i < pools.size(); i++) {
+        assertThat(MemoryBudget.getThreshold(pools.get(i))).isGreaterThan(0L);
+      }
+      budget.stopMonitoring();
+
+      for (int i = 0; i < pools.size(); i++) {
+        assertThat(MemoryBudget.getThreshold(pools.get(i))).isEqualTo(before.get(i));
+      }
+    } finally {
+      for (int i = 0; i < pools.size(); i++) {
+        MemoryBudget.setThreshold(pools.get(i), originals.get(i));
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRatiosMustIncrease() {
+    new MemoryBudget(100, 0.9, 0.8, 0.7);
+  }
+
+  private static List<MemoryPoolMXBean> tenuredPools() {
+    List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (MemoryBudget.isTenured(pool)) {
+        pools.add(pool);
+      }
+    }
+    return pools;
+  }
+}
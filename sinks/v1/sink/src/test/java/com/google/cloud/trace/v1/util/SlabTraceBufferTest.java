@@ -0,0 +1,105 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.protobuf.Timestamp;
+import org.junit.Test;
+
+public class SlabTraceBufferTest {
+
+  @Test
+  public void testStoresAndCombinesSpans() {
+    SlabTraceBuffer traceBuffer = new SlabTraceBuffer(new SlabPool(64, 4));
+
+    traceBuffer.put(trace("1", TraceSpan.newBuilder()
+        .setSpanId(1)
+        .setName("span")
+        .setStartTime(Timestamp.newBuilder().setSeconds(1))
+        .build()));
+    traceBuffer.put(trace("1", TraceSpan.newBuilder()
+        .setSpanId(1)
+        .setEndTime(Timestamp.newBuilder().setSeconds(2))
+        .putLabels("key", "value")
+        .build()));
+    for (int i = 2; i <= 20; i++) {
+      traceBuffer.put(trace("2", TraceSpan.newBuilder().setSpanId(i).setName("s" + i).build()));
+    }
+
+    assertThat(traceBuffer.getSpanCount()).isEqualTo(20);
+    assertThat(traceBuffer.getSerializedSize())
+        .isEqualTo(traceBuffer.getTraces().getSerializedSize());
+    assertThat(traceBuffer.getTraces().getTraces(0)).isEqualTo(trace("1", TraceSpan.newBuilder()
+        .setSpanId(1)
+        .setName("span")
+        .setStartTime(Timestamp.newBuilder().setSeconds(1))
+        .setEndTime(Timestamp.newBuilder().setSeconds(2))
+        .putLabels("key", "value")
+        .build()));
+    assertThat(traceBuffer.getTraces().getTraces(1).getSpans(18).getName()).isEqualTo("s20");
+  }
+
+  @Test
+  public void testStoresSpansLargerThanSlabs() {
+    SlabPool pool = new SlabPool(16, 4);
+    SlabTraceBuffer traceBuffer = new SlabTraceBuffer(pool);
+    TraceSpan span = TraceSpan.newBuilder()
+        .setSpanId(1)
+        .setName("a name that doesn't fit into a slab")
+        .build();
+
+    traceBuffer.put(trace("1", span));
+
+    assertThat(traceBuffer.getTraces().getTraces(0).getSpans(0)).isEqualTo(span);
+    traceBuffer.release();
+    assertThat(pool.getPooledSlabCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testReleaseReturnsSlabs() {
+    SlabPool pool = new SlabPool(64, 4);
+    SlabTraceBuffer traceBuffer =
+        new SlabTraceBuffer(new BufferLimits(2, Integer.MAX_VALUE, LoadSheddingPolicy.DROP_NEWEST),
+            pool);
+
+    assertThat(traceBuffer.put(trace("1", span(1)))).isEqualTo(0);
+    assertThat(traceBuffer.put(trace("2", span(2)))).isEqualTo(0);
+    assertThat(traceBuffer.put(trace("3", span(3)))).isEqualTo(1);
+    assertThat(traceBuffer.removeTrace("project", "1")).isEqualTo(trace("1", span(1)));
+    assertThat(traceBuffer.getSlabCount()).isEqualTo(1);
+
+    traceBuffer.release();
+
+    assertThat(traceBuffer.isEmpty()).isTrue();
+    assertThat(traceBuffer.getSpanCount()).isEqualTo(0);
+    assertThat(traceBuffer.getSlabCount()).isEqualTo(0);
+    assertThat(pool.getPooledSlabCount()).isEqualTo(1);
+  }
+
+  private static Trace trace(String traceId, TraceSpan span) {
+    return Trace.newBuilder()
+        .setProjectId("project")
+        .setTraceId(traceId)
+        .addSpans(span)
+        .build();
+  }
+
+  private static TraceSpan span(long spanId) {
+    return TraceSpan.newBuilder().setSpanId(spanId).setName("span").build();
+  }
+}
@@ -0,0 +1,195 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.TraceSpan;
+import com.google.devtools.cloudtrace.v1.Traces;
+import com.google.protobuf.Timestamp;
+import org.junit.Test;
+
+public class TraceBufferTest {
+
+  @Test
+  public void testSerializedSizeMatchesTraces() {
+    TraceBuffer traceBuffer = new TraceBuffer();
+    assertThat(traceBuffer.getSerializedSize()).isEqualTo(0);
+
+    traceBuffer.put(trace("1", TraceSpan.newBuilder()
+        .setSpanId(1)
+        .setKind(TraceSpan.SpanKind.RPC_SERVER)
+        .setName("\u00fcber")
+        .setStartTime(Timestamp.newBuilder().setSeconds(1).setNanos(2))
+        .setParentSpanId(0)
+        .build()));
+    assertThat(traceBuffer.getSerializedSize())
+        .isEqualTo(traceBuffer.getTraces().getSerializedSize());
+
+    traceBuffer.put(trace("1", TraceSpan.newBuilder()
+        .setSpanId(1)
+        .putLabels("key", "")
+        .putLabels("", "value")
+        .build()));
+    traceBuffer.put(trace("1", TraceSpan.newBuilder()
+        .setSpanId(1)
+        .setEndTime(Timestamp.newBuilder().setSeconds(3))
+        .putLabels("key", "a much longer value than before")
+        .build()));
+    traceBuffer.put(trace("2", span(2)));
+    assertThat(traceBuffer.getSerializedSize())
+        .isEqualTo(traceBuffer.getTraces().getSerializedSize());
+  }
+
+  @Test
+  public void testProtoTraceSizer() {
+    Trace trace = trace("1", TraceSpan.newBuilder().setSpanId(1).setName("name").build());
+
+    assertThat(new ProtoTraceSizer().size(trace))
+        .isEqualTo(Traces.newBuilder().addTraces(trace).build().getSerializedSize());
+  }
+
+  @Test
+  public void testDropNewest() {
+    TraceBuffer traceBuffer =
+        new TraceBuffer(new BufferLimits(2, Integer.MAX_VALUE, LoadSheddingPolicy.DROP_NEWEST));
+
+    assertThat(traceBuffer.put(trace("1", span(1)))).isEqualTo(0);
+    assertThat(traceBuffer.put(trace("2", span(2)))).isEqualTo(0);
+    assertThat(traceBuffer.put(trace("3", span(3)))).isEqualTo(1);
+    // Updates to buffered spans still fit.
+    assertThat(traceBuffer.put(trace("1", span(1).toBuilder().setName("a").build())))
+        .isEqualTo(0);
+
+    assertThat(traceBuffer.getSpanCount()).isEqualTo(2);
+    assertThat(traceBuffer.getTraces().getTracesCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testDropOldestTraces() {
+    TraceBuffer traceBuffer = new TraceBuffer(
+        new BufferLimits(2, Integer.MAX_VALUE, LoadSheddingPolicy.DROP_OLDEST_TRACES));
+
+    traceBuffer.put(trace("1", span(1)));
+    traceBuffer.put(trace("2", span(2)));
+    assertThat(traceBuffer.put(trace("3", span(3)))).isEqualTo(1);
+
+    Traces traces = traceBuffer.getTraces();
+    assertThat(traces.getTracesCount()).isEqualTo(2);
+    assertThat(traces.getTraces(0).getTraceId()).isEqualTo("2");
+    assertThat(traces.getTraces(1).getTraceId()).isEqualTo("3");
+    assertThat(traceBuffer.getSerializedSize()).isEqualTo(traces.getSerializedSize());
+  }
+
+  @Test
+  public void testDropPayloads() {
+    Trace small = trace("1", span(1));
+    TraceBuffer traceBuffer = new TraceBuffer(new BufferLimits(
+        10, new ProtoTraceSizer().size(small) * 2, LoadSheddingPolicy.DROP_PAYLOADS));
+
+    traceBuffer.put(small);
+    assertThat(traceBuffer.put(trace("2", TraceSpan.newBuilder()
+        .setSpanId(2)
+        .putLabels("/stacktrace", "a very long stack trace that does not fit into the buffer")
+        .build()))).isEqualTo(0);
+
+    Traces traces = traceBuffer.getTraces();
+    assertThat(traces.getTracesCount()).isEqualTo(2);
+    assertThat(traces.getTraces(1).getSpans(0).getLabelsMap()).isEmpty();
+  }
+
+  @Test
+  public void testRemoveTrace() {
+    TraceBuffer traceBuffer = new TraceBuffer();
+    traceBuffer.put(trace("1", span(1)));
+    traceBuffer.put(trace("2", span(2)));
+    traceBuffer.put(trace("1", span(3)));
+
+    Trace removed = traceBuffer.removeTrace("project", "1");
+
+    assertThat(removed.getSpansCount()).isEqualTo(2);
+    assertThat(traceBuffer.removeTrace("project", "1")).isNull();
+    assertThat(traceBuffer.getSpanCount()).isEqualTo(1);
+    Traces traces = traceBuffer.getTraces();
+    assertThat(traces.getTracesCount()).isEqualTo(1);
+    assertThat(traceBuffer.getSerializedSize()).isEqualTo(traces.getSerializedSize());
+  }
+
+  @Test
+  public void testCombinesTracesByProjectAndTraceId() {
+    TraceBuffer traceBuffer = new TraceBuffer();
+    String apiTraceId = "0123456789abcdef0123456789abcdef";
+    traceBuffer.put(trace(apiTraceId, span(1)));
+    traceBuffer.put(trace(new String(apiTraceId), span(2)));
+    // Upper case hexadecimal digits aren't in the API format, so they are a different trace.
+    traceBuffer.put(trace(apiTraceId.toUpperCase(), span(3)));
+    traceBuffer.put(Trace.newBuilder()
+        .setProjectId("other")
+        .setTraceId(apiTraceId)
+        .addSpans(span(4))
+        .build());
+
+    Traces traces = traceBuffer.getTraces();
+    assertThat(traces.getTracesCount()).isEqualTo(3);
+    assertThat(traces.getTraces(0).getSpansCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testReleaseEmptiesBufferForReuse() {
+    TraceBuffer traceBuffer = new TraceBuffer();
+    for (int i = 0; i < 100; i++) {
+      traceBuffer.put(trace(Integer.toString(i), span(1)));
+    }
+    traceBuffer.removeTrace("project", "50");
+
+    traceBuffer.release();
+
+    assertThat(traceBuffer.isEmpty()).isTrue();
+    assertThat(traceBuffer.getSpanCount()).isEqualTo(0);
+    assertThat(traceBuffer.getSerializedSize()).isEqualTo(0);
+    traceBuffer.put(trace("1", span(2)));
+    assertThat(traceBuffer.getTraces())
+        .isEqualTo(Traces.newBuilder().addTraces(trace("1", span(2))).build());
+  }
+
+  @Test
+  public void testSpansPastTraceCapsAreDroppedAndMarked() {
+    TraceBuffer traceBuffer = new TraceBuffer(new BufferLimits(
+        Integer.MAX_VALUE, Integer.MAX_VALUE, LoadSheddingPolicy.DROP_NEWEST, 2, 1024));
+
+    assertThat(traceBuffer.put(trace("1", span(1)))).isEqualTo(0);
+    assertThat(traceBuffer.put(trace("1", span(2)))).isEqualTo(0);
+    assertThat(traceBuffer.put(trace("1", span(3)))).isEqualTo(1);
+    // Updates of buffered spans and spans of other traces are still accepted.
+    assertThat(traceBuffer.put(trace("1", span(2)))).isEqualTo(0);
+    assertThat(traceBuffer.put(trace("2", span(3)))).isEqualTo(0);
+
+    Traces traces = traceBuffer.getTraces();
+    assertThat(traces.getTraces(0).getSpansCount()).isEqualTo(2);
+    assertThat(traces.getTraces(0).getSpans(0).getLabelsMap())
+        .containsEntry(TraceBuffer.TRUNCATED_LABEL, "true");
+    assertThat(traces.getTraces(1).getSpans(0).getLabelsCount()).isEqualTo(0);
+    assertThat(traceBuffer.getSerializedSize()).isEqualTo(traces.getSerializedSize());
+  }
+
+  private static TraceSpan span(long spanId) {
+    return TraceSpan.newBuilder().setSpanId(spanId).build();
+  }
+
+  private static Trace trace(String traceId, TraceSpan span) {
+    return Trace.newBuilder().setProjectId("project").setTraceId(traceId).addSpans(span).build();
+  }
+}
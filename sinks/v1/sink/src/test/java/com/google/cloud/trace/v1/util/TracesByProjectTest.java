@@ -0,0 +1,58 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.trace.v1.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.cloudtrace.v1.Trace;
+import com.google.devtools.cloudtrace.v1.Traces;
+import java.util.Map;
+import org.junit.Test;
+
+public class TracesByProjectTest {
+
+  @Test
+  public void testSingleProject() {
+    Traces traces = Traces.newBuilder()
+        .addTraces(Trace.newBuilder().setProjectId("1").setTraceId("1"))
+        .addTraces(Trace.newBuilder().setProjectId("1").setTraceId("2"))
+        .build();
+
+    Map<String, Traces> projectTraces = TracesByProject.split(traces);
+
+    assertThat(projectTraces).hasSize(1);
+    assertThat(projectTraces.get("1")).isSameAs(traces);
+  }
+
+  @Test
+  public void testSplitsByProject() {
+    Trace trace1 = Trace.newBuilder().setProjectId("2").setTraceId("1").build();
+    Trace trace2 = Trace.newBuilder().setProjectId("1").setTraceId("2").build();
+    Trace trace3 = Trace.newBuilder().setProjectId("2").setTraceId("3").build();
+    Traces traces =
+        Traces.newBuilder().addTraces(trace1).addTraces(trace2).addTraces(trace3).build();
+
+    Map<String, Traces> projectTraces = TracesByProject.split(traces);
+
+    assertThat(projectTraces.keySet()).containsExactly("2", "1").inOrder();
+    assertThat(projectTraces.get("2").getTracesList()).containsExactly(trace1, trace3).inOrder();
+    assertThat(projectTraces.get("1").getTracesList()).containsExactly(trace2);
+  }
+
+  @Test
+  public void testEmpty() {
+    assertThat(TracesByProject.split(Traces.getDefaultInstance())).isEmpty();
+  }
+}